@@ -1,5 +1,6 @@
 package edu.umn.dcsg;
 
+import edu.umn.dcsg.common.BinaryPayload;
 import edu.umn.dcsg.common.Config;
 import edu.umn.dcsg.common.GenericPayload;
 import edu.umn.dcsg.common.TraceInfo;
@@ -40,33 +41,33 @@ public class DeviceSimulator
         return mWindowNumber;
     }
 
-    public List<GenericPayload> nextTuple()
+    public List<BinaryPayload> nextTuple()
     {
         final int winDuration = Config.getTrace().mWindowDuration;
         final int numWindows = Config.getTrace().mNumWindows;
 
-        List<GenericPayload> payloads = new ArrayList<GenericPayload>();
+        List<BinaryPayload> payloads = new ArrayList<BinaryPayload>();
 
         if(mSamplesGenerated == 0)
         {
-            payloads.add(new GenericPayload(GenericPayload.TYPE_HEADER));
+            payloads.add(new BinaryPayload(GenericPayload.TYPE_HEADER));
         }
 
         if(mSamplesGenerated < mWindowData.size())
         {
-            GenericPayload payload = new GenericPayload(GenericPayload.TYPE_TUPLE);
             StreamTuple dataPoint = mWindowData.get(mSamplesGenerated);
-
-            payload.setStreamId(dataPoint.mStreamId.toString());
-            payload.setValue(Double.toString(dataPoint.mValue));
-            payload.setTime(Long.toString(dataPoint.mTime % winDuration));
+            BinaryPayload payload = new BinaryPayload(GenericPayload.TYPE_TUPLE,
+                                                      dataPoint.mStreamId,
+                                                      dataPoint.mValue,
+                                                      dataPoint.mTime % winDuration,
+                                                      "");
             payloads.add(payload);
 
             mSamplesGenerated++;
         }
         else if(mSamplesGenerated == mWindowData.size())
         {
-            payloads.add(new GenericPayload(GenericPayload.TYPE_TRAILER));
+            payloads.add(new BinaryPayload(GenericPayload.TYPE_TRAILER));
             mSamplesGenerated = 0;
 
             if(!pReadWindow() || mWindowNumber > numWindows)
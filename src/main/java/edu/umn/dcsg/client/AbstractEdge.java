@@ -1,10 +1,14 @@
 package edu.umn.dcsg.client;
 
+import edu.umn.dcsg.common.BinaryPayload;
 import edu.umn.dcsg.common.Config;
 import edu.umn.dcsg.common.GenericPayload;
 import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.PredictorGraph;
 import edu.umn.dcsg.common.RegModel;
+import edu.umn.dcsg.common.SampleFrame;
 import edu.umn.dcsg.common.StreamTuple;
+import edu.umn.dcsg.common.ValueQuantizer;
 
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -12,6 +16,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
@@ -23,24 +31,109 @@ public abstract class AbstractEdge
 {
     protected Object             mLock;
     protected TTLDataCache       mDataCache;
+    protected StripedIngestBuffer mIngestBuffer;
+    protected ExecutorService    mFlushExecutor;
     protected int                mWindowId;
-    protected int                mTotalObservedPoints;
-    protected double             mAllowedCost;
+
+    // Names this edge in its headers, so the cloud can tell its windows
+    // apart from those of other edges
+    protected int                mEdgeId;
+
+    // Window being batched by the flushing thread (frame mode only)
+    protected SampleFrame        mFrame;
+
+    // Header and models held back until the window's predictor graph is
+    // complete, i.e. until its first sample (payload mode only). The graph
+    // starts out with every stream of the window.
+    protected BinaryPayload      mPendingHeader;
+    protected List<BinaryPayload> mPendingModels;
+    protected PredictorGraph     mPendingGraph;
+
+    // Whether the cloud has seen the header of the window being flushed but
+    // not yet its trailer
+    protected boolean            mWindowOpen;
+
+    // Quantization grids of the window being flushed, and the samples as
+    // they were before quantization (quantization mode only)
+    protected Map<Integer, ValueQuantizer> mQuantizers;
+    protected SampleFrame        mExactSamples;
+
+    // Previous window's solver output (warm start for the next window)
+    protected double[]           mLastAllocation;
+    protected List<Integer>      mLastAllocationIds;
+
+    // Updated by whichever thread processes a window
+    protected volatile int       mTotalObservedPoints;
+    protected volatile double    mAllowedCost;
 
     public AbstractEdge()
     {
         mLock = new Object();
         mDataCache = new TTLDataCache();
+        mIngestBuffer = null;
+        mFlushExecutor = null;
         mWindowId = 1;
+        mEdgeId = 0;
+        mFrame = null;
+        mPendingHeader = null;
+        mPendingModels = null;
+        mPendingGraph = null;
+        mWindowOpen = false;
+        mQuantizers = null;
+        mExactSamples = null;
+        mLastAllocation = null;
+        mLastAllocationIds = null;
         mTotalObservedPoints = 0;
         mAllowedCost = 0;
+
+        if(Config.USE_STRIPED_INGEST)
+        {
+            mIngestBuffer = new StripedIngestBuffer(Config.INGEST_STRIPES, mDataCache);
+        }
+
+        if(Config.USE_BACKGROUND_FLUSH)
+        {
+            // A single thread keeps windows (and their header/trailer pairs)
+            // in order on the way out.
+            mFlushExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "edge-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     // Each implementation will need to determine how to forward data
-    protected abstract void pSendPayload(final GenericPayload gp);
+    protected abstract void pSendPayload(final BinaryPayload bp);
 
     // Each implementation can implement its own handler
-    protected abstract void pHandleTuple(final GenericPayload gp);
+    protected abstract void pHandleTuple(final BinaryPayload bp);
+
+    // Implementations that can forward a whole frame override this
+    protected void pSendFrame(final SampleFrame frame)
+    {
+        for(BinaryPayload payload : frame.toPayloads())
+        {
+            pSendPayload(payload);
+            mWindowOpen = !payload.isTrailer();
+        }
+    }
+
+    // Simulation only: the window's samples before quantization, so the
+    // cloud can measure the error it added. Called before the trailer.
+    protected void pSendExactSamples(final SampleFrame exactSamples)
+    {
+    }
+
+    public void setEdgeId(int edgeId)
+    {
+        mEdgeId = edgeId;
+    }
+
+    public int getEdgeId()
+    {
+        return mEdgeId;
+    }
 
     public double getTotalPoints()
     {
@@ -54,67 +147,323 @@ public abstract class AbstractEdge
 
     public void flush()
     {
+        if(mFlushExecutor != null)
+        {
+            pFlushInBackground();
+            return;
+        }
+
         synchronized (mLock)
         {
-            pForwardSamplesLocked();
-            mDataCache.clear();
+            if(mIngestBuffer != null)
+            {
+                mIngestBuffer.drainTo(mDataCache);
+            }
+
+            try
+            {
+                pForwardSamples(mDataCache, mWindowId);
+            }
+            catch(RuntimeException e)
+            {
+                pAbortWindow(mWindowId);
+                throw e;
+            }
+            finally
+            {
+                mDataCache.clear();
+                mWindowId++;
+            }
+        }
+    }
+
+    // Blocks until every window closed so far has been forwarded
+    public void awaitFlushes()
+    {
+        if(mFlushExecutor == null) return;
+
+        try {
+            mFlushExecutor.submit(() -> {}).get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void shutdown()
+    {
+        if(mFlushExecutor == null) return;
+
+        mFlushExecutor.shutdown();
+        try {
+            mFlushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Swaps in a fresh cache for the next window and processes the closed
+    // one on the flush executor, so ingestion only waits for the swap.
+    protected void pFlushInBackground()
+    {
+        final TTLDataCache closedCache;
+        final int closedWindowId;
+        final List<TTLDataCache> pending;
+
+        synchronized (mLock)
+        {
+            closedCache = mDataCache;
+            closedWindowId = mWindowId;
+            pending = (mIngestBuffer != null) ? mIngestBuffer.detach() : null;
+
+            mDataCache = closedCache.newWindowCache();
             mWindowId++;
         }
+
+        mFlushExecutor.submit(() -> {
+            try {
+                if(pending != null)
+                {
+                    StripedIngestBuffer.mergeInto(pending, closedCache);
+                }
+
+                pForwardSamples(closedCache, closedWindowId);
+            } catch(RuntimeException e) {
+                System.err.println("Failed to flush window " + closedWindowId);
+                e.printStackTrace();
+                pAbortWindow(closedWindowId);
+            } finally {
+                closedCache.clear();
+            }
+        });
+    }
+
+    // Drops what is left of a window whose flush failed, so none of it leaks
+    // into the next one. If the cloud has already seen the window's header,
+    // a trailer without aggregates closes it there.
+    protected void pAbortWindow(final int windowId)
+    {
+        final boolean open = mWindowOpen;
+
+        mFrame = null;
+        mPendingHeader = null;
+        mPendingModels = null;
+        mPendingGraph = null;
+        mExactSamples = null;
+        mQuantizers = null;
+        mWindowOpen = false;
+
+        if(!open) return;
+
+        try {
+            BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+            trailer.setWindow(mEdgeId, windowId);
+            pSendPayload(trailer);
+        } catch(RuntimeException e) {
+            System.err.println("Failed to close window " + windowId);
+            e.printStackTrace();
+        }
     }
 
-    protected void pInsertValue(final GenericPayload payload)
+    protected void pInsertValue(final BinaryPayload payload)
     {
-        String streamId = payload.getStreamId();
-        double value = Double.parseDouble(payload.getValue());
-        long time = Long.parseLong(payload.getTime());
-        String metadata = payload.getMetadata();
+        final int streamId = payload.getStreamId();
+        final double value = payload.getValue();
+        final long time = payload.getTime();
+        final String metadata = payload.getText();
+
+        // Striped appends never wait on mLock, not even during a flush
+        if(mIngestBuffer != null)
+        {
+            mIngestBuffer.append(streamId, value, time, metadata);
+            return;
+        }
 
         synchronized(mLock)
         {
-            mDataCache.insert(Integer.parseInt(streamId), value, time, metadata);
+            mDataCache.insert(streamId, value, time, metadata);
         }
     }
 
-    protected void pWriteWindowHeader()
+    protected void pWriteWindowHeader(final TTLDataCache dataCache, final int windowId)
     {
-        GenericPayload header = new GenericPayload(GenericPayload.TYPE_HEADER);
-        pSendPayload(header);
+        if(Config.USE_QUANTIZATION)
+        {
+            pBuildQuantizers(dataCache, windowId);
+        }
+
+        if(Config.USE_SAMPLE_FRAMES)
+        {
+            // The frame itself marks the start of the window
+            mFrame = new SampleFrame();
+            mFrame.setWindow(mEdgeId, windowId);
+            if(mQuantizers != null)
+            {
+                for(Map.Entry<Integer, ValueQuantizer> entry : mQuantizers.entrySet())
+                {
+                    mFrame.setQuantizer(entry.getKey(), entry.getValue());
+                }
+            }
+            return;
+        }
+
+        mPendingHeader = new BinaryPayload(GenericPayload.TYPE_HEADER);
+        mPendingHeader.setWindow(mEdgeId, windowId);
+        mPendingModels = new ArrayList<BinaryPayload>();
+        mPendingGraph = new PredictorGraph();
+        for(Integer streamId : dataCache.getStreamIds())
+        {
+            mPendingGraph.addStream(streamId);
+        }
     }
 
-    protected void pWriteWindowTrailer()
+    // Sends the header, announcing the window's predictor graph (see
+    // PredictorAwareGrouping), followed by the models it was built from
+    protected void pFlushWindowHeader()
     {
-        GenericPayload trailer = new GenericPayload(GenericPayload.TYPE_TRAILER);
-        trailer.setValue(mDataCache.exactAggregatesToString());
+        if(mPendingHeader == null) return;
+
+        for(BinaryPayload model : mPendingModels)
+        {
+            mPendingGraph.add(model.getStreamId(), model.getModel().getPredictorId());
+        }
+        mPendingHeader.setText(mPendingGraph.toString());
+
+        pSendPayload(mPendingHeader);
+        mWindowOpen = true;
+        for(BinaryPayload model : mPendingModels)
+        {
+            pSendPayload(model);
+        }
+
+        mPendingHeader = null;
+        mPendingModels = null;
+        mPendingGraph = null;
+    }
+
+    protected void pWriteWindowTrailer(final TTLDataCache dataCache, final int windowId)
+    {
+        if(mExactSamples != null)
+        {
+            pSendExactSamples(mExactSamples);
+            mExactSamples = null;
+            mQuantizers = null;
+        }
+
+        if(mFrame != null)
+        {
+            final SampleFrame frame = mFrame;
+            mFrame = null;
+
+            frame.setAggregates(dataCache.exactAggregatesToString());
+            pSendFrame(frame);
+            return;
+        }
+
+        pFlushWindowHeader();
+
+        BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+        trailer.setWindow(mEdgeId, windowId);
+        trailer.setText(dataCache.exactAggregatesToString());
         pSendPayload(trailer);
+        mWindowOpen = false;
     }
 
     protected void pSendModel(Integer streamId, ModelInfo mInfo)
     {
-        GenericPayload payload = new GenericPayload(GenericPayload.TYPE_IMPUTATION_MODEL);
+        if(mFrame != null)
+        {
+            mFrame.addModel(streamId, mInfo);
+            return;
+        }
+
+        BinaryPayload payload = new BinaryPayload(GenericPayload.TYPE_IMPUTATION_MODEL);
+
+        payload.setStreamId(streamId);
+        payload.setModel(mInfo);
 
-        payload.setStreamId(streamId.toString());
-        payload.setValue(mInfo.toString());
+        if(mPendingModels != null)
+        {
+            mPendingModels.add(payload);
+            return;
+        }
         pSendPayload(payload);
     }
 
     protected void pSendSamples(List<StreamTuple> samples)
     {
+        if(mQuantizers != null)
+        {
+            mExactSamples.addSamples(samples);
+            samples = pQuantizeSamples(samples);
+        }
+
+        if(mFrame != null)
+        {
+            mFrame.addSamples(samples);
+            return;
+        }
+
+        pFlushWindowHeader();
         for(StreamTuple pair : samples)
         {
-            GenericPayload payload = new GenericPayload(GenericPayload.TYPE_TUPLE);
-            payload.setStreamId(pair.mStreamId.toString());
-            payload.setValue(pair.mValue.toString());
-            payload.setTime(pair.mTime.toString());
-            pSendPayload(payload);
+            pSendPayload(new BinaryPayload(GenericPayload.TYPE_TUPLE, pair.mStreamId,
+                                           pair.mValue, pair.mTime, ""));
+        }
+    }
+
+    // One grid per stream, spanning the stream's range this window
+    protected void pBuildQuantizers(final TTLDataCache dataCache, final int windowId)
+    {
+        mQuantizers = new HashMap<Integer, ValueQuantizer>();
+        mExactSamples = new SampleFrame();
+        mExactSamples.setWindow(mEdgeId, windowId);
+
+        for(Integer streamId : dataCache.getStreamIds())
+        {
+            final double[] range = dataCache.getValueRange(streamId);
+            if(range == null) continue;
+
+            final ValueQuantizer quantizer = ValueQuantizer.forRange(range[0], range[1],
+                                                                     Config.QUANTIZATION_ABS_ERROR,
+                                                                     Config.QUANTIZATION_REL_ERROR);
+            if(quantizer != null)
+            {
+                mQuantizers.put(streamId, quantizer);
+            }
         }
     }
 
-    protected void pForwardSamplesLocked()
+    protected List<StreamTuple> pQuantizeSamples(final List<StreamTuple> samples)
     {
-        pWriteWindowHeader();
+        List<StreamTuple> quantized = new ArrayList<StreamTuple>(samples.size());
+
+        for(StreamTuple sample : samples)
+        {
+            final ValueQuantizer quantizer = mQuantizers.get(sample.mStreamId);
+            if(quantizer == null)
+            {
+                quantized.add(sample);
+                continue;
+            }
+
+            quantized.add(new StreamTuple(sample.mStreamId, quantizer.quantize(sample.mValue),
+                                          sample.mTime, sample.mMetadata));
+        }
+
+        return quantized;
+    }
 
-        final int streamCount = mDataCache.getNumStreams();
-        final int samplesObserved = mDataCache.getTotalObservedValues().intValue();
+    // Samples, optimizes and emits one closed window. Runs on the caller's
+    // thread, or on the flush executor in background mode.
+    protected void pForwardSamples(final TTLDataCache dataCache, final int windowId)
+    {
+        FlushContext context = dataCache.beginFlush();
+        pWriteWindowHeader(dataCache, windowId);
+
+        final int streamCount = dataCache.getNumStreams();
+        final int samplesObserved = dataCache.getTotalObservedValues().intValue();
         mTotalObservedPoints += samplesObserved;
 
         double computedSampleCount = (((double)samplesObserved) * Config.SAMPLING_FRACTION);
@@ -122,7 +471,7 @@ public abstract class AbstractEdge
         mAllowedCost += samplesAllowed;
 
         LinearCostFunction[] costs = new LinearCostFunction[streamCount];
-        List<Integer> streamIds = mDataCache.getStreamIds();
+        List<Integer> streamIds = dataCache.getStreamIds();
         double[] costReal = new double[streamCount];
 
         final double mid = (double)streamCount / 2.0;
@@ -134,16 +483,17 @@ public abstract class AbstractEdge
 
         if(Config.STRATEGY == Config.SRS_STRATEGY)
         {
-            List<StreamTuple> samples = mDataCache.getSimpleRandomSample((int)samplesAllowed);
+            List<StreamTuple> samples = dataCache.getSimpleRandomSample((int)samplesAllowed);
             pSendSamples(samples);
         }
         else if(Config.STRATEGY == Config.STRATIFIED_EVEN_STRATEGY)
         {
             int[] sampleSizes2 = SampleSizeCalculator.getProportionalAllocation(samplesAllowed,
-                                                                                mDataCache.getObservedCountByStreamDouble());
+                                                                                dataCache.getPopulationSizeByStream(),
+                                                                                dataCache.getObservedCountByStreamDouble());
             for(int i=0; i < streamCount; i++)
             {
-                List<StreamTuple> samples = mDataCache.getSampleForStream(streamIds.get(i),
+                List<StreamTuple> samples = dataCache.getSampleForStream(streamIds.get(i),
                                                                         (int)Math.round(sampleSizes2[i]));
                 if(samples != null)
                 {
@@ -154,12 +504,13 @@ public abstract class AbstractEdge
         else if(Config.STRATEGY == Config.NEYMAN_STRATEGY)
         {
             int[] sampleSizes2 = SampleSizeCalculator.getOptimalAllocation((double)samplesAllowed,
-                                                                           mDataCache.getObservedCountByStreamDouble(),
-                                                                           mDataCache.getStreamVariances(),
-                                                                           costs);
+                                                                           dataCache.getPopulationSizeByStream(),
+                                                                           dataCache.getStreamVariances(),
+                                                                           costs,
+                                                                           dataCache.getObservedCountByStreamDouble());
             for(int i=0; i < streamCount; i++)
             {
-                List<StreamTuple> samples = mDataCache.getSampleForStream(streamIds.get(i),
+                List<StreamTuple> samples = dataCache.getSampleForStream(streamIds.get(i),
                                                                         (int)Math.round(sampleSizes2[i]));
                 if(samples != null)
                 {
@@ -169,13 +520,14 @@ public abstract class AbstractEdge
         }
         else if(Config.STRATEGY == Config.IMPUTATION_STRATEGY)
         {
-            double[] means = mDataCache.getStreamMeans();
-            double[] variance = mDataCache.getStreamVariances();
-            double[] vBounds = mDataCache.generateVBounds();
-            int[] predictors = mDataCache.getPredictors();
+            double[] means = dataCache.getStreamMeans();
+            double[] variance = dataCache.getStreamVariances();
+            double[] vBounds = dataCache.generateVBounds();
+            int[] predictors = dataCache.getPredictors();
             double[] sCosts = new double[variance.length];
-            long[] popSizes = mDataCache.getObservedCountByStream();
-            double[] sECV = mDataCache.getExpectedConditionalVariance(predictors);
+            long[] popSizes = dataCache.getPopulationCountByStream();
+            long[] capacities = dataCache.getObservedCountByStream();
+            double[] sECV = dataCache.getExpectedConditionalVariance(predictors);
 
             for(int i=0; i < variance.length; i++)
             {
@@ -183,20 +535,29 @@ public abstract class AbstractEdge
             }
 
             OptimizationParms optParms = new OptimizationParms((double)samplesAllowed,
-                                          popSizes, predictors,
-                                          mDataCache.getDependenceForPredictors(),
+                                          popSizes, capacities, predictors,
+                                          dataCache.getDependenceForPredictors(),
                                           sCosts, means, variance, vBounds, sECV);
 
             OptimizationSolver solver = new OptimizationSolver(optParms);
+            if(streamIds.equals(mLastAllocationIds))
+            {
+                solver.setWarmStart(mLastAllocation);
+            }
             double[] ssizes = null;
 
+            final long optStart = System.nanoTime();
             try {
                 ssizes = solver.compute((double)samplesAllowed);
             } catch(Exception e) {
                 System.err.println("Encountered unexpected exception during optimization.");
                 System.err.println(e);
-                System.exit(1);
+                ssizes = solver.getFallbackAllocation();
             }
+            context.recordPhase("optimization", System.nanoTime() - optStart);
+
+            mLastAllocation = ssizes.clone();
+            mLastAllocationIds = new ArrayList<Integer>(streamIds);
 
             int streamIdx = 0;
             for(Integer streamId : streamIds)
@@ -207,7 +568,7 @@ public abstract class AbstractEdge
 
                 if(numPredictions > 0)
                 {
-                    RegModel reg = mDataCache.getPredictiveModel(streamIds.get(streamIdx),
+                    RegModel reg = dataCache.getPredictiveModel(streamIds.get(streamIdx),
                                                                  streamIds.get(predictor));
                     if(reg != null)
                     {
@@ -230,12 +591,19 @@ public abstract class AbstractEdge
             for(int i=0; i < streamCount; i++)
             {
                 int ss = (int) Math.round(ssizes[i]);
-                List<StreamTuple> samples = mDataCache.getSampleForStream(streamIds.get(i), ss);
+                List<StreamTuple> samples = dataCache.getSampleForStream(streamIds.get(i), ss);
                 edgeSamplesSent += samples.size();
                 pSendSamples(samples);
             }
         }
 
-        pWriteWindowTrailer();
+        pWriteWindowTrailer(dataCache, windowId);
+
+        dataCache.endFlush();
+        if(Config.REPORT_FLUSH_TIMINGS)
+        {
+            System.out.println("Window " + windowId + " flush phases:");
+            System.out.print(context.toString());
+        }
     }
 }
\ No newline at end of file
@@ -22,6 +22,17 @@ public class DependenceEstimator
         double[] newx = interpolate(x, xTimes, length);
         double[] newy = interpolate(y, yTimes, length);
 
+        return getLinearDependence(newx, newy);
+    }
+
+    // Series that have already been interpolated onto the same grid
+    public static double getLinearDependence(final double[] newx, final double[] newy)
+    {
+        if(newx.length == 1)
+        {
+            return 0.0;
+        }
+
         double corr = Math.abs((new PearsonsCorrelation()).correlation(newx, newy));
         if(Double.isNaN(corr)) {
             return 0.0; // Probably a variance of zero in X or Y
@@ -43,6 +54,17 @@ public class DependenceEstimator
         double[] newx = interpolate(x, xTimes, length);
         double[] newy = interpolate(y, yTimes, length);
 
+        return getMonotonicDependence(newx, newy);
+    }
+
+    // Series that have already been interpolated onto the same grid
+    public static double getMonotonicDependence(final double[] newx, final double[] newy)
+    {
+        if(newx.length == 1)
+        {
+            return 0.0;
+        }
+
         double corr = Math.abs((new SpearmansCorrelation()).correlation(newx, newy));
         if(Double.isNaN(corr)) {
             return 0.0; // Probably a variance of zero in X or Y
@@ -1,6 +1,8 @@
 package edu.umn.dcsg.client;
 
-import edu.umn.dcsg.common.GenericPayload;
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.BinaryPayloadSerializer;
+import edu.umn.dcsg.common.SampleFrame;
 
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -48,16 +50,17 @@ public class EdgeBolt extends AbstractEdge implements IRichBolt
     public void prepare(Map conf, TopologyContext context, OutputCollector collector)
     {
         mCollector = collector;
+        setEdgeId(context.getThisTaskId());
     }
 
     @Override
     public void execute(Tuple tuple)
     {
-        GenericPayload payload = new GenericPayload(tuple);
+        BinaryPayload payload = BinaryPayload.fromTuple(tuple);
         pHandleTuple(payload);
     }
 
-    protected void pHandleTuple(final GenericPayload gp)
+    protected void pHandleTuple(final BinaryPayload gp)
     {
         if(gp.isTuple())
         {
@@ -66,20 +69,34 @@ public class EdgeBolt extends AbstractEdge implements IRichBolt
     }
 
     @Override
-    public void cleanup() {}
+    public void cleanup()
+    {
+        mWindowTimer.cancel();
+        shutdown();
+    }
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-        declarer.declare(GenericPayload.getOutputFields());
+        declarer.declare(BinaryPayload.getOutputFields());
     }
         
+    // Storm merges the Kryo registrations of every component into the
+    // topology's config, so any topology using this bolt ships payloads
+    // and frames with their binary serializers
     @Override
     public Map<String, Object> getComponentConfiguration() {
-        return null;
+        org.apache.storm.Config conf = new org.apache.storm.Config();
+        BinaryPayloadSerializer.register(conf);
+        return conf;
+    }
+
+    protected void pSendPayload(final BinaryPayload gp)
+    {
+        mCollector.emit(gp.toValues());
     }
 
-    protected void pSendPayload(final GenericPayload gp)
+    protected void pSendFrame(final SampleFrame frame)
     {
-        mCollector.emit(gp);
+        mCollector.emit(frame.toValues());
     }
 }
\ No newline at end of file
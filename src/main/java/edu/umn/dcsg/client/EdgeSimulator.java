@@ -1,6 +1,9 @@
 package edu.umn.dcsg.client;
 
-import edu.umn.dcsg.common.GenericPayload;
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.GorillaCodec;
+import edu.umn.dcsg.common.SampleFrame;
 import edu.umn.dcsg.common.SimulationHandler;
 
 public class EdgeSimulator extends AbstractEdge implements SimulationHandler
@@ -16,12 +19,12 @@ public class EdgeSimulator extends AbstractEdge implements SimulationHandler
     }
 
     // Simulator function for input data. Storm has execute() function.
-    public void handleEvent(final GenericPayload payload)
+    public void handleEvent(final BinaryPayload payload)
     {
         pHandleTuple(payload);
     }
 
-    protected void pHandleTuple(final GenericPayload gp)
+    protected void pHandleTuple(final BinaryPayload gp)
     {
         if(gp.isTuple())
         {
@@ -33,8 +36,25 @@ public class EdgeSimulator extends AbstractEdge implements SimulationHandler
         }
     }
 
-    protected void pSendPayload(final GenericPayload gp)
+    protected void pSendPayload(final BinaryPayload gp)
     {
-        mUpstreamHandler.handleEvent(gp);
+        mUpstreamHandler.handleEvent(mEdgeId, gp);
+    }
+
+    protected void pSendExactSamples(final SampleFrame exactSamples)
+    {
+        mUpstreamHandler.handleExactSamples(exactSamples);
+    }
+
+    protected void pSendFrame(final SampleFrame frame)
+    {
+        if(Config.USE_FRAME_COMPRESSION)
+        {
+            mUpstreamHandler.handleEncodedFrame(GorillaCodec.encode(frame));
+        }
+        else
+        {
+            mUpstreamHandler.handleFrame(frame);
+        }
     }
 }
@@ -0,0 +1,114 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.RegModel;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per-window memo for work that is shared between the phases of a flush.
+//
+// A context is opened by TTLDataCache.beginFlush() and lives until the
+// matching endFlush() (or the next insert). While it is open the cache hands
+// out the memoized sorted ids, interpolated arrays, dependence matrix and
+// fitted models instead of recomputing them, and records how much time each
+// phase spent and how often a result was reused.
+public class FlushContext
+{
+    protected static class PhaseTiming
+    {
+        public long mNanos;
+        public int  mComputed;
+        public int  mReused;
+    }
+
+    protected List<Integer>             mSortedIds;
+    protected double[][]                mDependence;
+    protected int[]                     mPredictors;
+    protected double[]                  mPredictorDependence;
+    protected Map<Long, double[]>       mInterpolated;
+    protected Map<Long, RegModel>       mModels;
+    protected Map<String, PhaseTiming>  mTimings;
+
+    public FlushContext()
+    {
+        mSortedIds = null;
+        mDependence = null;
+        mPredictors = null;
+        mPredictorDependence = null;
+        // Filled concurrently when the flush runs on a ParallelFlushEngine
+        mInterpolated = new ConcurrentHashMap<Long, double[]>();
+        mModels = new HashMap<Long, RegModel>();
+        mTimings = new LinkedHashMap<String, PhaseTiming>();
+    }
+
+    public void recordPhase(String phase, long nanos)
+    {
+        PhaseTiming timing = pGetTiming(phase);
+        timing.mNanos += nanos;
+        timing.mComputed++;
+    }
+
+    public void recordReuse(String phase)
+    {
+        pGetTiming(phase).mReused++;
+    }
+
+    public long getPhaseNanos(String phase)
+    {
+        PhaseTiming timing = mTimings.get(phase);
+        return (timing == null) ? 0 : timing.mNanos;
+    }
+
+    public int getReuseCount(String phase)
+    {
+        PhaseTiming timing = mTimings.get(phase);
+        return (timing == null) ? 0 : timing.mReused;
+    }
+
+    public long getTotalNanos()
+    {
+        long total = 0;
+        for(PhaseTiming timing : mTimings.values())
+        {
+            total += timing.mNanos;
+        }
+        return total;
+    }
+
+    public String toString()
+    {
+        StringBuilder sBuilder = new StringBuilder();
+
+        for(Map.Entry<String, PhaseTiming> entry : mTimings.entrySet())
+        {
+            final PhaseTiming timing = entry.getValue();
+
+            sBuilder.append(String.format("  %-14s %10.3f ms  computed: %-5d reused: %d%n",
+                                          entry.getKey(),
+                                          timing.mNanos / 1.0e6,
+                                          timing.mComputed,
+                                          timing.mReused));
+        }
+
+        return sBuilder.toString();
+    }
+
+    protected static long pGetKey(int first, int second)
+    {
+        return (((long)first) << 32) | (((long)second) & 0xFFFFFFFFL);
+    }
+
+    protected PhaseTiming pGetTiming(String phase)
+    {
+        PhaseTiming timing = mTimings.get(phase);
+        if(timing == null)
+        {
+            timing = new PhaseTiming();
+            mTimings.put(phase, timing);
+        }
+        return timing;
+    }
+}
@@ -0,0 +1,405 @@
+package edu.umn.dcsg.client;
+
+import java.util.Arrays;
+
+// In-process solver for the problem described in src/main/py/opt.py:
+//
+//   minimize    sum_i ERR_i / (x_i + y_i),  ERR_i = max(0.001, VAR_i / (1 + |MEAN_i|))
+//   subject to  sum_i c_i x_i + #{i : y_i > 0.5} = C
+//               y_i <= x_PRED(i) / 1.01
+//               x_i + y_i >= 1.01
+//               V_i x_i >= (ECV_i - V_i)(y_i + 0.5)
+//               0 <= x_i <= OBS_i,  0 <= y_i <= OBS_PRED(i)
+//
+// Predicted values (y) do not consume budget beyond the one unit charged
+// for sending a model, so for a fixed set of modelled streams every y_i is
+// best set to the largest value the constraints allow given x. That leaves
+// a convex problem in x over a scaled simplex, which is solved with
+// projected gradient descent. Streams whose model is not worth its unit of
+// budget at the optimum are dropped and the remaining problem is re-solved.
+//
+// x_i + y_i >= 1.01 and the variation bound turn into lower bounds on x_i
+// once y_i is at its largest value: a stream with a good model may take
+// fewer than 1.01 real samples, as in opt.py. The bound from the predictor
+// limit depends on x_PRED(i), so it is taken from the previous round and
+// the rounds continue until x satisfies the bounds it produces.
+//
+// Two deliberate departures from opt.py:
+//   - opt.py does not charge for y_i <= 0.5, so it may hand out up to half
+//     a prediction per stream for free. Here a stream without a model gets
+//     no predictions.
+//   - When the lower bounds alone do not fit in the budget opt.py has no
+//     feasible point. Here the bounds are scaled down to fit instead.
+//
+// The result has the same layout as the Python output: the real sample
+// sizes of every stream followed by their predicted sample sizes.
+public class JavaOptimizationSolver
+{
+    protected static final double   PREDICTOR_MARGIN = 1.01;
+    protected static final double   MIN_TOTAL = 1.01;
+    protected static final double   MIN_PREDICTIONS = 0.5;
+    protected static final int      MAX_ITERATIONS = 500;
+    protected static final int      MAX_ROUNDS = 8;
+    protected static final double   TOLERANCE = 1e-10;
+
+    protected final OptimizationParms   mParms;
+    protected final int                 mNumStreams;
+    protected final double[]            mErr;
+    protected final double[]            mLower;
+    protected final double[]            mUpper;
+    protected final double[]            mCosts;
+
+    // y_i <= mSlope_i * x_i - 0.5 when the variation bound applies, else +inf
+    protected final double[]            mSlope;
+
+    protected boolean[]                 mModelled;
+
+    public JavaOptimizationSolver(OptimizationParms parms)
+    {
+        mParms = parms;
+        mNumStreams = parms.mNumStreams;
+        mErr = new double[mNumStreams];
+        mLower = new double[mNumStreams];
+        mUpper = new double[mNumStreams];
+        mCosts = new double[mNumStreams];
+        mSlope = new double[mNumStreams];
+        mModelled = new boolean[mNumStreams];
+
+        for(int i=0; i < mNumStreams; i++)
+        {
+            final double weight = 1.0 / (1.0 + Math.abs(parms.mStrataMeans[i]));
+            mErr[i] = Math.max(0.001, weight * parms.mStrataVariance[i]);
+
+            mUpper[i] = (double)parms.mStrataCapacities[i];
+            mCosts[i] = (parms.mStrataCosts[i] > 0.0) ? parms.mStrataCosts[i] : 1.0;
+
+            final double vBound = parms.mVariationBounds[i];
+            final double excess = parms.mExpectedConditionalVariances[i] - vBound;
+            mSlope[i] = (excess > 0.0) ? (vBound / excess) : Double.POSITIVE_INFINITY;
+        }
+    }
+
+    public double[] compute(final double budget)
+    {
+        double[] result = new double[2 * mNumStreams];
+
+        double observed = 0.0;
+        for(int i=0; i < mNumStreams; i++) observed += mUpper[i];
+
+        if(observed <= budget)
+        {
+            for(int i=0; i < mNumStreams; i++) result[i] = mUpper[i];
+            return result;
+        }
+
+        if(budget <= mNumStreams)
+        {
+            Arrays.fill(result, 0, mNumStreams, 1.0);
+            return result;
+        }
+
+        // Start with a model for every stream that can have one
+        int modelCount = 0;
+        for(int i=0; i < mNumStreams; i++)
+        {
+            final int pred = mParms.mPredictorStream[i];
+            mModelled[i] = (pred >= 0 && pred != i && mParms.mStrataSizes[pred] > 0);
+            if(mModelled[i]) modelCount++;
+        }
+
+        double[] x = null;
+        boolean feasible = false;
+        for(int round=0; round < MAX_ROUNDS && !feasible; round++)
+        {
+            pUpdateLowerBounds(x, budget - modelCount);
+            final double realBudget = pGetRealBudget(budget, modelCount);
+            x = pSolveReal(realBudget, x);
+
+            final double[] y = pGetPredictions(x);
+            final double lambda = pGetMultiplier(x, y);
+
+            // Drop models that predict too little to count, or whose benefit
+            // does not pay for the unit of budget they use
+            int dropped = 0;
+            for(int i=0; i < mNumStreams; i++)
+            {
+                if(!mModelled[i]) continue;
+
+                final double benefit = mErr[i] / x[i] - mErr[i] / (x[i] + y[i]);
+                if(y[i] <= MIN_PREDICTIONS || benefit < lambda)
+                {
+                    mModelled[i] = false;
+                    dropped++;
+                }
+            }
+
+            modelCount -= dropped;
+            feasible = pSatisfiesLowerBounds(x, budget - modelCount) && dropped == 0;
+        }
+
+        // Out of rounds: keep the models, but meet their bounds
+        if(!feasible) x = pSolveReal(pGetRealBudget(budget, modelCount), x);
+
+        final double[] y = pGetPredictions(x);
+        for(int i=0; i < mNumStreams; i++)
+        {
+            result[i] = Math.max(x[i], 0.0);
+            result[mNumStreams + i] = mModelled[i] ? Math.max(y[i], 0.0) : 0.0;
+        }
+
+        return result;
+    }
+
+    // Smallest x_i for which x_i + y_i >= 1.01 and the variation bound can
+    // hold with y_i at its limit, using x from the previous round for the
+    // predictor limit (or the predictor's size before the first round).
+    // Scaled down together if they do not fit in the budget.
+    protected void pUpdateLowerBounds(double[] x, double budget)
+    {
+        double spent = 0.0;
+        for(int i=0; i < mNumStreams; i++)
+        {
+            // With y_i >= 0 the variation bound alone needs x_i >= 0.5 / slope
+            double lower = Double.isInfinite(mSlope[i]) ? 0.0 : 0.5 / mSlope[i];
+
+            if(!mModelled[i])
+            {
+                lower = Math.max(lower, MIN_TOTAL);
+            }
+            else
+            {
+                final int pred = mParms.mPredictorStream[i];
+                double limit = (double)mParms.mStrataSizes[pred];
+                if(x != null) limit = Math.min(limit, x[pred] / PREDICTOR_MARGIN);
+
+                lower = Math.max(lower, MIN_TOTAL - limit);
+                if(!Double.isInfinite(mSlope[i]))
+                {
+                    // x_i + (slope * x_i - 0.5) >= 1.01
+                    lower = Math.max(lower, (MIN_TOTAL + 0.5) / (1.0 + mSlope[i]));
+                }
+            }
+
+            mLower[i] = Math.min(lower, mUpper[i]);
+            spent += mCosts[i] * mLower[i];
+        }
+
+        if(spent > budget && spent > 0.0)
+        {
+            final double scale = Math.max(budget, 0.0) / spent;
+            for(int i=0; i < mNumStreams; i++) mLower[i] *= scale;
+        }
+    }
+
+    // Whether x is still within the lower bounds it implies for the next round
+    protected boolean pSatisfiesLowerBounds(double[] x, double budget)
+    {
+        pUpdateLowerBounds(x, budget);
+        for(int i=0; i < mNumStreams; i++)
+        {
+            if(x[i] < mLower[i] - 1e-6) return false;
+        }
+        return true;
+    }
+
+    // Whatever is left after the lower bounds and one unit per model, but
+    // never less than the lower bounds themselves
+    protected double pGetRealBudget(double budget, int modelCount)
+    {
+        double minimum = 0.0;
+        double maximum = 0.0;
+        for(int i=0; i < mNumStreams; i++)
+        {
+            minimum += mCosts[i] * mLower[i];
+            maximum += mCosts[i] * mUpper[i];
+        }
+
+        return Math.min(Math.max(budget - modelCount, minimum), maximum);
+    }
+
+    // Largest feasible prediction count for each modelled stream given x
+    protected double[] pGetPredictions(double[] x)
+    {
+        double[] y = new double[mNumStreams];
+
+        for(int i=0; i < mNumStreams; i++)
+        {
+            if(!mModelled[i]) continue;
+
+            final int pred = mParms.mPredictorStream[i];
+            double limit = Math.min((double)mParms.mStrataSizes[pred], x[pred] / PREDICTOR_MARGIN);
+            if(!Double.isInfinite(mSlope[i]))
+            {
+                limit = Math.min(limit, mSlope[i] * x[i] - 0.5);
+            }
+            y[i] = Math.max(limit, 0.0);
+        }
+
+        return y;
+    }
+
+    protected double pObjective(double[] x)
+    {
+        final double[] y = pGetPredictions(x);
+        double value = 0.0;
+        for(int i=0; i < mNumStreams; i++)
+        {
+            value += mErr[i] / (x[i] + y[i]);
+        }
+        return value;
+    }
+
+    // (Sub)gradient of the objective in x, following y through whichever of
+    // its limits is active
+    protected double[] pGradient(double[] x)
+    {
+        final double[] y = pGetPredictions(x);
+        double[] grad = new double[mNumStreams];
+
+        for(int i=0; i < mNumStreams; i++)
+        {
+            final double total = x[i] + y[i];
+            final double slope = -mErr[i] / (total * total);
+            grad[i] += slope;
+
+            if(!mModelled[i] || y[i] <= 0.0) continue;
+
+            final int pred = mParms.mPredictorStream[i];
+            final double byPredictor = x[pred] / PREDICTOR_MARGIN;
+            final double byVariation = Double.isInfinite(mSlope[i]) ? Double.POSITIVE_INFINITY
+                                                                    : mSlope[i] * x[i] - 0.5;
+            final double bySize = (double)mParms.mStrataSizes[pred];
+
+            if(byVariation <= byPredictor && byVariation <= bySize)
+            {
+                grad[i] += slope * mSlope[i];
+            }
+            else if(byPredictor <= bySize)
+            {
+                grad[pred] += slope / PREDICTOR_MARGIN;
+            }
+        }
+
+        return grad;
+    }
+
+    // Budget multiplier at x: the objective decrease per unit of budget
+    // spent on real samples, averaged over the streams not at a bound
+    protected double pGetMultiplier(double[] x, double[] y)
+    {
+        final double[] grad = pGradient(x);
+        double total = 0.0;
+        int count = 0;
+
+        for(int i=0; i < mNumStreams; i++)
+        {
+            if(x[i] <= mLower[i] + 1e-6 || x[i] >= mUpper[i] - 1e-6) continue;
+            total += -grad[i] / mCosts[i];
+            count++;
+        }
+
+        if(count == 0)
+        {
+            for(int i=0; i < mNumStreams; i++) total += -grad[i] / mCosts[i];
+            count = mNumStreams;
+        }
+
+        return total / count;
+    }
+
+    protected double[] pSolveReal(double realBudget, double[] start)
+    {
+        double[] x;
+        if(start == null)
+        {
+            // Proportional to the stratum sizes, like the Python start point
+            x = new double[mNumStreams];
+            for(int i=0; i < mNumStreams; i++) x[i] = mUpper[i];
+            x = pProject(x, realBudget);
+        }
+        else
+        {
+            x = pProject(start.clone(), realBudget);
+        }
+
+        double value = pObjective(x);
+        double step = 0.0;
+
+        for(int iter=0; iter < MAX_ITERATIONS; iter++)
+        {
+            final double[] grad = pGradient(x);
+
+            if(step == 0.0)
+            {
+                double norm = 0.0;
+                for(int i=0; i < mNumStreams; i++) norm = Math.max(norm, Math.abs(grad[i]));
+                if(norm == 0.0) break;
+                step = realBudget / (mNumStreams * norm);
+            }
+
+            // Backtracking: halve until the projected step improves
+            double[] candidate = null;
+            double candidateValue = value;
+            while(step > 1e-12)
+            {
+                candidate = new double[mNumStreams];
+                for(int i=0; i < mNumStreams; i++) candidate[i] = x[i] - step * grad[i];
+                candidate = pProject(candidate, realBudget);
+                candidateValue = pObjective(candidate);
+
+                if(candidateValue < value) break;
+                step *= 0.5;
+            }
+
+            if(candidateValue >= value) break;
+
+            final double improvement = value - candidateValue;
+            x = candidate;
+            value = candidateValue;
+            step *= 2.0;
+
+            if(improvement <= TOLERANCE * Math.max(1.0, Math.abs(value))) break;
+        }
+
+        return x;
+    }
+
+    // Euclidean projection onto { sum c_i x_i = budget, lower <= x <= upper }
+    // by bisection on the shift along c
+    protected double[] pProject(double[] z, double budget)
+    {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for(int i=0; i < mNumStreams; i++)
+        {
+            lo = Math.min(lo, (z[i] - mUpper[i]) / mCosts[i]);
+            hi = Math.max(hi, (z[i] - mLower[i]) / mCosts[i]);
+        }
+
+        for(int iter=0; iter < 100; iter++)
+        {
+            final double mid = 0.5 * (lo + hi);
+            double spent = 0.0;
+            for(int i=0; i < mNumStreams; i++)
+            {
+                spent += mCosts[i] * pClip(z[i] - mid * mCosts[i], i);
+            }
+
+            if(spent > budget) lo = mid;
+            else hi = mid;
+        }
+
+        final double shift = 0.5 * (lo + hi);
+        double[] x = new double[mNumStreams];
+        for(int i=0; i < mNumStreams; i++)
+        {
+            x[i] = pClip(z[i] - shift * mCosts[i], i);
+        }
+        return x;
+    }
+
+    protected double pClip(double value, int streamIdx)
+    {
+        return Math.min(Math.max(value, mLower[streamIdx]), mUpper[streamIdx]);
+    }
+}
@@ -0,0 +1,335 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.IncrementalRegModel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Maintains pairwise linear dependence incrementally as values are cached.
+//
+// Every stream is projected onto a shared time grid covering the window, and
+// values are placed the way the batch interpolation in DependenceEstimator
+// places them: a value landing in an occupied cell moves on to the next one,
+// replacing whatever is there, and values past the last cell are dropped.
+// Whenever a cell becomes occupied for both streams of a pair, that aligned
+// point is folded into the pair's running co-moments (and a replaced point
+// is taken out again). Reading the matrix at flush time is then O(k^2) and
+// never touches the raw samples.
+//
+// Cells that are only occupied for one of the streams are skipped rather than
+// interpolated, so pairs sampled on disjoint schedules can differ slightly
+// from the batch estimate. The batch code also treats a value of exactly zero
+// as an empty cell, which is not repeated here.
+//
+// The grid is fixed when the window starts (Config.DEPENDENCE_GRID_SIZE or
+// one cell per unit of window duration), while the batch code interpolates
+// each pair onto max(n_x, n_y) cells, which is only known at flush time and
+// differs from pair to pair. The online matrix therefore approximates the
+// batch one: they agree when the sample counts match the grid size, and
+// otherwise the online estimate keeps values closer to their own times.
+//
+// With Config.USE_INCREMENTAL_REGRESSION the same aligned points also feed
+// the sufficient statistics of the predictive models in both directions of
+// each pair, so a flush only has to solve the normal equations.
+public class OnlineDependenceMatrix
+{
+    // Running bivariate moments (Welford) for one pair of streams
+    protected static class PairMoments
+    {
+        protected long      mN;
+        protected double    mMeanX;
+        protected double    mMeanY;
+        protected double    mM2X;
+        protected double    mM2Y;
+        protected double    mCoMoment;
+
+        // Regressions of the higher id on the lower one and vice versa
+        protected IncrementalRegModel mYGivenX;
+        protected IncrementalRegModel mXGivenY;
+
+        public PairMoments()
+        {
+            if(Config.USE_INCREMENTAL_REGRESSION)
+            {
+                mYGivenX = new IncrementalRegModel();
+                mXGivenY = new IncrementalRegModel();
+            }
+        }
+
+        public void add(double x, double y)
+        {
+            if(mYGivenX != null)
+            {
+                mYGivenX.addObservation(x, y);
+                mXGivenY.addObservation(y, x);
+            }
+
+            mN++;
+            final double dx = x - mMeanX;
+            mMeanX += dx / mN;
+            final double dy = y - mMeanY;
+            mMeanY += dy / mN;
+
+            mM2X += dx * (x - mMeanX);
+            mM2Y += dy * (y - mMeanY);
+            mCoMoment += dx * (y - mMeanY);
+        }
+
+        // Reverses add() for a point that was added before
+        public void remove(double x, double y)
+        {
+            if(mYGivenX != null)
+            {
+                mYGivenX.removeObservation(x, y);
+                mXGivenY.removeObservation(y, x);
+            }
+
+            if(mN <= 1)
+            {
+                mN = 0;
+                mMeanX = mMeanY = mM2X = mM2Y = mCoMoment = 0.0;
+                return;
+            }
+
+            final double meanX = mMeanX;
+            final double meanY = mMeanY;
+            mN--;
+            mMeanX = (meanX * (mN + 1) - x) / mN;
+            mMeanY = (meanY * (mN + 1) - y) / mN;
+
+            mM2X -= (x - mMeanX) * (x - meanX);
+            mM2Y -= (y - mMeanY) * (y - meanY);
+            mCoMoment -= (x - mMeanX) * (y - meanY);
+        }
+
+        public double getDependence()
+        {
+            if(mN < 2) return 0.0;
+
+            final double corr = Math.abs(mCoMoment / Math.sqrt(mM2X * mM2Y));
+            if(Double.isNaN(corr) || Double.isInfinite(corr))
+            {
+                return 0.0; // Probably a variance of zero in X or Y
+            }
+            return Math.min(corr, 1.0);
+        }
+    }
+
+    protected final int                     mGridSize;
+    protected final int                     mWindowDuration;
+
+    protected Map<Integer, double[]>        mGrids;
+    protected Map<Long, PairMoments>        mPairs;
+
+    // Restricts tracking to specific pairs. Null means every pair is tracked.
+    protected Map<Integer, Set<Integer>>    mCandidates;
+
+    public OnlineDependenceMatrix()
+    {
+        mWindowDuration = Config.getTrace().mWindowDuration;
+        mGridSize = (Config.DEPENDENCE_GRID_SIZE > 0) ? Config.DEPENDENCE_GRID_SIZE
+                                                      : mWindowDuration;
+
+        mGrids = new HashMap<Integer, double[]>();
+        mPairs = new HashMap<Long, PairMoments>();
+        mCandidates = null;
+    }
+
+    public void addCandidatePair(int streamA, int streamB)
+    {
+        if(streamA == streamB) return;
+
+        if(mCandidates == null)
+        {
+            mCandidates = new HashMap<Integer, Set<Integer>>();
+        }
+
+        pGetCandidates(streamA).add(streamB);
+        pGetCandidates(streamB).add(streamA);
+    }
+
+    public void clearCandidatePairs()
+    {
+        mCandidates = null;
+    }
+
+    public void insert(int streamId, double value, long time)
+    {
+        double[] grid = mGrids.get(streamId);
+        if(grid == null)
+        {
+            grid = new double[mGridSize];
+            Arrays.fill(grid, Double.NaN);
+            mGrids.put(streamId, grid);
+        }
+
+        int cell = pGetCell(time);
+        if(cell >= mGridSize) return;
+
+        if(!Double.isNaN(grid[cell]))
+        {
+            // Collisions move on to the next cell, if there is one
+            if(cell + 1 >= mGridSize) return;
+            cell++;
+
+            if(!Double.isNaN(grid[cell]))
+            {
+                pUpdatePairs(streamId, grid[cell], cell, true);
+            }
+        }
+        grid[cell] = value;
+
+        pUpdatePairs(streamId, value, cell, false);
+    }
+
+    public double getDependence(int streamA, int streamB)
+    {
+        if(streamA == streamB) return 1.0;
+
+        PairMoments moments = mPairs.get(pGetPairKey(streamA, streamB));
+        return (moments == null) ? 0.0 : moments.getDependence();
+    }
+
+    // Fitted model predicting streamY from streamX on the aligned points, or
+    // null if the pair is not tracked or there is too little data to fit it.
+    // The result is a snapshot that later inserts do not affect.
+    public IncrementalRegModel getRegression(int streamY, int streamX)
+    {
+        if(streamY == streamX) return null;
+
+        PairMoments moments = mPairs.get(pGetPairKey(streamY, streamX));
+        if(moments == null || moments.mYGivenX == null) return null;
+
+        IncrementalRegModel source = (streamX < streamY) ? moments.mYGivenX : moments.mXGivenY;
+        if(source.getN() < 2 || source.getDistinctXCount() < 2) return null;
+
+        IncrementalRegModel model = new IncrementalRegModel(source);
+        final boolean linear = Config.LINEAR_DEPENDENCE || model.getN() < 4 ||
+                               model.getDistinctXCount() < 4;
+
+        return model.fit(linear ? 1 : 3) ? model : null;
+    }
+
+    public double[][] getMatrix(List<Integer> streamIds)
+    {
+        final int streamCount = streamIds.size();
+        double[][] dep = new double[streamCount][streamCount];
+
+        for(int i=0; i < streamCount; i++)
+        {
+            dep[i][i] = 1.0;
+            for(int j=i+1; j < streamCount; j++)
+            {
+                dep[i][j] = getDependence(streamIds.get(i), streamIds.get(j));
+                dep[j][i] = dep[i][j];
+            }
+        }
+
+        return dep;
+    }
+
+    // Empty matrix for the next window with a copy of this one's candidate
+    // pairs, so either can change them while the other is in use
+    public OnlineDependenceMatrix newWindow()
+    {
+        OnlineDependenceMatrix next = new OnlineDependenceMatrix();
+        if(mCandidates != null)
+        {
+            next.mCandidates = new HashMap<Integer, Set<Integer>>();
+            for(Map.Entry<Integer, Set<Integer>> entry : mCandidates.entrySet())
+            {
+                next.mCandidates.put(entry.getKey(), new HashSet<Integer>(entry.getValue()));
+            }
+        }
+        return next;
+    }
+
+    // Candidate pairs survive across windows; the observed data does not.
+    public void clear()
+    {
+        mGrids.clear();
+        mPairs.clear();
+    }
+
+    // Adds (or takes out) the stream's value in a cell for every tracked pair
+    protected void pUpdatePairs(int streamId, double value, int cell, boolean remove)
+    {
+        if(mCandidates == null)
+        {
+            for(Map.Entry<Integer, double[]> entry : mGrids.entrySet())
+            {
+                pUpdatePair(streamId, value, entry.getKey(), entry.getValue(), cell, remove);
+            }
+        }
+        else
+        {
+            Set<Integer> partners = mCandidates.get(streamId);
+            if(partners == null) return;
+
+            for(Integer partner : partners)
+            {
+                pUpdatePair(streamId, value, partner, mGrids.get(partner), cell, remove);
+            }
+        }
+    }
+
+    protected void pUpdatePair(int streamId, double value,
+                               Integer partner, double[] partnerGrid, int cell, boolean remove)
+    {
+        if(partnerGrid == null || partner == streamId) return;
+
+        final double partnerValue = partnerGrid[cell];
+        if(Double.isNaN(partnerValue)) return;
+
+        final long key = pGetPairKey(streamId, partner);
+        PairMoments moments = mPairs.get(key);
+        if(moments == null)
+        {
+            moments = new PairMoments();
+            mPairs.put(key, moments);
+        }
+
+        // Keep a consistent orientation: x is always the lower stream id
+        final double x = (streamId < partner) ? value : partnerValue;
+        final double y = (streamId < partner) ? partnerValue : value;
+        if(remove)
+        {
+            moments.remove(x, y);
+        }
+        else
+        {
+            moments.add(x, y);
+        }
+    }
+
+    // Grid cell of a time; mGridSize for times past the end of the window
+    protected int pGetCell(long time)
+    {
+        int cell = (int) Math.floor(((double)mGridSize) * ((double)time) / ((double)mWindowDuration));
+        if(cell < 0) cell = 0;
+        return Math.min(cell, mGridSize);
+    }
+
+    protected Set<Integer> pGetCandidates(int streamId)
+    {
+        Set<Integer> partners = mCandidates.get(streamId);
+        if(partners == null)
+        {
+            partners = new HashSet<Integer>();
+            mCandidates.put(streamId, partners);
+        }
+        return partners;
+    }
+
+    protected static long pGetPairKey(int streamA, int streamB)
+    {
+        final int lo = Math.min(streamA, streamB);
+        final int hi = Math.max(streamA, streamB);
+        return (((long)lo) << 32) | (((long)hi) & 0xFFFFFFFFL);
+    }
+}
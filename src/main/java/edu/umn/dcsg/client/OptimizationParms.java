@@ -7,6 +7,7 @@ public class OptimizationParms
     public final Integer    mNumStreams;
     public final Double     mSamplesAllowed;
     public long[]           mStrataSizes;
+    public long[]           mStrataCapacities;
     public int[]            mPredictorStream;
     public double[]         mPredictorDependence;
     public double[]         mStrataCosts;
@@ -26,11 +27,30 @@ public class OptimizationParms
                              double[] strataVariance,
                              double[] variationBounds,
                              double[] expectedConditionalVariances)
+    {
+        this(samplesAllowed, strataSizes, strataSizes, predictorStream, predictorDependence,
+             strataCosts, strataMeans, strataVariance, variationBounds, expectedConditionalVariances);
+    }
+
+    // As above, with at most strataCapacities[i] real samples available in
+    // stratum i (e.g. when only a reservoir of it is kept). The strata sizes
+    // stay the population the predictions are bounded by.
+    public OptimizationParms(double   samplesAllowed,
+                             long[]   strataSizes,
+                             long[]   strataCapacities,
+                             int[]    predictorStream,
+                             double[] predictorDependence,
+                             double[] strataCosts,
+                             double[] strataMeans,
+                             double[] strataVariance,
+                             double[] variationBounds,
+                             double[] expectedConditionalVariances)
     {
         mNumStreams = strataSizes.length;
 
         mSamplesAllowed = samplesAllowed;
         mStrataSizes = strataSizes;
+        mStrataCapacities = strataCapacities;
         mPredictorStream = predictorStream;
         mPredictorDependence = predictorDependence;
         mStrataCosts = strataCosts;
@@ -86,6 +106,9 @@ public class OptimizationParms
 
         result += Arrays.toString(mExpectedConditionalVariances);
         result += DELIMITER;
+
+        result += Arrays.toString(mStrataCapacities);
+        result += DELIMITER;
         
         return result;
     }
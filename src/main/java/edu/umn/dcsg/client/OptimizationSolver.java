@@ -1,20 +1,87 @@
 package edu.umn.dcsg.client;
 
+import edu.umn.dcsg.common.Config;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 
 import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
 
 public class OptimizationSolver
 {
     protected OptimizationParms mParms;
+    protected double[]          mWarmStart;
 
     public OptimizationSolver(OptimizationParms parms)
     {
         mParms = parms;
+        mWarmStart = null;
+    }
+
+    // Previous solution for the same streams; only the solver worker uses it
+    public void setWarmStart(double[] warmStart)
+    {
+        mWarmStart = warmStart;
     }
 
     public double[] compute(final double budget) throws Exception
+    {
+        if(Config.SOLVER == Config.JAVA_SOLVER)
+        {
+            return new JavaOptimizationSolver(mParms).compute(budget);
+        }
+        else if(Config.SOLVER == Config.WATER_FILLING_SOLVER)
+        {
+            return SampleSizeCalculator.getWaterFillingAllocation(mParms);
+        }
+        else if(Config.SOLVER == Config.PYTHON_WORKER_SOLVER)
+        {
+            return pComputeWithWorker();
+        }
+
+        return pComputeWithPython(budget);
+    }
+
+    // Real sample sizes from the Neyman allocation and no predictions, as
+    // [real..., predicted...]. Used whenever a solver cannot answer.
+    public double[] getFallbackAllocation()
+    {
+        final int k = mParms.mStrataSizes.length;
+        double[] ss = new double[k];
+        double[] caps = new double[k];
+        LinearCostFunction[] costs = new LinearCostFunction[k];
+        for(int j=0; j < k; j++) {
+            ss[j] = (double)mParms.mStrataSizes[j];
+            caps[j] = (double)mParms.mStrataCapacities[j];
+            costs[j] = new LinearCostFunction(0, mParms.mStrataCosts[j]);
+        }
+
+        int[] tmp = SampleSizeCalculator.getOptimalAllocation(mParms.mSamplesAllowed, ss,
+                                                              mParms.mStrataVariance, costs, caps);
+        double[] result = new double[2 * k];
+        for(int j=0; j < tmp.length; j++) result[j] = (double)tmp[j];
+        return result;
+    }
+
+    // Solves the problem on the shared worker process. Never blocks the
+    // flush for longer than Config.SOLVER_DEADLINE_MS.
+    protected double[] pComputeWithWorker()
+    {
+        try {
+            return PythonSolverWorker.getShared().solve(mParms, mWarmStart, Config.SOLVER_DEADLINE_MS);
+        } catch(TimeoutException e) {
+            System.err.println("Solver worker missed its deadline, using the Neyman allocation.");
+        } catch(Exception e) {
+            System.err.println("Solver worker failed, using the Neyman allocation.");
+            System.err.println(e);
+        }
+
+        return getFallbackAllocation();
+    }
+
+    // Solves the problem with src/main/py/opt.py in a separate interpreter
+    protected double[] pComputeWithPython(final double budget) throws Exception
     {
         Process process = Runtime.getRuntime()
                                  .exec(new String[]{ "python",
@@ -54,16 +121,7 @@ public class OptimizationSolver
                 //System.exit(0);
 
                 // Gross, but keep moving for now
-                double[] ss = new double[mParms.mStrataSizes.length];
-                LinearCostFunction[] costs = new LinearCostFunction[mParms.mStrataSizes.length];
-                for(int j=0; j < ss.length; j++) {
-                    ss[j] = (double)mParms.mStrataSizes[j];
-                    costs[j] = new LinearCostFunction(0, mParms.mStrataCosts[j]);
-                }
-
-                int[] tmp = SampleSizeCalculator.getOptimalAllocation(mParms.mSamplesAllowed, ss, 
-                                                                      mParms.mStrataVariance, costs);
-                for(int j=0; j < tmp.length; j++) result[j] = (double)tmp[j];
+                result = getFallbackAllocation();
                 break;
             }
         }
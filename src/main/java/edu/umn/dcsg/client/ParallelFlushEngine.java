@@ -0,0 +1,221 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs the embarrassingly parallel parts of a flush on a fork/join pool.
+//
+// The upper triangle of the dependence matrix is split into square tiles and
+// every target regression is its own work unit. Each cell (or model) is still
+// produced by the same serial code, so results are identical to the
+// single-threaded path; only the order of evaluation changes.
+public class ParallelFlushEngine
+{
+    // Computes the dependence between the streams at two sorted indices
+    public interface PairFunction
+    {
+        double apply(int i, int j);
+    }
+
+    // Computes one independent work unit (e.g. the model for one target)
+    public interface IndexFunction
+    {
+        void apply(int i);
+    }
+
+    protected static ParallelFlushEngine sDefaultEngine = null;
+
+    protected final ForkJoinPool    mPool;
+    protected final int             mTileSize;
+
+    // Flushes holding the shared engine, and whether it has been replaced.
+    // Guarded by the class.
+    protected int                   mHolders;
+    protected boolean               mRetired;
+
+    public ParallelFlushEngine(ForkJoinPool pool, int tileSize)
+    {
+        mPool = pool;
+        mTileSize = Math.max(1, tileSize);
+        mHolders = 0;
+        mRetired = false;
+    }
+
+    // Engine shared by every cache, sized by Config.FLUSH_PARALLELISM and
+    // held until release(). Returns null when flushes should run serially.
+    // An engine that no longer matches the setting is retired: its pool is
+    // shut down, so its threads exit, once the last flush using it releases
+    // it.
+    public static synchronized ParallelFlushEngine acquireDefault()
+    {
+        if(sDefaultEngine != null &&
+           sDefaultEngine.getParallelism() != Config.FLUSH_PARALLELISM)
+        {
+            sDefaultEngine.mRetired = true;
+            if(sDefaultEngine.mHolders == 0)
+            {
+                sDefaultEngine.shutdown();
+            }
+            sDefaultEngine = null;
+        }
+
+        if(Config.FLUSH_PARALLELISM <= 1)
+        {
+            return null;
+        }
+
+        if(sDefaultEngine == null)
+        {
+            sDefaultEngine = new ParallelFlushEngine(new ForkJoinPool(Config.FLUSH_PARALLELISM),
+                                                     Config.FLUSH_TILE_SIZE);
+        }
+        sDefaultEngine.mHolders++;
+        return sDefaultEngine;
+    }
+
+    // Gives back an engine from acquireDefault()
+    public void release()
+    {
+        synchronized(ParallelFlushEngine.class)
+        {
+            mHolders--;
+            if(mRetired && mHolders == 0)
+            {
+                shutdown();
+            }
+        }
+    }
+
+    // Work already submitted still completes
+    public void shutdown()
+    {
+        mPool.shutdown();
+    }
+
+    public boolean isShutdown()
+    {
+        return mPool.isShutdown();
+    }
+
+    public int getParallelism()
+    {
+        return mPool.getParallelism();
+    }
+
+    public double[][] computeSymmetricMatrix(final int size, final PairFunction func)
+    {
+        final double[][] result = new double[size][size];
+
+        List<int[]> tiles = new ArrayList<int[]>();
+        for(int row=0; row < size; row += mTileSize)
+        {
+            for(int col=row; col < size; col += mTileSize)
+            {
+                tiles.add(new int[]{ row, col });
+            }
+        }
+
+        mPool.invoke(new TileTask(tiles, 0, tiles.size(), size, result, func));
+        return result;
+    }
+
+    public void forEach(final int count, final IndexFunction func)
+    {
+        mPool.invoke(new IndexTask(0, count, func));
+    }
+
+    // Splits a range of tiles until a single tile remains
+    protected class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected final List<int[]>     mTiles;
+        protected final int             mLow;
+        protected final int             mHigh;
+        protected final int             mSize;
+        protected final double[][]      mResult;
+        protected final PairFunction    mFunc;
+
+        public TileTask(List<int[]> tiles, int low, int high, int size,
+                        double[][] result, PairFunction func)
+        {
+            mTiles = tiles;
+            mLow = low;
+            mHigh = high;
+            mSize = size;
+            mResult = result;
+            mFunc = func;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(mHigh - mLow > 1)
+            {
+                final int mid = (mLow + mHigh) >>> 1;
+                invokeAll(new TileTask(mTiles, mLow, mid, mSize, mResult, mFunc),
+                          new TileTask(mTiles, mid, mHigh, mSize, mResult, mFunc));
+                return;
+            }
+
+            if(mHigh == mLow) return;
+
+            final int[] tile = mTiles.get(mLow);
+            final int rowEnd = Math.min(tile[0] + mTileSize, mSize);
+            final int colEnd = Math.min(tile[1] + mTileSize, mSize);
+
+            for(int i=tile[0]; i < rowEnd; i++)
+            {
+                for(int j=Math.max(i, tile[1]); j < colEnd; j++)
+                {
+                    if(i == j)
+                    {
+                        mResult[i][j] = 1.0;
+                    }
+                    else
+                    {
+                        mResult[i][j] = mFunc.apply(i, j);
+                        mResult[j][i] = mResult[i][j];
+                    }
+                }
+            }
+        }
+    }
+
+    protected static class IndexTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected final int             mLow;
+        protected final int             mHigh;
+        protected final IndexFunction   mFunc;
+
+        public IndexTask(int low, int high, IndexFunction func)
+        {
+            mLow = low;
+            mHigh = high;
+            mFunc = func;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(mHigh - mLow > 1)
+            {
+                final int mid = (mLow + mHigh) >>> 1;
+                invokeAll(new IndexTask(mLow, mid, mFunc),
+                          new IndexTask(mid, mHigh, mFunc));
+                return;
+            }
+
+            if(mHigh > mLow)
+            {
+                mFunc.apply(mLow);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Shortlists likely high-correlation partners for every stream without
+// scoring all k^2 pairs.
+//
+// Each stream is interpolated onto a common grid, z-normalized and reduced to
+// a sign-random-projection signature (SimHash). For normalized series the
+// fraction of differing signature bits estimates angle/pi, and cos(angle) is
+// the Pearson correlation, so correlated streams agree on most signature
+// bits. Signatures are split into bands and bucketed (LSH); only streams that
+// share a bucket with a stream, or with its negated series, become
+// candidates. Candidates are ranked by the correlation of their normalized
+// grids, and exact scoring with DependenceEstimator then runs on the best few
+// only.
+//
+// A band of r bits spreads unrelated streams over 2^r buckets, so the rows
+// per band grow with log2(k) to keep the number of unrelated streams sharing
+// a bucket near constant. Longer bands make similar streams less likely to
+// collide exactly, which multi-probe makes up for: the buckets one bit flip
+// away from a stream's own are probed as well. Buckets are capped so that a
+// crowd of near-identical series cannot bring back the k^2 scan.
+public class PredictorSketchIndex
+{
+    // Exact scoring of a candidate pair, given the sorted stream indices
+    public interface PairScorer
+    {
+        double score(int i, int j);
+    }
+
+    // Bucket keys keep the band number in the top byte
+    protected static final int  MAX_ROWS_PER_BAND = 56;
+
+    protected final int         mGridSize;
+    protected final int         mBands;
+    protected final int         mMinRowsPerBand;
+    protected final int         mCandidates;
+    protected final int         mBucketCap;
+    protected final long        mSeed;
+
+    protected int               mRowsPerBand;
+    protected double[][]        mProjections;
+    protected long[][]          mSignatures;
+    // Unit-norm centered grid per stream, null for constant streams
+    protected double[][]        mGrids;
+    protected boolean[]         mConstant;
+    protected int               mExactScores;
+    protected long              mCandidatesSeen;
+
+    public PredictorSketchIndex()
+    {
+        this(Config.SKETCH_GRID_SIZE, Config.SKETCH_BANDS, Config.SKETCH_ROWS_PER_BAND,
+             Config.SKETCH_CANDIDATES, Config.SKETCH_BUCKET_CAP, 0x12345678);
+    }
+
+    // @param rowsPerBand   bits per band for small inputs, raised to log2(k)
+    //                      for k streams
+    // @param bucketCap     streams kept per bucket
+    public PredictorSketchIndex(int gridSize, int bands, int rowsPerBand,
+                                int candidates, int bucketCap, long seed)
+    {
+        if(rowsPerBand < 1 || rowsPerBand > MAX_ROWS_PER_BAND)
+        {
+            throw new IllegalArgumentException("Sketch bands need 1 to " + MAX_ROWS_PER_BAND + " rows.");
+        }
+
+        mGridSize = gridSize;
+        mBands = bands;
+        mMinRowsPerBand = rowsPerBand;
+        mCandidates = candidates;
+        mBucketCap = bucketCap;
+        mSeed = seed;
+        mRowsPerBand = 0;
+        mExactScores = 0;
+        mCandidatesSeen = 0;
+    }
+
+    // Number of exact pair evaluations performed by the last search
+    public int getExactScoreCount()
+    {
+        return mExactScores;
+    }
+
+    // Number of distinct candidates the buckets produced in the last search,
+    // over all streams
+    public long getCandidateCount()
+    {
+        return mCandidatesSeen;
+    }
+
+    // @returns bits per band used for streamCount streams
+    public int getRowsPerBand(int streamCount)
+    {
+        int log2 = 0;
+        while(log2 < 31 && (1 << log2) < streamCount) log2++;
+        return Math.min(MAX_ROWS_PER_BAND, Math.max(mMinRowsPerBand, log2));
+    }
+
+    // @returns predictor index per stream (-1 if there is no other stream),
+    //          and fills predictorDependence with the exact score of each choice
+    public int[] search(double[][] values, long[][] times,
+                        PairScorer scorer, double[] predictorDependence)
+    {
+        final int streamCount = values.length;
+        int[] predictors = new int[streamCount];
+        mExactScores = 0;
+        mCandidatesSeen = 0;
+
+        pSetRowsPerBand(getRowsPerBand(streamCount));
+        pBuildSignatures(values, times);
+        Map<Long, List<Integer>> buckets = pBuildBuckets();
+
+        final long mask = pGetMask(mRowsPerBand);
+        int[] seen = new int[streamCount];
+        Arrays.fill(seen, -1);
+
+        for(int i=0; i < streamCount; i++)
+        {
+            predictors[i] = -1;
+            predictorDependence[i] = 0.0;
+            if(streamCount < 2) continue;
+
+            // Keep the closest candidates by estimated |correlation|
+            PriorityQueue<double[]> shortlist = new PriorityQueue<double[]>(
+                (a, b) -> Double.compare(a[0], b[0]));
+
+            if(!mConstant[i])
+            {
+                for(int band=0; band < mBands; band++)
+                {
+                    final long bits = mSignatures[i][band];
+                    final long complement = ~bits & mask;
+
+                    pCollect(buckets.get(pGetBucketKey(band, bits)), i, seen, shortlist);
+                    pCollect(buckets.get(pGetBucketKey(band, complement)), i, seen, shortlist);
+                    for(int row=0; row < mRowsPerBand; row++)
+                    {
+                        final long flip = 1L << row;
+                        pCollect(buckets.get(pGetBucketKey(band, bits ^ flip)), i, seen, shortlist);
+                        pCollect(buckets.get(pGetBucketKey(band, complement ^ flip)), i, seen, shortlist);
+                    }
+                }
+            }
+
+            // Nothing collided: fall back to a few deterministic partners so
+            // that every stream still gets a predictor.
+            if(shortlist.isEmpty())
+            {
+                for(int step=1; step <= Math.min(mCandidates, streamCount - 1); step++)
+                {
+                    shortlist.add(new double[]{ 0.0, (double)((i + step) % streamCount) });
+                }
+            }
+
+            double best = -1.0;
+            for(double[] candidate : shortlist)
+            {
+                final int j = (int)candidate[1];
+                final double dep = scorer.score(i, j);
+                mExactScores++;
+
+                if(predictors[i] == -1 || dep > best ||
+                   (dep == best && j < predictors[i]))
+                {
+                    predictors[i] = j;
+                    best = dep;
+                }
+            }
+            predictorDependence[i] = Math.max(best, 0.0);
+        }
+
+        return predictors;
+    }
+
+    protected void pCollect(List<Integer> bucket, int self, int[] seen,
+                            PriorityQueue<double[]> shortlist)
+    {
+        if(bucket == null) return;
+
+        for(Integer j : bucket)
+        {
+            if(j == self || seen[j] == self) continue;
+            seen[j] = self;
+            mCandidatesSeen++;
+
+            double dot = 0.0;
+            for(int g=0; g < mGridSize; g++) dot += mGrids[self][g] * mGrids[j][g];
+            final double estimate = Math.abs(dot);
+
+            if(shortlist.size() < mCandidates)
+            {
+                shortlist.add(new double[]{ estimate, j });
+            }
+            else if(estimate > shortlist.peek()[0])
+            {
+                shortlist.poll();
+                shortlist.add(new double[]{ estimate, j });
+            }
+        }
+    }
+
+    // Draws the projections for the given band length, the same ones for the
+    // same length
+    protected void pSetRowsPerBand(int rowsPerBand)
+    {
+        if(rowsPerBand == mRowsPerBand) return;
+
+        mRowsPerBand = rowsPerBand;
+        Random rng = new Random(mSeed);
+        mProjections = new double[mBands * rowsPerBand][mGridSize];
+        for(int b=0; b < mProjections.length; b++)
+        {
+            for(int i=0; i < mGridSize; i++)
+            {
+                mProjections[b][i] = rng.nextGaussian();
+            }
+        }
+    }
+
+    protected void pBuildSignatures(double[][] values, long[][] times)
+    {
+        final int streamCount = values.length;
+        mSignatures = new long[streamCount][mBands];
+        mGrids = new double[streamCount][];
+        mConstant = new boolean[streamCount];
+
+        for(int s=0; s < streamCount; s++)
+        {
+            double[] grid = DependenceEstimator.interpolate(values[s], times[s], mGridSize);
+
+            double mean = 0.0;
+            for(int i=0; i < mGridSize; i++) mean += grid[i];
+            mean /= mGridSize;
+
+            double norm = 0.0;
+            double[] centered = new double[mGridSize];
+            for(int i=0; i < mGridSize; i++)
+            {
+                centered[i] = grid[i] - mean;
+                norm += centered[i] * centered[i];
+            }
+
+            mConstant[s] = (norm == 0.0 || Double.isNaN(norm));
+            if(mConstant[s]) continue;
+
+            final double scale = 1.0 / Math.sqrt(norm);
+            mGrids[s] = new double[mGridSize];
+            for(int i=0; i < mGridSize; i++) mGrids[s][i] = centered[i] * scale;
+
+            for(int b=0; b < mProjections.length; b++)
+            {
+                double dot = 0.0;
+                for(int i=0; i < mGridSize; i++)
+                {
+                    dot += mProjections[b][i] * centered[i];
+                }
+                if(dot >= 0.0) mSignatures[s][b / mRowsPerBand] |= (1L << (b % mRowsPerBand));
+            }
+        }
+    }
+
+    protected Map<Long, List<Integer>> pBuildBuckets()
+    {
+        Map<Long, List<Integer>> buckets = new HashMap<Long, List<Integer>>();
+
+        for(int s=0; s < mSignatures.length; s++)
+        {
+            if(mConstant[s]) continue;
+
+            for(int band=0; band < mBands; band++)
+            {
+                final long key = pGetBucketKey(band, mSignatures[s][band]);
+                List<Integer> bucket = buckets.get(key);
+                if(bucket == null)
+                {
+                    bucket = new ArrayList<Integer>();
+                    buckets.put(key, bucket);
+                }
+                if(bucket.size() < mBucketCap) bucket.add(s);
+            }
+        }
+
+        return buckets;
+    }
+
+    protected long pGetBucketKey(int band, long bits)
+    {
+        return (((long)band) << 56) | bits;
+    }
+
+    protected static long pGetMask(int bits)
+    {
+        return (bits >= 64) ? -1L : ((1L << bits) - 1);
+    }
+}
@@ -0,0 +1,221 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Long-lived src/main/py/opt_worker.py process shared by every edge in the
+// JVM. Problems are written to its stdin and solutions read from its stdout
+// with the binary framing described in opt_worker.py, so scipy is loaded
+// once instead of once per window.
+//
+// A new worker announces that it is ready once scipy is loaded; startup has
+// its own timeout (Config.SOLVER_STARTUP_MS). After that every request has
+// a deadline. A worker that misses it, or whose pipe breaks, is killed,
+// since its pipe can no longer be trusted, and a fresh one is started for
+// the next request. A problem the worker reports it could not solve leaves
+// the pipe in sync, so the worker keeps running.
+public class PythonSolverWorker
+{
+    protected static final String[]     COMMAND = new String[]{ "python", "./src/main/py/opt_worker.py" };
+
+    // Written by the worker when it is ready for requests ("REDY")
+    protected static final int          READY = 0x52454459;
+
+    protected static PythonSolverWorker sShared = null;
+
+    protected final String[]            mCommand;
+    protected Process                   mProcess;
+    protected DataOutputStream          mOut;
+    protected DataInputStream           mIn;
+    protected final ExecutorService     mExecutor;
+
+    public static synchronized PythonSolverWorker getShared()
+    {
+        if(sShared == null)
+        {
+            sShared = new PythonSolverWorker();
+        }
+        return sShared;
+    }
+
+    public PythonSolverWorker()
+    {
+        this(COMMAND);
+    }
+
+    // @param command starts a worker speaking the opt_worker.py protocol
+    public PythonSolverWorker(String[] command)
+    {
+        mCommand = command;
+        mProcess = null;
+        mOut = null;
+        mIn = null;
+
+        // Pipe I/O happens on this thread so the caller can stop waiting
+        mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "solver-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // @returns the solution as [real..., predicted...]
+    // @throws TimeoutException if the worker did not answer in time
+    public synchronized double[] solve(final OptimizationParms parms, final double[] warmStart,
+                                       final long deadlineMillis) throws Exception
+    {
+        pStart();
+
+        Future<double[]> response = mExecutor.submit(() -> pRoundTrip(parms, warmStart));
+        final double[] result;
+        try {
+            result = response.get(deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            pStop();
+            response.cancel(true);
+            throw e;
+        } catch(ExecutionException e) {
+            pStop();
+            if(e.getCause() instanceof Exception)
+            {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+
+        if(result == null)
+        {
+            throw new Exception("Solver worker could not solve the problem");
+        }
+        return result;
+    }
+
+    public synchronized void shutdown()
+    {
+        if(mOut != null)
+        {
+            try {
+                mOut.writeInt(-1);
+                mOut.flush();
+            } catch(IOException e) {
+                // Already gone
+            }
+        }
+
+        pStop();
+        mExecutor.shutdownNow();
+    }
+
+    // Starts a worker unless one is running, and waits for it to be ready
+    protected void pStart() throws Exception
+    {
+        if(mProcess != null && mProcess.isAlive()) return;
+
+        pStop();
+
+        ProcessBuilder builder = new ProcessBuilder(mCommand);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        mProcess = builder.start();
+
+        mOut = new DataOutputStream(new BufferedOutputStream(mProcess.getOutputStream()));
+        mIn = new DataInputStream(new BufferedInputStream(mProcess.getInputStream()));
+
+        final DataInputStream in = mIn;
+        Future<Integer> ready = mExecutor.submit(() -> in.readInt());
+        try {
+            final int marker = ready.get(Config.SOLVER_STARTUP_MS, TimeUnit.MILLISECONDS);
+            if(marker != READY)
+            {
+                throw new IOException("Solver worker sent " + marker + " instead of its ready marker");
+            }
+        } catch(Exception e) {
+            pStop();
+            ready.cancel(true);
+            if(e instanceof ExecutionException && e.getCause() instanceof Exception)
+            {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    protected void pStop()
+    {
+        if(mProcess != null)
+        {
+            mProcess.destroyForcibly();
+        }
+
+        mProcess = null;
+        mOut = null;
+        mIn = null;
+    }
+
+    protected double[] pRoundTrip(OptimizationParms parms, double[] warmStart) throws IOException
+    {
+        final DataOutputStream out = mOut;
+        final DataInputStream in = mIn;
+        final int k = parms.mNumStreams;
+
+        out.writeInt(k);
+        out.writeDouble(parms.mSamplesAllowed);
+        for(int i=0; i < k; i++) out.writeLong(parms.mStrataSizes[i]);
+        for(int i=0; i < k; i++) out.writeLong(parms.mStrataCapacities[i]);
+        for(int i=0; i < k; i++) out.writeInt(parms.mPredictorStream[i]);
+        pWriteArray(out, parms.mPredictorDependence);
+        pWriteArray(out, parms.mStrataCosts);
+        pWriteArray(out, parms.mStrataMeans);
+        pWriteArray(out, parms.mStrataVariance);
+        pWriteArray(out, parms.mVariationBounds);
+        pWriteArray(out, parms.mExpectedConditionalVariances);
+
+        if(warmStart != null && warmStart.length == 2 * k)
+        {
+            out.writeInt(warmStart.length);
+            pWriteArray(out, warmStart);
+        }
+        else
+        {
+            out.writeInt(0);
+        }
+        out.flush();
+
+        // The worker reports a problem it could not solve without values
+        final int length = in.readInt();
+        if(length == -1)
+        {
+            return null;
+        }
+        if(length != 2 * k)
+        {
+            throw new IOException("Solver worker returned " + length + " values for " + k + " streams");
+        }
+
+        double[] result = new double[length];
+        for(int i=0; i < length; i++)
+        {
+            result[i] = in.readDouble();
+        }
+        return result;
+    }
+
+    protected static void pWriteArray(DataOutputStream out, double[] values) throws IOException
+    {
+        for(double value : values)
+        {
+            out.writeDouble(value);
+        }
+    }
+}
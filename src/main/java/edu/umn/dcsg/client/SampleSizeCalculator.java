@@ -1,48 +1,141 @@
 package edu.umn.dcsg.client;
 
 import java.util.Arrays;
-import java.util.Random;
+import java.util.Comparator;
 
 public class SampleSizeCalculator
 {
     public static int[] getProportionalAllocation(final double samplesAllowed, double[] popSizes)
     {
-        final double totalSamples = (double) Arrays.stream(popSizes).sum();
-        int sampleSizes[] = new int[popSizes.length];
-        double props[] = new double[popSizes.length];
-        double samplesAvail = Math.round(samplesAllowed);
+        return getProportionalAllocation(samplesAllowed, popSizes, popSizes);
+    }
+
+    // As above, with at most capacities[i] samples drawn from stratum i
+    // (e.g. when only a reservoir of the stratum is kept)
+    public static int[] getProportionalAllocation(final double samplesAllowed, double[] popSizes,
+                                                  double[] capacities)
+    {
+        int[] minimums = new int[popSizes.length];
+        Arrays.fill(minimums, 1);
+
+        return getLargestRemainderAllocation((int)Math.round(samplesAllowed), popSizes,
+                                             minimums, capacities);
+    }
+
+    // Splits total units over the strata in proportion to their weights.
+    // Every stratum first gets its minimum, no stratum gets more than its
+    // capacity, and exactly min(total, sum of capacities) units are handed
+    // out whenever the minimums fit in the total.
+    //
+    // Shares that would overflow a stratum are capped and the excess is
+    // re-spread over the others (in order of how soon they fill up), then
+    // the shares are floored and the leftover units go to the largest
+    // remainders, ties to the lower index. Runs in O(k log k) and is
+    // deterministic.
+    public static int[] getLargestRemainderAllocation(int total, double[] weights,
+                                                      int[] minimums, double[] capacities)
+    {
+        final int k = weights.length;
+        final int[] allocation = new int[k];
+        final long[] caps = new long[k];
+        long remaining = total;
 
-        for(int i=0; i < popSizes.length; i++)
+        double weightSum = 0.0;
+        for(int i=0; i < k; i++)
         {
-            sampleSizes[i] = 1;
-            samplesAvail -= 1.0;
-            props[i] = popSizes[i] / totalSamples;
+            caps[i] = Math.max(0L, (long)Math.floor(capacities[i]));
+            allocation[i] = (int)Math.min((long)minimums[i], caps[i]);
+            remaining -= allocation[i];
+            weightSum += Math.max(weights[i], 0.0);
         }
 
-        for(int i=0; i < popSizes.length; i++)
+        if(remaining <= 0 || k == 0) return allocation;
+
+        // Zero weights everywhere: split evenly
+        final double[] w = new double[k];
+        for(int i=0; i < k; i++)
         {
-            final double portion = samplesAvail * props[i];
-            final int inc = (int) Math.round(portion);
-            sampleSizes[i] += inc;
+            w[i] = (weightSum > 0.0) ? Math.max(weights[i], 0.0) : 1.0;
         }
 
-        // Catch any rounding errors that cause us to under-estimate
-        // the number of samples we should send.
-        Random rng = new Random();
-        double requested = (double) Arrays.stream(sampleSizes).sum();
-        while(requested - samplesAllowed > 1.0)
+        // Strata fill up in order of headroom per unit of weight
+        Integer[] order = new Integer[k];
+        for(int i=0; i < k; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> pFillLevel(caps[i] - allocation[i], w[i])));
+
+        double openWeight = 0.0;
+        for(int i=0; i < k; i++)
         {
-            int idx = rng.nextInt(popSizes.length);
-            while(sampleSizes[idx] < 1.1)
+            if(caps[i] > allocation[i]) openWeight += w[i];
+        }
+
+        final double[] shares = new double[k];
+        double toSpread = (double)remaining;
+        int next = 0;
+
+        // Cap every stratum whose headroom is below the common fill level
+        while(next < k && openWeight > 0.0)
+        {
+            final int i = order[next];
+            final double headroom = (double)(caps[i] - allocation[i]);
+            if(headroom <= 0.0 || w[i] == 0.0)
             {
-                idx = rng.nextInt(popSizes.length);
+                next++;
+                continue;
             }
 
-            requested -= 1.0;
-            sampleSizes[idx] -= 1.0;
+            if(headroom / w[i] > toSpread / openWeight) break;
+
+            shares[i] = headroom;
+            toSpread -= headroom;
+            openWeight -= w[i];
+            next++;
         }
 
-        return sampleSizes;
+        final double level = (openWeight > 0.0) ? (toSpread / openWeight) : 0.0;
+        for(int j=next; j < k; j++)
+        {
+            final int i = order[j];
+            if(caps[i] > allocation[i]) shares[i] = w[i] * level;
+        }
+
+        for(int i=0; i < k; i++)
+        {
+            final long whole = Math.min((long)Math.floor(shares[i] + 1e-9), caps[i] - allocation[i]);
+            allocation[i] += (int)whole;
+            remaining -= whole;
+            shares[i] -= whole;
+        }
+
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> -shares[i])
+                                     .thenComparingInt(i -> i));
+
+        for(int j=0; j < k && remaining > 0; j++)
+        {
+            final int i = order[j];
+            if(allocation[i] < caps[i] && w[i] > 0.0)
+            {
+                allocation[i]++;
+                remaining--;
+            }
+        }
+
+        // Every weighted stratum is full: the rest goes evenly to the others
+        if(remaining > 0 && weightSum > 0.0)
+        {
+            double[] even = new double[k];
+            for(int i=0; i < k; i++) even[i] = (allocation[i] < caps[i]) ? 1.0 : 0.0;
+            return getLargestRemainderAllocation(total, even, allocation, capacities);
+        }
+
+        return allocation;
+    }
+
+    protected static double pFillLevel(long headroom, double weight)
+    {
+        if(headroom <= 0) return Double.NEGATIVE_INFINITY;
+        if(weight <= 0.0) return Double.POSITIVE_INFINITY;
+        return ((double)headroom) / weight;
     }
 
     public static int[] getNeymanAllocation(double samplesAllowed, double[] popSizes, double[] variance)
@@ -80,15 +173,24 @@ public class SampleSizeCalculator
     // with the per sample cost for each population
     public static int[] getOptimalAllocation(double fixedCost, double[] popSizes,
                                              double[] variance, LinearCostFunction[] costs)
+    {
+        return getOptimalAllocation(fixedCost, popSizes, variance, costs, popSizes);
+    }
+
+    // As above, with at most capacities[i] samples drawn from stratum i
+    public static int[] getOptimalAllocation(double fixedCost, double[] popSizes,
+                                             double[] variance, LinearCostFunction[] costs,
+                                             double[] capacities)
     {
         assert(popSizes.length == variance.length);
         assert(popSizes.length == costs.length);
 
-        int sampleSizes[] = new int[variance.length];
+        int[] minimums = new int[variance.length];
+        double[] weights = new double[variance.length];
         double upFrontCost = 0.0;
         for(int i=0; i < variance.length; i++)
         {
-            sampleSizes[i] = 1;
+            minimums[i] = 1;
             upFrontCost += costs[i].getCostPerSample();
         }
 
@@ -99,52 +201,500 @@ public class SampleSizeCalculator
             final double sd = Math.sqrt(variance[i]);
             final double sqrtCost = Math.sqrt(costs[i].getCostPerSample());
 
-            globalNum += popSizes[i] * sd / sqrtCost;
+            weights[i] = popSizes[i] * sd / sqrtCost;
+            globalNum += weights[i];
             globalDenom += popSizes[i] * sd * sqrtCost;
         }
 
-        final double n = ((fixedCost - upFrontCost) * globalNum) / globalDenom;
+        // Samples beyond the first one per stratum that the budget buys
+        final double n = (globalDenom > 0.0) ? ((fixedCost - upFrontCost) * globalNum) / globalDenom
+                                             : (fixedCost - upFrontCost);
 
-        for(int i = 0; i < popSizes.length; i++)
+        return getLargestRemainderAllocation(variance.length + (int)Math.round(Math.max(n, 0.0)),
+                                             weights, minimums, capacities);
+    }
+
+    // Allocation for the imputation problem of opt.py (real samples x and
+    // predicted samples y per stream, one unit of budget per model) solved
+    // through its KKT conditions instead of a general optimizer.
+    //
+    // A stream's predictions are capped by its predictor's real samples and
+    // by its variation bound, so its effective sample size s_i(x_i) is
+    // piecewise linear and concave. For a budget multiplier lambda each
+    // stream's optimum of ERR_i / s_i(x_i) + lambda * c_i * x_i is found in
+    // closed form on those pieces, and lambda is bisected until the budget
+    // is spent. The coupling through predictors (caps, and the value a
+    // predictor's samples have for the streams it predicts) is resolved by
+    // damped fixed-point passes, until the objective with the exact caps
+    // stops improving, and models that do not pay for their unit of budget
+    // are dropped. This is a heuristic: where the gradient solver converges
+    // it lands within about 1% of its optimum. If it has not settled within
+    // the round and pass limits, the best iterate is rounded anyway and a
+    // warning is printed.
+    //
+    // Returns integer sizes as [real..., predicted...], never exceeding the
+    // strata capacities (real) or sizes (predicted), or the budget.
+    public static double[] getWaterFillingAllocation(OptimizationParms parms)
+    {
+        final int k = parms.mNumStreams;
+        final double budget = parms.mSamplesAllowed;
+
+        double observed = 0.0;
+        for(int i=0; i < k; i++) observed += (double)parms.mStrataCapacities[i];
+
+        if(observed <= budget)
         {
-            final double sd = Math.sqrt(variance[i]);
-            final double sqrtCost = Math.sqrt(costs[i].getCostPerSample());
+            double[] result = new double[2 * k];
+            for(int i=0; i < k; i++) result[i] = (double)parms.mStrataCapacities[i];
+            return result;
+        }
+
+        if(budget <= k)
+        {
+            double[] result = new double[2 * k];
+            Arrays.fill(result, 0, k, 1.0);
+            return result;
+        }
+
+        WaterLevels levels = new WaterLevels(parms);
+        if(!levels.solve(budget))
+        {
+            System.err.println("WARNING: Water filling did not converge for " + k +
+                               " streams, rounding its best iterate.");
+        }
+        return levels.round(budget);
+    }
+
+    protected static class WaterLevels
+    {
+        protected static final double   PREDICTOR_MARGIN = 1.01;
+        protected static final int      MAX_ROUNDS = 8;
+        protected static final int      MAX_PASSES = 100;
+        // The levels have settled once STALL_PASSES passes in a row did not
+        // lower the objective by a relative MIN_GAIN
+        protected static final int      STALL_PASSES = 10;
+        protected static final double   MIN_GAIN = 1e-3;
+        // Relative objective increase tolerated for keeping models that do
+        // not quite pay for their unit of budget
+        protected static final double   DROP_TOLERANCE = 1e-3;
+
+        protected final OptimizationParms   mParms;
+        protected final int                 mCount;
+        protected final double[]            mErr;
+        protected final double[]            mSlope;     // variation bound: y <= slope * x - 0.5
+        protected final double[]            mCosts;
+        protected final double[]            mLower;
+        protected final double[]            mUpper;
+        protected final double[]            mCaps;      // y <= cap, from the predictor
+        protected final double[]            mCredit;    // marginal value of x to dependents
+        protected final boolean[]           mModelled;
+        protected final double[]            mX;
+        protected final double[]            mBestX;     // lowest objective this round
+        protected double                    mLambda;
+        protected boolean                   mLambdaFound;
+        protected int                       mPasses;
+
+        public WaterLevels(OptimizationParms parms)
+        {
+            mParms = parms;
+            mCount = parms.mNumStreams;
+            mErr = new double[mCount];
+            mSlope = new double[mCount];
+            mCosts = new double[mCount];
+            mLower = new double[mCount];
+            mUpper = new double[mCount];
+            mCaps = new double[mCount];
+            mCredit = new double[mCount];
+            mModelled = new boolean[mCount];
+            mX = new double[mCount];
+            mBestX = new double[mCount];
+            mLambda = 1.0;
+            mLambdaFound = false;
+            mPasses = 0;
+
+            for(int i=0; i < mCount; i++)
+            {
+                mErr[i] = Math.max(0.001, parms.mStrataVariance[i] /
+                                          (1.0 + Math.abs(parms.mStrataMeans[i])));
+
+                final double excess = parms.mExpectedConditionalVariances[i] - parms.mVariationBounds[i];
+                mSlope[i] = (excess > 0.0) ? (parms.mVariationBounds[i] / excess)
+                                           : Double.POSITIVE_INFINITY;
+
+                mCosts[i] = (parms.mStrataCosts[i] > 0.0) ? parms.mStrataCosts[i] : 1.0;
+                mUpper[i] = (double)parms.mStrataCapacities[i];
+                mLower[i] = Math.min(1.01, mUpper[i]);
+
+                final int pred = parms.mPredictorStream[i];
+                mModelled[i] = (pred >= 0 && pred != i && parms.mStrataSizes[pred] > 0);
+                if(mModelled[i])
+                {
+                    mCaps[i] = (double)parms.mStrataSizes[pred];
+                }
+            }
+        }
+
+        // @returns whether, within MAX_ROUNDS rounds of MAX_PASSES passes,
+        //          the levels settled with a multiplier that spends the
+        //          budget and the models left (nearly) pay for themselves
+        public boolean solve(double budget)
+        {
+            double minSpend = 0.0;
+            double maxSpend = 0.0;
+            int modelCount = 0;
+            for(int i=0; i < mCount; i++)
+            {
+                minSpend += mCosts[i] * mLower[i];
+                maxSpend += mCosts[i] * mUpper[i];
+                if(mModelled[i]) modelCount++;
+            }
+
+            for(int round=0; round < MAX_ROUNDS; round++)
+            {
+                final double realBudget = Math.min(Math.max(budget - modelCount, minSpend), maxSpend);
+                boolean settled = false;
+                double best = Double.POSITIVE_INFINITY;
+                double lastGain = Double.POSITIVE_INFINITY;
+                int lastGainPass = 0;
+
+                for(int pass=0; pass < MAX_PASSES && !settled; pass++)
+                {
+                    mLambda = pFindMultiplier(realBudget);
+                    for(int i=0; i < mCount; i++)
+                    {
+                        mX[i] = pLevel(i, mLambda);
+                    }
+
+                    // The damping keeps shrinking across rounds, so the
+                    // coupling settles on the average of its targets
+                    pUpdateCoupling(1.0 / (mPasses + 2.0));
+                    mPasses++;
+
+                    final double objective = pObjective(mX);
+                    if(objective < best)
+                    {
+                        best = objective;
+                        System.arraycopy(mX, 0, mBestX, 0, mCount);
+                    }
+                    if(objective < lastGain * (1.0 - MIN_GAIN))
+                    {
+                        lastGain = objective;
+                        lastGainPass = pass;
+                    }
+
+                    settled = mLambdaFound && (pass - lastGainPass) >= STALL_PASSES;
+                }
+                System.arraycopy(mBestX, 0, mX, 0, mCount);
+
+                // Models that predict too little to count have to go. Those
+                // that do not pay for their unit of budget go too, unless
+                // together they cost less than DROP_TOLERANCE of the
+                // objective, which ends the rounds.
+                boolean[] unpaid = new boolean[mCount];
+                int forced = 0;
+                int dropped = 0;
+                double shortfall = 0.0;
+                for(int i=0; i < mCount; i++)
+                {
+                    if(!mModelled[i]) continue;
+
+                    final double y = pPredictions(i, mX[i]);
+                    final double benefit = mErr[i] / mX[i] - mErr[i] / (mX[i] + y);
+                    if(y <= 0.5)
+                    {
+                        unpaid[i] = true;
+                        forced++;
+                    }
+                    else if(benefit < mLambda)
+                    {
+                        unpaid[i] = true;
+                        shortfall += mLambda - benefit;
+                    }
+                }
+
+                if(forced == 0 && shortfall <= DROP_TOLERANCE * best) return settled;
+
+                for(int i=0; i < mCount; i++)
+                {
+                    if(unpaid[i])
+                    {
+                        mModelled[i] = false;
+                        dropped++;
+                    }
+                }
+                modelCount -= dropped;
+            }
 
-            final double localNum = popSizes[i] * sd / sqrtCost;
+            return false;
+        }
+
+        // Integer sizes from the continuous solution: real sizes are floored
+        // and what is left of the budget goes to the largest remainders.
+        // Predictions are rounded like AbstractEdge rounds solver output,
+        // but never exceed the predictor's real samples or its stratum.
+        public double[] round(double budget)
+        {
+            final long[] real = new long[mCount];
+            final long[] predicted = new long[mCount];
+            double spent = 0.0;
+
+            for(int i=0; i < mCount; i++)
+            {
+                real[i] = Math.min((long)Math.floor(mX[i]), mParms.mStrataCapacities[i]);
+                spent += mCosts[i] * real[i];
+            }
+
+            // Models that predict nothing even before rounding up are dropped
+            for(int i=0; i < mCount; i++)
+            {
+                predicted[i] = pRoundPredictions(i, real);
+                if(predicted[i] > 0) spent += 1.0;
+            }
+
+            Integer[] order = new Integer[mCount];
+            for(int i=0; i < mCount; i++) order[i] = i;
+
+            // Over budget only when the lower bounds forced it: give up the
+            // least valuable models first, then real samples
+            if(spent > budget)
+            {
+                Arrays.sort(order, Comparator.comparingDouble((Integer i) -> mErr[i] / Math.max(mX[i], 1.0)));
+
+                for(int j=0; j < mCount && spent > budget; j++)
+                {
+                    if(predicted[order[j]] > 0)
+                    {
+                        predicted[order[j]] = 0;
+                        spent -= 1.0;
+                    }
+                }
+                for(int j=0; j < mCount && spent > budget; j++)
+                {
+                    while(real[order[j]] > 1 && spent > budget)
+                    {
+                        real[order[j]]--;
+                        spent -= mCosts[order[j]];
+                    }
+                }
+            }
+
+            Arrays.sort(order, Comparator.comparingDouble((Integer i) -> Math.floor(mX[i]) - mX[i])
+                                         .thenComparingInt(i -> i));
+
+            for(int j=0; j < mCount; j++)
+            {
+                final int i = order[j];
+                if(real[i] < mParms.mStrataCapacities[i] && spent + mCosts[i] <= budget)
+                {
+                    real[i]++;
+                    spent += mCosts[i];
+                }
+            }
+
+            // Real sizes only grew, so surviving models keep predicting
+            double[] result = new double[2 * mCount];
+            for(int i=0; i < mCount; i++)
+            {
+                result[i] = (double)real[i];
+                result[mCount + i] = (predicted[i] > 0) ? (double)pRoundPredictions(i, real) : 0.0;
+            }
+            return result;
+        }
+
+        // sum_i ERR_i / (x_i + y_i) with every stream's predictions limited
+        // by x of its predictor rather than by the damped caps
+        protected double pObjective(double[] x)
+        {
+            double objective = 0.0;
+            for(int i=0; i < mCount; i++)
+            {
+                double y = 0.0;
+                if(mModelled[i])
+                {
+                    final int pred = mParms.mPredictorStream[i];
+                    final double cap = Math.min((double)mParms.mStrataSizes[pred], x[pred] / PREDICTOR_MARGIN);
+                    y = pPredictions(mSlope[i], cap, x[i]);
+                }
+                objective += mErr[i] / (x[i] + y);
+            }
+            return objective;
+        }
+
+        protected long pRoundPredictions(int i, long[] real)
+        {
+            if(!mModelled[i]) return 0;
+
+            final int pred = mParms.mPredictorStream[i];
+            final long limit = Math.min(mParms.mStrataSizes[pred], real[pred]);
+            final double cap = Math.min((double)mParms.mStrataSizes[pred], real[pred] / PREDICTOR_MARGIN);
+
+            return Math.min(Math.round(pPredictions(mSlope[i], cap, (double)real[i])), limit);
+        }
+
+        // Refreshes the predictor caps and, for every predictor, the
+        // objective decrease its real samples buy the streams whose
+        // predictions they limit. Both move only part of the way (weight) to
+        // their new values, as undamped updates oscillate.
+        protected void pUpdateCoupling(double weight)
+        {
+            double[] credit = new double[mCount];
+
+            for(int i=0; i < mCount; i++)
+            {
+                if(!mModelled[i]) continue;
+
+                final int pred = mParms.mPredictorStream[i];
+                final double byPredictor = mX[pred] / PREDICTOR_MARGIN;
+                mCaps[i] += weight * (Math.min((double)mParms.mStrataSizes[pred], byPredictor) - mCaps[i]);
 
-            sampleSizes[i] += (int)Math.round((n * localNum) / globalNum);
+                final double y = pPredictions(i, mX[i]);
+                if(byPredictor <= (double)mParms.mStrataSizes[pred] && y >= mCaps[i])
+                {
+                    final double total = mX[i] + y;
+                    credit[pred] += mErr[i] / (PREDICTOR_MARGIN * total * total);
+                }
+            }
+
+            for(int i=0; i < mCount; i++)
+            {
+                mCredit[i] += weight * (credit[i] - mCredit[i]);
+            }
         }
 
-        //
-        // FIXUP ANY OVERCOMMITED STRATA
-        //
-        for(int i=0; i < popSizes.length; i++)
+        // Multiplier at which the water levels spend exactly the budget.
+        // Spending falls as lambda grows; the root is bracketed around the
+        // previous multiplier and refined with the Illinois method on
+        // log(lambda), which needs far fewer passes than plain bisection.
+        protected double pFindMultiplier(double budget)
         {
-            int fixRetries = 0;
-            final int maxRetries = 1000;
-            Random rng = new Random();
+            mLambdaFound = true;
 
-            while(sampleSizes[i] > (int)popSizes[i])
+            double lo = mLambda;
+            double hi = mLambda;
+            double fLo = pSpend(lo) - budget;
+            double fHi = fLo;
+
+            double factor = 1.25;
+            while(fLo < 0.0 && lo > 1e-300)
+            {
+                hi = lo;
+                fHi = fLo;
+                lo /= factor;
+                factor *= factor;
+                fLo = pSpend(lo) - budget;
+            }
+
+            factor = 1.25;
+            while(fHi > 0.0 && hi < 1e300)
             {
-                if(fixRetries == maxRetries) break;
+                lo = hi;
+                fLo = fHi;
+                hi *= factor;
+                factor *= factor;
+                fHi = pSpend(hi) - budget;
+            }
+
+            if(fLo == 0.0) return lo;
+            if(fHi == 0.0 || lo == hi) return hi;
 
-                int incIdx = rng.nextInt(popSizes.length);
-                if(incIdx != i && sampleSizes[incIdx] < popSizes[incIdx])
+            double a = Math.log(lo);
+            double b = Math.log(hi);
+            int side = 0;
+
+            for(int iter=0; iter < 100 && (b - a) > 1e-12; iter++)
+            {
+                final double c = (a * fHi - b * fLo) / (fHi - fLo);
+                final double fC = pSpend(Math.exp(c)) - budget;
+
+                if(Math.abs(fC) <= 1e-9 * budget) return Math.exp(c);
+
+                if(fC > 0.0)
                 {
-                    sampleSizes[incIdx]++;
-                    sampleSizes[i]--;
+                    a = c;
+                    fLo = fC;
+                    if(side == 1) fHi *= 0.5;
+                    side = 1;
                 }
                 else
-                    fixRetries++;
+                {
+                    b = c;
+                    fHi = fC;
+                    if(side == -1) fLo *= 0.5;
+                    side = -1;
+                }
             }
 
-            if(fixRetries == maxRetries)
+            mLambdaFound = (b - a) <= 1e-12;
+            return Math.exp(b);
+        }
+
+        protected double pSpend(double lambda)
+        {
+            double spend = 0.0;
+            for(int i=0; i < mCount; i++)
             {
-                System.err.println("Can't fix overcommitted stratum");
-                sampleSizes[i] = (int)popSizes[i];
+                spend += mCosts[i] * pLevel(i, lambda);
             }
+            return spend;
         }
 
-        return sampleSizes;
+        // Minimizes err / s(x) + (lambda * cost - credit) * x over the
+        // bounds. s(x) is x plus clamp(slope * x - 0.5, 0, cap), up to three
+        // linear pieces with non-increasing slope, so the derivative is
+        // non-decreasing and the optimum lies on the first piece whose
+        // stationary point is not past its end.
+        protected double pLevel(int i, double lambda)
+        {
+            final double lower = mLower[i];
+            final double upper = mUpper[i];
+            if(upper <= lower) return upper;
+
+            final double price = lambda * mCosts[i] - mCredit[i];
+            if(price <= 0.0) return upper;
+
+            final double scale = mErr[i] / price;
+
+            if(!mModelled[i])
+            {
+                return pClamp(Math.sqrt(scale), lower, upper);
+            }
+
+            final double cap = mCaps[i];
+            final double slope = mSlope[i];
+            if(Double.isInfinite(slope))
+            {
+                return pClamp(Math.sqrt(scale) - cap, lower, upper);
+            }
+
+            final double first = pClamp(0.5 / slope, lower, upper);
+            final double second = pClamp((cap + 0.5) / slope, first, upper);
+
+            // No predictions yet: s = x
+            final double none = Math.sqrt(scale);
+            if(none <= first) return Math.max(none, lower);
+
+            // Predictions growing with x: s = (1 + slope) x - 0.5
+            final double growing = (Math.sqrt(scale * (1.0 + slope)) + 0.5) / (1.0 + slope);
+            if(growing <= second) return Math.max(growing, first);
+
+            // Predictions at their cap: s = x + cap
+            return pClamp(Math.sqrt(scale) - cap, second, upper);
+        }
+
+        protected double pPredictions(int i, double x)
+        {
+            return pPredictions(mSlope[i], mCaps[i], x);
+        }
+
+        protected static double pPredictions(double slope, double cap, double x)
+        {
+            if(Double.isInfinite(slope)) return cap;
+            return pClamp(slope * x - 0.5, 0.0, cap);
+        }
+
+        protected static double pClamp(double value, double lower, double upper)
+        {
+            return Math.min(Math.max(value, lower), upper);
+        }
     }
 }
@@ -0,0 +1,143 @@
+package edu.umn.dcsg.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Primitive, growable column storage for the observations of a single stream.
+// Values and timestamps live in parallel double[]/long[] columns and the
+// metadata column is dictionary encoded, since most streams only ever report
+// a handful of distinct metadata strings.
+//
+// The arrays returned by getValues()/getTimes() are views of the backing
+// columns and must be treated as read-only by the caller.
+public class StreamColumns
+{
+    protected static final int INITIAL_CAPACITY = 64;
+
+    protected double[]              mValues;
+    protected long[]                mTimes;
+    protected int[]                 mMetadataCodes;
+    protected int                   mSize;
+
+    protected List<String>          mDictionary;
+    protected Map<String, Integer>  mDictionaryIndex;
+
+    public StreamColumns()
+    {
+        mValues = new double[INITIAL_CAPACITY];
+        mTimes = new long[INITIAL_CAPACITY];
+        mMetadataCodes = new int[INITIAL_CAPACITY];
+        mSize = 0;
+
+        mDictionary = new ArrayList<String>();
+        mDictionaryIndex = new HashMap<String, Integer>();
+    }
+
+    public void add(double value, long time, String metadata)
+    {
+        if(mSize == mValues.length)
+        {
+            pGrow();
+        }
+
+        mValues[mSize] = value;
+        mTimes[mSize] = time;
+        mMetadataCodes[mSize] = pEncode(metadata);
+        mSize++;
+    }
+
+    // Appends count values and times without metadata
+    public void addAll(double[] values, long[] times, int count)
+    {
+        while(mSize + count > mValues.length)
+        {
+            pGrow();
+        }
+
+        final int code = pEncode("");
+        System.arraycopy(values, 0, mValues, mSize, count);
+        System.arraycopy(times, 0, mTimes, mSize, count);
+        Arrays.fill(mMetadataCodes, mSize, mSize + count, code);
+        mSize += count;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public double getValue(int idx)
+    {
+        return mValues[idx];
+    }
+
+    public long getTime(int idx)
+    {
+        return mTimes[idx];
+    }
+
+    public String getMetadata(int idx)
+    {
+        return mDictionary.get(mMetadataCodes[idx]);
+    }
+
+    // Zero-copy once the column has been trimmed. The first read after a
+    // batch of inserts trims the backing array to its exact size, so every
+    // later reader in the same window shares that array.
+    public double[] getValues()
+    {
+        if(mValues.length != mSize)
+        {
+            pTrim();
+        }
+        return mValues;
+    }
+
+    public long[] getTimes()
+    {
+        if(mTimes.length != mSize)
+        {
+            pTrim();
+        }
+        return mTimes;
+    }
+
+    public void clear()
+    {
+        mSize = 0;
+        mDictionary.clear();
+        mDictionaryIndex.clear();
+    }
+
+    protected int pEncode(String metadata)
+    {
+        if(metadata == null) metadata = "";
+
+        Integer code = mDictionaryIndex.get(metadata);
+        if(code == null)
+        {
+            code = mDictionary.size();
+            mDictionary.add(metadata);
+            mDictionaryIndex.put(metadata, code);
+        }
+        return code;
+    }
+
+    protected void pGrow()
+    {
+        final int capacity = Math.max(INITIAL_CAPACITY, mValues.length * 2);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mTimes = Arrays.copyOf(mTimes, capacity);
+        mMetadataCodes = Arrays.copyOf(mMetadataCodes, capacity);
+    }
+
+    protected void pTrim()
+    {
+        mValues = Arrays.copyOf(mValues, mSize);
+        mTimes = Arrays.copyOf(mTimes, mSize);
+        mMetadataCodes = Arrays.copyOf(mMetadataCodes, mSize);
+    }
+}
@@ -0,0 +1,158 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Fixed-size sample of a single stream's observations within a window.
+//
+// The window is divided into time slots and every slot keeps its own weighted
+// reservoir (Efraimidis-Spirakis A-Res: each item gets the key u^(1/w) and the
+// largest keys survive). Stratifying by time keeps the retained points spread
+// over the whole window, which the interpolation used for dependence and
+// regression relies on. Memory is bounded by the reservoir size no matter how
+// many values arrive.
+public class StreamReservoir
+{
+    protected final int         mSlots;
+    protected final int         mSlotCapacity;
+    protected final int         mWindowDuration;
+    protected final Random      mRNG;
+
+    // Slot s owns entries [s * mSlotCapacity, s * mSlotCapacity + mCounts[s]).
+    // Each slot is a binary min-heap on its keys.
+    protected double[]          mKeys;
+    protected double[]          mValues;
+    protected long[]            mTimes;
+    protected String[]          mMetadata;
+    protected int[]             mCounts;
+
+    public StreamReservoir(int capacity, int slots, Random rng)
+    {
+        mSlots = Math.max(1, Math.min(slots, capacity));
+        mSlotCapacity = Math.max(1, (capacity + mSlots - 1) / mSlots);
+        mWindowDuration = Config.getTrace().mWindowDuration;
+        mRNG = rng;
+
+        final int total = mSlots * mSlotCapacity;
+        mKeys = new double[total];
+        mValues = new double[total];
+        mTimes = new long[total];
+        mMetadata = new String[total];
+        mCounts = new int[mSlots];
+    }
+
+    public void add(double value, long time, String metadata, double weight)
+    {
+        final int slot = pGetSlot(time);
+        final int base = slot * mSlotCapacity;
+
+        // log(u^(1/w)) preserves the ordering and avoids underflow
+        final double key = Math.log(mRNG.nextDouble()) / weight;
+
+        if(mCounts[slot] < mSlotCapacity)
+        {
+            final int idx = base + mCounts[slot];
+            pSet(idx, key, value, time, metadata);
+            mCounts[slot]++;
+            pSiftUp(base, idx - base);
+        }
+        else if(key > mKeys[base])
+        {
+            pSet(base, key, value, time, metadata);
+            pSiftDown(base, 0, mCounts[slot]);
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for(int slot=0; slot < mSlots; slot++) size += mCounts[slot];
+        return size;
+    }
+
+    // Appends the retained observations to the columns in time order
+    public void drainTo(StreamColumns columns)
+    {
+        Integer[] order = new Integer[size()];
+
+        int next = 0;
+        for(int slot=0; slot < mSlots; slot++)
+        {
+            for(int i=0; i < mCounts[slot]; i++)
+            {
+                order[next++] = slot * mSlotCapacity + i;
+            }
+        }
+
+        Arrays.sort(order, (a, b) -> Long.compare(mTimes[a], mTimes[b]));
+
+        for(Integer idx : order)
+        {
+            columns.add(mValues[idx], mTimes[idx], mMetadata[idx]);
+        }
+    }
+
+    public void clear()
+    {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mMetadata, null);
+    }
+
+    protected int pGetSlot(long time)
+    {
+        int slot = (int) Math.floor(((double)mSlots) * ((double)time) / ((double)mWindowDuration));
+        if(slot < 0) slot = 0;
+        if(slot >= mSlots) slot = mSlots - 1;
+        return slot;
+    }
+
+    protected void pSet(int idx, double key, double value, long time, String metadata)
+    {
+        mKeys[idx] = key;
+        mValues[idx] = value;
+        mTimes[idx] = time;
+        mMetadata[idx] = metadata;
+    }
+
+    protected void pSwap(int a, int b)
+    {
+        final double key = mKeys[a];
+        final double value = mValues[a];
+        final long time = mTimes[a];
+        final String metadata = mMetadata[a];
+
+        pSet(a, mKeys[b], mValues[b], mTimes[b], mMetadata[b]);
+        pSet(b, key, value, time, metadata);
+    }
+
+    protected void pSiftUp(int base, int pos)
+    {
+        while(pos > 0)
+        {
+            final int parent = (pos - 1) / 2;
+            if(mKeys[base + parent] <= mKeys[base + pos]) break;
+
+            pSwap(base + parent, base + pos);
+            pos = parent;
+        }
+    }
+
+    protected void pSiftDown(int base, int pos, int count)
+    {
+        while(true)
+        {
+            final int left = 2 * pos + 1;
+            final int right = left + 1;
+            int smallest = pos;
+
+            if(left < count && mKeys[base + left] < mKeys[base + smallest]) smallest = left;
+            if(right < count && mKeys[base + right] < mKeys[base + smallest]) smallest = right;
+            if(smallest == pos) break;
+
+            pSwap(base + pos, base + smallest);
+            pos = smallest;
+        }
+    }
+}
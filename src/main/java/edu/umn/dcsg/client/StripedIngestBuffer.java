@@ -0,0 +1,109 @@
+package edu.umn.dcsg.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Append path for concurrent ingestion.
+//
+// Streams are hashed onto a fixed number of stripes, and each stripe is a
+// partition of the window's cache (see TTLDataCache.newPartition()) behind
+// its own monitor. An append does the whole insert, summary and reservoir
+// included, under its stripe's lock only, so writers of different stripes
+// never contend and a stripe holds no more than the cache would for its
+// streams: with Config.USE_RESERVOIR_CACHE it is bounded by the reservoirs.
+// Draining swaps each stripe's partition for an empty one and merges the
+// detached partitions into the cache stream by stream, so the flush does not
+// redo the inserts.
+public class StripedIngestBuffer
+{
+    protected static class Stripe
+    {
+        public TTLDataCache mPartition;
+
+        public Stripe(TTLDataCache partition)
+        {
+            mPartition = partition;
+        }
+    }
+
+    protected final Stripe[]    mStripes;
+
+    // @param cache     cache the partitions draw their random streams from
+    public StripedIngestBuffer(int stripeCount, TTLDataCache cache)
+    {
+        mStripes = new Stripe[Math.max(1, stripeCount)];
+        for(int i=0; i < mStripes.length; i++)
+        {
+            mStripes[i] = new Stripe(cache.newPartition());
+        }
+    }
+
+    public void append(int streamId, double value, long time, String metadata)
+    {
+        final Stripe stripe = mStripes[pGetStripe(streamId)];
+
+        synchronized(stripe)
+        {
+            stripe.mPartition.insert(streamId, value, time, metadata);
+        }
+    }
+
+    // Moves everything appended so far into the cache. Values appended while
+    // the drain is running are kept for the next drain.
+    public void drainTo(TTLDataCache cache)
+    {
+        mergeInto(detach(), cache);
+    }
+
+    // Swaps every stripe's partition for an empty one and returns the
+    // detached partitions. Only the swap itself happens under the stripe
+    // locks.
+    public List<TTLDataCache> detach()
+    {
+        List<TTLDataCache> detached = new ArrayList<TTLDataCache>();
+
+        for(Stripe stripe : mStripes)
+        {
+            synchronized(stripe)
+            {
+                if(stripe.mPartition.mStreams.isEmpty()) continue;
+
+                detached.add(stripe.mPartition);
+                stripe.mPartition = stripe.mPartition.newPartition();
+            }
+        }
+
+        return detached;
+    }
+
+    public static void mergeInto(List<TTLDataCache> detached, TTLDataCache cache)
+    {
+        for(TTLDataCache partition : detached)
+        {
+            cache.absorb(partition);
+        }
+    }
+
+    // Values held by the stripes until the next drain, over all streams
+    public long getRetainedCount()
+    {
+        long retained = 0;
+        for(Stripe stripe : mStripes)
+        {
+            synchronized(stripe)
+            {
+                for(TTLDataCache.StreamData data : stripe.mPartition.mStreams.values())
+                {
+                    retained += data.getRetainedCount();
+                }
+            }
+        }
+        return retained;
+    }
+
+    protected int pGetStripe(int streamId)
+    {
+        // Spread sequential stream ids across stripes
+        return Math.floorMod(streamId * 0x9E3779B9, mStripes.length);
+    }
+}
@@ -18,6 +18,8 @@ import java.util.HashSet;
 import java.util.Random;
 import java.util.Comparator;
 
+import org.apache.commons.math3.stat.descriptive.AggregateSummaryStatistics;
+import org.apache.commons.math3.stat.descriptive.StatisticalSummary;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.linear.SingularMatrixException;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
@@ -29,34 +31,83 @@ public class TTLDataCache
     protected class StreamData
     {
         public SummaryStatistics    mSummary;
-        public List<Double>         mObservedValues;
-        public List<Long>           mTimestamps;
-        public List<String>         mMetadata;
+        public StreamColumns        mColumns;
+
+        // Only used in reservoir mode. The columns are then rebuilt from the
+        // reservoir whenever they are read after new values arrive.
+        public StreamReservoir      mReservoir;
+        protected boolean           mColumnsStale;
+        protected long              mLastTime;
 
         public StreamData()
         {
             mSummary = new SummaryStatistics();
-            mObservedValues = new ArrayList<Double>();
-            mTimestamps = new ArrayList<Long>();
-            mMetadata = new ArrayList<String>();
+            mColumns = new StreamColumns();
+            mReservoir = null;
+            mColumnsStale = false;
+            mLastTime = 0;
+
+            if(Config.USE_RESERVOIR_CACHE)
+            {
+                // Its own random stream, so ingesting never draws from the
+                // one the flush samples with
+                mReservoir = new StreamReservoir(Config.RESERVOIR_SIZE, Config.RESERVOIR_SLOTS,
+                                                 new Random(mRNG.nextLong()));
+            }
         }
 
-        public void addValue(Double value, Long time, String metadata)
+        public void addValue(double value, long time, String metadata)
         {
             mSummary.addValue(value);
-            mObservedValues.add(value);
-            mMetadata.add(metadata);
-            mTimestamps.add(time);
+
+            if(mReservoir != null)
+            {
+                // A value stands for the time since the stream's previous
+                // one, so a burst does not crowd the rest of its slot out.
+                // The first one has no previous value and counts as one.
+                final boolean first = (mSummary.getN() == 1);
+                final double weight = first ? 1.0 : Math.max(1.0, (double)(time - mLastTime));
+                mLastTime = first ? time : Math.max(mLastTime, time);
+
+                mReservoir.add(value, time, metadata, weight);
+                mColumnsStale = true;
+            }
+            else
+            {
+                mColumns.add(value, time, metadata);
+            }
+        }
+
+        // Values that can be sampled: all of them, or the reservoir's
+        public long getRetainedCount()
+        {
+            return (mReservoir != null) ? mReservoir.size() : mSummary.getN();
+        }
+
+        public StreamColumns getColumns()
+        {
+            if(mColumnsStale)
+            {
+                mColumns.clear();
+                mReservoir.drainTo(mColumns);
+                mColumnsStale = false;
+            }
+            return mColumns;
+        }
+
+        public int size()
+        {
+            return getColumns().size();
         }
 
         public double[] getArray()
         {
-            return mObservedValues.stream().mapToDouble(Double::doubleValue).toArray();
+            return getColumns().getValues();
         }
 
         public long[] getTimeArray()
         {
-            return mTimestamps.stream().mapToLong(Long::longValue).toArray();
+            return getColumns().getTimes();
         }
     }
     
@@ -65,16 +116,112 @@ public class TTLDataCache
     protected SummaryStatistics         mOverallStats;
     protected Map<Integer, StreamData>  mStreams;
     protected Random                    mRNG;
+    // Only created once incremental dependence (or regression) or candidate
+    // pairs are used
+    protected OnlineDependenceMatrix    mOnlineDependence;
+    protected FlushContext              mFlushContext;
+    protected ParallelFlushEngine       mFlushEngine;
+
+    // False for the partitions of a StripedIngestBuffer, which leave the
+    // dependence across streams to the cache they are merged into
+    protected boolean                   mTrackDependence;
+    // Overall statistics of the partitions merged into this cache
+    protected List<SummaryStatistics>   mAbsorbedStats;
 
     public TTLDataCache()
     {
         mOverallStats = new SummaryStatistics();
         mStreams = new HashMap<Integer, StreamData>();
         mRNG = new Random(0x12345678);
+        mOnlineDependence = null;
+        mFlushContext = null;
+        mFlushEngine = null;
+        mTrackDependence = true;
+        mAbsorbedStats = new ArrayList<SummaryStatistics>();
     }
 
-    public void insert(Integer streamId, Double value, Long time, String metadata)
+    // Empty cache for the next window that keeps this cache's flush engine
+    // and dependence candidates. Nothing mutable is shared with this cache,
+    // so one can be flushed while the other is filled: the random stream
+    // continues from a seed drawn here and the candidates are copied.
+    public TTLDataCache newWindowCache()
     {
+        TTLDataCache next = new TTLDataCache();
+        next.mRNG = new Random(mRNG.nextLong());
+        next.mFlushEngine = mFlushEngine;
+        next.mOnlineDependence = (mOnlineDependence != null) ? mOnlineDependence.newWindow() : null;
+        return next;
+    }
+
+    // Empty cache for one stripe of a StripedIngestBuffer, with a random
+    // stream of its own drawn from this cache's. See absorb().
+    public TTLDataCache newPartition()
+    {
+        TTLDataCache partition = new TTLDataCache();
+        partition.mRNG = new Random(mRNG.nextLong());
+        partition.mTrackDependence = false;
+        return partition;
+    }
+
+    // Moves the streams of a partition into this cache. Streams that are new
+    // here are taken over as they are, summaries and reservoirs included, so
+    // this costs per stream rather than per value. A stream this cache
+    // already has only gets the values the partition retained. The
+    // incremental dependence matrix, which spans partitions, is fed the
+    // retained values of each stream here.
+    public void absorb(TTLDataCache partition)
+    {
+        mFlushContext = null;
+
+        final boolean dependence = mTrackDependence &&
+            (Config.USE_INCREMENTAL_DEPENDENCE || Config.USE_INCREMENTAL_REGRESSION);
+
+        for(Map.Entry<Integer, StreamData> entry : partition.mStreams.entrySet())
+        {
+            final int streamId = entry.getKey();
+            final StreamColumns columns = entry.getValue().getColumns();
+
+            final StreamData existing = mStreams.get(streamId);
+            if(existing == null)
+            {
+                mStreams.put(streamId, entry.getValue());
+            }
+
+            for(int i=0; i < columns.size(); i++)
+            {
+                if(existing != null)
+                {
+                    existing.addValue(columns.getValue(i), columns.getTime(i), columns.getMetadata(i));
+                }
+                if(dependence)
+                {
+                    pGetOnlineDependence().insert(streamId, columns.getValue(i), columns.getTime(i));
+                }
+            }
+        }
+
+        if(partition.mOverallStats.getN() > 0)
+        {
+            mAbsorbedStats.add(partition.mOverallStats);
+        }
+        mAbsorbedStats.addAll(partition.mAbsorbedStats);
+        partition.mStreams = new HashMap<Integer, StreamData>();
+        partition.mOverallStats = new SummaryStatistics();
+        partition.mAbsorbedStats = new ArrayList<SummaryStatistics>();
+    }
+
+    // Overrides the engine from Config.FLUSH_PARALLELISM (e.g. to share a
+    // dedicated ForkJoinPool between several caches).
+    public void setFlushEngine(ParallelFlushEngine engine)
+    {
+        mFlushEngine = engine;
+    }
+
+    public void insert(int streamId, double value, long time, String metadata)
+    {
+        // Anything memoized for a flush is stale once new data arrives
+        mFlushContext = null;
+
         pInitializeStreamIfNull(streamId);
         mStreams.get(streamId).addValue(value, time, metadata);
 
@@ -84,17 +231,59 @@ public class TTLDataCache
         }
 
         mOverallStats.addValue(value);
+
+        if(mTrackDependence &&
+           (Config.USE_INCREMENTAL_DEPENDENCE || Config.USE_INCREMENTAL_REGRESSION))
+        {
+            pGetOnlineDependence().insert(streamId, value, time);
+        }
+    }
+
+    // Opens a memo for the results shared between flush phases. Everything
+    // computed until endFlush() is calculated at most once.
+    public FlushContext beginFlush()
+    {
+        mFlushContext = new FlushContext();
+        return mFlushContext;
+    }
+
+    public FlushContext endFlush()
+    {
+        FlushContext context = mFlushContext;
+        mFlushContext = null;
+        return context;
     }
 
     public void clear()
     {
+        mFlushContext = null;
         mOverallStats.clear();
+        mAbsorbedStats.clear();
         mStreams.clear();
+        if(mOnlineDependence != null)
+        {
+            mOnlineDependence.clear();
+        }
+    }
+
+    // Limits the incremental dependence matrix to the given pairs. Pairs that
+    // are never registered report a dependence of zero.
+    public void addDependenceCandidate(int streamA, int streamB)
+    {
+        pGetOnlineDependence().addCandidatePair(streamA, streamB);
+    }
+
+    public void clearDependenceCandidates()
+    {
+        if(mOnlineDependence != null)
+        {
+            mOnlineDependence.clearCandidatePairs();
+        }
     }
 
     public Long getTotalObservedValues()
     {
-        return mOverallStats.getN();
+        return getOverallSummaryStats().getN();
     }
 
     public static List<StreamTuple> stringToExactAggregates(String payload)
@@ -114,24 +303,45 @@ public class TTLDataCache
     {
         StringBuilder sBuilder = new StringBuilder();
 
-        for(Map.Entry<Integer, StreamData> entry : mStreams.entrySet())
+        // By sorted stream id, the order the cloud reads them back in
+        for(Integer streamId : getStreamIds())
         {
-            sBuilder.append(entry.getValue().mSummary.getMean());
+            final SummaryStatistics summary = mStreams.get(streamId).mSummary;
+            sBuilder.append(summary.getMean());
             sBuilder.append(TTLDataCache.DELIMITER);
-            sBuilder.append(entry.getValue().mSummary.getPopulationVariance());
+            sBuilder.append(summary.getPopulationVariance());
             sBuilder.append(TTLDataCache.DELIMITER);
-            sBuilder.append(entry.getValue().mSummary.getMin());
+            sBuilder.append(summary.getMin());
             sBuilder.append(TTLDataCache.DELIMITER);
-            sBuilder.append(entry.getValue().mSummary.getMax());
+            sBuilder.append(summary.getMax());
             sBuilder.append(TTLDataCache.DELIMITER);
         }
 
         return sBuilder.toString();
     }
 
-    public SummaryStatistics getOverallSummaryStats()
+    // @returns { min, max } of the stream's values this window, or null
+    public double[] getValueRange(int streamId)
     {
-        return mOverallStats;
+        final StreamData data = mStreams.get(streamId);
+        if(data == null || data.mSummary.getN() == 0) return null;
+
+        return new double[]{ data.mSummary.getMin(), data.mSummary.getMax() };
+    }
+
+    public StatisticalSummary getOverallSummaryStats()
+    {
+        if(mAbsorbedStats.isEmpty())
+        {
+            return mOverallStats;
+        }
+
+        List<SummaryStatistics> all = new ArrayList<SummaryStatistics>(mAbsorbedStats);
+        if(mOverallStats.getN() > 0)
+        {
+            all.add(mOverallStats);
+        }
+        return AggregateSummaryStatistics.aggregate(all);
     }
 
     public int getNumStreams()
@@ -145,39 +355,26 @@ public class TTLDataCache
         final int numStreams = getNumStreams();
         long[] observed = getObservedCountByStream();
 
-        int usedSamples = 0;
-        int[] allocation = new int[numStreams];
-
-        // Guarantee at least one sample per stream
+        // Equal shares, at least one sample per stream and never more than
+        // a stream has observed
+        double[] weights = new double[numStreams];
+        int[] minimums = new int[numStreams];
+        double[] capacities = new double[numStreams];
         for(int i=0; i < numStreams; i++)
         {
-            allocation[i] = 1;
-            usedSamples++;
+            weights[i] = 1.0;
+            minimums[i] = 1;
+            capacities[i] = (double)observed[i];
         }
-        
-        final int maxRetries = 100;
-        int retries = 0;
-        while(usedSamples < numSamples)
-        {
-            final int randIdx = mRNG.nextInt(numStreams);
-
-            if(allocation[randIdx] + 1 > observed[randIdx])
-            {
-                retries++;
-                if(retries > maxRetries) break;
 
-                continue;
-            }
-
-            allocation[randIdx]++;
-            usedSamples++;
-        }
+        int[] allocation = SampleSizeCalculator.getLargestRemainderAllocation(numSamples, weights,
+                                                                              minimums, capacities);
 
-        int streamIdx = 0;
-        for(Map.Entry<Integer, StreamData> entry : mStreams.entrySet())
+        // In the sorted order the allocation (and the observed counts) follow
+        final List<Integer> streamIds = getStreamIds();
+        for(int i=0; i < numStreams; i++)
         {
-            samples.addAll(getSampleForStream(entry.getKey(), allocation[streamIdx]));
-            streamIdx++;
+            samples.addAll(getSampleForStream(streamIds.get(i), allocation[i]));
         }
 
         return samples;
@@ -190,7 +387,8 @@ public class TTLDataCache
 
         if(numSamples == 0) return new ArrayList<StreamTuple>();
 
-        final int len = sData.mObservedValues.size();
+        final StreamColumns columns = sData.getColumns();
+        final int len = columns.size();
         final int inc = (len / numSamples);
         samples = new ArrayList<StreamTuple>();
         int extraJump = 0;
@@ -200,9 +398,9 @@ public class TTLDataCache
         if(numSamples == 1)
         {
             final int randIdx = mRNG.nextInt(len);
-            Double val = sData.mObservedValues.get(randIdx);
-            Long time = sData.mTimestamps.get(randIdx);
-            samples.add(new StreamTuple(streamId, val, time));
+            samples.add(new StreamTuple(streamId,
+                                        columns.getValue(randIdx),
+                                        columns.getTime(randIdx)));
             return samples;
         }
 
@@ -220,9 +418,9 @@ public class TTLDataCache
             int samplesSent = 0;
             for(int i=startIdx; i < len && samplesSent < numSamples; i += inc)
             {
-                Double val = sData.mObservedValues.get(i);
-                Long time = sData.mTimestamps.get(i);
-                samples.add(new StreamTuple(streamId, val, time));
+                samples.add(new StreamTuple(streamId,
+                                            columns.getValue(i),
+                                            columns.getTime(i)));
                 samplesSent++;
             }
 
@@ -230,21 +428,69 @@ public class TTLDataCache
         }
         else
         {
-            Collections.shuffle(sData.mObservedValues);
+            // Draw row indices so that each value stays paired with its own
+            // timestamp; the cost depends on numSamples only
+            final int[] rows = pSampleIndices(mRNG, len, numSamples);
 
             for(int i=0; i < numSamples; i++)
             {
-                Double val = sData.mObservedValues.get(i);
-                Long time = sData.mTimestamps.get(i);
-                samples.add(new StreamTuple(streamId, val, time));
+                final int row = rows[i];
+                samples.add(new StreamTuple(streamId,
+                                            columns.getValue(row),
+                                            columns.getTime(row),
+                                            columns.getMetadata(row)));
             }
         }
 
         return samples;
     }
 
+    // k distinct indices from [0, n) using Floyd's algorithm: O(k) time and
+    // space, with the chosen indices tracked in a small open-addressing set
+    protected static int[] pSampleIndices(Random rng, int n, int k)
+    {
+        final int[] chosen = new int[k];
+
+        int tableSize = 4;
+        while(tableSize < 2 * k) tableSize <<= 1;
+        final int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+
+        int count = 0;
+        for(int j=n-k; j < n; j++)
+        {
+            final int t = rng.nextInt(j + 1);
+            final int pick = pInsertIndex(table, t) ? t : j;
+            if(pick == j) pInsertIndex(table, j);
+            chosen[count++] = pick;
+        }
+
+        return chosen;
+    }
+
+    // @returns false if the index was already in the table
+    protected static boolean pInsertIndex(int[] table, int index)
+    {
+        final int mask = table.length - 1;
+        int slot = (index * 0x9E3779B9) & mask;
+
+        while(table[slot] != -1)
+        {
+            if(table[slot] == index) return false;
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = index;
+        return true;
+    }
+
     public int[] getPredictors()
     {
+        if(pUseSketchSearch())
+        {
+            return pSearchPredictors().mPredictors;
+        }
+
         final int streamCount = getNumStreams();
         double[][] dependence = getDependenceMatrix();
         final double[] varianceY = getStreamVariances();
@@ -279,6 +525,11 @@ public class TTLDataCache
 
     protected double[] getDependenceForPredictors()
     {
+        if(pUseSketchSearch())
+        {
+            return pSearchPredictors().mPredictorDependence;
+        }
+
         double[][] dependence = getDependenceMatrix();
         final int streamCount = dependence[0].length;
         double[] predictorDependence = new double[streamCount];
@@ -301,9 +552,93 @@ public class TTLDataCache
         return predictorDependence;
     }
 
+    // Shortlist-based predictor search for large stream counts. Only the
+    // shortlisted pairs are scored exactly, so the dependence matrix is
+    // never materialized.
+    protected FlushContext pSearchPredictors()
+    {
+        FlushContext context = (mFlushContext != null) ? mFlushContext : new FlushContext();
+        if(context.mPredictors != null)
+        {
+            context.recordReuse("predictors");
+            return context;
+        }
+
+        final long start = System.nanoTime();
+        final List<Integer> streamIds = pGetSortedKeys();
+        final int streamCount = streamIds.size();
+
+        double[][] values = new double[streamCount][];
+        long[][] times = new long[streamCount][];
+        for(int i=0; i < streamCount; i++)
+        {
+            values[i] = mStreams.get(streamIds.get(i)).getArray();
+            times[i] = mStreams.get(streamIds.get(i)).getTimeArray();
+        }
+
+        PredictorSketchIndex index = new PredictorSketchIndex();
+        context.mPredictorDependence = new double[streamCount];
+        context.mPredictors = index.search(values, times,
+                                           (i, j) -> pGetPairDependence(streamIds.get(i), streamIds.get(j)),
+                                           context.mPredictorDependence);
+        context.recordPhase("predictors", System.nanoTime() - start);
+
+        return context;
+    }
+
+    protected boolean pUseSketchSearch()
+    {
+        return Config.USE_PREDICTOR_SKETCH &&
+               getNumStreams() >= Config.PREDICTOR_SKETCH_MIN_STREAMS;
+    }
+
     protected double[][] getDependenceMatrix()
+    {
+        if(mFlushContext != null && mFlushContext.mDependence != null)
+        {
+            mFlushContext.recordReuse("dependence");
+            return mFlushContext.mDependence;
+        }
+
+        final long start = System.nanoTime();
+        double[][] dep = pComputeDependenceMatrix();
+
+        if(mFlushContext != null)
+        {
+            mFlushContext.mDependence = dep;
+            mFlushContext.recordPhase("dependence", System.nanoTime() - start);
+        }
+
+        return dep;
+    }
+
+    protected double[][] pComputeDependenceMatrix()
     {
         List<Integer> streamIds = pGetSortedKeys();
+
+        // Only linear dependence can be maintained online; rank correlation
+        // still needs the full series.
+        if(Config.USE_INCREMENTAL_DEPENDENCE && Config.LINEAR_DEPENDENCE)
+        {
+            return pGetOnlineDependence().getMatrix(streamIds);
+        }
+
+        final ParallelFlushEngine engine = pAcquireFlushEngine();
+        if(engine != null)
+        {
+            final List<Integer> ids = streamIds;
+            try
+            {
+                pPrepareColumns();
+                return engine.computeSymmetricMatrix(ids.size(),
+                                                     (i, j) -> pGetPairDependence(ids.get(i), ids.get(j)));
+            }
+            finally
+            {
+                pReleaseFlushEngine(engine);
+            }
+        }
+
         double[][] dep = new double[streamIds.size()][streamIds.size()];
 
         for(int i=0; i < streamIds.size(); i++)
@@ -316,21 +651,7 @@ public class TTLDataCache
                 }
                 else
                 {
-                    if(Config.LINEAR_DEPENDENCE)
-                    {
-                        dep[i][j] = DependenceEstimator.getLinearDependence(mStreams.get(streamIds.get(i)).getArray(),
-                                                                            mStreams.get(streamIds.get(j)).getArray(),
-                                                                            mStreams.get(streamIds.get(i)).getTimeArray(),
-                                                                            mStreams.get(streamIds.get(j)).getTimeArray());
-                    }
-                    else
-                    {
-                        dep[i][j] = DependenceEstimator.getMonotonicDependence(mStreams.get(streamIds.get(i)).getArray(),
-                                                                               mStreams.get(streamIds.get(j)).getArray(),
-                                                                               mStreams.get(streamIds.get(i)).getTimeArray(),
-                                                                               mStreams.get(streamIds.get(j)).getTimeArray());
-                    }
-
+                    dep[i][j] = pGetPairDependence(streamIds.get(i), streamIds.get(j));
                     dep[j][i] = dep[i][j];
                 }
             }
@@ -339,24 +660,86 @@ public class TTLDataCache
         return dep;
     }
 
+    protected double pGetPairDependence(int streamIdX, int streamIdY)
+    {
+        final int len = Math.max(mStreams.get(streamIdX).size(),
+                                 mStreams.get(streamIdY).size());
+
+        double[] newx = pGetInterpolated(streamIdX, len);
+        double[] newy = pGetInterpolated(streamIdY, len);
+
+        if(Config.LINEAR_DEPENDENCE)
+        {
+            return DependenceEstimator.getLinearDependence(newx, newy);
+        }
+        return DependenceEstimator.getMonotonicDependence(newx, newy);
+    }
+
+    // Series interpolated onto a grid of the given length. Memoized per flush,
+    // since the same (stream, length) combination is needed by the dependence
+    // matrix and again by the regressions.
+    protected double[] pGetInterpolated(int streamId, int len)
+    {
+        StreamData sData = mStreams.get(streamId);
+
+        if(mFlushContext == null)
+        {
+            return DependenceEstimator.interpolate(sData.getArray(), sData.getTimeArray(), len);
+        }
+
+        final long key = FlushContext.pGetKey(streamId, len);
+        double[] result = mFlushContext.mInterpolated.get(key);
+        if(result == null)
+        {
+            result = DependenceEstimator.interpolate(sData.getArray(), sData.getTimeArray(), len);
+            mFlushContext.mInterpolated.put(key, result);
+        }
+        return result;
+    }
+
     public RegModel getPredictiveModel(int streamIdY, int streamIdX)
     {
+        if(mFlushContext == null)
+        {
+            return pComputePredictiveModel(streamIdY, streamIdX);
+        }
+
+        final long key = FlushContext.pGetKey(streamIdY, streamIdX);
+        if(mFlushContext.mModels.containsKey(key))
+        {
+            mFlushContext.recordReuse("regression");
+            return mFlushContext.mModels.get(key);
+        }
+
+        final long start = System.nanoTime();
+        RegModel sReg = pComputePredictiveModel(streamIdY, streamIdX);
+        mFlushContext.mModels.put(key, sReg);
+        mFlushContext.recordPhase("regression", System.nanoTime() - start);
+
+        return sReg;
+    }
+
+    protected RegModel pComputePredictiveModel(int streamIdY, int streamIdX)
+    {
+        if(Config.USE_INCREMENTAL_REGRESSION)
+        {
+            return pGetOnlineDependence().getRegression(streamIdY, streamIdX);
+        }
+
         final boolean useIntercept = true;
         RegModel sReg = new RegModel();
         sReg.setNoIntercept(false);
 
-        double[] x = mStreams.get(streamIdX).getArray();
-        double[] y = mStreams.get(streamIdY).getArray();
-
-        final int len = (int) Math.max(x.length, y.length);
+        final int len = Math.max(mStreams.get(streamIdX).size(),
+                                 mStreams.get(streamIdY).size());
 
         if(len < 2)
         {
             return null;
         }
 
-        double[] newx = DependenceEstimator.interpolate(x, mStreams.get(streamIdX).getTimeArray(), len);
-        double[] newy = DependenceEstimator.interpolate(y, mStreams.get(streamIdY).getTimeArray(), len);
+        double[] newx = pGetInterpolated(streamIdX, len);
+        double[] newy = pGetInterpolated(streamIdY, len);
 
         Set<Double> ux = new HashSet<Double>();
         for(int i=0; i < newx.length; i++)
@@ -389,44 +772,92 @@ public class TTLDataCache
         return sReg;
     }
 
+    // Model for every stream given the index of its predictor (-1 for none).
+    // Models that were not memoized yet are fitted on the flush engine when
+    // one is configured.
     public RegModel[] getAllPredictiveModels(int[] predictors)
     {
-        List<Integer> streamIds = pGetSortedKeys();
-        RegModel[] regressions = new RegModel[predictors.length];
-    
-        int streamIdx = 0;
-        for(Integer streamId : streamIds)
+        final List<Integer> streamIds = pGetSortedKeys();
+        final RegModel[] regressions = new RegModel[predictors.length];
+        final ParallelFlushEngine engine = pAcquireFlushEngine();
+        try
         {
-            regressions[streamIdx] = getPredictiveModel(streamId, predictors[streamIdx]);
-            streamIdx++;
+            pFitPredictiveModels(engine, predictors, streamIds, regressions);
+        }
+        finally
+        {
+            pReleaseFlushEngine(engine);
         }
+
         return regressions;
     }
 
+    protected void pFitPredictiveModels(final ParallelFlushEngine engine, final int[] predictors,
+                                        final List<Integer> streamIds, final RegModel[] regressions)
+    {
+        final boolean[] pending = new boolean[predictors.length];
+        for(int i=0; i < predictors.length; i++)
+        {
+            pending[i] = false;
+            if(predictors[i] == -1) continue;
+
+            final long key = FlushContext.pGetKey(streamIds.get(i), streamIds.get(predictors[i]));
+            if(engine == null || mFlushContext == null || mFlushContext.mModels.containsKey(key))
+            {
+                regressions[i] = getPredictiveModel(streamIds.get(i), streamIds.get(predictors[i]));
+            }
+            else
+            {
+                pending[i] = true;
+            }
+        }
+
+        if(engine != null && mFlushContext != null)
+        {
+            pPrepareColumns();
+
+            final long start = System.nanoTime();
+            engine.forEach(predictors.length, (i) -> {
+                if(pending[i])
+                {
+                    regressions[i] = pComputePredictiveModel(streamIds.get(i),
+                                                             streamIds.get(predictors[i]));
+                }
+            });
+
+            int fitted = 0;
+            for(int i=0; i < predictors.length; i++)
+            {
+                if(!pending[i]) continue;
+
+                mFlushContext.mModels.put(FlushContext.pGetKey(streamIds.get(i),
+                                                               streamIds.get(predictors[i])),
+                                          regressions[i]);
+                fitted++;
+            }
+
+            if(fitted > 0)
+            {
+                mFlushContext.recordPhase("regression", System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Served from the streaming moments, so it is exact even when only a
+    // reservoir of the window's values is retained.
     public double[] generateVBounds()
     {
         List<Integer> streamIds = pGetSortedKeys();
         double[] values = new double[streamIds.size()];
-        final double[] means = getStreamMeans();
 
         int streamIdx = 0;
         for(Integer streamId : streamIds)
         {
-            double var = 0.0;
-            double m4 = 0.0;
-            double len = 0.0;
-            final double mean = means[streamIdx];
+            final SummaryStatistics summary = mStreams.get(streamId).mSummary;
+            final double var = summary.getPopulationVariance();
+            final double len = (double) summary.getN();
             values[streamIdx] = 0.0;
 
-            for(Double d : mStreams.get(streamId).mObservedValues)
-            {
-                var += Math.pow(mean - d, 2.0);
-                m4  += Math.pow(mean - d, 4.0);
-                len += 1.0;
-            }
-            var /= len;
-            m4 /= len;
-
             if(len >= 2.0)
             {
                 // normal approximation
@@ -444,6 +875,8 @@ public class TTLDataCache
         List<Integer> streamIds = pGetSortedKeys();
         double[] values = new double[predictors.length];
         final double[] varianceY = getStreamVariances();
+        final RegModel[] models = Config.USE_MEAN_IMPUTATION ? null
+                                                             : getAllPredictiveModels(predictors);
 
         int streamIdx = 0;
         for(Integer streamId : streamIds)
@@ -459,8 +892,7 @@ public class TTLDataCache
                 }
                 else
                 {
-                    RegModel sReg = getPredictiveModel(streamId,
-                                                       streamIds.get(predictors[streamIdx]));
+                    RegModel sReg = models[streamIdx];
                     if(sReg != null)
                     {
                         double rsquared = sReg.getSanatizedRSquared();
@@ -477,6 +909,8 @@ public class TTLDataCache
         return values;
     }
 
+    // Values each stream can be sampled from. In reservoir mode that is at
+    // most the reservoir size, however many values were observed.
     protected long[] getObservedCountByStream()
     {
         List<Integer> streamIds = pGetSortedKeys();
@@ -485,13 +919,46 @@ public class TTLDataCache
         int currentStreamIdx = 0;
         for(Integer streamId : streamIds)
         {
-            observed[currentStreamIdx] = mStreams.get(streamId).mSummary.getN();
+            observed[currentStreamIdx] = mStreams.get(streamId).getRetainedCount();
             currentStreamIdx++;
         }
 
         return observed;
     }
 
+    // Every value observed per stream (the stratum sizes), even when only a
+    // reservoir of them is kept
+    protected double[] getPopulationSizeByStream()
+    {
+        List<Integer> streamIds = pGetSortedKeys();
+        double[] sizes = new double[streamIds.size()];
+
+        int currentStreamIdx = 0;
+        for(Integer streamId : streamIds)
+        {
+            sizes[currentStreamIdx] = mStreams.get(streamId).mSummary.getN();
+            currentStreamIdx++;
+        }
+
+        return sizes;
+    }
+
+    // As above, as counts
+    protected long[] getPopulationCountByStream()
+    {
+        List<Integer> streamIds = pGetSortedKeys();
+        long[] sizes = new long[streamIds.size()];
+
+        int currentStreamIdx = 0;
+        for(Integer streamId : streamIds)
+        {
+            sizes[currentStreamIdx] = mStreams.get(streamId).mSummary.getN();
+            currentStreamIdx++;
+        }
+
+        return sizes;
+    }
+
     public double[] getStreamMeans()
     {
         List<Integer> streamIds = pGetSortedKeys();
@@ -515,7 +982,7 @@ public class TTLDataCache
         int currentStreamIdx = 0;
         for(Integer streamId : streamIds)
         {
-            observed[currentStreamIdx] = mStreams.get(streamId).mSummary.getN();
+            observed[currentStreamIdx] = mStreams.get(streamId).getRetainedCount();
             currentStreamIdx++;
         }
 
@@ -551,11 +1018,61 @@ public class TTLDataCache
 
     protected List<Integer> pGetSortedKeys()
     {
+        if(mFlushContext != null && mFlushContext.mSortedIds != null)
+        {
+            mFlushContext.recordReuse("sortedIds");
+            return mFlushContext.mSortedIds;
+        }
+
+        final long start = System.nanoTime();
         List<Integer> sortedKeys = new ArrayList<Integer>(mStreams.keySet());
         Collections.sort(sortedKeys);
+
+        if(mFlushContext != null)
+        {
+            // Shared by every caller for the rest of the flush
+            sortedKeys = Collections.unmodifiableList(sortedKeys);
+            mFlushContext.mSortedIds = sortedKeys;
+            mFlushContext.recordPhase("sortedIds", System.nanoTime() - start);
+        }
+
         return sortedKeys;
     }
 
+    protected OnlineDependenceMatrix pGetOnlineDependence()
+    {
+        if(mOnlineDependence == null)
+        {
+            mOnlineDependence = new OnlineDependenceMatrix();
+        }
+        return mOnlineDependence;
+    }
+
+    // The engine set on this cache, or the shared one, held until
+    // pReleaseFlushEngine() so that it is not shut down under the flush
+    protected ParallelFlushEngine pAcquireFlushEngine()
+    {
+        return (mFlushEngine != null) ? mFlushEngine : ParallelFlushEngine.acquireDefault();
+    }
+
+    protected void pReleaseFlushEngine(final ParallelFlushEngine engine)
+    {
+        if(engine != null && engine != mFlushEngine)
+        {
+            engine.release();
+        }
+    }
+
+    // Trims every column up front so that worker threads only ever read them
+    protected void pPrepareColumns()
+    {
+        for(StreamData sData : mStreams.values())
+        {
+            sData.getArray();
+            sData.getTimeArray();
+        }
+    }
+
     protected void pInitializeStreamIfNull(Integer streamId)
     {
         if(!mStreams.containsKey(streamId))
@@ -0,0 +1,241 @@
+package edu.umn.dcsg.common;
+
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+
+import java.nio.charset.StandardCharsets;
+
+// Typed counterpart of GenericPayload. The type, stream id, value and time
+// are kept as primitives, so nothing is formatted or parsed on the way
+// through an edge or the cloud, and BinaryPayloadSerializer writes them in
+// a compact binary form when Storm ships the payload between workers.
+//
+// The text field carries what has no typed form: tuple metadata, the
+// predictor graph of a header (see PredictorGraph) or the exact aggregates
+// of a trailer. Imputation models travel as ModelInfo.
+// Headers and trailers name the edge and window they delimit in the stream
+// id and time fields (see setWindow()).
+//
+// In a topology the payload travels as the single field of a tuple (see
+// getOutputFields() and toValues()). GenericPayload remains for
+// components that still emit the string form; fromTuple() accepts both.
+public class BinaryPayload
+{
+    protected final static String PAYLOAD_FIELD_NAME = "PAYLOAD";
+
+    protected int       mType;
+    protected int       mStreamId;
+    protected double    mValue;
+    protected long      mTime;
+    protected String    mText;
+    protected ModelInfo mModel;
+
+    public BinaryPayload(final int type)
+    {
+        assert(type != GenericPayload.TYPE_INVALID);
+        assert(type <= GenericPayload.MAX_VALID_TYPE);
+
+        mType = type;
+        mStreamId = 0;
+        mValue = 0.0;
+        mTime = 0;
+        mText = "";
+        mModel = null;
+    }
+
+    public BinaryPayload(final int type, final int streamId, final double value,
+                         final long time, final String text)
+    {
+        mType = type;
+        mStreamId = streamId;
+        mValue = value;
+        mTime = time;
+        mText = (text == null) ? "" : text;
+        mModel = null;
+    }
+
+    public static BinaryPayload fromGeneric(final GenericPayload gp)
+    {
+        BinaryPayload payload = new BinaryPayload(gp.getType());
+
+        if(!gp.getStreamId().isEmpty())
+        {
+            payload.mStreamId = Integer.parseInt(gp.getStreamId());
+        }
+
+        if(gp.isTuple())
+        {
+            payload.mValue = Double.parseDouble(gp.getValue());
+            payload.mTime = Long.parseLong(gp.getTime());
+            payload.mText = gp.getMetadata();
+        }
+        else if(gp.isImputationModel())
+        {
+            payload.mModel = new ModelInfo(gp.getValue());
+        }
+        else
+        {
+            payload.mText = gp.getValue();
+            if(!gp.getTime().isEmpty())
+            {
+                payload.mTime = Long.parseLong(gp.getTime());
+            }
+        }
+
+        return payload;
+    }
+
+    // Accepts tuples carrying a BinaryPayload as well as the string fields
+    // of a GenericPayload
+    public static BinaryPayload fromTuple(final Tuple tuple)
+    {
+        if(tuple.size() == 1 && tuple.getValue(0) instanceof BinaryPayload)
+        {
+            return (BinaryPayload)tuple.getValue(0);
+        }
+
+        return fromGeneric(new GenericPayload(tuple));
+    }
+
+    public GenericPayload toGeneric()
+    {
+        GenericPayload gp = new GenericPayload(mType);
+
+        if(isTuple())
+        {
+            gp.setStreamId(Integer.toString(mStreamId));
+            gp.setValue(Double.toString(mValue));
+            gp.setTime(Long.toString(mTime));
+            gp.setMetadata(mText);
+        }
+        else if(isImputationModel())
+        {
+            gp.setStreamId(Integer.toString(mStreamId));
+            gp.setValue(mModel.toString());
+        }
+        else
+        {
+            gp.setStreamId(Integer.toString(mStreamId));
+            gp.setTime(Long.toString(mTime));
+            gp.setValue(mText);
+        }
+
+        return gp;
+    }
+
+    // @returns the number of bytes the payload takes in string form, with
+    // every field encoded as UTF-8
+    public int getStringFormSize()
+    {
+        final GenericPayload gp = toGeneric();
+        int size = 0;
+        for(Object field : gp)
+        {
+            size += field.toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    public Values toValues()
+    {
+        return new Values(this);
+    }
+
+    public static Fields getOutputFields()
+    {
+        return new Fields(PAYLOAD_FIELD_NAME);
+    }
+
+    public int getType()
+    {
+        return mType;
+    }
+
+    public void setStreamId(int streamId)
+    {
+        mStreamId = streamId;
+    }
+
+    public int getStreamId()
+    {
+        return mStreamId;
+    }
+
+    public void setValue(double value)
+    {
+        mValue = value;
+    }
+
+    public double getValue()
+    {
+        return mValue;
+    }
+
+    public void setTime(long time)
+    {
+        mTime = time;
+    }
+
+    public long getTime()
+    {
+        return mTime;
+    }
+
+    public void setText(String text)
+    {
+        mText = (text == null) ? "" : text;
+    }
+
+    public String getText()
+    {
+        return mText;
+    }
+
+    public void setModel(ModelInfo model)
+    {
+        mModel = model;
+    }
+
+    public ModelInfo getModel()
+    {
+        return mModel;
+    }
+
+    // Names the edge and window a header or trailer delimits
+    public void setWindow(int edgeId, long windowId)
+    {
+        mStreamId = edgeId;
+        mTime = windowId;
+    }
+
+    public int getEdgeId()
+    {
+        return mStreamId;
+    }
+
+    public long getWindowId()
+    {
+        return mTime;
+    }
+
+    public boolean isTuple()
+    {
+        return mType == GenericPayload.TYPE_TUPLE;
+    }
+
+    public boolean isImputationModel()
+    {
+        return mType == GenericPayload.TYPE_IMPUTATION_MODEL;
+    }
+
+    public boolean isHeader()
+    {
+        return mType == GenericPayload.TYPE_HEADER;
+    }
+
+    public boolean isTrailer()
+    {
+        return mType == GenericPayload.TYPE_TRAILER;
+    }
+}
@@ -0,0 +1,87 @@
+package edu.umn.dcsg.common;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+// Kryo serializer for BinaryPayload. The type and stream id are written as
+// varints, the value as a raw double, the time as a varlong and the text
+// (usually empty for tuples) as a Kryo string.
+public class BinaryPayloadSerializer extends Serializer<BinaryPayload>
+{
+    // Kryo set up like a topology's (registered serializers, no reference
+    // tracking), and a buffer to size values with, per thread (neither is
+    // thread-safe)
+    protected static final ThreadLocal<Kryo> sKryo = ThreadLocal.withInitial(() -> {
+        Kryo kryo = new Kryo();
+        kryo.setReferences(false);
+        kryo.register(BinaryPayload.class, new BinaryPayloadSerializer());
+        kryo.register(SampleFrame.class, new SampleFrameSerializer());
+        return kryo;
+    });
+    protected static final ThreadLocal<Output> sOutput = ThreadLocal.withInitial(() -> new Output(1024, -1));
+
+    // Registers the payload and frame serializers with a topology's config
+    public static void register(org.apache.storm.Config conf)
+    {
+        conf.registerSerialization(BinaryPayload.class, BinaryPayloadSerializer.class);
+        conf.registerSerialization(SampleFrame.class, SampleFrameSerializer.class);
+    }
+
+    // @returns the bytes a payload or frame takes on the wire: its class id
+    //          and its serialized form, as Storm's Kryo writes a tuple value
+    public static int getSerializedSize(Object value)
+    {
+        final Output output = sOutput.get();
+        output.clear();
+        sKryo.get().writeClassAndObject(output, value);
+        return output.position();
+    }
+
+    public BinaryPayloadSerializer()
+    {
+        setImmutable(false);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, BinaryPayload payload)
+    {
+        output.writeVarInt(payload.getType(), true);
+        output.writeVarInt(payload.getStreamId(), true);
+        output.writeDouble(payload.getValue());
+        output.writeVarLong(payload.getTime(), true);
+        output.writeString(payload.getText());
+
+        if(payload.getModel() != null)
+        {
+            final byte[] model = payload.getModel().toBytes();
+            output.writeVarInt(model.length, true);
+            output.writeBytes(model);
+        }
+        else
+        {
+            output.writeVarInt(0, true);
+        }
+    }
+
+    @Override
+    public BinaryPayload read(Kryo kryo, Input input, Class<BinaryPayload> type)
+    {
+        final int payloadType = input.readVarInt(true);
+        final int streamId = input.readVarInt(true);
+        final double value = input.readDouble();
+        final long time = input.readVarLong(true);
+        final String text = input.readString();
+
+        BinaryPayload payload = new BinaryPayload(payloadType, streamId, value, time, text);
+
+        final int modelLength = input.readVarInt(true);
+        if(modelLength > 0)
+        {
+            payload.setModel(ModelInfo.fromBytes(input.readBytes(modelLength)));
+        }
+
+        return payload;
+    }
+}
@@ -11,6 +11,12 @@ public class Config
     public static final int NEYMAN_STRATEGY             = 0x03;
     public static final int IMPUTATION_STRATEGY         = 0x04;
 
+    /// Optimization solvers (used by the imputation strategy)
+    public static final int PYTHON_SOLVER               = 0x01;
+    public static final int JAVA_SOLVER                 = 0x02;
+    public static final int WATER_FILLING_SOLVER        = 0x03;
+    public static final int PYTHON_WORKER_SOLVER        = 0x04;
+
     public static final TraceInfo getTrace()
     {
         return TraceInfo.MVNORM;
@@ -26,6 +32,108 @@ public class Config
 
     public static boolean USE_THINNING = false;
 
+    public static int SOLVER = Config.JAVA_SOLVER;
+
+    // Time the Python solver worker gets per window before the edge falls
+    // back to the Neyman allocation
+    public static long SOLVER_DEADLINE_MS = 2000;
+
+    // Time the worker gets to start and load scipy, before (and apart from)
+    // the deadline of its first window
+    public static long SOLVER_STARTUP_MS = 60000;
+
+    // Maintain the (linear) dependence matrix at insert time instead of
+    // rebuilding it from the raw samples at every flush.
+    public static boolean USE_INCREMENTAL_DEPENDENCE = false;
+
+    // Number of cells in the shared time grid used by the incremental
+    // dependence matrix. Zero means one cell per unit of window duration.
+    // The batch estimate uses max(n_x, n_y) cells per pair instead, so the
+    // two only match exactly when the sample counts equal this size.
+    public static int DEPENDENCE_GRID_SIZE = 0;
+
+    // Keep the sufficient statistics of the predictive models up to date at
+    // insert time (on the same grid as the incremental dependence matrix) so
+    // a flush no longer refits each model from the raw samples.
+    public static boolean USE_INCREMENTAL_REGRESSION = false;
+
+    // Worker threads used for the dependence matrix and regressions during a
+    // flush. Values of one or less keep the flush on the calling thread.
+    public static int FLUSH_PARALLELISM = 1;
+
+    // Edge length (in streams) of the dependence matrix tiles
+    public static int FLUSH_TILE_SIZE = 32;
+
+    // Shortlist predictor candidates with random-projection sketches (LSH)
+    // and only score the shortlist exactly. Used once an edge has at least
+    // PREDICTOR_SKETCH_MIN_STREAMS streams.
+    public static boolean USE_PREDICTOR_SKETCH = false;
+    public static int PREDICTOR_SKETCH_MIN_STREAMS = 256;
+
+    // Sketch parameters: grid points per series, LSH bands and the minimum
+    // bits per band (raised to log2 of the stream count), candidates scored
+    // exactly per stream and streams kept per bucket.
+    public static int SKETCH_GRID_SIZE = 64;
+    public static int SKETCH_BANDS = 8;
+    public static int SKETCH_ROWS_PER_BAND = 6;
+    public static int SKETCH_CANDIDATES = 16;
+    public static int SKETCH_BUCKET_CAP = 64;
+
+    // Keep a bounded, time-stratified reservoir of each stream's values
+    // instead of every value in the window. Counts, means and variances still
+    // come from streaming moments over all values.
+    public static boolean USE_RESERVOIR_CACHE = false;
+    public static int RESERVOIR_SIZE = 256;
+    public static int RESERVOIR_SLOTS = 8;
+
+    // Insert incoming tuples into per-stripe partitions of the cache, each
+    // behind its own lock, and merge the partitions per stream at flush time,
+    // instead of inserting every tuple under the edge's single lock.
+    public static boolean USE_STRIPED_INGEST = false;
+    public static int INGEST_STRIPES = 64;
+
+    // Double-buffer windows: on window close the edge swaps in a fresh cache
+    // and forwards the closed one from a dedicated flush thread.
+    public static boolean USE_BACKGROUND_FLUSH = false;
+
+    // Send each window as one SampleFrame (samples, models and trailer)
+    // instead of one payload per sample.
+    public static boolean USE_SAMPLE_FRAMES = false;
+
+    // Compress sample frames (see GorillaCodec) on their way to the cloud
+    public static boolean USE_FRAME_COMPRESSION = false;
+
+    // Lossy mode: snap each sample to a per-window grid over its stream's
+    // range, so no value moves by more than the larger of the absolute and
+    // the relative (to the range's magnitude) error bound. Compressed frames
+    // then carry the grid codes bit-packed.
+    public static boolean USE_QUANTIZATION = false;
+    public static double QUANTIZATION_ABS_ERROR = 0.0;
+    public static double QUANTIZATION_REL_ERROR = 0.001;
+
+    // Aggregate each stream's samples (and predictions) at the cloud as they
+    // arrive, keeping raw samples only for predictor streams (and, with
+    // thinning, model targets) instead of for every stream.
+    public static boolean USE_STREAMING_AGGREGATION = false;
+
+    // Persist every finalized window at the cloud in an append-only
+    // columnar segment store (see WindowSegmentStore) under this directory;
+    // null disables it. The per-stream aggregates are always written, the
+    // reconstructed (real and imputed) samples only on request. Segment
+    // files roll over once they reach SEGMENT_MAX_BYTES.
+    public static String SEGMENT_STORE_DIR = null;
+    public static boolean SEGMENT_STORE_SAMPLES = false;
+    public static long SEGMENT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // Range queries over the segment store (see AggregateQueryService): the
+    // number of answered ranges kept in the LRU cache and the confidence
+    // level of the intervals around each mean.
+    public static int QUERY_CACHE_SIZE = 256;
+    public static double QUERY_CONFIDENCE = 0.95;
+
+    // Print per-phase timings (and memo reuse counts) after every flush
+    public static boolean REPORT_FLUSH_TIMINGS = false;
+
     public static String getStrategyString()
     {
         if(Config.STRATEGY == Config.IMPUTATION_STRATEGY)
@@ -43,6 +151,23 @@ public class Config
         return "UNKNOWN";
     }
 
+    public static String getSolverString()
+    {
+        if(Config.SOLVER == Config.JAVA_SOLVER)
+            return "JAVA";
+
+        else if(Config.SOLVER == Config.WATER_FILLING_SOLVER)
+            return "WATER_FILLING";
+
+        else if(Config.SOLVER == Config.PYTHON_WORKER_SOLVER)
+            return "PYTHON_WORKER";
+
+        else if(Config.SOLVER == Config.PYTHON_SOLVER)
+            return "PYTHON";
+
+        return "UNKNOWN";
+    }
+
     static String getDatasetString()
     {
         return getTrace().mId;
@@ -64,7 +189,22 @@ public class Config
         System.out.println("Strategy:           " + getStrategyString());
         System.out.println("Sampling Fraction:  " + Config.SAMPLING_FRACTION);
         System.out.println("Dependence:         " + getDependenceType());
+        System.out.println("Solver:             " + getSolverString());
         System.out.println("Thinning:           " + Config.USE_THINNING);
+        System.out.println("Incremental Dep.:   " + Config.USE_INCREMENTAL_DEPENDENCE);
+        System.out.println("Incremental Reg.:   " + Config.USE_INCREMENTAL_REGRESSION);
+        System.out.println("Flush Parallelism:  " + Config.FLUSH_PARALLELISM);
+        System.out.println("Predictor Sketch:   " + Config.USE_PREDICTOR_SKETCH);
+        System.out.println("Reservoir Cache:    " + Config.USE_RESERVOIR_CACHE
+                           + " (" + Config.RESERVOIR_SIZE + " values)");
+        System.out.println("Striped Ingest:     " + Config.USE_STRIPED_INGEST
+                           + " (" + Config.INGEST_STRIPES + " stripes)");
+        System.out.println("Background Flush:   " + Config.USE_BACKGROUND_FLUSH);
+        System.out.println("Sample Frames:      " + Config.USE_SAMPLE_FRAMES);
+        System.out.println("Frame Compression:  " + Config.USE_FRAME_COMPRESSION);
+        System.out.println("Quantization:       " + Config.USE_QUANTIZATION);
+        System.out.println("Streaming Agg.:     " + Config.USE_STREAMING_AGGREGATION);
+        System.out.println("Segment Store:      " + Config.SEGMENT_STORE_DIR);
         System.out.println("============================================");
     }
 }
@@ -8,6 +8,9 @@ import org.apache.storm.tuple.Values;
 // over the network. We derive from the org.apache.storm.tuple.Values
 // class, which allows us to easily send this in a storm cluster or
 // simply over the wide-area network.
+//
+// This is the string form of the payload, kept for compatibility. The edge
+// and the cloud work on BinaryPayload natively.
 public class GenericPayload extends Values
 {
     public final static int TYPE_INVALID            = 0x00;
@@ -108,23 +111,28 @@ public class GenericPayload extends Values
                           METADATA_FIELD_NAME);
     }
 
+    public int getType()
+    {
+        return Integer.parseInt((String) get(TYPE_IDX));
+    }
+
     public boolean isTuple()
     {
-        return Integer.parseInt((String) get(TYPE_IDX)) == TYPE_TUPLE;
+        return getType() == TYPE_TUPLE;
     }
 
     public boolean isImputationModel()
     {
-        return Integer.parseInt((String) get(TYPE_IDX)) == TYPE_IMPUTATION_MODEL;
+        return getType() == TYPE_IMPUTATION_MODEL;
     }
 
     public boolean isHeader()
     {
-        return Integer.parseInt((String) get(TYPE_IDX)) == TYPE_HEADER;
+        return getType() == TYPE_HEADER;
     }
 
     public boolean isTrailer()
     {
-        return Integer.parseInt((String) get(TYPE_IDX)) == TYPE_TRAILER;
+        return getType() == TYPE_TRAILER;
     }
 }
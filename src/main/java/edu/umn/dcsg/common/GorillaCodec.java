@@ -0,0 +1,447 @@
+package edu.umn.dcsg.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Compression for SampleFrames in the style of Facebook's Gorilla:
+//
+//  - samples are grouped into runs by stream (ordered by time within a
+//    run) and each run's stream id is written once, as a zigzag varint
+//    delta from the previous run's id
+//  - timestamps are delta-of-delta encoded within a run:
+//      '0'                    delta unchanged
+//      '10'   +  7 bits       zigzag(dod) < 2^7
+//      '110'  +  9 bits       zigzag(dod) < 2^9
+//      '1110' + 12 bits       zigzag(dod) < 2^12
+//      '1111' + 64 bits       anything else
+//  - values are XORed with the previous value of the run:
+//      '0'                    identical
+//      '10' + bits            meaningful bits fit the previous window
+//      '11' + 5 bits leading zeros + 6 bits length + bits
+//  - unless the stream is quantized (see ValueQuantizer): the run then
+//    starts with its grid and each value is a bit-packed grid code
+//
+// The frame starts with its edge and window ids as varints. Models (see
+// ModelInfo.writeTo()) and the aggregates follow as
+// length-prefixed byte strings. Samples of
+// a stream are a set as far as the cloud is concerned, so the order within
+// a stream is not preserved.
+public class GorillaCodec
+{
+    public static byte[] encode(final SampleFrame frame)
+    {
+        final int sampleCount = frame.getSampleCount();
+        final Integer[] order = new Integer[sampleCount];
+        for(int i=0; i < sampleCount; i++) order[i] = i;
+
+        Arrays.sort(order, (a, b) -> {
+            final int byStream = Integer.compare(frame.getStreamId(a), frame.getStreamId(b));
+            return (byStream != 0) ? byStream : Long.compare(frame.getTime(a), frame.getTime(b));
+        });
+
+        BitOutput out = new BitOutput(16 + 4 * sampleCount);
+        out.writeVarLong(pZigZag(frame.getEdgeId()));
+        out.writeVarLong(frame.getWindowId());
+        out.writeVarLong(sampleCount);
+
+        int start = 0;
+        int previousStream = 0;
+        while(start < sampleCount)
+        {
+            final int streamId = frame.getStreamId(order[start]);
+            int end = start + 1;
+            while(end < sampleCount && frame.getStreamId(order[end]) == streamId) end++;
+
+            out.writeVarLong(pZigZag(streamId - (long)previousStream));
+            out.writeVarLong(end - start);
+
+            final ValueQuantizer quantizer = frame.getQuantizer(streamId);
+            if(quantizer != null && pIsOnGrid(quantizer, frame, order, start, end))
+            {
+                out.writeBits(1, 1);
+                pEncodeQuantizedRun(out, quantizer, frame, order, start, end);
+            }
+            else
+            {
+                out.writeBits(0, 1);
+                pEncodeRun(out, frame, order, start, end);
+            }
+
+            previousStream = streamId;
+            start = end;
+        }
+
+        out.writeVarLong(frame.getModelCount());
+        for(int i=0; i < frame.getModelCount(); i++)
+        {
+            out.writeVarLong(pZigZag(frame.getModelStreamId(i)));
+            out.writeBytes(frame.getModel(i).toBytes());
+        }
+        out.writeString(frame.getAggregates());
+
+        return out.toByteArray();
+    }
+
+    public static SampleFrame decode(final byte[] bytes)
+    {
+        BitInput in = new BitInput(bytes);
+
+        final int edgeId = (int)pUnZigZag(in.readVarLong());
+        final long windowId = in.readVarLong();
+        final int sampleCount = (int)in.readVarLong();
+        SampleFrame frame = new SampleFrame(sampleCount, 0);
+        frame.setWindow(edgeId, windowId);
+
+        int decoded = 0;
+        int streamId = 0;
+        while(decoded < sampleCount)
+        {
+            streamId += (int)pUnZigZag(in.readVarLong());
+            final int length = (int)in.readVarLong();
+
+            if(in.readBits(1) == 1)
+            {
+                pDecodeQuantizedRun(in, frame, streamId, length);
+            }
+            else
+            {
+                pDecodeRun(in, frame, streamId, length);
+            }
+            decoded += length;
+        }
+
+        final int modelCount = (int)in.readVarLong();
+        for(int i=0; i < modelCount; i++)
+        {
+            final int modelStream = (int)pUnZigZag(in.readVarLong());
+            frame.addModel(modelStream, ModelInfo.fromBytes(in.readBytes()));
+        }
+        frame.setAggregates(in.readString());
+
+        return frame;
+    }
+
+    protected static void pEncodeRun(BitOutput out, SampleFrame frame, Integer[] order,
+                                     int start, int end)
+    {
+        long previousTime = 0;
+        long previousDelta = 0;
+        long previousBits = 0;
+        int leading = -1;
+        int trailing = 0;
+
+        for(int i=start; i < end; i++)
+        {
+            final int row = order[i];
+
+            final long time = frame.getTime(row);
+            final long delta = time - previousTime;
+            pWriteDeltaOfDelta(out, pZigZag(delta - previousDelta));
+            previousTime = time;
+            previousDelta = delta;
+
+            final long bits = Double.doubleToRawLongBits(frame.getValue(row));
+            if(i == start)
+            {
+                out.writeBits(bits, 64);
+            }
+            else
+            {
+                final long xor = bits ^ previousBits;
+                if(xor == 0)
+                {
+                    out.writeBits(0, 1);
+                }
+                else
+                {
+                    final int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    final int trail = Long.numberOfTrailingZeros(xor);
+
+                    if(leading >= 0 && lead >= leading && trail >= trailing)
+                    {
+                        out.writeBits(0x2, 2);
+                        out.writeBits(xor >>> trailing, 64 - leading - trailing);
+                    }
+                    else
+                    {
+                        final int length = 64 - lead - trail;
+                        out.writeBits(0x3, 2);
+                        out.writeBits(lead, 5);
+                        out.writeBits(length - 1, 6);
+                        out.writeBits(xor >>> trail, length);
+                        leading = lead;
+                        trailing = trail;
+                    }
+                }
+            }
+            previousBits = bits;
+        }
+    }
+
+    protected static void pDecodeRun(BitInput in, SampleFrame frame, int streamId, int length)
+    {
+        long previousTime = 0;
+        long previousDelta = 0;
+        long previousBits = 0;
+        int leading = 0;
+        int trailing = 0;
+
+        for(int i=0; i < length; i++)
+        {
+            final long delta = previousDelta + pUnZigZag(pReadDeltaOfDelta(in));
+            final long time = previousTime + delta;
+            previousTime = time;
+            previousDelta = delta;
+
+            long bits;
+            if(i == 0)
+            {
+                bits = in.readBits(64);
+            }
+            else if(in.readBits(1) == 0)
+            {
+                bits = previousBits;
+            }
+            else
+            {
+                if(in.readBits(1) == 1)
+                {
+                    leading = (int)in.readBits(5);
+                    trailing = 64 - leading - ((int)in.readBits(6) + 1);
+                }
+                bits = previousBits ^ (in.readBits(64 - leading - trailing) << trailing);
+            }
+            previousBits = bits;
+
+            frame.addSample(streamId, Double.longBitsToDouble(bits), time);
+        }
+    }
+
+    // Only values that decode exactly are sent as codes
+    protected static boolean pIsOnGrid(ValueQuantizer quantizer, SampleFrame frame, Integer[] order,
+                                       int start, int end)
+    {
+        for(int i=start; i < end; i++)
+        {
+            final double value = frame.getValue(order[i]);
+            final double decoded = quantizer.decode(quantizer.encode(value));
+            if(Double.doubleToRawLongBits(decoded) != Double.doubleToRawLongBits(value)) return false;
+        }
+        return true;
+    }
+
+    protected static void pEncodeQuantizedRun(BitOutput out, ValueQuantizer quantizer, SampleFrame frame,
+                                              Integer[] order, int start, int end)
+    {
+        out.writeBits(Double.doubleToRawLongBits(quantizer.getOffset()), 64);
+        out.writeBits(Double.doubleToRawLongBits(quantizer.getStep()), 64);
+        out.writeVarLong(quantizer.getMaxCode());
+
+        final int width = quantizer.getWidth();
+        long previousTime = 0;
+        long previousDelta = 0;
+
+        for(int i=start; i < end; i++)
+        {
+            final int row = order[i];
+
+            final long time = frame.getTime(row);
+            final long delta = time - previousTime;
+            pWriteDeltaOfDelta(out, pZigZag(delta - previousDelta));
+            previousTime = time;
+            previousDelta = delta;
+
+            out.writeBits(quantizer.encode(frame.getValue(row)), width);
+        }
+    }
+
+    protected static void pDecodeQuantizedRun(BitInput in, SampleFrame frame, int streamId, int length)
+    {
+        final double offset = Double.longBitsToDouble(in.readBits(64));
+        final double step = Double.longBitsToDouble(in.readBits(64));
+        final ValueQuantizer quantizer = new ValueQuantizer(offset, step, in.readVarLong());
+        frame.setQuantizer(streamId, quantizer);
+
+        final int width = quantizer.getWidth();
+        long previousTime = 0;
+        long previousDelta = 0;
+
+        for(int i=0; i < length; i++)
+        {
+            final long delta = previousDelta + pUnZigZag(pReadDeltaOfDelta(in));
+            final long time = previousTime + delta;
+            previousTime = time;
+            previousDelta = delta;
+
+            frame.addSample(streamId, quantizer.decode(in.readBits(width)), time);
+        }
+    }
+
+    protected static void pWriteDeltaOfDelta(BitOutput out, long zigzag)
+    {
+        if(zigzag == 0)
+        {
+            out.writeBits(0, 1);
+        }
+        else if((zigzag >>> 7) == 0)
+        {
+            out.writeBits(0x2, 2);
+            out.writeBits(zigzag, 7);
+        }
+        else if((zigzag >>> 9) == 0)
+        {
+            out.writeBits(0x6, 3);
+            out.writeBits(zigzag, 9);
+        }
+        else if((zigzag >>> 12) == 0)
+        {
+            out.writeBits(0xE, 4);
+            out.writeBits(zigzag, 12);
+        }
+        else
+        {
+            out.writeBits(0xF, 4);
+            out.writeBits(zigzag, 64);
+        }
+    }
+
+    protected static long pReadDeltaOfDelta(BitInput in)
+    {
+        if(in.readBits(1) == 0) return 0;
+        if(in.readBits(1) == 0) return in.readBits(7);
+        if(in.readBits(1) == 0) return in.readBits(9);
+        if(in.readBits(1) == 0) return in.readBits(12);
+        return in.readBits(64);
+    }
+
+    protected static long pZigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    protected static long pUnZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // MSB-first bit writer over a growing byte array
+    protected static class BitOutput
+    {
+        protected byte[]    mBytes;
+        protected long      mBitCount;
+
+        public BitOutput(int initialBytes)
+        {
+            mBytes = new byte[Math.max(initialBytes, 16)];
+            mBitCount = 0;
+        }
+
+        // Writes the low `bits` bits of value, up to a byte at a time
+        public void writeBits(long value, int bits)
+        {
+            while(bits > 0)
+            {
+                final int byteIdx = (int)(mBitCount >>> 3);
+                if(byteIdx == mBytes.length)
+                {
+                    mBytes = Arrays.copyOf(mBytes, 2 * mBytes.length);
+                }
+
+                final int free = 8 - (int)(mBitCount & 7);
+                final int chunk = Math.min(free, bits);
+                final int part = (int)(value >>> (bits - chunk)) & ((1 << chunk) - 1);
+
+                mBytes[byteIdx] |= (byte)(part << (free - chunk));
+                mBitCount += chunk;
+                bits -= chunk;
+            }
+        }
+
+        public void writeVarLong(long value)
+        {
+            while((value & ~0x7FL) != 0)
+            {
+                writeBits((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+
+        public void writeBytes(byte[] bytes)
+        {
+            writeVarLong(bytes.length);
+            for(byte b : bytes)
+            {
+                writeBits(b & 0xFF, 8);
+            }
+        }
+
+        public void writeString(String text)
+        {
+            writeBytes(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public byte[] toByteArray()
+        {
+            return Arrays.copyOf(mBytes, (int)((mBitCount + 7) >>> 3));
+        }
+    }
+
+    protected static class BitInput
+    {
+        protected final byte[]  mBytes;
+        protected long          mBitPos;
+
+        public BitInput(byte[] bytes)
+        {
+            mBytes = bytes;
+            mBitPos = 0;
+        }
+
+        public long readBits(int bits)
+        {
+            long value = 0;
+            while(bits > 0)
+            {
+                final int available = 8 - (int)(mBitPos & 7);
+                final int chunk = Math.min(available, bits);
+                final int current = mBytes[(int)(mBitPos >>> 3)] & 0xFF;
+                final int part = (current >>> (available - chunk)) & ((1 << chunk) - 1);
+
+                value = (value << chunk) | part;
+                mBitPos += chunk;
+                bits -= chunk;
+            }
+            return value;
+        }
+
+        public long readVarLong()
+        {
+            long value = 0;
+            int shift = 0;
+            long b;
+            do {
+                b = readBits(8);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return value;
+        }
+
+        public byte[] readBytes()
+        {
+            final int length = (int)readVarLong();
+            byte[] bytes = new byte[length];
+            for(int i=0; i < length; i++)
+            {
+                bytes[i] = (byte)readBits(8);
+            }
+            return bytes;
+        }
+
+        public String readString()
+        {
+            return new String(readBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
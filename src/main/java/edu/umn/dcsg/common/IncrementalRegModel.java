@@ -0,0 +1,287 @@
+package edu.umn.dcsg.common;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+// Polynomial regression of y on x (with intercept) that is maintained from
+// sufficient statistics instead of the raw design matrix.
+//
+// Every aligned (x, y) pair updates the power sums needed for X'X, X'y and
+// y'y of both the linear and the cubic model, so producing beta, the
+// standard error and R^2 at flush time costs O(p^2) regardless of how many
+// points were seen. The estimates are those of OLSMultipleLinearRegression
+// on the same points, which is why this can stand in for a RegModel.
+//
+// The sums are accumulated around the first x value seen to keep the cubic
+// normal equations well conditioned; coefficients are shifted back to the
+// original x before they are reported.
+public class IncrementalRegModel extends RegModel
+{
+    protected static final int MAX_DEGREE = 3;
+
+    protected long      mN;
+    protected double    mShift;
+    protected double[]  mSumU;      // sum of u^k for k = 0..2*MAX_DEGREE, u = x - shift
+    protected double[]  mSumUY;     // sum of y * u^k for k = 0..MAX_DEGREE
+    protected double    mSumY;
+    protected double    mSumYY;
+
+    // The first few distinct x values (to match the "unique x" checks)
+    protected double[]  mDistinctX;
+    protected int       mDistinctCount;
+
+    protected int       mDegree;
+    protected double[]  mBeta;
+    protected double    mResidualSS;
+
+    public IncrementalRegModel()
+    {
+        mN = 0;
+        mShift = 0.0;
+        mSumU = new double[2 * MAX_DEGREE + 1];
+        mSumUY = new double[MAX_DEGREE + 1];
+        mSumY = 0.0;
+        mSumYY = 0.0;
+        mDistinctX = new double[MAX_DEGREE + 1];
+        mDistinctCount = 0;
+        mDegree = 1;
+        mBeta = null;
+        setNoIntercept(false);
+    }
+
+    // Snapshot of another model's statistics, so it can be fitted and
+    // handed out while the original keeps accumulating
+    public IncrementalRegModel(IncrementalRegModel other)
+    {
+        mN = other.mN;
+        mShift = other.mShift;
+        mSumU = other.mSumU.clone();
+        mSumUY = other.mSumUY.clone();
+        mSumY = other.mSumY;
+        mSumYY = other.mSumYY;
+        mDistinctX = other.mDistinctX.clone();
+        mDistinctCount = other.mDistinctCount;
+        mDegree = other.mDegree;
+        mBeta = (other.mBeta == null) ? null : other.mBeta.clone();
+        mResidualSS = other.mResidualSS;
+        setNoIntercept(false);
+    }
+
+    public void addObservation(double x, double y)
+    {
+        if(mN == 0) mShift = x;
+        mN++;
+
+        final double u = x - mShift;
+        double power = 1.0;
+        for(int k=0; k < mSumU.length; k++)
+        {
+            mSumU[k] += power;
+            if(k < mSumUY.length) mSumUY[k] += y * power;
+            power *= u;
+        }
+        mSumY += y;
+        mSumYY += y * y;
+
+        if(mDistinctCount < mDistinctX.length)
+        {
+            boolean seen = false;
+            for(int i=0; i < mDistinctCount; i++) seen |= (mDistinctX[i] == x);
+            if(!seen) mDistinctX[mDistinctCount++] = x;
+        }
+
+        mBeta = null;
+    }
+
+    // Takes out a point that was added before. The distinct x values seen
+    // are kept, since they only guard against fitting on too few of them.
+    public void removeObservation(double x, double y)
+    {
+        if(mN == 0) return;
+        mN--;
+
+        final double u = x - mShift;
+        double power = 1.0;
+        for(int k=0; k < mSumU.length; k++)
+        {
+            mSumU[k] -= power;
+            if(k < mSumUY.length) mSumUY[k] -= y * power;
+            power *= u;
+        }
+        mSumY -= y;
+        mSumYY -= y * y;
+
+        mBeta = null;
+    }
+
+    public long getN()
+    {
+        return mN;
+    }
+
+    // Number of distinct x values, saturating at MAX_DEGREE + 1
+    public int getDistinctXCount()
+    {
+        return mDistinctCount;
+    }
+
+    // Chooses the polynomial degree and solves the normal equations.
+    // @returns false if there is not enough data or X'X is singular
+    public boolean fit(int degree)
+    {
+        mDegree = Math.max(1, Math.min(degree, MAX_DEGREE));
+        mBeta = null;
+
+        final int p = mDegree + 1;
+        if(mN < p || mDistinctCount < 2) return false;
+
+        RealMatrix xtx = new Array2DRowRealMatrix(p, p);
+        RealVector xty = new ArrayRealVector(p);
+        for(int i=0; i < p; i++)
+        {
+            for(int j=0; j < p; j++)
+            {
+                xtx.setEntry(i, j, mSumU[i + j]);
+            }
+            xty.setEntry(i, mSumUY[i]);
+        }
+
+        double[] gamma = null;
+        try {
+            gamma = new QRDecomposition(xtx).getSolver().solve(xty).toArray();
+        } catch(SingularMatrixException e) {
+            return false;
+        }
+
+        // Residual sum of squares from the sufficient statistics:
+        // SSE = y'y - 2 g'U'y + g'U'U g
+        double rss = mSumYY;
+        for(int i=0; i < p; i++)
+        {
+            rss -= 2.0 * gamma[i] * mSumUY[i];
+            for(int j=0; j < p; j++)
+            {
+                rss += gamma[i] * gamma[j] * mSumU[i + j];
+            }
+        }
+        mResidualSS = Math.max(rss, 0.0);
+
+        mBeta = pUnshift(gamma);
+        return true;
+    }
+
+    public int getDegree()
+    {
+        return mDegree;
+    }
+
+    @Override
+    protected RealVector calculateBeta()
+    {
+        pCheckFitted();
+        return new ArrayRealVector(mBeta);
+    }
+
+    // (X'X)^-1 of the fitted degree, as OLSMultipleLinearRegression reports
+    // it: sigma^2 is applied by estimateRegressionParametersStandardErrors().
+    // Inverted on the shifted sums and mapped back to x with the same
+    // linear map that unshifts beta, M (U'U)^-1 M'.
+    @Override
+    protected RealMatrix calculateBetaVariance()
+    {
+        pCheckFitted();
+
+        final int p = mDegree + 1;
+        RealMatrix utu = new Array2DRowRealMatrix(p, p);
+        for(int i=0; i < p; i++)
+        {
+            for(int j=0; j < p; j++)
+            {
+                utu.setEntry(i, j, mSumU[i + j]);
+            }
+        }
+
+        RealMatrix unshift = new Array2DRowRealMatrix(p, p);
+        for(int k=0; k < p; k++)
+        {
+            double[] unit = new double[p];
+            unit[k] = 1.0;
+            unshift.setColumn(k, pUnshift(unit));
+        }
+
+        RealMatrix inverse = new QRDecomposition(utu).getSolver().getInverse();
+        return unshift.multiply(inverse).multiply(unshift.transpose());
+    }
+
+    @Override
+    protected double calculateErrorVariance()
+    {
+        pCheckFitted();
+        return mResidualSS / ((double)(mN - (mDegree + 1)));
+    }
+
+    @Override
+    protected double calculateYVariance()
+    {
+        if(mN < 2) return Double.NaN;
+        return calculateTotalSumOfSquares() / ((double)(mN - 1));
+    }
+
+    @Override
+    public double calculateTotalSumOfSquares()
+    {
+        final double mean = mSumY / mN;
+        return Math.max(mSumYY - mN * mean * mean, 0.0);
+    }
+
+    @Override
+    public double calculateResidualSumOfSquares()
+    {
+        pCheckFitted();
+        return mResidualSS;
+    }
+
+    @Override
+    public double calculateRSquared()
+    {
+        return 1.0 - calculateResidualSumOfSquares() / calculateTotalSumOfSquares();
+    }
+
+    @Override
+    public double calculateAdjustedRSquared()
+    {
+        final double n = (double)mN;
+        return 1.0 - (1.0 - calculateRSquared()) * ((n - 1.0) / (n - (mDegree + 1)));
+    }
+
+    protected void pCheckFitted()
+    {
+        if(mBeta == null)
+        {
+            throw new IllegalStateException("Model has not been fitted.");
+        }
+    }
+
+    // Converts coefficients of (x - shift)^k into coefficients of x^j
+    protected double[] pUnshift(double[] gamma)
+    {
+        double[] beta = new double[gamma.length];
+
+        for(int k=0; k < gamma.length; k++)
+        {
+            double binomial = 1.0;
+            for(int j=k; j >= 0; j--)
+            {
+                // C(k, j) * (-shift)^(k-j)
+                beta[j] += gamma[k] * binomial * Math.pow(-mShift, k - j);
+                binomial = binomial * j / (k - j + 1);
+            }
+        }
+
+        return beta;
+    }
+}
@@ -2,10 +2,15 @@ package edu.umn.dcsg.common;
 
 //import clojure.core.protocols__init;
 
+import java.nio.ByteBuffer;
+
 import org.apache.commons.math3.linear.RealVector;
 
 // Information related to an imputation module that needs to be
 // sent over the network.
+//
+// On the wire a model uses the fixed binary layout of writeTo(); the
+// colon-delimited string form is kept for GenericPayload.
 public class ModelInfo
 {
     protected final String DELIMITER = ":";
@@ -25,6 +30,15 @@ public class ModelInfo
         mStdErr = model.estimateRegressionStandardError();
     }
 
+    public ModelInfo(int predictor, int sampleCount, double meanY, double stdErr, double[] beta)
+    {
+        mPredictorId = predictor;
+        mSampleCount = sampleCount;
+        mMeanY = meanY;
+        mStdErr = stdErr;
+        mBeta = beta;
+    }
+
     public ModelInfo(String serialized)
     {
         String[] tokens = serialized.split(DELIMITER);
@@ -43,32 +57,45 @@ public class ModelInfo
         }
     }
 
-    public Double evaluate(double x)
+    public double evaluate(double x)
     {
         if(Config.USE_MEAN_IMPUTATION)
         {
             return mMeanY;
         }
 
+        // Horner's method over the coefficients (constant term first)
         double result = 0.0;
-        double[] xpoint = null;
-        if(mBeta.length == 2)
+        for(int i = mBeta.length - 1; i >= 0; i--)
         {
-            xpoint = new double[] { 1.0, x };
+            result = result * x + mBeta[i];
         }
-        else
+
+        return result;
+    }
+
+    // Evaluates the model at xs[0..count) into out[0..count)
+    public void evaluate(final double[] xs, final int count, final double[] out)
+    {
+        if(Config.USE_MEAN_IMPUTATION)
         {
-            xpoint = new double[] { 1.0, x,
-                                    Math.pow(x, 2.0),
-                                    Math.pow(x, 3.0)};
+            for(int j = 0; j < count; j++) out[j] = mMeanY;
+            return;
         }
-    
-        for(int i=0; i < mBeta.length; i++)
+
+        final double[] beta = mBeta;
+        final int last = beta.length - 1;
+
+        for(int j = 0; j < count; j++)
         {
-            result += mBeta[i] * xpoint[i]; 
+            final double x = xs[j];
+            double result = 0.0;
+            for(int i = last; i >= 0; i--)
+            {
+                result = result * x + beta[i];
+            }
+            out[j] = result;
         }
-
-        return result;
     }
 
     public int getSampleCount()
@@ -91,6 +118,54 @@ public class ModelInfo
         return mMeanY + mStdErr;
     }
 
+    // @returns the number of bytes writeTo() produces
+    public int getSerializedSize()
+    {
+        return 4 + 4 + 8 + 8 + 1 + 8 * mBeta.length;
+    }
+
+    // predictor, sample count, mean, std. error, then the coefficients
+    public void writeTo(ByteBuffer buffer)
+    {
+        buffer.putInt(mPredictorId);
+        buffer.putInt(mSampleCount);
+        buffer.putDouble(mMeanY);
+        buffer.putDouble(mStdErr);
+        buffer.put((byte)mBeta.length);
+        for(int i = 0; i < mBeta.length; i++)
+        {
+            buffer.putDouble(mBeta[i]);
+        }
+    }
+
+    public static ModelInfo readFrom(ByteBuffer buffer)
+    {
+        final int predictor = buffer.getInt();
+        final int sampleCount = buffer.getInt();
+        final double meanY = buffer.getDouble();
+        final double stdErr = buffer.getDouble();
+
+        double[] beta = new double[buffer.get()];
+        for(int i = 0; i < beta.length; i++)
+        {
+            beta[i] = buffer.getDouble();
+        }
+
+        return new ModelInfo(predictor, sampleCount, meanY, stdErr, beta);
+    }
+
+    public byte[] toBytes()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    public static ModelInfo fromBytes(byte[] bytes)
+    {
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+
     public String toString()
     {
         String result = mPredictorId.toString() +
@@ -0,0 +1,144 @@
+package edu.umn.dcsg.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// The imputation models of one window as (target, predictor) edges, with
+// the streams they connect merged into groups (union-find). The cloud can
+// only impute a target where the samples of its predictor are, so a group
+// must be aggregated in one place.
+//
+// A group is named by its smallest stream id, so every component that
+// rebuilds the graph from the same edges agrees on the names. The graph also
+// lists the window's other streams, each a group of its own, so the groups
+// cover the whole window. The string form ("target:predictor;...;stream",
+// lone streams last) travels in a window's header.
+public class PredictorGraph
+{
+    protected final static String EDGE_DELIMITER = ";";
+    protected final static String PAIR_DELIMITER = ":";
+
+    protected List<int[]>           mEdges;
+    protected Map<Integer, Integer> mParents;
+    protected Set<Integer>          mStreams;
+
+    public PredictorGraph()
+    {
+        mEdges = new ArrayList<int[]>();
+        mParents = new HashMap<Integer, Integer>();
+        mStreams = new TreeSet<Integer>();
+    }
+
+    public static PredictorGraph fromString(final String text)
+    {
+        PredictorGraph graph = new PredictorGraph();
+        if(text == null || text.isEmpty()) return graph;
+
+        for(String edge : text.split(EDGE_DELIMITER))
+        {
+            final String[] pair = edge.split(PAIR_DELIMITER);
+            if(pair.length == 1)
+            {
+                graph.addStream(Integer.parseInt(pair[0]));
+                continue;
+            }
+            graph.add(Integer.parseInt(pair[0]), Integer.parseInt(pair[1]));
+        }
+        return graph;
+    }
+
+    public void add(final int targetStream, final int predictorStream)
+    {
+        mEdges.add(new int[]{ targetStream, predictorStream });
+        mStreams.add(targetStream);
+        mStreams.add(predictorStream);
+
+        final int a = pFind(targetStream);
+        final int b = pFind(predictorStream);
+        if(a != b)
+        {
+            mParents.put(Math.max(a, b), Math.min(a, b));
+        }
+    }
+
+    // A stream of the window, whether or not a model involves it
+    public void addStream(final int streamId)
+    {
+        mStreams.add(streamId);
+    }
+
+    public boolean contains(final int streamId)
+    {
+        return mStreams.contains(streamId);
+    }
+
+    // @returns the name of every group, in order
+    public Set<Integer> getGroups()
+    {
+        Set<Integer> groups = new TreeSet<Integer>();
+        for(Integer streamId : mStreams)
+        {
+            groups.add(pFind(streamId));
+        }
+        return groups;
+    }
+
+    // @returns the smallest stream id of the stream's group (the stream
+    //          itself if no model involves it)
+    public int getGroup(final int streamId)
+    {
+        return pFind(streamId);
+    }
+
+    public int getEdgeCount()
+    {
+        return mEdges.size();
+    }
+
+    protected int pFind(final int streamId)
+    {
+        int root = streamId;
+        Integer parent;
+        while((parent = mParents.get(root)) != null)
+        {
+            root = parent;
+        }
+
+        // Point the whole path at the root
+        int current = streamId;
+        while(current != root)
+        {
+            final int next = mParents.put(current, root);
+            current = next;
+        }
+        return root;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sBuilder = new StringBuilder();
+        for(int[] edge : mEdges)
+        {
+            if(sBuilder.length() > 0) sBuilder.append(EDGE_DELIMITER);
+            sBuilder.append(edge[0]).append(PAIR_DELIMITER).append(edge[1]);
+        }
+
+        Set<Integer> lone = new TreeSet<Integer>(mStreams);
+        for(int[] edge : mEdges)
+        {
+            lone.remove(edge[0]);
+            lone.remove(edge[1]);
+        }
+        for(Integer streamId : lone)
+        {
+            if(sBuilder.length() > 0) sBuilder.append(EDGE_DELIMITER);
+            sBuilder.append(streamId);
+        }
+        return sBuilder.toString();
+    }
+}
@@ -0,0 +1,244 @@
+package edu.umn.dcsg.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.storm.tuple.Values;
+
+// Everything an edge sends for one window, batched: the samples in columnar
+// arrays, the imputation models and the trailer's exact aggregates. The
+// cloud ingests a frame in one call, instead of dispatching (and, in a
+// topology, framing and acking) one payload per sample.
+//
+// A frame stands for the whole header ... trailer sequence of a window of
+// one edge; toPayloads() expands it back into that sequence for handlers
+// that only understand single payloads.
+public class SampleFrame
+{
+    protected static final int  INITIAL_CAPACITY = 64;
+
+    protected int               mEdgeId;
+    protected long              mWindowId;
+
+    protected int               mSampleCount;
+    protected int[]             mStreamIds;
+    protected double[]          mValues;
+    protected long[]            mTimes;
+
+    protected int               mModelCount;
+    protected int[]             mModelStreamIds;
+    protected ModelInfo[]       mModels;
+
+    protected String            mAggregates;
+
+    // Grids of the quantized streams (null until one is set)
+    protected Map<Integer, ValueQuantizer> mQuantizers;
+
+    public SampleFrame()
+    {
+        this(INITIAL_CAPACITY, 0);
+    }
+
+    public SampleFrame(final int sampleCapacity, final int modelCapacity)
+    {
+        mEdgeId = 0;
+        mWindowId = 0;
+
+        mSampleCount = 0;
+        mStreamIds = new int[Math.max(sampleCapacity, 1)];
+        mValues = new double[mStreamIds.length];
+        mTimes = new long[mStreamIds.length];
+
+        mModelCount = 0;
+        mModelStreamIds = new int[Math.max(modelCapacity, 1)];
+        mModels = new ModelInfo[mModelStreamIds.length];
+
+        mAggregates = "";
+        mQuantizers = null;
+    }
+
+    public void addSample(final int streamId, final double value, final long time)
+    {
+        if(mSampleCount == mStreamIds.length)
+        {
+            final int capacity = 2 * mStreamIds.length;
+            mStreamIds = Arrays.copyOf(mStreamIds, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+        }
+
+        mStreamIds[mSampleCount] = streamId;
+        mValues[mSampleCount] = value;
+        mTimes[mSampleCount] = time;
+        mSampleCount++;
+    }
+
+    public void addSamples(final List<StreamTuple> samples)
+    {
+        for(StreamTuple sample : samples)
+        {
+            addSample(sample.mStreamId, sample.mValue, sample.mTime);
+        }
+    }
+
+    public void addModel(final int streamId, final ModelInfo model)
+    {
+        if(mModelCount == mModelStreamIds.length)
+        {
+            final int capacity = 2 * mModelStreamIds.length;
+            mModelStreamIds = Arrays.copyOf(mModelStreamIds, capacity);
+            mModels = Arrays.copyOf(mModels, capacity);
+        }
+
+        mModelStreamIds[mModelCount] = streamId;
+        mModels[mModelCount] = model;
+        mModelCount++;
+    }
+
+    // Names the edge and window the frame carries, as a header would
+    public void setWindow(final int edgeId, final long windowId)
+    {
+        mEdgeId = edgeId;
+        mWindowId = windowId;
+    }
+
+    public int getEdgeId()
+    {
+        return mEdgeId;
+    }
+
+    public long getWindowId()
+    {
+        return mWindowId;
+    }
+
+    // @param aggregates exact aggregates, as in a trailer
+    public void setAggregates(final String aggregates)
+    {
+        mAggregates = (aggregates == null) ? "" : aggregates;
+    }
+
+    public String getAggregates()
+    {
+        return mAggregates;
+    }
+
+    // Marks the stream's values as points of the grid
+    public void setQuantizer(final int streamId, final ValueQuantizer quantizer)
+    {
+        if(mQuantizers == null)
+        {
+            mQuantizers = new HashMap<Integer, ValueQuantizer>();
+        }
+        mQuantizers.put(streamId, quantizer);
+    }
+
+    // @returns the stream's grid, or null if its values are not quantized
+    public ValueQuantizer getQuantizer(final int streamId)
+    {
+        return (mQuantizers == null) ? null : mQuantizers.get(streamId);
+    }
+
+    public int getSampleCount()
+    {
+        return mSampleCount;
+    }
+
+    public int getStreamId(final int idx)
+    {
+        return mStreamIds[idx];
+    }
+
+    public double getValue(final int idx)
+    {
+        return mValues[idx];
+    }
+
+    public long getTime(final int idx)
+    {
+        return mTimes[idx];
+    }
+
+    public int getModelCount()
+    {
+        return mModelCount;
+    }
+
+    public int getModelStreamId(final int idx)
+    {
+        return mModelStreamIds[idx];
+    }
+
+    public ModelInfo getModel(final int idx)
+    {
+        return mModels[idx];
+    }
+
+    public PredictorGraph getPredictorGraph()
+    {
+        PredictorGraph graph = new PredictorGraph();
+        for(int i=0; i < mModelCount; i++)
+        {
+            graph.add(mModelStreamIds[i], mModels[i].getPredictorId());
+        }
+        for(int i=0; i < mSampleCount; i++)
+        {
+            graph.addStream(mStreamIds[i]);
+        }
+        return graph;
+    }
+
+    // @returns the size in bytes of the frame's uncompressed column layout,
+    // with the aggregates text as UTF-8
+    public long getRawSize()
+    {
+        long size = 4 + 8 + 4 + 20L * mSampleCount + 4;
+        for(int i=0; i < mModelCount; i++)
+        {
+            size += 4 + mModels[i].getSerializedSize();
+        }
+        return size + 4 + mAggregates.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // @returns the header, models, samples and trailer this frame stands for
+    public List<BinaryPayload> toPayloads()
+    {
+        List<BinaryPayload> payloads = new ArrayList<BinaryPayload>(mSampleCount + mModelCount + 2);
+
+        BinaryPayload header = new BinaryPayload(GenericPayload.TYPE_HEADER);
+        header.setWindow(mEdgeId, mWindowId);
+        header.setText(getPredictorGraph().toString());
+        payloads.add(header);
+
+        for(int i=0; i < mModelCount; i++)
+        {
+            BinaryPayload model = new BinaryPayload(GenericPayload.TYPE_IMPUTATION_MODEL);
+            model.setStreamId(mModelStreamIds[i]);
+            model.setModel(mModels[i]);
+            payloads.add(model);
+        }
+
+        for(int i=0; i < mSampleCount; i++)
+        {
+            payloads.add(new BinaryPayload(GenericPayload.TYPE_TUPLE, mStreamIds[i],
+                                           mValues[i], mTimes[i], ""));
+        }
+
+        BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+        trailer.setWindow(mEdgeId, mWindowId);
+        trailer.setText(mAggregates);
+        payloads.add(trailer);
+
+        return payloads;
+    }
+
+    // Frames travel in the same single field as a BinaryPayload
+    public Values toValues()
+    {
+        return new Values(this);
+    }
+}
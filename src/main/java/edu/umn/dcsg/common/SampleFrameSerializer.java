@@ -0,0 +1,89 @@
+package edu.umn.dcsg.common;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+// Kryo serializer for SampleFrame. With Config.USE_FRAME_COMPRESSION the
+// frame is written as GorillaCodec bytes. Otherwise the edge and window ids
+// come first and each column is written as one block: the sample count, the stream ids as varints, the values as
+// raw doubles and the times as varlongs, followed by the models and the
+// aggregates. A leading flag tells the reader which form follows.
+public class SampleFrameSerializer extends Serializer<SampleFrame>
+{
+    public SampleFrameSerializer()
+    {
+        setImmutable(false);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, SampleFrame frame)
+    {
+        output.writeBoolean(Config.USE_FRAME_COMPRESSION);
+        if(Config.USE_FRAME_COMPRESSION)
+        {
+            final byte[] encoded = GorillaCodec.encode(frame);
+            output.writeVarInt(encoded.length, true);
+            output.writeBytes(encoded);
+            return;
+        }
+
+        output.writeVarInt(frame.getEdgeId(), true);
+        output.writeVarLong(frame.getWindowId(), true);
+
+        final int sampleCount = frame.getSampleCount();
+        output.writeVarInt(sampleCount, true);
+        for(int i=0; i < sampleCount; i++) output.writeVarInt(frame.getStreamId(i), true);
+        for(int i=0; i < sampleCount; i++) output.writeDouble(frame.getValue(i));
+        for(int i=0; i < sampleCount; i++) output.writeVarLong(frame.getTime(i), true);
+
+        final int modelCount = frame.getModelCount();
+        output.writeVarInt(modelCount, true);
+        for(int i=0; i < modelCount; i++)
+        {
+            output.writeVarInt(frame.getModelStreamId(i), true);
+            final byte[] model = frame.getModel(i).toBytes();
+            output.writeVarInt(model.length, true);
+            output.writeBytes(model);
+        }
+
+        output.writeString(frame.getAggregates());
+    }
+
+    @Override
+    public SampleFrame read(Kryo kryo, Input input, Class<SampleFrame> type)
+    {
+        if(input.readBoolean())
+        {
+            return GorillaCodec.decode(input.readBytes(input.readVarInt(true)));
+        }
+
+        final int edgeId = input.readVarInt(true);
+        final long windowId = input.readVarLong(true);
+
+        final int sampleCount = input.readVarInt(true);
+        int[] streamIds = new int[sampleCount];
+        double[] values = new double[sampleCount];
+
+        for(int i=0; i < sampleCount; i++) streamIds[i] = input.readVarInt(true);
+        for(int i=0; i < sampleCount; i++) values[i] = input.readDouble();
+
+        SampleFrame frame = new SampleFrame(sampleCount, 0);
+        frame.setWindow(edgeId, windowId);
+        for(int i=0; i < sampleCount; i++)
+        {
+            frame.addSample(streamIds[i], values[i], input.readVarLong(true));
+        }
+
+        final int modelCount = input.readVarInt(true);
+        for(int i=0; i < modelCount; i++)
+        {
+            final int streamId = input.readVarInt(true);
+            frame.addModel(streamId, ModelInfo.fromBytes(input.readBytes(input.readVarInt(true))));
+        }
+
+        frame.setAggregates(input.readString());
+        return frame;
+    }
+}
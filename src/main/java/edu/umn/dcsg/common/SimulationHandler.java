@@ -2,5 +2,41 @@ package edu.umn.dcsg.common;
 
 public interface SimulationHandler
 {
-    public void handleEvent(final GenericPayload payload);
+    public void handleEvent(final BinaryPayload payload);
+
+    // A payload from a known edge. Handlers that serve several edges
+    // override this to keep their windows apart.
+    public default void handleEvent(final int edgeId, final BinaryPayload payload)
+    {
+        handleEvent(payload);
+    }
+
+    // String form, for callers that still produce GenericPayloads
+    public default void handleEvent(final GenericPayload payload)
+    {
+        handleEvent(BinaryPayload.fromGeneric(payload));
+    }
+
+    // A whole window at once. Handlers that can ingest a frame directly
+    // override this; the default replays it one payload at a time.
+    public default void handleFrame(final SampleFrame frame)
+    {
+        for(BinaryPayload payload : frame.toPayloads())
+        {
+            handleEvent(payload);
+        }
+    }
+
+    // Simulation only: the samples of a window as they were before
+    // quantization, named by the frame's edge and window. Arrives ahead of
+    // the window's trailer.
+    public default void handleExactSamples(final SampleFrame exactSamples)
+    {
+    }
+
+    // A frame compressed with GorillaCodec, as it would cross the network
+    public default void handleEncodedFrame(final byte[] encoded)
+    {
+        handleFrame(GorillaCodec.decode(encoded));
+    }
 }
\ No newline at end of file
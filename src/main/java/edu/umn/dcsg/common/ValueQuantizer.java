@@ -0,0 +1,88 @@
+package edu.umn.dcsg.common;
+
+// Fixed-point grid for one stream's values within a window. A value maps to
+// the code of its nearest grid point, offset + code * step, so the
+// reconstruction error is at most step / 2: the configured error bound.
+//
+// The grid spans the stream's [min, max] for the window, which takes
+// getWidth() bits per code when bit-packed.
+public class ValueQuantizer
+{
+    // Codes must stay exact in a double
+    protected static final int  MAX_WIDTH = 52;
+
+    protected final double      mOffset;
+    protected final double      mStep;
+    protected final long        mMaxCode;
+    protected final int         mWidth;
+
+    public ValueQuantizer(final double offset, final double step, final long maxCode)
+    {
+        mOffset = offset;
+        mStep = step;
+        mMaxCode = maxCode;
+        mWidth = Math.max(1, 64 - Long.numberOfLeadingZeros(maxCode));
+    }
+
+    // @param absError largest absolute error allowed
+    // @param relError largest error allowed relative to the range's magnitude
+    // @returns a grid meeting the larger of the two bounds, or null if the
+    //          range cannot be quantized usefully
+    public static ValueQuantizer forRange(final double min, final double max,
+                                          final double absError, final double relError)
+    {
+        if(!pIsFinite(min) || !pIsFinite(max) || max < min) return null;
+
+        final double magnitude = Math.max(Math.abs(min), Math.abs(max));
+        final double bound = Math.max(absError, relError * magnitude);
+        if(!(bound > 0.0) || !pIsFinite(bound)) return null;
+
+        final double step = 2.0 * bound;
+        final double span = Math.ceil((max - min) / step);
+        if(!pIsFinite(span) || span >= (double)(1L << MAX_WIDTH)) return null;
+
+        return new ValueQuantizer(min, step, (long)span);
+    }
+
+    public long encode(final double value)
+    {
+        final long code = Math.round((value - mOffset) / mStep);
+        return Math.min(Math.max(code, 0L), mMaxCode);
+    }
+
+    public double decode(final long code)
+    {
+        return mOffset + code * mStep;
+    }
+
+    // @returns the grid point the value is sent as
+    public double quantize(final double value)
+    {
+        return decode(encode(value));
+    }
+
+    public double getOffset()
+    {
+        return mOffset;
+    }
+
+    public double getStep()
+    {
+        return mStep;
+    }
+
+    public long getMaxCode()
+    {
+        return mMaxCode;
+    }
+
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    protected static boolean pIsFinite(final double x)
+    {
+        return !Double.isNaN(x) && !Double.isInfinite(x);
+    }
+}
@@ -2,102 +2,277 @@ package edu.umn.dcsg.server;
 
 import edu.umn.dcsg.client.TTLDataCache;
 
+import edu.umn.dcsg.common.BinaryPayload;
 import edu.umn.dcsg.common.Config;
-import edu.umn.dcsg.common.GenericPayload;
 import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.PredictorGraph;
 import edu.umn.dcsg.common.RegModel;
+import edu.umn.dcsg.common.SampleFrame;
 import edu.umn.dcsg.common.StreamTuple;
 
+import java.io.File;
+import java.io.IOException;
+
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
-
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractCloud
 {
-    protected Map<Integer, ModelInfo>       mModelsMap;
-    protected Object                        mLock;
+    // Distance given to x samples with no y sample nearer than this
+    protected static final long             MAX_TIME_DISTANCE = 1000000000L;
+
+    // Source of payloads handed over without one (a single edge)
+    protected static final int              DEFAULT_SOURCE = 0;
+
+    // The open window of each source, from its header to its trailer. A
+    // source is one edge, so windows of different edges overlap freely
+    // and each is finalized on its own trailer.
+    protected ConcurrentMap<Integer, WindowState> mOpenWindows;
+    protected AtomicLong                    mFinalizedWindows;
 
-    protected Map<Integer, List<StreamTuple>> mAllSamplesMap;
-    protected Map<Integer, List<StreamTuple>> mSimSamplesMap;
-    protected SummaryStatistics             mAllStats;
+    // Finalized windows are persisted here, if set, and queried from there
+    protected WindowSegmentStore            mSegmentStore;
+    protected AggregateQueryService         mQueryService;
 
-    protected Integer                       mWindowId;
+    // The grouping that spreads each window over this cloud and its sibling
+    // tasks, if any, so the shares of a window can be merged when persisted
+    protected PredictorAwareGrouping        mGrouping;
 
     public AbstractCloud()
     {
-        mAllSamplesMap = new HashMap<Integer, List<StreamTuple>>();
-        mSimSamplesMap = new HashMap<Integer, List<StreamTuple>>();
-        mModelsMap = new HashMap<Integer, ModelInfo>();
+        mOpenWindows = new ConcurrentHashMap<Integer, WindowState>();
+        mFinalizedWindows = new AtomicLong(0);
+        mSegmentStore = null;
+        mQueryService = null;
+        mGrouping = null;
+    }
+
+    // Subclasses can optionally analyze local data. Called once per
+    // window, possibly from several threads for windows of different edges.
+    protected abstract void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates);
+
+    public long getFinalizedWindowCount()
+    {
+        return mFinalizedWindows.get();
+    }
+
+    public void setSegmentStore(WindowSegmentStore store)
+    {
+        mSegmentStore = store;
+        mQueryService = (store == null) ? null : new AggregateQueryService(store);
+    }
+
+    public void setGrouping(PredictorAwareGrouping grouping)
+    {
+        mGrouping = grouping;
+    }
+
+    public WindowSegmentStore getSegmentStore()
+    {
+        return mSegmentStore;
+    }
+
+    // @returns range queries over the persisted windows, or null without
+    //          a segment store
+    public AggregateQueryService getQueryService()
+    {
+        return mQueryService;
+    }
+
+    // Opens the store Config.SEGMENT_STORE_DIR names, if any
+    protected void pOpenSegmentStore()
+    {
+        if(Config.SEGMENT_STORE_DIR == null) return;
+
+        try
+        {
+            setSegmentStore(WindowSegmentStore.open(new File(Config.SEGMENT_STORE_DIR),
+                                                    Config.SEGMENT_MAX_BYTES));
+        }
+        catch(IOException e)
+        {
+            System.err.println("SEVERE: Cannot open the segment store. Windows will not be persisted.");
+            System.err.println(e);
+        }
+    }
+
+    protected void pCloseSegmentStore()
+    {
+        if(mSegmentStore == null) return;
 
-        mAllStats = new SummaryStatistics();
+        try
+        {
+            mSegmentStore.close();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Encountered unexpected exception closing the segment store.");
+            System.err.println(e);
+        }
+        setSegmentStore(null);
+    }
 
-        mLock = new Object();
-        mWindowId = 1;
+    protected WindowState pNewWindow(final int edgeId, final long windowId)
+    {
+        WindowState window = new WindowState(edgeId, windowId);
+        if(mSegmentStore != null && Config.SEGMENT_STORE_SAMPLES)
+        {
+            window.keepReconstructedSamples();
+        }
+        return window;
     }
 
-    // Subclasses can optionally analyze local data
-    protected abstract void pAnalyzeSamples(List<StreamTuple> trueAggregates);
+    protected void pHandleTuple(final BinaryPayload payload)
+    {
+        pHandleTuple(DEFAULT_SOURCE, payload);
+    }
 
-    protected void pHandleTuple(final GenericPayload payload)
+    // @param source the edge the payload came from (e.g. its Storm task)
+    protected void pHandleTuple(final int source, final BinaryPayload payload)
     {
-        synchronized(mLock)
+        if(payload.isHeader())
         {
-            if(payload.isHeader())
+            WindowState window = pNewWindow(payload.getEdgeId(), payload.getWindowId());
+            if(mGrouping != null)
+            {
+                final PredictorGraph graph = PredictorGraph.fromString(payload.getText());
+                window.setPartCount(mGrouping.getOwnerTasks(source, graph).size());
+            }
+
+            WindowState previous = mOpenWindows.put(source, window);
+            if(previous != null)
             {
-                // Nothing to do.
+                // The trailer was lost: finalize what did arrive, without
+                // the exact aggregates, rather than drop it
+                System.err.println("WARNING: Window " + previous.getWindowId() + " of edge " +
+                                   previous.getEdgeId() + " was never closed, finalizing it");
+                synchronized(previous)
+                {
+                    pEndWindow(previous, null);
+                }
             }
-            else if(payload.isTrailer())
+            return;
+        }
+
+        // Sources that send no headers get an implicit window
+        WindowState window = mOpenWindows.get(source);
+        if(window == null)
+        {
+            window = mOpenWindows.computeIfAbsent(source, s -> pNewWindow(s, 0));
+        }
+
+        synchronized(window)
+        {
+            if(payload.isTrailer())
             {
-                List<StreamTuple> trueAggregates = TTLDataCache.stringToExactAggregates(payload.getValue());
-                pAnalyzeSamples(trueAggregates);
-
-                mModelsMap.clear();
-                mAllSamplesMap.clear();
-                mSimSamplesMap.clear();
-                mAllStats.clear();
-                mWindowId++;
+                mOpenWindows.remove(source, window);
+                pEndWindow(window, payload.getText());
             }
             else if(payload.isTuple())
             {
-                int sourceStream = Integer.parseInt(payload.getStreamId());
-                double value = Double.parseDouble(payload.getValue());
-                long time = Long.parseLong(payload.getTime());
-                String metadata = payload.getMetadata();
-
-                StreamTuple sTuple = new StreamTuple(sourceStream, value, time, metadata);
+                int sourceStream = payload.getStreamId();
+                double value = payload.getValue();
+                long time = payload.getTime();
+                String metadata = payload.getText();
+
+                window.initializeStreamIfNeeded(sourceStream);
+                window.addSample(window.mAccumulators.get(sourceStream),
+                                 window.mAllSamplesMap.get(sourceStream),
+                                 sourceStream, value, time, metadata);
+            }
+            else if(payload.isImputationModel())
+            {
+                window.addModel(payload.getStreamId(), payload.getModel());
+            }
+        }
+    }
 
-                pInitializeStreamIfNeeded(sourceStream);
+    // Ingests and finalizes a whole window: models, samples, then the
+    // trailer. The window never becomes visible to other threads.
+    protected void pHandleFrame(final SampleFrame frame)
+    {
+        WindowState window = pNewWindow(frame.getEdgeId(), frame.getWindowId());
 
-                mAllSamplesMap.get(sourceStream).add(sTuple);
-                mAllStats.addValue(value);
+        synchronized(window)
+        {
+            for(int i=0; i < frame.getModelCount(); i++)
+            {
+                window.addModel(frame.getModelStreamId(i), frame.getModel(i));
             }
-            else if(payload.isImputationModel())
+
+            // Samples arrive grouped by stream, so look the stream up per run
+            StreamAccumulator accumulator = null;
+            List<StreamTuple> samples = null;
+            int currentStream = 0;
+            boolean first = true;
+
+            final int sampleCount = frame.getSampleCount();
+            for(int i=0; i < sampleCount; i++)
             {
-                int sourceStream = Integer.parseInt(payload.getStreamId());
-                mModelsMap.put(sourceStream, new ModelInfo(payload.getValue()));
+                final int sourceStream = frame.getStreamId(i);
+
+                if(first || sourceStream != currentStream)
+                {
+                    window.initializeStreamIfNeeded(sourceStream);
+                    accumulator = window.mAccumulators.get(sourceStream);
+                    samples = window.mAllSamplesMap.get(sourceStream);
+                    currentStream = sourceStream;
+                    first = false;
+                }
+
+                window.addSample(accumulator, samples, sourceStream, frame.getValue(i), frame.getTime(i), "");
             }
+
+            pEndWindow(window, frame.getAggregates());
         }
     }
 
-    protected List<Integer> pGetSortedKeys()
+    // Caller holds the window's lock. Aggregates is null for a window that
+    // never got its trailer, and empty for one whose edge failed to flush it.
+    protected void pEndWindow(final WindowState window, final String aggregates)
     {
-        List<Integer> sortedKeys = new ArrayList<Integer>(mAllSamplesMap.keySet());
-        Collections.sort(sortedKeys);
-        return sortedKeys;
+        final boolean exact = (aggregates != null && !aggregates.isEmpty());
+        List<StreamTuple> trueAggregates = exact ? TTLDataCache.stringToExactAggregates(aggregates)
+                                                 : new ArrayList<StreamTuple>();
+        pAnalyzeSamples(window, trueAggregates);
+
+        if(mSegmentStore != null)
+        {
+            pPersistWindow(window);
+        }
+        mFinalizedWindows.incrementAndGet();
     }
 
-    protected void pInitializeStreamIfNeeded(int streamId)
+    // Caller holds the window's lock
+    protected void pPersistWindow(final WindowState window)
     {
-        if(mAllSamplesMap.get(streamId) == null)
+        try
+        {
+            if(window.getPartCount() > 1)
+            {
+                mSegmentStore.appendPart(window.getEdgeId(), window.getWindowId(), window.getPartCount(),
+                                         window.getStreamAggregates(), window.getRealSampleCounts(),
+                                         window.getReconstructedSamples(), window.getRealSampleCount(),
+                                         window.getMinTime(), window.getMaxTime());
+                return;
+            }
+
+            mSegmentStore.append(window.getEdgeId(), window.getWindowId(), window.getStreamAggregates(),
+                                 window.getRealSampleCounts(), window.getReconstructedSamples(),
+                                 window.getRealSampleCount(), window.getMinTime(), window.getMaxTime());
+        }
+        catch(IOException e)
         {
-            mAllSamplesMap.put(streamId, new ArrayList<StreamTuple>());
-            mSimSamplesMap.put(streamId, new ArrayList<StreamTuple>());
+            System.err.println("SEVERE: Could not persist window " + window.getWindowId() +
+                               " of edge " + window.getEdgeId());
+            System.err.println(e);
         }
     }
 
@@ -107,7 +282,7 @@ public abstract class AbstractCloud
     }
 
     // @returns the number of samples generated from the model
-    protected int pGenerateSamplesForModel(int targetStream, ModelInfo model)
+    protected int pGenerateSamplesForModel(WindowState window, int targetStream, ModelInfo model)
     {
         if(model == null) return 0;
         if(model.getSampleCount() < 1) return 0;
@@ -115,35 +290,112 @@ public abstract class AbstractCloud
         int samplesGenerated = 0;
         final double modelStdErr = model.getStdErr();
 
-        pInitializeStreamIfNeeded(targetStream);
+        window.initializeStreamIfNeeded(targetStream);
 
-        List<StreamTuple> xVals = mAllSamplesMap.get(model.getPredictorId());
-        List<StreamTuple> yVals = mAllSamplesMap.get(targetStream);
+        List<StreamTuple> xVals = window.mAllSamplesMap.get(model.getPredictorId());
+        List<StreamTuple> yVals = window.mAllSamplesMap.get(targetStream);
 
         if(xVals == null)
         {
             double dummy = model.getDummyPrediction();
-            StreamTuple yPoint = new StreamTuple(targetStream, dummy, (long)0);
-            mSimSamplesMap.get(targetStream).add(yPoint);
+            window.addPredictions(targetStream, new double[]{ dummy }, new long[]{ 0 }, 1);
             System.err.println("WARNING: Constraints did not work. Skipping model... " + dummy);
             return 1;
         }
 
         final List<StreamTuple> xSim = pGetOptimalXVals(xVals, yVals, model.getSampleCount());
-        for(int i=0; i < xSim.size(); i++)
+        final int count = xSim.size();
+        window.ensureScratchCapacity(count);
+
+        final double[] predictorValues = window.mPredictorValues;
+        final long[] predictorTimes = window.mPredictorTimes;
+        for(int i=0; i < count; i++)
         {
             final StreamTuple xPoint = xSim.get(i);
-            final double x = xPoint.mValue;
-            double expectedValue = model.evaluate(x);
-
-            StreamTuple yPoint = new StreamTuple(targetStream, expectedValue, xPoint.mTime);
-            mSimSamplesMap.get(targetStream).add(yPoint);
-            samplesGenerated++;
+            predictorValues[i] = xPoint.mValue;
+            predictorTimes[i] = xPoint.mTime;
         }
 
+        model.evaluate(predictorValues, count, window.mPredictions);
+        window.addPredictions(targetStream, window.mPredictions, predictorTimes, count);
+        samplesGenerated += count;
+
         return samplesGenerated;
     }
 
+    // The count x samples farthest in time from any y sample (distances
+    // capped at MAX_TIME_DISTANCE), farthest first and in list order among
+    // equals. Nearest y times come from a binary search over the sorted y
+    // times and a bounded heap keeps the best count candidates, so this
+    // costs O((n + m) log m + n log count) rather than O(count * n * m).
+    protected List<StreamTuple> pGetFarthestXVals(List<StreamTuple> x, List<StreamTuple> y, int count)
+    {
+        final int n = x.size();
+        final int keep = Math.min(count, n);
+        List<StreamTuple> samples = new ArrayList<StreamTuple>(Math.max(keep, 0));
+        if(keep <= 0) return samples;
+
+        long[] yTimes = new long[y.size()];
+        for(int k=0; k < yTimes.length; k++) yTimes[k] = y.get(k).mTime;
+        Arrays.sort(yTimes);
+
+        final long[] dist = new long[n];
+        for(int j=0; j < n; j++)
+        {
+            dist[j] = Math.min(MAX_TIME_DISTANCE, pGetNearestDistance(yTimes, x.get(j).mTime));
+        }
+
+        // Head is the weakest candidate kept so far: nearest, then latest
+        PriorityQueue<Integer> kept = new PriorityQueue<Integer>(keep, (a, b) -> {
+            final int byDist = Long.compare(dist[a], dist[b]);
+            return (byDist != 0) ? byDist : Integer.compare(b, a);
+        });
+
+        for(int j=0; j < n; j++)
+        {
+            if(kept.size() < keep)
+            {
+                kept.add(j);
+            }
+            else if(dist[j] > dist[kept.peek()])
+            {
+                // Later indices never win a tie
+                kept.poll();
+                kept.add(j);
+            }
+        }
+
+        Integer[] order = kept.toArray(new Integer[0]);
+        Arrays.sort(order, (a, b) -> {
+            final int byDist = Long.compare(dist[b], dist[a]);
+            return (byDist != 0) ? byDist : Integer.compare(a, b);
+        });
+
+        for(Integer j : order)
+        {
+            samples.add(x.get(j));
+        }
+        return samples;
+    }
+
+    protected static long pGetNearestDistance(long[] sortedTimes, long time)
+    {
+        final int idx = Arrays.binarySearch(sortedTimes, time);
+        if(idx >= 0) return 0;
+
+        final int insertion = -idx - 1;
+        long nearest = Long.MAX_VALUE;
+        if(insertion < sortedTimes.length)
+        {
+            nearest = Math.abs(sortedTimes[insertion] - time);
+        }
+        if(insertion > 0)
+        {
+            nearest = Math.min(nearest, Math.abs(time - sortedTimes[insertion - 1]));
+        }
+        return nearest;
+    }
+
     protected List<StreamTuple> pGetOptimalXVals(List<StreamTuple> x, List<StreamTuple> y, int count)
     {
         List<StreamTuple> samples = new ArrayList<StreamTuple>();
@@ -164,38 +416,7 @@ public abstract class AbstractCloud
             }
             else
             {
-                List<StreamTuple> newx = new ArrayList<>(x);
-                for(int i=0; i < count; i++)
-                {
-                    long bestDist = -1;
-                    int bestIdx = -1;
-
-                    for(int j=0; j < newx.size(); j++)
-                    {
-                        long candDist = 1000000000;
-                        StreamTuple candidate = newx.get(j);
-
-                        for(int k=0; k < y.size(); k++)
-                        {
-                            long dist = (long)Math.abs(y.get(k).mTime - candidate.mTime);
-                            if(dist < candDist) candDist = dist;
-                        }
-
-                        if(bestDist < candDist)
-                        {
-                            bestIdx = j;
-                            bestDist = candDist;
-                        }
-                    }
-
-                    if(bestIdx == -1)
-                    {
-                        break;
-                    }
-
-                    samples.add(newx.get(bestIdx));
-                    newx.remove(bestIdx);
-                }
+                samples = pGetFarthestXVals(x, y, count);
             }
         }
         else
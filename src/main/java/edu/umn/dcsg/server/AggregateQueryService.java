@@ -0,0 +1,201 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.Config;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.math3.distribution.TDistribution;
+
+// Answers range queries (a stream's aggregates over a range of time) from
+// the windows persisted in a WindowSegmentStore, for dashboards.
+//
+// Every window whose real samples overlap the time range is combined whole,
+// from its persisted moments (count, mean, variance, range), so a query
+// reads a few numbers per window rather than its samples. Windows of all
+// edges holding the stream are combined. The interval around the mean is a
+// Student's t interval from the combined variance, with the number of real
+// samples as n: predictions add values but no independent observations.
+//
+// Answers are kept in an LRU cache, so a repeated poll costs a map lookup.
+// A newly appended window drops the cached ranges it overlaps; answers
+// computed while a window was being appended are not cached.
+public class AggregateQueryService implements WindowSegmentStore.AppendListener
+{
+    protected static class RangeKey
+    {
+        protected final int     mStreamId;
+        protected final long    mFromTime;
+        protected final long    mToTime;
+
+        public RangeKey(int streamId, long fromTime, long toTime)
+        {
+            mStreamId = streamId;
+            mFromTime = fromTime;
+            mToTime = toTime;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if(!(other instanceof RangeKey)) return false;
+            final RangeKey key = (RangeKey)other;
+            return mStreamId == key.mStreamId && mFromTime == key.mFromTime &&
+                   mToTime == key.mToTime;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = mStreamId;
+            hash = 31 * hash + Long.hashCode(mFromTime);
+            hash = 31 * hash + Long.hashCode(mToTime);
+            return hash;
+        }
+    }
+
+    protected final WindowSegmentStore  mStore;
+    protected final double              mConfidence;
+
+    // Access-ordered, so the eldest entry is the least recently used
+    protected LinkedHashMap<RangeKey, AggregateResult> mCache;
+
+    // Bumped by every append (guarded by mCache)
+    protected long                      mGeneration;
+
+    protected long                      mHits;
+    protected long                      mMisses;
+
+    public AggregateQueryService(final WindowSegmentStore store)
+    {
+        this(store, Config.QUERY_CACHE_SIZE, Config.QUERY_CONFIDENCE);
+    }
+
+    public AggregateQueryService(final WindowSegmentStore store, final int cacheSize, final double confidence)
+    {
+        mStore = store;
+        mConfidence = confidence;
+        mGeneration = 0;
+        mHits = 0;
+        mMisses = 0;
+
+        mCache = new LinkedHashMap<RangeKey, AggregateResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RangeKey, AggregateResult> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+
+        mStore.addAppendListener(this);
+    }
+
+    // @returns the stream's aggregates over the windows overlapping
+    //          [fromTime, toTime]
+    public AggregateResult query(final int streamId, final long fromTime, final long toTime)
+        throws IOException
+    {
+        final RangeKey key = new RangeKey(streamId, fromTime, toTime);
+        final long generation;
+
+        synchronized(mCache)
+        {
+            final AggregateResult cached = mCache.get(key);
+            if(cached != null)
+            {
+                mHits++;
+                return cached;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        final AggregateResult result = pCompute(streamId, fromTime, toTime);
+
+        synchronized(mCache)
+        {
+            if(generation == mGeneration)
+            {
+                mCache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void appended(final WindowSegmentStore.IndexEntry entry)
+    {
+        synchronized(mCache)
+        {
+            mGeneration++;
+
+            Iterator<RangeKey> keys = mCache.keySet().iterator();
+            while(keys.hasNext())
+            {
+                final RangeKey key = keys.next();
+                if(entry.mMinTime <= key.mToTime && key.mFromTime <= entry.mMaxTime &&
+                   entry.mMinStream <= key.mStreamId && key.mStreamId <= entry.mMaxStream)
+                {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    public long getCacheHits()
+    {
+        synchronized(mCache)
+        {
+            return mHits;
+        }
+    }
+
+    public long getCacheMisses()
+    {
+        synchronized(mCache)
+        {
+            return mMisses;
+        }
+    }
+
+    protected AggregateResult pCompute(final int streamId, final long fromTime, final long toTime)
+        throws IOException
+    {
+        final StreamAccumulator merged = new StreamAccumulator();
+        final long[] realCount = { 0 };
+        final int[] windowCount = { 0 };
+
+        mStore.scanByTime(fromTime, toTime, streamId, segment -> {
+            final int idx = segment.indexOf(streamId);
+            merged.merge(segment.getCount(idx), segment.getMean(idx), segment.getVariance(idx),
+                         segment.getMin(idx), segment.getMax(idx));
+            realCount[0] += segment.getRealCount(idx);
+            windowCount[0]++;
+        });
+
+        if(merged.getN() == 0)
+        {
+            return new AggregateResult(streamId, fromTime, toTime, 0, 0, 0, Double.NaN, Double.NaN,
+                                       Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        final double mean = merged.getMean();
+        final double variance = merged.getVariance();
+
+        // A single real sample says nothing about the spread
+        final long n = realCount[0];
+        double halfWidth = Double.POSITIVE_INFINITY;
+        if(n > 1)
+        {
+            final double t = new TDistribution((double)n - 1.0).inverseCumulativeProbability(0.5 + mConfidence / 2.0);
+            halfWidth = t * Math.sqrt(variance / (double)n);
+        }
+
+        return new AggregateResult(streamId, fromTime, toTime, windowCount[0], merged.getN(), n, mean, variance,
+                                   merged.getMin(), merged.getMax(), mean - halfWidth, mean + halfWidth);
+    }
+}
@@ -0,0 +1,110 @@
+package edu.umn.dcsg.server;
+
+// Answer to one range query: a stream's mean, variance, minimum and maximum
+// over the windows overlapping a time range, with a confidence interval
+// around the mean. Empty ranges have a count of zero and NaN everywhere else.
+public class AggregateResult
+{
+    protected final int     mStreamId;
+    protected final long    mFromTime;
+    protected final long    mToTime;
+    protected final int     mWindowCount;
+    protected final long    mCount;
+    protected final long    mRealCount;
+    protected final double  mMean;
+    protected final double  mVariance;
+    protected final double  mMin;
+    protected final double  mMax;
+    protected final double  mLowerBound;
+    protected final double  mUpperBound;
+
+    public AggregateResult(int streamId, long fromTime, long toTime, int windowCount,
+                           long count, long realCount, double mean, double variance, double min, double max,
+                           double lowerBound, double upperBound)
+    {
+        mStreamId = streamId;
+        mFromTime = fromTime;
+        mToTime = toTime;
+        mWindowCount = windowCount;
+        mCount = count;
+        mRealCount = realCount;
+        mMean = mean;
+        mVariance = variance;
+        mMin = min;
+        mMax = max;
+        mLowerBound = lowerBound;
+        mUpperBound = upperBound;
+    }
+
+    public int getStreamId()
+    {
+        return mStreamId;
+    }
+
+    public long getFromTime()
+    {
+        return mFromTime;
+    }
+
+    public long getToTime()
+    {
+        return mToTime;
+    }
+
+    // @returns the number of windows holding the stream in the range
+    public int getWindowCount()
+    {
+        return mWindowCount;
+    }
+
+    // @returns the number of (real and imputed) samples combined
+    public long getCount()
+    {
+        return mCount;
+    }
+
+    // @returns the number of real samples among them
+    public long getRealCount()
+    {
+        return mRealCount;
+    }
+
+    public double getMean()
+    {
+        return mMean;
+    }
+
+    public double getVariance()
+    {
+        return mVariance;
+    }
+
+    public double getMin()
+    {
+        return mMin;
+    }
+
+    public double getMax()
+    {
+        return mMax;
+    }
+
+    public double getLowerBound()
+    {
+        return mLowerBound;
+    }
+
+    public double getUpperBound()
+    {
+        return mUpperBound;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("stream %d, times [%d, %d]: n=%d (%d real) mean=%.6f [%.6f, %.6f] var=%.6f " +
+                             "min=%.6f max=%.6f",
+                             mStreamId, mFromTime, mToTime, mCount, mRealCount, mMean, mLowerBound,
+                             mUpperBound, mVariance, mMin, mMax);
+    }
+}
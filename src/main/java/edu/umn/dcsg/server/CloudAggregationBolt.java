@@ -1,6 +1,9 @@
 package edu.umn.dcsg.server;
 
-import edu.umn.dcsg.common.GenericPayload;
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.BinaryPayloadSerializer;
+import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.SampleFrame;
 import edu.umn.dcsg.common.StreamTuple;
 
 import org.apache.storm.task.OutputCollector;
@@ -17,22 +20,48 @@ public class CloudAggregationBolt extends AbstractCloud implements IRichBolt
 {
     protected OutputCollector mCollector;
 
+    // Whether the edges reach this bolt through a PredictorAwareGrouping
+    protected boolean mPredictorAwareGrouping;
+
     public CloudAggregationBolt()
+    {
+        this(false);
+    }
+
+    public CloudAggregationBolt(boolean predictorAwareGrouping)
     {
         super();
+        mPredictorAwareGrouping = predictorAwareGrouping;
     }
 
     @Override
     public void prepare(Map conf, TopologyContext context, OutputCollector collector)
     {
         this.mCollector = collector;
+        pOpenSegmentStore();
+
+        // The same tasks, in the same order, the grouping was prepared with
+        if(mPredictorAwareGrouping)
+        {
+            PredictorAwareGrouping grouping = new PredictorAwareGrouping();
+            grouping.prepare(null, null, context.getComponentTasks(context.getThisComponentId()));
+            setGrouping(grouping);
+        }
     }
  
     @Override
     public void execute(Tuple tuple)
     {
-        GenericPayload payload = new GenericPayload(tuple);
-        pHandleTuple(payload);
+        if(tuple.size() == 1 && tuple.getValue(0) instanceof SampleFrame)
+        {
+            pHandleFrame((SampleFrame)tuple.getValue(0));
+        }
+        else
+        {
+            // Windows are tracked per sending edge task
+            BinaryPayload payload = BinaryPayload.fromTuple(tuple);
+            pHandleTuple(tuple.getSourceTask(), payload);
+        }
 
         mCollector.ack(tuple);
     }
@@ -40,6 +69,7 @@ public class CloudAggregationBolt extends AbstractCloud implements IRichBolt
     @Override
     public void cleanup()
     {
+        pCloseSegmentStore();
     }
  
     @Override
@@ -47,13 +77,22 @@ public class CloudAggregationBolt extends AbstractCloud implements IRichBolt
        declarer.declare(new Fields());
     }
      
+    // Kryo registrations for the payloads and frames this bolt receives
     @Override
     public Map<String, Object> getComponentConfiguration() {
-       return null;
+       org.apache.storm.Config conf = new org.apache.storm.Config();
+       BinaryPayloadSerializer.register(conf);
+       return conf;
     }
 
-    protected void pAnalyzeSamples(List<StreamTuple> trueAggregates)
+    protected void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates)
     {
-        // no-op
+        // Only a persisted window needs its predictions
+        if(mSegmentStore == null) return;
+
+        for(Map.Entry<Integer, ModelInfo> entry : window.mModelsMap.entrySet())
+        {
+            pGenerateSamplesForModel(window, entry.getKey(), entry.getValue());
+        }
     }
 }
\ No newline at end of file
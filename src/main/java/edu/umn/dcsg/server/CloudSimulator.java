@@ -1,24 +1,39 @@
 package edu.umn.dcsg.server;
 
+import edu.umn.dcsg.client.StreamColumns;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.BinaryPayloadSerializer;
 import edu.umn.dcsg.common.Config;
-import edu.umn.dcsg.common.GenericPayload;
+import edu.umn.dcsg.common.GorillaCodec;
 import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.SampleFrame;
 import edu.umn.dcsg.common.SimulationHandler;
 import edu.umn.dcsg.common.StreamTuple;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
 public class CloudSimulator extends AbstractCloud implements SimulationHandler
 {
+    // Shared by the windows of every edge; its methods are synchronized
     SimulationResults   mResults;
 
+    // Simulation only: each open window's samples before quantization,
+    // by edge and window (see pGetWindowKey())
+    protected ConcurrentMap<String, SampleFrame> mExactSamples;
+
     public CloudSimulator()
     {
         super();
         mResults = new SimulationResults();
+        mExactSamples = new ConcurrentHashMap<String, SampleFrame>();
+        pOpenSegmentStore();
     }
 
     public SimulationResults getResults()
@@ -26,30 +41,68 @@ public class CloudSimulator extends AbstractCloud implements SimulationHandler
         return mResults;
     }
 
-    public void handleEvent(final GenericPayload payload)
+    // Wire bytes are recorded as the registered Kryo serializers write each
+    // message: BinaryPayloadSerializer for single payloads and
+    // SampleFrameSerializer for frames, compressed or not.
+    public void handleEvent(final BinaryPayload payload)
     {
+        mResults.recordWireBytes(BinaryPayloadSerializer.getSerializedSize(payload));
         pHandleTuple(payload);
     }
 
-    protected void pAnalyzeSamples(List<StreamTuple> trueAggregates)
+    public void handleEvent(final int edgeId, final BinaryPayload payload)
+    {
+        mResults.recordWireBytes(BinaryPayloadSerializer.getSerializedSize(payload));
+        pHandleTuple(edgeId, payload);
+    }
+
+    public void handleFrame(final SampleFrame frame)
+    {
+        mResults.recordWireBytes(BinaryPayloadSerializer.getSerializedSize(frame));
+        pHandleFrame(frame);
+    }
+
+    public void handleExactSamples(final SampleFrame exactSamples)
+    {
+        mExactSamples.put(pGetWindowKey(exactSamples.getEdgeId(), exactSamples.getWindowId()),
+                          exactSamples);
+    }
+
+    // The serializer compresses the frame again, to the same bytes
+    public void handleEncodedFrame(final byte[] encoded)
+    {
+        final SampleFrame frame = GorillaCodec.decode(encoded);
+        mResults.recordWireBytes(BinaryPayloadSerializer.getSerializedSize(frame));
+        pHandleFrame(frame);
+    }
+
+    protected void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates)
     {
         int samplesGenerated = 0;
         int numModels = 0;
 
         final int winDuration = Config.getTrace().mWindowDuration;
 
-        for(Map.Entry<Integer, ModelInfo> entry : mModelsMap.entrySet())
+        // Before any predictions join the streaming aggregates
+        final SampleFrame exactSamples = mExactSamples.remove(pGetWindowKey(window.getEdgeId(),
+                                                                            window.getWindowId()));
+        if(exactSamples != null)
+        {
+            pMeasureQuantization(window, exactSamples);
+        }
+
+        for(Map.Entry<Integer, ModelInfo> entry : window.mModelsMap.entrySet())
         {
-            final int sCnt = pGenerateSamplesForModel(entry.getKey(), entry.getValue());
+            final int sCnt = pGenerateSamplesForModel(window, entry.getKey(), entry.getValue());
             samplesGenerated += sCnt;
             if(sCnt > 0) numModels++;
         }
 
-        mResults.recordSampleCounts((int)mAllStats.getN(), samplesGenerated, numModels);
+        mResults.recordSampleCounts((int)window.mAllStats.getN(), samplesGenerated, numModels);
 
         Double totalSamples = 0.0;
 
-        List<Integer> streamIds = pGetSortedKeys();
+        List<Integer> streamIds = window.getSortedStreamIds();
         final int streamCount = streamIds.size();
 
         if(streamCount == 0) return;
@@ -65,16 +118,33 @@ public class CloudSimulator extends AbstractCloud implements SimulationHandler
         {
             groupMeans[i] = sampleCount[i] = 0.0;
             vars[i] = 0.0;
-            mins[i] = Double.MAX_VALUE;
-            maxes[i] = Double.MIN_VALUE;
+            mins[i] = Double.POSITIVE_INFINITY;
+            maxes[i] = Double.NEGATIVE_INFINITY;
         }
 
         int streamIdx = 0;
         for(Integer streamId : streamIds)
         {
+            if(Config.USE_STREAMING_AGGREGATION)
+            {
+                final StreamAccumulator accumulator = window.mAccumulators.get(streamId);
+                mins[streamIdx] = accumulator.getMin();
+                maxes[streamIdx] = accumulator.getMax();
+                sampleCount[streamIdx] = accumulator.getN();
+                groupMeans[streamIdx] = accumulator.getSum() / sampleCount[streamIdx];
+                vars[streamIdx] = accumulator.getVariance();
+                totalSamples += sampleCount[streamIdx];
+
+                if(totalSamples == 1 || Double.isNaN(vars[streamIdx]))
+                    vars[streamIdx] = 0.0;
+
+                streamIdx++;
+                continue;
+            }
+
             SummaryStatistics sstats = new SummaryStatistics();
 
-            for(StreamTuple st : mAllSamplesMap.get(streamId))
+            for(StreamTuple st : window.mAllSamplesMap.get(streamId))
             {
                 Double value = st.mValue;
                 sstats.addValue(value);
@@ -85,9 +155,10 @@ public class CloudSimulator extends AbstractCloud implements SimulationHandler
                 totalSamples += 1;
             }
 
-            for(StreamTuple st : mSimSamplesMap.get(streamId))
+            final StreamColumns simSamples = window.mSimSamplesMap.get(streamId);
+            for(int i=0; i < simSamples.size(); i++)
             {
-                Double value = st.mValue;
+                final double value = simSamples.getValue(i);
                 sstats.addValue(value);
                 mins[streamIdx] = Math.min(mins[streamIdx], value);
                 maxes[streamIdx] = Math.max(maxes[streamIdx], value);
@@ -105,7 +176,8 @@ public class CloudSimulator extends AbstractCloud implements SimulationHandler
             streamIdx++;
         }
 
-        for(int i = 0; i < streamCount; i++)
+        // A window finalized without its trailer has no exact aggregates
+        for(int i = 0; i < streamCount && 4*i + 3 < trueAggregates.size(); i++)
         {
             mResults.recordAvgWindowLoss(i, trueAggregates.get(4*i + 0).mValue, groupMeans[i]);
             mResults.recordVarWindowLoss(i, trueAggregates.get(4*i + 1).mValue, vars[i]);
@@ -113,4 +185,56 @@ public class CloudSimulator extends AbstractCloud implements SimulationHandler
             mResults.recordMaxWindowLoss(i, trueAggregates.get(4*i + 3).mValue, maxes[i]);
         }
     }
-}
\ No newline at end of file
+
+    protected static String pGetWindowKey(final int edgeId, final long windowId)
+    {
+        return edgeId + "/" + windowId;
+    }
+
+    // Compares the mean of each stream's real samples as received with the
+    // mean of the same samples before quantization. Runs before predictions
+    // are generated, while the streaming aggregates hold real samples only.
+    protected void pMeasureQuantization(final WindowState window, final SampleFrame exactSamples)
+    {
+        Map<Integer, SummaryStatistics> exactStats = new HashMap<Integer, SummaryStatistics>();
+        for(int i=0; i < exactSamples.getSampleCount(); i++)
+        {
+            SummaryStatistics stats = exactStats.get(exactSamples.getStreamId(i));
+            if(stats == null)
+            {
+                stats = new SummaryStatistics();
+                exactStats.put(exactSamples.getStreamId(i), stats);
+            }
+            stats.addValue(exactSamples.getValue(i));
+        }
+
+        for(Map.Entry<Integer, SummaryStatistics> entry : exactStats.entrySet())
+        {
+            final double receivedMean = pGetReceivedMean(window, entry.getKey());
+            if(Double.isNaN(receivedMean)) continue;
+
+            mResults.recordQuantizationLoss(entry.getKey(), entry.getValue().getMean(), receivedMean);
+        }
+    }
+
+    // @returns the mean of a stream's real samples, or NaN if none arrived
+    protected double pGetReceivedMean(final WindowState window, final int streamId)
+    {
+        if(Config.USE_STREAMING_AGGREGATION)
+        {
+            final StreamAccumulator accumulator = window.mAccumulators.get(streamId);
+            if(accumulator == null || accumulator.getN() == 0) return Double.NaN;
+            return accumulator.getSum() / accumulator.getN();
+        }
+
+        final List<StreamTuple> received = window.mAllSamplesMap.get(streamId);
+        if(received == null || received.isEmpty()) return Double.NaN;
+
+        double sum = 0.0;
+        for(StreamTuple st : received)
+        {
+            sum += st.mValue;
+        }
+        return sum / received.size();
+    }
+}
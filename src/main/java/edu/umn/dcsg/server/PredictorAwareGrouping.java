@@ -0,0 +1,116 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.PredictorGraph;
+import edu.umn.dcsg.common.SampleFrame;
+
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.grouping.CustomStreamGrouping;
+import org.apache.storm.task.WorkerTopologyContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Spreads the cloud's work over several CloudAggregationBolt tasks while
+// keeping every imputation target on the task holding its predictor's
+// samples. Connect it between the edges and the cloud with
+//
+//     builder.setBolt("cloud", new CloudAggregationBolt(true), tasks)
+//            .customGrouping("edge", new PredictorAwareGrouping());
+//
+// Each header announces its window's predictor graph, which covers all of
+// the window's streams. The window's models and samples are routed by
+// predictor group, each group to one task (spread by edge and group), and
+// the header and trailer go to the tasks owning at least one group, so each
+// of those opens and closes its share of the window. The shares are merged
+// into one window before it is persisted (see WindowSegmentStore). A
+// SampleFrame already holds a whole window, so frames are routed whole,
+// spread by edge and window. Windows without a graph stay on one task.
+public class PredictorAwareGrouping implements CustomStreamGrouping
+{
+    private static final long serialVersionUID = 1L;
+
+    protected List<Integer>             mTargetTasks;
+    protected List<List<Integer>>       mSingleTasks;
+
+    // Predictor graph and owning tasks of each sending task's open window
+    protected transient Map<Integer, PredictorGraph> mGraphs;
+    protected transient Map<Integer, List<Integer>>  mOwners;
+
+    @Override
+    public void prepare(WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks)
+    {
+        mTargetTasks = Collections.unmodifiableList(new ArrayList<Integer>(targetTasks));
+        mSingleTasks = new ArrayList<List<Integer>>(targetTasks.size());
+        for(Integer task : targetTasks)
+        {
+            mSingleTasks.add(Collections.singletonList(task));
+        }
+        mGraphs = new ConcurrentHashMap<Integer, PredictorGraph>();
+        mOwners = new ConcurrentHashMap<Integer, List<Integer>>();
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values)
+    {
+        final Object value = (values.size() == 1) ? values.get(0) : null;
+
+        if(value instanceof SampleFrame)
+        {
+            return pTaskFor(taskId, Long.hashCode(((SampleFrame)value).getWindowId()));
+        }
+
+        if(!(value instanceof BinaryPayload))
+        {
+            return pTaskFor(taskId, 0);
+        }
+
+        final BinaryPayload payload = (BinaryPayload)value;
+        if(payload.isHeader())
+        {
+            final PredictorGraph graph = PredictorGraph.fromString(payload.getText());
+            final List<Integer> owners = getOwnerTasks(taskId, graph);
+            mGraphs.put(taskId, graph);
+            mOwners.put(taskId, owners);
+            return owners;
+        }
+        else if(payload.isTrailer())
+        {
+            mGraphs.remove(taskId);
+            final List<Integer> owners = mOwners.remove(taskId);
+            return (owners == null) ? pTaskFor(taskId, 0) : owners;
+        }
+
+        // Models and samples: the task of the stream's group. A stream the
+        // graph does not list still goes to a task holding the window.
+        final PredictorGraph graph = mGraphs.get(taskId);
+        final int streamId = payload.getStreamId();
+        if(graph == null) return pTaskFor(taskId, 0);
+        if(!graph.contains(streamId)) return Collections.singletonList(mOwners.get(taskId).get(0));
+        return pTaskFor(taskId, graph.getGroup(streamId));
+    }
+
+    // @returns the tasks a window's groups are routed to, in task order
+    public List<Integer> getOwnerTasks(int sourceTask, PredictorGraph graph)
+    {
+        Set<Integer> owners = new TreeSet<Integer>();
+        for(Integer group : graph.getGroups())
+        {
+            owners.add(pTaskFor(sourceTask, group).get(0));
+        }
+
+        if(owners.isEmpty()) return pTaskFor(sourceTask, 0);
+        return Collections.unmodifiableList(new ArrayList<Integer>(owners));
+    }
+
+    protected List<Integer> pTaskFor(int sourceTask, int key)
+    {
+        final int hash = 31 * sourceTask + key;
+        return mSingleTasks.get(Math.floorMod(hash, mSingleTasks.size()));
+    }
+}
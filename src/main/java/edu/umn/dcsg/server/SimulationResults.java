@@ -10,11 +10,16 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.descriptive.rank.Percentile;
 import org.apache.commons.math3.random.EmpiricalDistribution;
 
+// Losses, counts and wire bytes of a simulation. The cloud records the
+// windows of several edges concurrently, so every public method holds the
+// object's lock; each record call adds its actual and estimated values
+// together, keeping the two lists of a stream paired.
 public class SimulationResults
 {
     protected Integer                       mTotalRealSamples;
     protected Integer                       mTotalSimSamples;
     protected Integer                       mTotalModels;
+    protected long                          mTotalWireBytes;
 
     protected Map<Integer, List<Double>>    mStreamActual;
     protected Map<Integer, List<Double>>    mStreamEstimated;
@@ -28,6 +33,10 @@ public class SimulationResults
     protected Map<Integer, List<Double>>    mStreamActualMax;
     protected Map<Integer, List<Double>>    mStreamEstimatedMax;
 
+    // Means of the real samples before and after quantization
+    protected Map<Integer, List<Double>>    mStreamExactSampleMean;
+    protected Map<Integer, List<Double>>    mStreamQuantizedSampleMean;
+
     public SimulationResults()
     {
         mStreamActual = new HashMap<Integer, List<Double>>();
@@ -42,12 +51,16 @@ public class SimulationResults
         mStreamActualMax = new HashMap<Integer, List<Double>>();
         mStreamEstimatedMax = new HashMap<Integer, List<Double>>();
 
+        mStreamExactSampleMean = new HashMap<Integer, List<Double>>();
+        mStreamQuantizedSampleMean = new HashMap<Integer, List<Double>>();
+
         mTotalRealSamples = 0;
         mTotalSimSamples = 0;
         mTotalModels = 0;
+        mTotalWireBytes = 0;
     }
 
-    public void clear()
+    public synchronized void clear()
     {
         mStreamActual.clear();
         mStreamEstimated.clear();
@@ -61,25 +74,39 @@ public class SimulationResults
         mStreamActualMax.clear();
         mStreamEstimatedMax.clear();
 
+        mStreamExactSampleMean.clear();
+        mStreamQuantizedSampleMean.clear();
+
         mTotalRealSamples = 0;
         mTotalSimSamples = 0;
         mTotalModels = 0;
+        mTotalWireBytes = 0;
     }
 
-    public void print()
+    public synchronized void print()
     {
         System.out.println("SimResults:");
         System.out.println("  Real Samples:  " + mTotalRealSamples);
         System.out.println("  Sim Samples:   " + mTotalSimSamples);
         System.out.println("  Cost Incurred: " + getTotalCost());
+        System.out.println("  Wire Bytes:    " + mTotalWireBytes);
+        if(!mStreamExactSampleMean.isEmpty())
+        {
+            System.out.println("  Quant. Error:  " + getQUANTNormalizedRMSEAcrossAllStreams());
+        }
     }
 
-    public int getTotalCost()
+    public synchronized int getTotalCost()
     {
         return mTotalRealSamples + mTotalModels;
     }
 
-    public double getAVGNormalizedRMSEAcrossAllStreams()
+    public synchronized long getTotalWireBytes()
+    {
+        return mTotalWireBytes;
+    }
+
+    public synchronized double getAVGNormalizedRMSEAcrossAllStreams()
     {
         double err = 0.0;
         double numStreams = 0.0;
@@ -96,7 +123,7 @@ public class SimulationResults
         return err / numStreams;
     }
 
-    public double getVARNormalizedRMSEAcrossAllStreams()
+    public synchronized double getVARNormalizedRMSEAcrossAllStreams()
     {
         double err = 0.0;
         double numStreams = 0.0;
@@ -113,7 +140,7 @@ public class SimulationResults
         return err / numStreams;
     }
 
-    public double getMINNormalizedRMSEAcrossAllStreams()
+    public synchronized double getMINNormalizedRMSEAcrossAllStreams()
     {
         double err = 0.0;
         double numStreams = 0.0;
@@ -131,7 +158,7 @@ public class SimulationResults
         return err / numStreams;
     }
 
-    public double getMAXNormalizedRMSEAcrossAllStreams()
+    public synchronized double getMAXNormalizedRMSEAcrossAllStreams()
     {
         double err = 0.0;
         double numStreams = 0.0;
@@ -148,7 +175,33 @@ public class SimulationResults
         return err / numStreams;
     }
 
-    public void recordAvgWindowLoss(final Integer streamId,
+    // Extra error quantization added to the mean of the real samples,
+    // normalized like the other losses
+    public synchronized double getQUANTNormalizedRMSEAcrossAllStreams()
+    {
+        double err = 0.0;
+        double numStreams = 0.0;
+
+        for(Integer streamId : mStreamExactSampleMean.keySet())
+        {
+            final List<Double> exact = mStreamExactSampleMean.get(streamId);
+            final List<Double> quantized = mStreamQuantizedSampleMean.get(streamId);
+            err += pGetNormRMSE(exact, quantized);
+            numStreams += 1.0;
+        }
+
+        return (numStreams > 0.0) ? (err / numStreams) : 0.0;
+    }
+
+    public synchronized void recordQuantizationLoss(final Integer streamId,
+                                       final double exactMean,
+                                       final double quantizedMean)
+    {
+        pGetList(mStreamExactSampleMean, streamId).add(exactMean);
+        pGetList(mStreamQuantizedSampleMean, streamId).add(quantizedMean);
+    }
+
+    public synchronized void recordAvgWindowLoss(final Integer streamId,
                                     final double actualMean,
                                     final double estimatedMean)
     {
@@ -156,7 +209,7 @@ public class SimulationResults
         pGetStreamEstimatedList(streamId).add(estimatedMean);
     }
 
-    public void recordVarWindowLoss(final Integer streamId,
+    public synchronized void recordVarWindowLoss(final Integer streamId,
                                     final double actualStd,
                                     final double estimatedStd)
     {
@@ -164,7 +217,7 @@ public class SimulationResults
         pGetStreamEstimatedVarList(streamId).add(estimatedStd);
     }
 
-    public void recordMinWindowLoss(final Integer streamId,
+    public synchronized void recordMinWindowLoss(final Integer streamId,
                                     final double actualMax,
                                     final double estimatedMax)
     {
@@ -172,7 +225,7 @@ public class SimulationResults
         pGetStreamEstimatedMinList(streamId).add(estimatedMax);
     }
 
-    public void recordMaxWindowLoss(final Integer streamId,
+    public synchronized void recordMaxWindowLoss(final Integer streamId,
                                     final double actualMax,
                                     final double estimatedMax)
     {
@@ -180,7 +233,7 @@ public class SimulationResults
         pGetStreamEstimatedMaxList(streamId).add(estimatedMax);
     }
 
-    public void recordSampleCounts(final Integer real, final Integer sim,
+    public synchronized void recordSampleCounts(final Integer real, final Integer sim,
                                    final Integer numModels)
     {
         mTotalRealSamples += real;
@@ -188,6 +241,11 @@ public class SimulationResults
         mTotalModels += numModels;
     }
 
+    public synchronized void recordWireBytes(final long bytes)
+    {
+        mTotalWireBytes += bytes;
+    }
+
     protected List<Double> pGetStreamActualList(final Integer streamId)
     {
         List<Double> actualList = mStreamActual.get(streamId);
@@ -284,6 +342,18 @@ public class SimulationResults
         return estList;
     }
 
+    protected List<Double> pGetList(final Map<Integer, List<Double>> map, final Integer streamId)
+    {
+        List<Double> list = map.get(streamId);
+        if(list == null)
+        {
+            list = new ArrayList<Double>();
+            map.put(streamId, list);
+        }
+
+        return list;
+    }
+
     protected double[] pListToDoubleArray(final List<Double> listParm)
     {
         double[] arr = new double[listParm.size()];
@@ -0,0 +1,109 @@
+package edu.umn.dcsg.server;
+
+// Running aggregates of one stream's samples (real and simulated) within a
+// window, so the cloud does not have to keep every sample to summarize it.
+//
+// The variance follows the same update as commons-math's SecondMoment, and
+// the sum is accumulated in arrival order, so the results match a
+// SummaryStatistics (and a plain running sum) fed the same values. Min and
+// max start from the infinities, so any value (negative ones included)
+// replaces them, and read as NaN until a value arrives.
+//
+// Accumulators also merge from the moments of another set of values (e.g. a
+// persisted window), using the pairwise update of Chan et al.
+public class StreamAccumulator
+{
+    protected long      mN;
+    protected double    mSum;
+    protected double    mM1;
+    protected double    mM2;
+    protected double    mMin;
+    protected double    mMax;
+
+    public StreamAccumulator()
+    {
+        mN = 0;
+        mSum = 0.0;
+        mM1 = 0.0;
+        mM2 = 0.0;
+        mMin = Double.POSITIVE_INFINITY;
+        mMax = Double.NEGATIVE_INFINITY;
+    }
+
+    public void add(final double value)
+    {
+        mN++;
+        final double dev = value - mM1;
+        final double nDev = dev / (double)mN;
+        mM1 += nDev;
+        mM2 += ((double)mN - 1.0) * dev * nDev;
+
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public void addAll(final double[] values, final int count)
+    {
+        for(int i=0; i < count; i++)
+        {
+            add(values[i]);
+        }
+    }
+
+    // Adds a set of values known only by its count, mean, sample variance
+    // and range
+    public void merge(final long n, final double mean, final double variance,
+                      final double min, final double max)
+    {
+        if(n <= 0) return;
+
+        final double m2 = (n > 1) ? variance * ((double)n - 1.0) : 0.0;
+        final double total = (double)mN + (double)n;
+        final double dev = mean - mM1;
+
+        mM1 += dev * ((double)n / total);
+        mM2 += m2 + dev * dev * ((double)mN * (double)n / total);
+        mN += n;
+
+        mSum += mean * (double)n;
+        mMin = Math.min(mMin, min);
+        mMax = Math.max(mMax, max);
+    }
+
+    public long getN()
+    {
+        return mN;
+    }
+
+    public double getSum()
+    {
+        return mSum;
+    }
+
+    // @returns NaN without samples
+    public double getMean()
+    {
+        return (mN == 0) ? Double.NaN : mSum / (double)mN;
+    }
+
+    // @returns NaN without samples, like SummaryStatistics
+    public double getVariance()
+    {
+        if(mN == 0) return Double.NaN;
+        if(mN == 1) return 0.0;
+        return mM2 / ((double)mN - 1.0);
+    }
+
+    // @returns NaN without samples, like SummaryStatistics
+    public double getMin()
+    {
+        return (mN == 0) ? Double.NaN : mMin;
+    }
+
+    // @returns NaN without samples, like SummaryStatistics
+    public double getMax()
+    {
+        return (mN == 0) ? Double.NaN : mMax;
+    }
+}
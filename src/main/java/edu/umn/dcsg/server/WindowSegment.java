@@ -0,0 +1,158 @@
+package edu.umn.dcsg.server;
+
+import java.nio.ByteBuffer;
+
+// Read-only view of one window as WindowSegmentStore lays it out on disk,
+// over a slice of the memory-mapped segment file. Every getter is an
+// absolute read into its column, so scanning one column only touches the
+// pages that hold it. Layout (big-endian):
+//
+//     int    magic
+//     int    edge id
+//     long   window id
+//     int    stream count (S)
+//     int    real sample count (R)
+//     int    sample count (N, real then imputed)
+//     int[S]    stream ids       long[S]   counts
+//     long[S]   real counts      double[S] means
+//     double[S] variances        double[S] minimums
+//     double[S] maximums
+//     int[N]    sample streams   long[N]   sample times
+//     double[N] sample values
+public class WindowSegment
+{
+    protected static final int  MAGIC = 0x57534732;
+    protected static final int  STREAM_BYTES = 52;
+    protected static final int  HEADER_SIZE = 28;
+
+    protected final ByteBuffer  mBuffer;
+    protected final int         mStreamCount;
+    protected final int         mSampleCount;
+
+    public WindowSegment(final ByteBuffer buffer)
+    {
+        mBuffer = buffer;
+        if(mBuffer.getInt(0) != MAGIC)
+        {
+            throw new IllegalStateException("Not a window segment");
+        }
+        mStreamCount = mBuffer.getInt(16);
+        mSampleCount = mBuffer.getInt(24);
+    }
+
+    // @returns the bytes a window with these counts takes
+    public static int getSize(final int streamCount, final int sampleCount)
+    {
+        return HEADER_SIZE + STREAM_BYTES * streamCount + 20 * sampleCount;
+    }
+
+    public int getEdgeId()
+    {
+        return mBuffer.getInt(4);
+    }
+
+    public long getWindowId()
+    {
+        return mBuffer.getLong(8);
+    }
+
+    public int getStreamCount()
+    {
+        return mStreamCount;
+    }
+
+    public int getRealSampleCount()
+    {
+        return mBuffer.getInt(20);
+    }
+
+    public int getSampleCount()
+    {
+        return mSampleCount;
+    }
+
+    public int getStreamId(final int idx)
+    {
+        return mBuffer.getInt(HEADER_SIZE + 4 * idx);
+    }
+
+    // @returns the stream's index in the aggregate columns, or -1
+    public int indexOf(final int streamId)
+    {
+        // Stream ids are written in ascending order
+        int lo = 0;
+        int hi = mStreamCount - 1;
+        while(lo <= hi)
+        {
+            final int mid = (lo + hi) >>> 1;
+            final int candidate = getStreamId(mid);
+            if(candidate < streamId) lo = mid + 1;
+            else if(candidate > streamId) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    public long getCount(final int idx)
+    {
+        return mBuffer.getLong(pStreamColumn(4) + 8 * idx);
+    }
+
+    // @returns how many of the stream's values are real samples
+    public long getRealCount(final int idx)
+    {
+        return mBuffer.getLong(pStreamColumn(12) + 8 * idx);
+    }
+
+    public double getMean(final int idx)
+    {
+        return mBuffer.getDouble(pStreamColumn(20) + 8 * idx);
+    }
+
+    public double getVariance(final int idx)
+    {
+        return mBuffer.getDouble(pStreamColumn(28) + 8 * idx);
+    }
+
+    public double getMin(final int idx)
+    {
+        return mBuffer.getDouble(pStreamColumn(36) + 8 * idx);
+    }
+
+    public double getMax(final int idx)
+    {
+        return mBuffer.getDouble(pStreamColumn(44) + 8 * idx);
+    }
+
+    public int getSampleStreamId(final int idx)
+    {
+        return mBuffer.getInt(pSampleColumn(0) + 4 * idx);
+    }
+
+    public long getSampleTime(final int idx)
+    {
+        return mBuffer.getLong(pSampleColumn(4) + 8 * idx);
+    }
+
+    public double getSampleValue(final int idx)
+    {
+        return mBuffer.getDouble(pSampleColumn(12) + 8 * idx);
+    }
+
+    public boolean isImputed(final int idx)
+    {
+        return idx >= getRealSampleCount();
+    }
+
+    // @param precedingBytes bytes per stream of the columns before this one
+    protected int pStreamColumn(final int precedingBytes)
+    {
+        return HEADER_SIZE + precedingBytes * mStreamCount;
+    }
+
+    // @param precedingBytes bytes per sample of the columns before this one
+    protected int pSampleColumn(final int precedingBytes)
+    {
+        return HEADER_SIZE + STREAM_BYTES * mStreamCount + precedingBytes * mSampleCount;
+    }
+}
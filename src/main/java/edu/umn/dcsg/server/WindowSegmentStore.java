@@ -0,0 +1,618 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.SampleFrame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+// Append-only store of finalized windows, so their aggregates (and, if
+// kept, reconstructed samples) outlive the cloud's in-memory state.
+//
+// Each window is written once, as one columnar block (see WindowSegment),
+// to the end of the current segment file; segments roll over at a size
+// limit. A small fixed-size entry per window (segment, offset, length,
+// edge and window ids, stream range and the time range of its real samples,
+// whether or not they are stored) is appended to the
+// index file after its block, so a reopened store trusts only blocks the
+// index covers and drops any partial tail. Reads map the segment files and
+// hand out WindowSegment views without copying, so a scan runs at the
+// speed of the page cache or the disk.
+//
+// A window spread over several cloud tasks arrives in parts, one per task.
+// The parts are held back and merged, and the window is written once all of
+// them are in. The tasks of one process share a store through open().
+// A store holds an exclusive lock on its index file while open, so a second
+// store on the same directory (in this or another process) fails to open
+// rather than interleave its appends.
+public class WindowSegmentStore implements Closeable
+{
+    public static final int             ANY_STREAM = Integer.MIN_VALUE;
+
+    protected static final String       INDEX_FILE = "index.dat";
+    protected static final String       SEGMENT_FORMAT = "segment-%06d.dat";
+    protected static final int          INDEX_ENTRY_SIZE = 52;
+
+    // Where one window lives and what it covers
+    public static class IndexEntry
+    {
+        public final int    mSegment;
+        public final long   mOffset;
+        public final int    mLength;
+        public final int    mEdgeId;
+        public final long   mWindowId;
+        public final int    mMinStream;
+        public final int    mMaxStream;
+        public final long   mMinTime;
+        public final long   mMaxTime;
+
+        public IndexEntry(int segment, long offset, int length, int edgeId, long windowId,
+                          int minStream, int maxStream, long minTime, long maxTime)
+        {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+            mEdgeId = edgeId;
+            mWindowId = windowId;
+            mMinStream = minStream;
+            mMaxStream = maxStream;
+            mMinTime = minTime;
+            mMaxTime = maxTime;
+        }
+
+        protected boolean pMayContain(int streamId)
+        {
+            return streamId == ANY_STREAM || (mMinStream <= streamId && streamId <= mMaxStream);
+        }
+    }
+
+    // The parts of a window that have arrived so far
+    protected static class WindowParts
+    {
+        protected final List<Map<Integer, StreamAccumulator>> mAggregates;
+        protected final List<Map<Integer, Long>> mRealCounts;
+        protected final List<SampleFrame>   mSamples;
+        protected final List<Integer>       mRealSampleCounts;
+        protected long                      mMinTime;
+        protected long                      mMaxTime;
+
+        protected WindowParts()
+        {
+            mAggregates = new ArrayList<Map<Integer, StreamAccumulator>>();
+            mRealCounts = new ArrayList<Map<Integer, Long>>();
+            mSamples = new ArrayList<SampleFrame>();
+            mRealSampleCounts = new ArrayList<Integer>();
+            mMinTime = Long.MAX_VALUE;
+            mMaxTime = Long.MIN_VALUE;
+        }
+
+        protected void add(final Map<Integer, StreamAccumulator> aggregates, final Map<Integer, Long> realCounts,
+                           final SampleFrame samples, final int realSampleCount,
+                           final long minTime, final long maxTime)
+        {
+            mAggregates.add(aggregates);
+            mRealCounts.add(realCounts);
+            mSamples.add(samples);
+            mRealSampleCounts.add(realSampleCount);
+            mMinTime = Math.min(mMinTime, minTime);
+            mMaxTime = Math.max(mMaxTime, maxTime);
+        }
+
+        protected int size()
+        {
+            return mAggregates.size();
+        }
+
+        // A stream is normally in one part only, but merges if not
+        protected Map<Integer, StreamAccumulator> pMergeAggregates()
+        {
+            Map<Integer, StreamAccumulator> merged = new HashMap<Integer, StreamAccumulator>();
+            for(Map<Integer, StreamAccumulator> aggregates : mAggregates)
+            {
+                for(Map.Entry<Integer, StreamAccumulator> entry : aggregates.entrySet())
+                {
+                    final StreamAccumulator part = entry.getValue();
+                    if(part.getN() == 0) continue;
+
+                    StreamAccumulator accumulator = merged.get(entry.getKey());
+                    if(accumulator == null)
+                    {
+                        accumulator = new StreamAccumulator();
+                        merged.put(entry.getKey(), accumulator);
+                    }
+                    accumulator.merge(part.getN(), part.getMean(), part.getVariance(),
+                                      part.getMin(), part.getMax());
+                }
+            }
+            return merged;
+        }
+
+        protected Map<Integer, Long> pMergeRealCounts()
+        {
+            Map<Integer, Long> merged = new HashMap<Integer, Long>();
+            for(int p=0; p < size(); p++)
+            {
+                for(Map.Entry<Integer, StreamAccumulator> entry : mAggregates.get(p).entrySet())
+                {
+                    merged.merge(entry.getKey(), pGetRealCount(mRealCounts.get(p), entry.getKey(), entry.getValue()),
+                                 Long::sum);
+                }
+            }
+            return merged;
+        }
+
+        // Every part's real samples, then every part's predictions, or null
+        // if no part kept its samples
+        protected SampleFrame pMergeSamples()
+        {
+            SampleFrame merged = null;
+            for(int pass=0; pass < 2; pass++)
+            {
+                for(int p=0; p < size(); p++)
+                {
+                    final SampleFrame samples = mSamples.get(p);
+                    if(samples == null) continue;
+                    if(merged == null) merged = new SampleFrame();
+
+                    final int realCount = Math.min(mRealSampleCounts.get(p), samples.getSampleCount());
+                    final int from = (pass == 0) ? 0 : realCount;
+                    final int to = (pass == 0) ? realCount : samples.getSampleCount();
+                    for(int i=from; i < to; i++)
+                    {
+                        merged.addSample(samples.getStreamId(i), samples.getValue(i), samples.getTime(i));
+                    }
+                }
+            }
+            return merged;
+        }
+
+        protected int pRealSampleCount()
+        {
+            int total = 0;
+            for(int p=0; p < size(); p++)
+            {
+                final SampleFrame samples = mSamples.get(p);
+                total += (samples == null) ? mRealSampleCounts.get(p)
+                                           : Math.min(mRealSampleCounts.get(p), samples.getSampleCount());
+            }
+            return total;
+        }
+    }
+
+    public interface Visitor
+    {
+        void visit(WindowSegment segment);
+    }
+
+    // Told about every window appended, after it is readable
+    public interface AppendListener
+    {
+        void appended(IndexEntry entry);
+    }
+
+    protected final File                mDirectory;
+    protected final long                mMaxSegmentBytes;
+
+    protected List<IndexEntry>          mIndex;
+    protected FileChannel               mIndexChannel;
+    protected FileLock                  mIndexLock;
+    protected FileChannel               mSegmentChannel;
+    protected int                       mSegment;
+    protected long                      mSegmentSize;
+
+    // Read-only mappings of the segments, remapped as the last one grows
+    protected Map<Integer, MappedByteBuffer> mMappings;
+
+    protected List<AppendListener>      mListeners;
+
+    // Windows still missing parts, by edge and window id
+    protected Map<String, WindowParts>  mPendingParts;
+
+    // Stores handed out by open(), by directory, and how many holders each
+    // store has (zero for a store not opened through open())
+    protected static final Map<File, WindowSegmentStore> sShared = new HashMap<File, WindowSegmentStore>();
+    protected int                       mHolders;
+
+    // @returns the store of the directory shared within this process,
+    //          opening it on first use. Each caller closes it once.
+    public static WindowSegmentStore open(final File directory, final long maxSegmentBytes) throws IOException
+    {
+        synchronized(sShared)
+        {
+            final File key = directory.getCanonicalFile();
+            WindowSegmentStore store = sShared.get(key);
+            if(store == null)
+            {
+                store = new WindowSegmentStore(directory, maxSegmentBytes);
+                sShared.put(key, store);
+            }
+            store.mHolders++;
+            return store;
+        }
+    }
+
+    public WindowSegmentStore(final File directory, final long maxSegmentBytes) throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create segment store directory " + directory);
+        }
+
+        mDirectory = directory;
+        mMaxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+        mIndex = new ArrayList<IndexEntry>();
+        mMappings = new HashMap<Integer, MappedByteBuffer>();
+        mListeners = new CopyOnWriteArrayList<AppendListener>();
+        mPendingParts = new HashMap<String, WindowParts>();
+        mHolders = 0;
+
+        mIndexChannel = FileChannel.open(new File(directory, INDEX_FILE).toPath(),
+                                         StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                         StandardOpenOption.WRITE);
+        mIndexLock = pLockIndex();
+        pLoadIndex();
+
+        mSegment = 0;
+        mSegmentSize = 0;
+        if(!mIndex.isEmpty())
+        {
+            final IndexEntry last = mIndex.get(mIndex.size() - 1);
+            mSegment = last.mSegment;
+            mSegmentSize = last.mOffset + last.mLength;
+        }
+
+        mSegmentChannel = pOpenSegment(mSegment);
+        mSegmentChannel.truncate(mSegmentSize);
+    }
+
+    // Appends a window without predictions, spanning the times of its
+    // samples (if given)
+    public void append(final int edgeId, final long windowId, final Map<Integer, StreamAccumulator> aggregates,
+                       final SampleFrame samples, final int realSampleCount) throws IOException
+    {
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        final int sampleCount = (samples == null) ? 0 : samples.getSampleCount();
+        for(int i=0; i < sampleCount; i++)
+        {
+            minTime = Math.min(minTime, samples.getTime(i));
+            maxTime = Math.max(maxTime, samples.getTime(i));
+        }
+
+        append(edgeId, windowId, aggregates, null, samples, realSampleCount, minTime, maxTime);
+    }
+
+    // Appends one window. Streams without values are skipped.
+    //
+    // @param aggregates the window's aggregates (of real samples and
+    //        predictions) by stream id
+    // @param realCounts how many of each stream's values are real samples
+    //        (none for a stream it lacks), or null if all of them are
+    // @param samples the reconstructed samples, real ones first, or null
+    // @param realSampleCount how many of the samples are real
+    // @param minTime the time of the window's earliest real sample
+    // @param maxTime the time of the window's latest real sample
+    public synchronized void append(final int edgeId, final long windowId,
+                                    final Map<Integer, StreamAccumulator> aggregates,
+                                    final Map<Integer, Long> realCounts,
+                                    final SampleFrame samples, final int realSampleCount,
+                                    final long minTime, final long maxTime) throws IOException
+    {
+        int[] streamIds = new int[aggregates.size()];
+        int streamCount = 0;
+        for(Map.Entry<Integer, StreamAccumulator> entry : aggregates.entrySet())
+        {
+            if(entry.getValue().getN() > 0) streamIds[streamCount++] = entry.getKey();
+        }
+        streamIds = Arrays.copyOf(streamIds, streamCount);
+        Arrays.sort(streamIds);
+
+        final int sampleCount = (samples == null) ? 0 : samples.getSampleCount();
+        final int size = WindowSegment.getSize(streamCount, sampleCount);
+
+        if(mSegmentSize > 0 && mSegmentSize + size > mMaxSegmentBytes)
+        {
+            mSegmentChannel.force(false);
+            mSegmentChannel.close();
+            mSegment++;
+            mSegmentSize = 0;
+            mSegmentChannel = pOpenSegment(mSegment);
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(size);
+        block.putInt(WindowSegment.MAGIC);
+        block.putInt(edgeId);
+        block.putLong(windowId);
+        block.putInt(streamCount);
+        block.putInt(Math.min(realSampleCount, sampleCount));
+        block.putInt(sampleCount);
+
+        for(int i=0; i < streamCount; i++) block.putInt(streamIds[i]);
+        for(int i=0; i < streamCount; i++) block.putLong(aggregates.get(streamIds[i]).getN());
+        for(int i=0; i < streamCount; i++)
+        {
+            block.putLong(pGetRealCount(realCounts, streamIds[i], aggregates.get(streamIds[i])));
+        }
+        for(int i=0; i < streamCount; i++)
+        {
+            final StreamAccumulator accumulator = aggregates.get(streamIds[i]);
+            block.putDouble(accumulator.getSum() / accumulator.getN());
+        }
+        for(int i=0; i < streamCount; i++) block.putDouble(aggregates.get(streamIds[i]).getVariance());
+        for(int i=0; i < streamCount; i++) block.putDouble(aggregates.get(streamIds[i]).getMin());
+        for(int i=0; i < streamCount; i++) block.putDouble(aggregates.get(streamIds[i]).getMax());
+
+        for(int i=0; i < sampleCount; i++) block.putInt(samples.getStreamId(i));
+        for(int i=0; i < sampleCount; i++) block.putLong(samples.getTime(i));
+        for(int i=0; i < sampleCount; i++) block.putDouble(samples.getValue(i));
+
+        block.flip();
+        pWriteFully(mSegmentChannel, block, mSegmentSize);
+
+        final int minStream = (streamCount == 0) ? Integer.MAX_VALUE : streamIds[0];
+        final int maxStream = (streamCount == 0) ? Integer.MIN_VALUE : streamIds[streamCount - 1];
+        IndexEntry entry = new IndexEntry(mSegment, mSegmentSize, size, edgeId, windowId,
+                                          minStream, maxStream, minTime, maxTime);
+
+        // Only after the block, so the index never points past the data
+        ByteBuffer record = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        record.putInt(entry.mSegment).putLong(entry.mOffset).putInt(entry.mLength);
+        record.putInt(entry.mEdgeId).putLong(entry.mWindowId);
+        record.putInt(entry.mMinStream).putInt(entry.mMaxStream);
+        record.putLong(entry.mMinTime).putLong(entry.mMaxTime);
+        record.flip();
+        pWriteFully(mIndexChannel, record, (long)mIndex.size() * INDEX_ENTRY_SIZE);
+
+        mIndex.add(entry);
+        mSegmentSize += size;
+
+        for(AppendListener listener : mListeners)
+        {
+            listener.appended(entry);
+        }
+    }
+
+    // Appends one window once all its parts are in. The parts may hold
+    // different streams, or share some; their aggregates are merged and their
+    // samples concatenated, real ones first.
+    //
+    // @param partCount how many parts the window was spread over
+    public void appendPart(final int edgeId, final long windowId, final int partCount,
+                           final Map<Integer, StreamAccumulator> aggregates,
+                           final Map<Integer, Long> realCounts,
+                           final SampleFrame samples, final int realSampleCount,
+                           final long minTime, final long maxTime) throws IOException
+    {
+        final String key = edgeId + "/" + windowId;
+        WindowParts parts;
+
+        synchronized(this)
+        {
+            parts = mPendingParts.get(key);
+            if(parts == null)
+            {
+                parts = new WindowParts();
+                mPendingParts.put(key, parts);
+            }
+            parts.add(aggregates, realCounts, samples, realSampleCount, minTime, maxTime);
+            if(parts.size() < partCount) return;
+
+            mPendingParts.remove(key);
+            pAppendParts(edgeId, windowId, parts);
+        }
+    }
+
+    public synchronized int getPendingWindowCount()
+    {
+        return mPendingParts.size();
+    }
+
+    public void addAppendListener(final AppendListener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    // Visits, in append order, the windows with ids in [firstWindow,
+    // lastWindow] that hold the stream (or any, with ANY_STREAM)
+    public void scan(final long firstWindow, final long lastWindow, final int streamId,
+                     final Visitor visitor) throws IOException
+    {
+        pScan(entry -> entry.mWindowId >= firstWindow && entry.mWindowId <= lastWindow,
+              streamId, visitor);
+    }
+
+    // Visits, in append order, the windows whose real samples span times
+    // overlapping [fromTime, toTime] that hold the stream (or any, with
+    // ANY_STREAM)
+    public void scanByTime(final long fromTime, final long toTime, final int streamId,
+                           final Visitor visitor) throws IOException
+    {
+        pScan(entry -> entry.mMinTime <= toTime && entry.mMaxTime >= fromTime, streamId, visitor);
+    }
+
+    public synchronized List<IndexEntry> getIndex()
+    {
+        return new ArrayList<IndexEntry>(mIndex);
+    }
+
+    public synchronized int getWindowCount()
+    {
+        return mIndex.size();
+    }
+
+    // A shared store closes with its last holder, persisting the windows
+    // still missing parts with the parts that did arrive
+    @Override
+    public void close() throws IOException
+    {
+        synchronized(sShared)
+        {
+            if(mHolders > 1)
+            {
+                mHolders--;
+                return;
+            }
+            if(mHolders == 1)
+            {
+                sShared.values().remove(this);
+                mHolders = 0;
+            }
+        }
+
+        pClose();
+    }
+
+    protected synchronized void pClose() throws IOException
+    {
+        for(Map.Entry<String, WindowParts> entry : mPendingParts.entrySet())
+        {
+            final String[] ids = entry.getKey().split("/");
+            final WindowParts parts = entry.getValue();
+            System.err.println("WARNING: Window " + ids[1] + " of edge " + ids[0] +
+                               " is missing parts, persisting the " + parts.size() + " that arrived");
+            pAppendParts(Integer.parseInt(ids[0]), Long.parseLong(ids[1]), parts);
+        }
+        mPendingParts.clear();
+
+        mSegmentChannel.force(false);
+        mIndexChannel.force(false);
+        mSegmentChannel.close();
+        mIndexLock.release();
+        mIndexChannel.close();
+        mMappings.clear();
+    }
+
+    // @returns the exclusive lock on the index, closing the index if another
+    //          store (of any process) holds it
+    protected FileLock pLockIndex() throws IOException
+    {
+        FileLock lock = null;
+        try
+        {
+            lock = mIndexChannel.tryLock();
+        }
+        catch(OverlappingFileLockException e)
+        {
+            // Held by another store of this process
+        }
+
+        if(lock == null)
+        {
+            mIndexChannel.close();
+            throw new IOException("Segment store " + mDirectory + " is already open, use open() to share it");
+        }
+        return lock;
+    }
+
+    // Caller holds the store's lock
+    protected void pAppendParts(final int edgeId, final long windowId, final WindowParts parts) throws IOException
+    {
+        append(edgeId, windowId, parts.pMergeAggregates(), parts.pMergeRealCounts(), parts.pMergeSamples(),
+               parts.pRealSampleCount(), parts.mMinTime, parts.mMaxTime);
+    }
+
+    // @returns the stream's real count; without counts all values are real,
+    //          with counts a stream missing from them has none
+    protected static long pGetRealCount(final Map<Integer, Long> realCounts, final int streamId,
+                                        final StreamAccumulator aggregates)
+    {
+        if(realCounts == null) return aggregates.getN();
+        final Long count = realCounts.get(streamId);
+        return (count == null) ? 0 : count;
+    }
+
+    protected void pScan(final Predicate<IndexEntry> filter, final int streamId,
+                         final Visitor visitor) throws IOException
+    {
+        for(IndexEntry entry : getIndex())
+        {
+            if(!filter.test(entry) || !entry.pMayContain(streamId)) continue;
+
+            WindowSegment segment = new WindowSegment(pGetBlock(entry));
+            if(streamId != ANY_STREAM && segment.indexOf(streamId) < 0) continue;
+
+            visitor.visit(segment);
+        }
+    }
+
+    protected synchronized ByteBuffer pGetBlock(final IndexEntry entry) throws IOException
+    {
+        final long end = entry.mOffset + entry.mLength;
+
+        MappedByteBuffer mapping = mMappings.get(entry.mSegment);
+        if(mapping == null || mapping.capacity() < end)
+        {
+            try(FileChannel channel = FileChannel.open(pSegmentFile(entry.mSegment).toPath(),
+                                                       StandardOpenOption.READ))
+            {
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mMappings.put(entry.mSegment, mapping);
+        }
+
+        ByteBuffer block = mapping.duplicate();
+        block.position((int)entry.mOffset);
+        block.limit((int)end);
+        return block.slice();
+    }
+
+    protected void pLoadIndex() throws IOException
+    {
+        final long entryCount = mIndexChannel.size() / INDEX_ENTRY_SIZE;
+        ByteBuffer records = ByteBuffer.allocate((int)(entryCount * INDEX_ENTRY_SIZE));
+        while(records.hasRemaining())
+        {
+            if(mIndexChannel.read(records, records.position()) < 0) break;
+        }
+        records.flip();
+
+        for(long i=0; i < entryCount; i++)
+        {
+            IndexEntry entry = new IndexEntry(records.getInt(), records.getLong(), records.getInt(),
+                                              records.getInt(), records.getLong(),
+                                              records.getInt(), records.getInt(),
+                                              records.getLong(), records.getLong());
+
+            // Blocks must still be there in full
+            final File segment = pSegmentFile(entry.mSegment);
+            if(!segment.isFile() || segment.length() < entry.mOffset + entry.mLength) break;
+            mIndex.add(entry);
+        }
+
+        // Drop a torn or orphaned tail
+        mIndexChannel.truncate((long)mIndex.size() * INDEX_ENTRY_SIZE);
+    }
+
+    protected FileChannel pOpenSegment(final int segment) throws IOException
+    {
+        return FileChannel.open(pSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    protected File pSegmentFile(final int segment)
+    {
+        return new File(mDirectory, String.format(SEGMENT_FORMAT, segment));
+    }
+
+    protected static void pWriteFully(final FileChannel channel, final ByteBuffer buffer,
+                                      long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+    }
+}
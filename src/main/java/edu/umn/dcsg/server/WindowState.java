@@ -0,0 +1,279 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.client.StreamColumns;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.SampleFrame;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+// Everything the cloud gathers for one window of one edge: the models, the
+// real samples (or their streaming aggregates) and the predictions. The
+// cloud keeps one per open window, so windows of different edges can be
+// open, and finalized, independently of each other.
+//
+// A window is only touched by one thread at a time; callers synchronize
+// on the WindowState itself.
+public class WindowState
+{
+    protected final int                     mEdgeId;
+    protected final long                    mWindowId;
+
+    // How many cloud tasks hold a share of the window (see
+    // PredictorAwareGrouping)
+    protected int                           mPartCount;
+
+    protected Map<Integer, ModelInfo>       mModelsMap;
+    protected Map<Integer, List<StreamTuple>> mAllSamplesMap;
+    protected Map<Integer, StreamColumns>   mSimSamplesMap;
+    protected SummaryStatistics             mAllStats;
+
+    // Streaming aggregation: per-stream aggregates, and the streams whose
+    // raw samples are still needed to generate predictions. Models precede
+    // the samples of their window, so the latter is known in time.
+    protected Map<Integer, StreamAccumulator> mAccumulators;
+    protected Set<Integer>                  mRawStreams;
+
+    // Every real sample, then every prediction, for the segment store
+    // (null unless requested)
+    protected SampleFrame                   mReconstructed;
+
+    // For the segment store: the predictions made per stream, and the time
+    // range of the real samples
+    protected Map<Integer, Long>            mPredictionCounts;
+    protected long                          mMinTime;
+    protected long                          mMaxTime;
+
+    // Scratch columns for batch model evaluation
+    protected double[]                      mPredictorValues;
+    protected long[]                        mPredictorTimes;
+    protected double[]                      mPredictions;
+
+    public WindowState(final int edgeId, final long windowId)
+    {
+        mEdgeId = edgeId;
+        mWindowId = windowId;
+        mPartCount = 1;
+
+        mModelsMap = new HashMap<Integer, ModelInfo>();
+        mAllSamplesMap = new HashMap<Integer, List<StreamTuple>>();
+        mSimSamplesMap = new HashMap<Integer, StreamColumns>();
+        mAllStats = new SummaryStatistics();
+
+        mAccumulators = new HashMap<Integer, StreamAccumulator>();
+        mRawStreams = new HashSet<Integer>();
+        mReconstructed = null;
+
+        mPredictionCounts = new HashMap<Integer, Long>();
+        mMinTime = Long.MAX_VALUE;
+        mMaxTime = Long.MIN_VALUE;
+
+        mPredictorValues = new double[0];
+        mPredictorTimes = new long[0];
+        mPredictions = new double[0];
+    }
+
+    public int getEdgeId()
+    {
+        return mEdgeId;
+    }
+
+    public long getWindowId()
+    {
+        return mWindowId;
+    }
+
+    public int getPartCount()
+    {
+        return mPartCount;
+    }
+
+    public void setPartCount(final int partCount)
+    {
+        mPartCount = partCount;
+    }
+
+    // Keeps the window's samples and predictions, as they are added
+    public void keepReconstructedSamples()
+    {
+        mReconstructed = new SampleFrame();
+    }
+
+    // @returns the real samples followed by the predictions, or null
+    public SampleFrame getReconstructedSamples()
+    {
+        return mReconstructed;
+    }
+
+    public int getRealSampleCount()
+    {
+        return (int)mAllStats.getN();
+    }
+
+    // @returns how many of each stream's aggregated values are real samples
+    public Map<Integer, Long> getRealSampleCounts()
+    {
+        Map<Integer, Long> counts = new HashMap<Integer, Long>();
+        for(Integer streamId : getSortedStreamIds())
+        {
+            final long total = Config.USE_STREAMING_AGGREGATION ? mAccumulators.get(streamId).getN()
+                                                                : mAllSamplesMap.get(streamId).size() +
+                                                                  mSimSamplesMap.get(streamId).size();
+            final Long predicted = mPredictionCounts.get(streamId);
+            counts.put(streamId, total - ((predicted == null) ? 0 : predicted));
+        }
+        return counts;
+    }
+
+    // @returns the time of the earliest real sample, Long.MAX_VALUE if none
+    public long getMinTime()
+    {
+        return mMinTime;
+    }
+
+    // @returns the time of the latest real sample, Long.MIN_VALUE if none
+    public long getMaxTime()
+    {
+        return mMaxTime;
+    }
+
+    // @returns the aggregates of each stream's real samples and predictions
+    public Map<Integer, StreamAccumulator> getStreamAggregates()
+    {
+        if(Config.USE_STREAMING_AGGREGATION)
+        {
+            return mAccumulators;
+        }
+
+        Map<Integer, StreamAccumulator> aggregates = new HashMap<Integer, StreamAccumulator>();
+        for(Map.Entry<Integer, List<StreamTuple>> entry : mAllSamplesMap.entrySet())
+        {
+            StreamAccumulator accumulator = new StreamAccumulator();
+            for(StreamTuple st : entry.getValue())
+            {
+                accumulator.add(st.mValue);
+            }
+
+            final StreamColumns simSamples = mSimSamplesMap.get(entry.getKey());
+            for(int i=0; i < simSamples.size(); i++)
+            {
+                accumulator.add(simSamples.getValue(i));
+            }
+            aggregates.put(entry.getKey(), accumulator);
+        }
+        return aggregates;
+    }
+
+    public void addModel(final int targetStream, final ModelInfo model)
+    {
+        mModelsMap.put(targetStream, model);
+
+        if(Config.USE_STREAMING_AGGREGATION)
+        {
+            mRawStreams.add(model.getPredictorId());
+            if(Config.USE_THINNING)
+            {
+                // Thinning also needs the target's sample times
+                mRawStreams.add(targetStream);
+            }
+        }
+    }
+
+    // Samples is null for streams whose raw samples are not kept
+    public void addSample(final StreamAccumulator accumulator, final List<StreamTuple> samples,
+                          final int streamId, final double value, final long time, final String metadata)
+    {
+        if(accumulator != null)
+        {
+            accumulator.add(value);
+        }
+
+        if(samples != null)
+        {
+            samples.add(new StreamTuple(streamId, value, time, metadata));
+        }
+
+        if(mReconstructed != null)
+        {
+            mReconstructed.addSample(streamId, value, time);
+        }
+
+        mAllStats.addValue(value);
+        mMinTime = Math.min(mMinTime, time);
+        mMaxTime = Math.max(mMaxTime, time);
+    }
+
+    public void addPredictions(final int targetStream, final double[] values, final long[] times, final int count)
+    {
+        mPredictionCounts.merge(targetStream, (long)count, Long::sum);
+
+        if(mReconstructed != null)
+        {
+            for(int i=0; i < count; i++)
+            {
+                mReconstructed.addSample(targetStream, values[i], times[i]);
+            }
+        }
+
+        if(Config.USE_STREAMING_AGGREGATION)
+        {
+            mAccumulators.get(targetStream).addAll(values, count);
+        }
+        else
+        {
+            mSimSamplesMap.get(targetStream).addAll(values, times, count);
+        }
+    }
+
+    public List<Integer> getSortedStreamIds()
+    {
+        List<Integer> sortedKeys = new ArrayList<Integer>(Config.USE_STREAMING_AGGREGATION ?
+                                                          mAccumulators.keySet() :
+                                                          mAllSamplesMap.keySet());
+        Collections.sort(sortedKeys);
+        return sortedKeys;
+    }
+
+    public void initializeStreamIfNeeded(final int streamId)
+    {
+        if(Config.USE_STREAMING_AGGREGATION)
+        {
+            if(mAccumulators.get(streamId) == null)
+            {
+                mAccumulators.put(streamId, new StreamAccumulator());
+            }
+            if(mRawStreams.contains(streamId) && mAllSamplesMap.get(streamId) == null)
+            {
+                mAllSamplesMap.put(streamId, new ArrayList<StreamTuple>());
+            }
+            return;
+        }
+
+        if(mAllSamplesMap.get(streamId) == null)
+        {
+            mAllSamplesMap.put(streamId, new ArrayList<StreamTuple>());
+            mSimSamplesMap.put(streamId, new StreamColumns());
+        }
+    }
+
+    public void ensureScratchCapacity(final int count)
+    {
+        if(mPredictions.length < count)
+        {
+            final int capacity = Math.max(count, 2 * mPredictions.length);
+            mPredictorValues = new double[capacity];
+            mPredictorTimes = new long[capacity];
+            mPredictions = new double[capacity];
+        }
+    }
+}
@@ -26,6 +26,7 @@ VAR = []
 COSTS = []
 V_BOUND = []
 OBS = []
+CAPS = None
 EXP_COND_V = []
 NUM_STREAMS = 0
 DIM = 0
@@ -56,12 +57,18 @@ for line in sys.argv[1].split("\n"):
         V_BOUND = np.array(ast.literal_eval(line))
     elif lineNumber == 9:
         EXP_COND_V = np.array(ast.literal_eval(line))
+    elif lineNumber == 10:
+        CAPS = ast.literal_eval(line)
 
     lineNumber += 1
 
-if np.sum(np.array(OBS)) <= C_BOUND:
+# Real samples available per stream (all of OBS unless a reservoir is kept)
+if CAPS is None:
+    CAPS = OBS
+
+if np.sum(np.array(CAPS)) <= C_BOUND:
     np.set_printoptions(suppress=True)
-    print np.array2string(np.array(OBS + ([0] * len(OBS))), separator=', ')
+    print np.array2string(np.array(CAPS + ([0] * len(CAPS))), separator=', ')
     sys.exit(0)
 
 if C_BOUND <= NUM_STREAMS:
@@ -223,7 +230,7 @@ for i in range(NUM_STREAMS):
 #
 bnds = []
 for i in range(NUM_STREAMS):
-    bnds.append((0, OBS[i]))
+    bnds.append((0, CAPS[i]))
 for i in range(NUM_STREAMS):
     bnds.append((0, OBS[PRED[i]]))
 
@@ -0,0 +1,216 @@
+#!/usr/bin/env python
+
+#
+# Long-lived version of opt.py. Solves one allocation problem per request
+# read from stdin and writes the solution to stdout, so the interpreter and
+# scipy are only loaded once per JVM.
+#
+# All values are big-endian, as written by java.io.DataOutputStream.
+#
+# On startup, once scipy is loaded:
+#   int      READY
+#
+# Request:
+#   int      NUM_STREAMS (a negative value shuts the worker down)
+#   double   C_BOUND
+#   long[]   OBS (stratum sizes)
+#   long[]   CAPS (real samples available, at most OBS)
+#   int[]    PRED
+#   double[] MI, COSTS, MEAN, VAR, V_BOUND, EXP_COND_V
+#   int      length of the warm start (0 or 2 * NUM_STREAMS)
+#   double[] warm start
+#
+# Response:
+#   int      length of the solution (-1 if the request failed)
+#   double[] solution
+#
+
+import sys
+import math
+import struct
+import random
+import warnings
+
+import numpy as np
+
+from scipy import optimize
+
+warnings.simplefilter("ignore")
+
+random.seed(0x12345678)
+
+READY = 0x52454459
+
+if hasattr(sys.stdin, "buffer"):
+    STDIN = sys.stdin.buffer
+    STDOUT = sys.stdout.buffer
+else:
+    STDIN = sys.stdin
+    STDOUT = sys.stdout
+
+
+def read_exact(size):
+    data = b""
+    while len(data) < size:
+        chunk = STDIN.read(size - len(data))
+        if not chunk:
+            raise EOFError()
+        data += chunk
+    return data
+
+
+def read_int():
+    return struct.unpack(">i", read_exact(4))[0]
+
+
+def read_double():
+    return struct.unpack(">d", read_exact(8))[0]
+
+
+def read_array(fmt, size, count):
+    if count == 0:
+        return []
+    return list(struct.unpack(">" + (fmt * count), read_exact(size * count)))
+
+
+def write_solution(values):
+    if values is None:
+        STDOUT.write(struct.pack(">i", -1))
+    else:
+        STDOUT.write(struct.pack(">i", len(values)))
+        STDOUT.write(struct.pack(">" + ("d" * len(values)), *values))
+    STDOUT.flush()
+
+
+def solve(NUM_STREAMS, C_BOUND, OBS, CAPS, PRED, COSTS, MEAN, VAR, V_BOUND, EXP_COND_V, WARM):
+    # Same problem as opt.py
+    DIM = NUM_STREAMS * 2
+
+    if np.sum(np.array(CAPS)) <= C_BOUND:
+        return [float(c) for c in CAPS] + ([0.0] * NUM_STREAMS)
+
+    if C_BOUND <= NUM_STREAMS:
+        return ([1.0] * NUM_STREAMS) + ([0.0] * NUM_STREAMS)
+
+    V_BOUND = np.array(V_BOUND)
+    EXP_COND_V = np.array(EXP_COND_V)
+    NP_VAR = np.array(VAR)
+
+    MI = np.ones(NUM_STREAMS)
+    W = np.ones(NUM_STREAMS) / (np.ones(NUM_STREAMS) + np.abs(np.array(MEAN)))
+    ERR = np.maximum(np.array([0.001] * NUM_STREAMS), W * NP_VAR)
+
+    def obj(x):
+        val = 0.0
+        for i in range(NUM_STREAMS):
+            val = val + (ERR[i] / (x[i] + (MI[i] * x[i + NUM_STREAMS])))
+        return val
+
+    def jacobian(x):
+        jac = np.zeros(DIM)
+        for i in range(NUM_STREAMS):
+            denom = (x[i] + x[i + NUM_STREAMS]) ** 2
+            jac[i] = -ERR[i] / denom
+            jac[i + NUM_STREAMS] = -ERR[i] / denom
+        return jac
+
+    def c3(x):
+        cost = 0.0
+        for i in range(NUM_STREAMS):
+            if x[i + NUM_STREAMS] > 0.5:
+                cost += 1.0
+        cost += np.matmul(x, np.hstack((COSTS, np.zeros(NUM_STREAMS))))
+        return C_BOUND - cost
+
+    cons = [{"type": "eq", "fun": c3}]
+
+    A4 = np.zeros((NUM_STREAMS, DIM), dtype=float)
+    for i in range(NUM_STREAMS):
+        A4[i][PRED[i]] = 1.0
+        A4[i][NUM_STREAMS + i] = -1.01
+    cons.append({"type": "ineq", "fun": lambda x: np.matmul(A4, x)})
+
+    A7 = np.hstack((np.identity(NUM_STREAMS, dtype=float),
+                    np.identity(NUM_STREAMS, dtype=float)))
+    b7 = np.ones(NUM_STREAMS) + 0.01
+    cons.append({"type": "ineq", "fun": lambda x: np.matmul(A7, x) - b7})
+
+    vs = NP_VAR - EXP_COND_V
+    n_one = np.ones(NUM_STREAMS) * -1.0
+    offs = 0.5 * np.hstack((np.zeros(NUM_STREAMS), np.ones(NUM_STREAMS)))
+    A5 = np.zeros((NUM_STREAMS, DIM))
+    for i in range(NUM_STREAMS):
+        A5[i][i] = -V_BOUND[i]
+        A5[i][NUM_STREAMS + i] = (VAR[i] - vs[i] - V_BOUND[i])
+    cons.append({"type": "ineq", "fun": lambda x: n_one * np.matmul(A5, x + offs)})
+
+    bnds = []
+    for i in range(NUM_STREAMS):
+        bnds.append((0, CAPS[i]))
+    for i in range(NUM_STREAMS):
+        bnds.append((0, OBS[PRED[i]]))
+
+    if len(WARM) == DIM:
+        # Previous window's solution, pulled back inside the bounds
+        start = np.array([min(max(WARM[i], bnds[i][0]), bnds[i][1]) for i in range(DIM)])
+    else:
+        total = float(sum(OBS))
+        prop = np.array([o / total for o in OBS])
+        start = np.hstack((np.ones(NUM_STREAMS) + prop * (C_BOUND - NUM_STREAMS),
+                           np.zeros(NUM_STREAMS)))
+
+        unique, counts = np.unique(PRED, return_counts=True)
+        list1, list2 = zip(*sorted(zip(counts, unique)))
+        top2 = list2[len(list2) - 2:]
+
+        for i in range(NUM_STREAMS):
+            if PRED[i] in top2:
+                start[i + NUM_STREAMS] = start[PRED[i]]
+
+    result = optimize.minimize(obj, start,
+                               method="SLSQP",
+                               jac=jacobian,
+                               options={'xtol': 1e-1, 'gtol': 1e-02, 'maxiter': 200},
+                               bounds=tuple(bnds),
+                               constraints=cons)
+
+    return [float(v) for v in result.x.clip(0.0)]
+
+
+def main():
+    STDOUT.write(struct.pack(">i", READY))
+    STDOUT.flush()
+
+    while True:
+        try:
+            num_streams = read_int()
+        except EOFError:
+            return
+
+        if num_streams < 0:
+            return
+
+        c_bound = read_double()
+        obs = read_array("q", 8, num_streams)
+        caps = read_array("q", 8, num_streams)
+        pred = read_array("i", 4, num_streams)
+        read_array("d", 8, num_streams)     # MI (unused, as in opt.py)
+        costs = read_array("d", 8, num_streams)
+        mean = read_array("d", 8, num_streams)
+        var = read_array("d", 8, num_streams)
+        v_bound = read_array("d", 8, num_streams)
+        exp_cond_v = read_array("d", 8, num_streams)
+        warm = read_array("d", 8, read_int())
+
+        try:
+            solution = solve(num_streams, c_bound, obs, caps, pred, costs, mean, var,
+                             v_bound, exp_cond_v, warm)
+        except Exception as e:
+            sys.stderr.write("Optimization failed: %s\n" % str(e))
+            solution = None
+
+        write_solution(solution)
+
+
+if __name__ == "__main__":
+    main()
@@ -1,8 +1,8 @@
 package edu.umn.dcsg;
 
 import edu.umn.dcsg.DeviceSimulator;
+import edu.umn.dcsg.common.BinaryPayload;
 import edu.umn.dcsg.common.Config;
-import edu.umn.dcsg.common.GenericPayload;
 import edu.umn.dcsg.common.TraceInfo;
 import edu.umn.dcsg.common.StreamTuple;
 
@@ -28,10 +28,10 @@ public class AppTest
         EdgeSimulator edge = new EdgeSimulator(cloud);
         DeviceSimulator devSimulator = new DeviceSimulator();
 
-        List<GenericPayload> data = devSimulator.nextTuple();
+        List<BinaryPayload> data = devSimulator.nextTuple();
         while(data.size() > 0)
         {
-            for(GenericPayload payload : data)
+            for(BinaryPayload payload : data)
             {
                 edge.handleEvent(payload);
             }
@@ -0,0 +1,238 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.GenericPayload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackgroundFlushTest
+{
+    /// Windows are filled while earlier ones are flushed. Whatever the
+    /// interleaving, every window must come out the same, in order.
+
+    protected static final int WINDOWS = 12;
+    protected static final int STREAMS = 8;
+    protected static final int VALUES_PER_WINDOW = 4000;
+
+    protected static class RecordingEdge extends AbstractEdge
+    {
+        protected List<String> mSent = Collections.synchronizedList(new ArrayList<String>());
+
+        protected void pSendPayload(final BinaryPayload bp)
+        {
+            if(bp.isTuple())
+            {
+                mSent.add("T " + bp.getStreamId() + " " + bp.getValue() + " " + bp.getTime());
+            }
+            else if(bp.isHeader() || bp.isTrailer())
+            {
+                mSent.add((bp.isHeader() ? "H " : "E ") + bp.getWindowId());
+            }
+        }
+
+        protected void pHandleTuple(final BinaryPayload bp)
+        {
+            pInsertValue(bp);
+        }
+    }
+
+    @Test
+    public void concurrentIngestAndFlushTest()
+    {
+        final boolean background = Config.USE_BACKGROUND_FLUSH;
+        final boolean frames = Config.USE_SAMPLE_FRAMES;
+        final boolean reservoir = Config.USE_RESERVOIR_CACHE;
+        final boolean incremental = Config.USE_INCREMENTAL_DEPENDENCE;
+        final int strategy = Config.STRATEGY;
+
+        try
+        {
+            Config.USE_BACKGROUND_FLUSH = true;
+            Config.USE_SAMPLE_FRAMES = false;
+            Config.USE_RESERVOIR_CACHE = true;
+            Config.USE_INCREMENTAL_DEPENDENCE = true;
+
+            for(int strategyId : new int[]{ Config.SRS_STRATEGY, Config.IMPUTATION_STRATEGY })
+            {
+                Config.STRATEGY = strategyId;
+
+                // One flush at a time, then flushes racing the next window
+                final List<String> sequential = pRun(true);
+                final List<String> overlapped = pRun(false);
+
+                assertEquals(sequential, overlapped);
+                pAssertWindowsInOrder(overlapped);
+            }
+        }
+        finally
+        {
+            Config.USE_BACKGROUND_FLUSH = background;
+            Config.USE_SAMPLE_FRAMES = frames;
+            Config.USE_RESERVOIR_CACHE = reservoir;
+            Config.USE_INCREMENTAL_DEPENDENCE = incremental;
+            Config.STRATEGY = strategy;
+        }
+    }
+
+    // Fails while sending the third sample of window 3 (after its header) and
+    // while sending the header of window 6
+    protected static class FailingEdge extends RecordingEdge
+    {
+        protected long mWindow = 0;
+        protected int mTuples = 0;
+
+        protected void pSendPayload(final BinaryPayload bp)
+        {
+            if(bp.isHeader())
+            {
+                mWindow = bp.getWindowId();
+                mTuples = 0;
+                if(mWindow == 6) throw new IllegalStateException("header of window 6");
+            }
+            else if(bp.isTuple() && mWindow == 3 && ++mTuples == 3)
+            {
+                throw new IllegalStateException("sample of window 3");
+            }
+            super.pSendPayload(bp);
+        }
+    }
+
+    // A window whose flush fails is closed if the cloud saw its header, and
+    // nothing of it is left for the windows after it
+    @Test
+    public void failingFlushTest()
+    {
+        final boolean background = Config.USE_BACKGROUND_FLUSH;
+        final boolean frames = Config.USE_SAMPLE_FRAMES;
+        final int strategy = Config.STRATEGY;
+
+        try
+        {
+            Config.USE_BACKGROUND_FLUSH = true;
+            Config.USE_SAMPLE_FRAMES = false;
+            Config.STRATEGY = Config.SRS_STRATEGY;
+
+            FailingEdge edge = new FailingEdge();
+            final List<String> sent = pRun(edge, false);
+
+            assertTrue(edge.mPendingHeader == null);
+            assertTrue(edge.mPendingModels == null);
+            assertTrue(edge.mPendingGraph == null);
+            assertTrue(edge.mFrame == null);
+            assertTrue(!edge.mWindowOpen);
+
+            // Window 3 is cut short, window 6 never opens
+            List<String> markers = new ArrayList<String>();
+            int window3Samples = 0;
+            long window = 0;
+            for(String entry : sent)
+            {
+                if(entry.startsWith("T"))
+                {
+                    if(window == 3) window3Samples++;
+                    continue;
+                }
+                markers.add(entry);
+                window = Long.parseLong(entry.split(" ")[1]);
+            }
+            assertEquals(2, window3Samples);
+
+            List<String> expected = new ArrayList<String>();
+            for(int w=1; w <= WINDOWS; w++)
+            {
+                if(w == 6) continue;
+                expected.add("H " + w);
+                expected.add("E " + w);
+            }
+            assertEquals(expected, markers);
+        }
+        finally
+        {
+            Config.USE_BACKGROUND_FLUSH = background;
+            Config.USE_SAMPLE_FRAMES = frames;
+            Config.STRATEGY = strategy;
+        }
+    }
+
+    protected List<String> pRun(boolean waitForFlushes)
+    {
+        return pRun(new RecordingEdge(), waitForFlushes);
+    }
+
+    protected List<String> pRun(RecordingEdge edge, boolean waitForFlushes)
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(23);
+
+        for(int s=1; s < STREAMS; s++) edge.mDataCache.addDependenceCandidate(0, s);
+
+        for(int window=1; window <= WINDOWS; window++)
+        {
+            for(int i=0; i < VALUES_PER_WINDOW; i++)
+            {
+                final int streamId = i % STREAMS;
+                final double value = 1000.0 * window + 10.0 * streamId + rng.nextGaussian();
+                edge.pHandleTuple(new BinaryPayload(GenericPayload.TYPE_TUPLE, streamId, value,
+                                                    (i * winDuration) / VALUES_PER_WINDOW, ""));
+
+                // Candidates of the window being filled change mid-window
+                if(i == VALUES_PER_WINDOW / 2)
+                {
+                    synchronized(edge.mLock)
+                    {
+                        edge.mDataCache.addDependenceCandidate(window % STREAMS, (window + 1) % STREAMS);
+                    }
+                }
+            }
+
+            edge.flush();
+            if(waitForFlushes) edge.awaitFlushes();
+        }
+
+        edge.awaitFlushes();
+        edge.shutdown();
+        return new ArrayList<String>(edge.mSent);
+    }
+
+    // Headers and trailers pair up in window order, and every sample lies
+    // between those of the window it was observed in
+    protected void pAssertWindowsInOrder(List<String> sent)
+    {
+        long window = 0;
+        boolean open = false;
+
+        for(String entry : sent)
+        {
+            final String[] fields = entry.split(" ");
+            if(fields[0].equals("H"))
+            {
+                assertTrue(!open);
+                assertEquals(window + 1, Long.parseLong(fields[1]));
+                window++;
+                open = true;
+            }
+            else if(fields[0].equals("E"))
+            {
+                assertTrue(open);
+                assertEquals(window, Long.parseLong(fields[1]));
+                open = false;
+            }
+            else
+            {
+                assertTrue(open);
+                assertEquals(window, Math.round(Double.parseDouble(fields[2]) / 1000.0));
+            }
+        }
+
+        assertEquals(WINDOWS, window);
+    }
+}
@@ -0,0 +1,128 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FloydSamplerTest
+{
+    /// TTLDataCache draws sample rows with Floyd's algorithm: k distinct
+    /// indices from [0, n), each included with probability k / n.
+
+    @Test
+    public void distinctIndicesInRangeTest()
+    {
+        final Random rng = new Random(41);
+
+        for(int trial=0; trial < 2000; trial++)
+        {
+            final int n = 1 + rng.nextInt(500);
+            final int k = rng.nextInt(n + 1);
+            final int[] chosen = TTLDataCache.pSampleIndices(rng, n, k);
+
+            assertEquals(k, chosen.length);
+
+            Set<Integer> seen = new HashSet<Integer>();
+            for(int index : chosen)
+            {
+                assertTrue(index >= 0 && index < n);
+                assertTrue(seen.add(index));
+            }
+        }
+    }
+
+    @Test
+    public void allIndicesWhenKEqualsNTest()
+    {
+        final Random rng = new Random(43);
+
+        for(int n=1; n <= 64; n++)
+        {
+            final int[] chosen = TTLDataCache.pSampleIndices(rng, n, n);
+            Arrays.sort(chosen);
+            for(int i=0; i < n; i++) assertEquals(i, chosen[i]);
+        }
+
+        assertEquals(0, TTLDataCache.pSampleIndices(rng, 10, 0).length);
+    }
+
+    @Test
+    public void uniformInclusionTest()
+    {
+        final Random rng = new Random(47);
+        final int n = 20;
+        final int k = 5;
+        final int trials = 40000;
+
+        int[] kept = new int[n];
+        for(int trial=0; trial < trials; trial++)
+        {
+            for(int index : TTLDataCache.pSampleIndices(rng, n, k)) kept[index]++;
+        }
+
+        final double expected = (double)k / n;
+        final double sd = Math.sqrt(expected * (1.0 - expected) / trials);
+        for(int i=0; i < n; i++)
+        {
+            assertEquals(expected, (double)kept[i] / trials, 4.0 * sd);
+        }
+    }
+
+    @Test
+    public void insertIndexTest()
+    {
+        // Indices that hash to the same slot still probe to their own one
+        int[] table = new int[8];
+        Arrays.fill(table, -1);
+
+        for(int index=0; index < 64; index += 8) assertTrue(TTLDataCache.pInsertIndex(table, index));
+        for(int index=0; index < 64; index += 8) assertFalse(TTLDataCache.pInsertIndex(table, index));
+
+        Set<Integer> stored = new HashSet<Integer>();
+        for(int slot : table) stored.add(slot);
+        assertEquals(8, stored.size());
+        assertFalse(stored.contains(-1));
+    }
+
+    @Test
+    public void sampleKeepsRowsTogetherTest()
+    {
+        final boolean thinning = Config.USE_THINNING;
+
+        try
+        {
+            Config.USE_THINNING = false;
+
+            TTLDataCache cache = new TTLDataCache();
+            for(int i=0; i < 200; i++) cache.insert(0, 1000.0 + i, i, "");
+
+            for(int size : new int[]{ 2, 17, 200, 500 })
+            {
+                final List<StreamTuple> samples = cache.getSampleForStream(0, size);
+                assertEquals(Math.min(size, 200), samples.size());
+
+                Set<Long> times = new HashSet<Long>();
+                for(StreamTuple tuple : samples)
+                {
+                    assertEquals(1000.0 + tuple.mTime, tuple.mValue, 0.0);
+                    assertTrue(times.add(tuple.mTime));
+                }
+            }
+        }
+        finally
+        {
+            Config.USE_THINNING = thinning;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.GenericPayload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IngestBenchmarkTest
+{
+    /// Multi-threaded ingest benchmark. Prints tuples/second for the single
+    /// lock and the striped append path at increasing thread counts, and
+    /// checks that the striped path scales when there are cores to scale to.
+
+    protected static final int TUPLES_PER_THREAD = 200000;
+    protected static final int STREAMS_PER_THREAD = 16;
+
+    protected static class BenchmarkEdge extends AbstractEdge
+    {
+        protected void pSendPayload(final BinaryPayload gp) {}
+
+        protected void pHandleTuple(final BinaryPayload gp)
+        {
+            if(gp.isTuple())
+            {
+                pInsertValue(gp);
+            }
+        }
+
+        public int getCachedValues()
+        {
+            return mDataCache.getTotalObservedValues().intValue();
+        }
+    }
+
+    @Test
+    public void stripedIngestTest() throws Exception
+    {
+        final boolean striped = Config.USE_STRIPED_INGEST;
+        final int[] threadCounts = new int[]{ 1, 2, 4, 8 };
+        final int processors = Runtime.getRuntime().availableProcessors();
+
+        try
+        {
+            System.out.println("Ingest throughput (" + processors + " processors, tuples/s)");
+            System.out.println(String.format("  %-8s %14s %14s", "threads", "locked", "striped"));
+
+            double[] lockedRates = new double[threadCounts.length];
+            double[] stripedRates = new double[threadCounts.length];
+            for(int i=0; i < threadCounts.length; i++)
+            {
+                Config.USE_STRIPED_INGEST = false;
+                lockedRates[i] = pMeasure(threadCounts[i]);
+
+                Config.USE_STRIPED_INGEST = true;
+                stripedRates[i] = pMeasure(threadCounts[i]);
+
+                System.out.println(String.format("  %-8d %14.0f %14.0f", threadCounts[i],
+                                                 lockedRates[i], stripedRates[i]));
+            }
+
+            // A single writer does the same inserts either way
+            assertTrue(stripedRates[0] > 0.5 * lockedRates[0]);
+
+            // Two writers on their own cores, appending to different stripes
+            if(processors > 1)
+            {
+                assertTrue(stripedRates[1] > 1.3 * stripedRates[0]);
+            }
+        }
+        finally
+        {
+            Config.USE_STRIPED_INGEST = striped;
+        }
+    }
+
+    // The stripes keep what the cache would keep, so reservoirs bound them
+    // between flushes
+    @Test
+    public void boundedStripesTest()
+    {
+        final boolean striped = Config.USE_STRIPED_INGEST;
+        final boolean reservoir = Config.USE_RESERVOIR_CACHE;
+        final int size = Config.RESERVOIR_SIZE;
+
+        try
+        {
+            Config.USE_STRIPED_INGEST = true;
+            Config.USE_RESERVOIR_CACHE = true;
+            Config.RESERVOIR_SIZE = 32;
+
+            final int streams = 16;
+            final int values = 5000;
+            final BenchmarkEdge edge = new BenchmarkEdge();
+            for(int i=0; i < values; i++)
+            {
+                for(int streamId=0; streamId < streams; streamId++)
+                {
+                    edge.pHandleTuple(new BinaryPayload(GenericPayload.TYPE_TUPLE, streamId, i * 0.5, i, ""));
+                }
+            }
+            assertTrue(edge.mIngestBuffer.getRetainedCount() <= streams * Config.RESERVOIR_SIZE);
+
+            // Merging keeps each stream's population and reservoir
+            edge.mIngestBuffer.drainTo(edge.mDataCache);
+            assertEquals(0, edge.mIngestBuffer.getRetainedCount());
+            assertEquals(streams * values, edge.getCachedValues());
+            final long[] population = edge.mDataCache.getPopulationCountByStream();
+            final long[] observed = edge.mDataCache.getObservedCountByStream();
+            for(int s=0; s < streams; s++)
+            {
+                assertEquals(values, population[s]);
+                assertEquals(Config.RESERVOIR_SIZE, observed[s]);
+            }
+        }
+        finally
+        {
+            Config.USE_STRIPED_INGEST = striped;
+            Config.USE_RESERVOIR_CACHE = reservoir;
+            Config.RESERVOIR_SIZE = size;
+        }
+    }
+
+    // The incremental dependence matrix spans stripes, and is built from the
+    // merged partitions the way direct inserts would build it
+    @Test
+    public void mergedDependenceTest()
+    {
+        final boolean striped = Config.USE_STRIPED_INGEST;
+        final boolean incremental = Config.USE_INCREMENTAL_DEPENDENCE;
+
+        try
+        {
+            Config.USE_STRIPED_INGEST = true;
+            Config.USE_INCREMENTAL_DEPENDENCE = true;
+
+            final int winDuration = Config.getTrace().mWindowDuration;
+            final BenchmarkEdge edge = new BenchmarkEdge();
+            final TTLDataCache direct = new TTLDataCache();
+            for(int t=0; t < winDuration; t++)
+            {
+                for(int streamId=0; streamId < 6; streamId++)
+                {
+                    final double value = 10.0 + (streamId % 3 + 1) * Math.sin(t / 5.0) + ((t * streamId) % 7);
+                    edge.pHandleTuple(new BinaryPayload(GenericPayload.TYPE_TUPLE, streamId, value, t, ""));
+                    direct.insert(streamId, value, t, "");
+                }
+            }
+            edge.mIngestBuffer.drainTo(edge.mDataCache);
+
+            final double[][] expected = direct.getDependenceMatrix();
+            final double[][] actual = edge.mDataCache.getDependenceMatrix();
+            for(int i=0; i < expected.length; i++)
+            {
+                assertArrayEquals(expected[i], actual[i], 1e-9);
+            }
+        }
+        finally
+        {
+            Config.USE_STRIPED_INGEST = striped;
+            Config.USE_INCREMENTAL_DEPENDENCE = incremental;
+        }
+    }
+
+    protected double pMeasure(final int threadCount) throws Exception
+    {
+        final BenchmarkEdge edge = new BenchmarkEdge();
+        final int winDuration = Config.getTrace().mWindowDuration;
+
+        // Build payloads up front so only the ingest path is measured
+        final List<List<BinaryPayload>> inputs = new ArrayList<List<BinaryPayload>>();
+        for(int t=0; t < threadCount; t++)
+        {
+            List<BinaryPayload> payloads = new ArrayList<BinaryPayload>(TUPLES_PER_THREAD);
+            for(int i=0; i < TUPLES_PER_THREAD; i++)
+            {
+                payloads.add(new BinaryPayload(GenericPayload.TYPE_TUPLE,
+                                               t * STREAMS_PER_THREAD + (i % STREAMS_PER_THREAD),
+                                               i * 0.5, i % winDuration, ""));
+            }
+            inputs.add(payloads);
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for(final List<BinaryPayload> payloads : inputs)
+        {
+            threads.add(new Thread(() -> {
+                for(BinaryPayload payload : payloads)
+                {
+                    edge.pHandleTuple(payload);
+                }
+            }));
+        }
+
+        final long start = System.nanoTime();
+        for(Thread thread : threads) thread.start();
+        for(Thread thread : threads) thread.join();
+        final long elapsed = System.nanoTime() - start;
+
+        // Nothing may be lost on either path
+        if(edge.mIngestBuffer != null)
+        {
+            edge.mIngestBuffer.drainTo(edge.mDataCache);
+        }
+        assertEquals(threadCount * TUPLES_PER_THREAD, edge.getCachedValues());
+
+        return ((double)threadCount * TUPLES_PER_THREAD) / (elapsed / 1.0e9);
+    }
+}
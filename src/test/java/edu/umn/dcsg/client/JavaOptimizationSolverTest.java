@@ -0,0 +1,316 @@
+package edu.umn.dcsg.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.linear.LinearConstraint;
+import org.apache.commons.math3.optim.linear.LinearConstraintSet;
+import org.apache.commons.math3.optim.linear.LinearObjectiveFunction;
+import org.apache.commons.math3.optim.linear.NoFeasibleSolutionException;
+import org.apache.commons.math3.optim.linear.NonNegativeConstraint;
+import org.apache.commons.math3.optim.linear.Relationship;
+import org.apache.commons.math3.optim.linear.SimplexSolver;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+
+import org.junit.Test;
+
+public class JavaOptimizationSolverTest
+{
+    /// Problem instances in the format opt.py reads (OptimizationParms.toString).
+    /// The first is the one in src/main/py/test.sh, the next six were recorded
+    /// from the solver calls of an imputation run on the mvnorm trace, and the
+    /// last two exercise more streams, costs and both kinds of variation bound.
+    ///
+    /// Every answer must be feasible for opt.py's constraints as written, and
+    /// its objective must match the optimum of the same problem found by an
+    /// independent LP reference.
+
+    protected static final String[] INSTANCES = {
+        "2\n24.0\n[24, 24]\n[1, 0]\n[0.6600025909936561, 0.6600025909936561]\n[1.0, 1.0]\n" +
+        "[31.28766680441803, 34.49739010406127]\n[13.00000000000009, 25.99999999999996]\n" +
+        "[3.6737620741928794, 7.3475241483857]\n[7.33715553846164, 14.674311076923159]\n",
+
+        "2\n12.0\n[24, 24]\n[1, 0]\n[0.6600025909936561, 0.6600025909936561]\n[1.0, 1.0]\n" +
+        "[31.28766680441803, 34.49739010406127]\n[13.00000000000009, 25.99999999999996]\n" +
+        "[3.6737620741928794, 7.347524148385697]\n[7.33715553846164, 14.674311076923159]\n",
+
+        "2\n12.0\n[24, 24]\n[1, 0]\n[0.6599835264673922, 0.6599835264673922]\n[1.0, 1.0]\n" +
+        "[12.899212247914582, 3.4017615909206493]\n[15.999999999999966, 12.000000000000002]\n" +
+        "[4.521553322083502, 3.3911649915626345]\n[9.03074791666662, 6.773060937499982]\n",
+
+        "2\n12.0\n[24, 24]\n[1, 0]\n[0.6600000090187613, 0.6600000090187613]\n[1.0, 1.0]\n" +
+        "[39.00463655120154, 18.78067228812707]\n[6.000000000000012, 14.000000000000055]\n" +
+        "[1.6955824957813204, 3.9563591568230883]\n[3.3863999285714272, 7.901599833333334]\n",
+
+        "2\n12.0\n[24, 24]\n[1, 0]\n[0.6599999999999983, 0.6599999999999983]\n[1.0, 1.0]\n" +
+        "[12.208394777525001, 2.8278455715710464]\n[15.000000000000037, 15.000000000000002]\n" +
+        "[4.238956239453303, 4.238956239453293]\n[8.46600000000005, 8.466000000000033]\n",
+
+        "2\n12.0\n[24, 24]\n[1, 0]\n[0.6600220176066024, 0.6600220176066024]\n[1.0, 1.0]\n" +
+        "[23.839757866938108, 24.704878337227832]\n[11.999999999999957, 16.99999999999999]\n" +
+        "[3.391164991562622, 4.804150404713728]\n[6.772451235294094, 9.59430591666666]\n",
+
+        "2\n12.0\n[24, 24]\n[1, 0]\n[0.6600083915550458, 0.6600083915550458]\n[1.0, 1.0]\n" +
+        "[42.12528096896677, 39.53902514454559]\n[12.999999999999945, 13.999999999999943]\n" +
+        "[3.673762074192838, 3.956359156823057]\n[7.337055999999949, 7.901444923076878]\n",
+
+        "5\n40.0\n[40, 60, 25, 80, 10]\n[1, 3, 1, 1, 3]\n[0.9, 0.2, 0.8, 0.7, 0.6]\n[1.0, 1.0, 2.0, 1.0, 1.0]\n" +
+        "[5.0, -3.0, 10.0, 0.5, 2.0]\n[4.0, 9.0, 16.0, 1.0, 25.0]\n" +
+        "[1.0, 2.0, 20.0, 0.5, 5.0]\n[3.0, 2.5, 10.0, 0.8, 30.0]\n",
+
+        "3\n20.0\n[50, 50, 50]\n[1, 0, 0]\n[0.9, 0.9, 0.5]\n[1.0, 1.0, 1.0]\n" +
+        "[0.0, 0.0, 0.0]\n[100.0, 0.01, 4.0]\n" +
+        "[1.0, 1.0, 1.0]\n[5.0, 0.5, 5.0]\n",
+    };
+
+    @Test
+    public void feasibleForPythonConstraintsTest()
+    {
+        for(String instance : INSTANCES)
+        {
+            final OptimizationParms parms = pParse(instance);
+            final double[] result = new JavaOptimizationSolver(parms).compute(parms.mSamplesAllowed);
+            pAssertFeasible(parms, result);
+        }
+    }
+
+    @Test
+    public void matchesReferenceOptimumTest()
+    {
+        for(String instance : INSTANCES)
+        {
+            final OptimizationParms parms = pParse(instance);
+            final double[] result = new JavaOptimizationSolver(parms).compute(parms.mSamplesAllowed);
+
+            final double[] bounds = pReferenceOptimum(parms);
+            final double value = pObjective(parms, result);
+
+            // No feasible point beats the reference's lower bound, and the
+            // solver gets to within 1e-6 of its best feasible point
+            assertTrue(instance, value >= bounds[0] * (1.0 - 1e-7));
+            assertTrue(instance + " " + value + " vs " + bounds[1], value <= bounds[1] * (1.0 + 1e-6));
+        }
+    }
+
+    // opt.py requires x_i + y_i >= 1.01, not x_i >= 1.01: a stream that is
+    // predicted well from a large one needs almost no real samples
+    @Test
+    public void realSamplesBelowFloorWhenPredictedTest()
+    {
+        final OptimizationParms parms = pParse(INSTANCES[INSTANCES.length - 1]);
+        final double[] result = new JavaOptimizationSolver(parms).compute(parms.mSamplesAllowed);
+
+        assertTrue(result[1] < 1.01);
+        assertTrue(result[3 + 1] > 0.5);
+        assertTrue(result[1] + result[3 + 1] >= 1.01 - 1e-6);
+        pAssertFeasible(parms, result);
+    }
+
+    @Test
+    public void earlyExitsTest()
+    {
+        final OptimizationParms parms = pParse(INSTANCES[0]);
+        final JavaOptimizationSolver solver = new JavaOptimizationSolver(parms);
+
+        double[] result = solver.compute(48.0);
+        assertEquals(24.0, result[0], 0.0);
+        assertEquals(24.0, result[1], 0.0);
+        assertEquals(0.0, result[2], 0.0);
+
+        result = solver.compute(2.0);
+        assertEquals(1.0, result[0], 0.0);
+        assertEquals(1.0, result[1], 0.0);
+        assertEquals(0.0, result[3], 0.0);
+    }
+
+    // The constraints of opt.py, each to within rounding
+    protected void pAssertFeasible(OptimizationParms parms, double[] r)
+    {
+        final int k = parms.mNumStreams;
+        final double eps = 1e-6;
+
+        double cost = 0.0;
+        for(int i=0; i < k; i++)
+        {
+            final double x = r[i];
+            final double y = r[k + i];
+            final int pred = parms.mPredictorStream[i];
+            final double v = parms.mVariationBounds[i];
+            final double ecv = parms.mExpectedConditionalVariances[i];
+
+            cost += parms.mStrataCosts[i] * x + ((y > 0.5) ? 1.0 : 0.0);
+
+            assertTrue(x >= -eps && x <= parms.mStrataSizes[i] + eps);
+            assertTrue(y >= -eps && y <= parms.mStrataSizes[pred] + eps);
+            assertTrue(r[pred] - 1.01 * y >= -eps);
+            assertTrue(x + y - 1.01 >= -eps);
+            assertTrue(v * x - (ecv - v) * (y + 0.5) >= -eps);
+        }
+
+        assertEquals(parms.mSamplesAllowed, cost, 1e-6 * parms.mSamplesAllowed);
+    }
+
+    protected static double pObjective(OptimizationParms parms, double[] r)
+    {
+        final int k = parms.mNumStreams;
+        double value = 0.0;
+        for(int i=0; i < k; i++) value += pErr(parms, i) / (r[i] + r[k + i]);
+        return value;
+    }
+
+    protected static double pErr(OptimizationParms parms, int i)
+    {
+        return Math.max(0.001, parms.mStrataVariance[i] / (1.0 + Math.abs(parms.mStrataMeans[i])));
+    }
+
+    // { lower bound, best feasible value } on opt.py's optimum. Every set of
+    // modelled streams is a linear program once 1/(x + y) is replaced by its
+    // tangents; tangents are added at the LP solution until the bounds meet.
+    protected static double[] pReferenceOptimum(OptimizationParms parms)
+    {
+        final int k = parms.mNumStreams;
+        double lower = Double.POSITIVE_INFINITY;
+        double upper = Double.POSITIVE_INFINITY;
+
+        for(int subset=0; subset < (1 << k); subset++)
+        {
+            List<List<Double>> tangents = new ArrayList<List<Double>>();
+            for(int i=0; i < k; i++)
+            {
+                tangents.add(new ArrayList<Double>());
+                final double top = parms.mStrataSizes[i] + parms.mStrataSizes[parms.mPredictorStream[i]];
+                for(double a = 0.5; a < 2.0 * top; a *= 1.5) tangents.get(i).add(a);
+            }
+
+            double subsetLower = Double.NEGATIVE_INFINITY;
+            double subsetUpper = Double.POSITIVE_INFINITY;
+            for(int iter=0; iter < 200; iter++)
+            {
+                final PointValuePair point = pSolveRelaxation(parms, subset, tangents);
+                if(point == null) break;
+
+                final double[] v = point.getPoint();
+                subsetLower = Math.max(subsetLower, point.getValue());
+                subsetUpper = Math.min(subsetUpper, pObjective(parms, v));
+                if(subsetUpper - subsetLower <= 1e-9 * subsetUpper) break;
+                for(int i=0; i < k; i++) tangents.get(i).add(v[i] + v[k + i]);
+            }
+
+            if(subsetUpper == Double.POSITIVE_INFINITY) continue;
+            lower = Math.min(lower, subsetLower);
+            upper = Math.min(upper, subsetUpper);
+        }
+
+        return new double[]{ lower, upper };
+    }
+
+    // Variables [x..., y..., t...] with t_i >= 1/(x_i + y_i) through tangents
+    protected static PointValuePair pSolveRelaxation(OptimizationParms parms, int subset,
+                                                     List<List<Double>> tangents)
+    {
+        final int k = parms.mNumStreams;
+        final int n = 3 * k;
+        Collection<LinearConstraint> constraints = new ArrayList<LinearConstraint>();
+
+        double[] objective = new double[n];
+        double[] budget = new double[n];
+        for(int i=0; i < k; i++)
+        {
+            objective[2 * k + i] = pErr(parms, i);
+            budget[i] = parms.mStrataCosts[i];
+        }
+        constraints.add(new LinearConstraint(budget, Relationship.EQ,
+                                             parms.mSamplesAllowed - Integer.bitCount(subset)));
+
+        for(int i=0; i < k; i++)
+        {
+            final boolean modelled = ((subset >> i) & 1) == 1;
+            final int pred = parms.mPredictorStream[i];
+            final double v = parms.mVariationBounds[i];
+            final double excess = parms.mExpectedConditionalVariances[i] - v;
+
+            constraints.add(pRow(n, i, 1.0, -1, 0.0, Relationship.LEQ, parms.mStrataSizes[i]));
+            if(modelled)
+            {
+                constraints.add(pRow(n, k + i, 1.0, -1, 0.0, Relationship.LEQ, parms.mStrataSizes[pred]));
+                constraints.add(pRow(n, pred, 1.0, k + i, -1.01, Relationship.GEQ, 0.0));
+                constraints.add(pRow(n, k + i, 1.0, -1, 0.0, Relationship.GEQ, 0.5));
+            }
+            else
+            {
+                constraints.add(pRow(n, k + i, 1.0, -1, 0.0, Relationship.EQ, 0.0));
+            }
+            constraints.add(pRow(n, i, 1.0, k + i, 1.0, Relationship.GEQ, 1.01));
+            constraints.add(pRow(n, i, v, k + i, -excess, Relationship.GEQ, 0.5 * excess));
+
+            // 1/s >= 2/a - s/a^2
+            for(double a : tangents.get(i))
+            {
+                double[] row = new double[n];
+                row[2 * k + i] = 1.0;
+                row[i] = 1.0 / (a * a);
+                row[k + i] = 1.0 / (a * a);
+                constraints.add(new LinearConstraint(row, Relationship.GEQ, 2.0 / a));
+            }
+        }
+
+        try {
+            return new SimplexSolver().optimize(new LinearObjectiveFunction(objective, 0.0),
+                                                               new LinearConstraintSet(constraints),
+                                                               GoalType.MINIMIZE,
+                                                               new NonNegativeConstraint(true));
+        } catch(NoFeasibleSolutionException e) {
+            return null;
+        }
+    }
+
+    protected static LinearConstraint pRow(int n, int a, double ca, int b, double cb,
+                                           Relationship relationship, double value)
+    {
+        double[] row = new double[n];
+        row[a] = ca;
+        if(b >= 0) row[b] = cb;
+        return new LinearConstraint(row, relationship, value);
+    }
+
+    protected static OptimizationParms pParse(String instance)
+    {
+        final String[] lines = instance.split("\n");
+        return new OptimizationParms(Double.parseDouble(lines[1]),
+                                     pToLongs(pToDoubles(lines[2])),
+                                     pToInts(pToDoubles(lines[3])),
+                                     pToDoubles(lines[4]),
+                                     pToDoubles(lines[5]),
+                                     pToDoubles(lines[6]),
+                                     pToDoubles(lines[7]),
+                                     pToDoubles(lines[8]),
+                                     pToDoubles(lines[9]));
+    }
+
+    protected static double[] pToDoubles(String line)
+    {
+        final String[] items = line.replaceAll("[\\[\\]\\s]", "").split(",");
+        double[] values = new double[items.length];
+        for(int i=0; i < items.length; i++) values[i] = Double.parseDouble(items[i]);
+        return values;
+    }
+
+    protected static long[] pToLongs(double[] values)
+    {
+        long[] result = new long[values.length];
+        for(int i=0; i < values.length; i++) result[i] = (long)values[i];
+        return result;
+    }
+
+    protected static int[] pToInts(double[] values)
+    {
+        int[] result = new int[values.length];
+        for(int i=0; i < values.length; i++) result[i] = (int)values[i];
+        return result;
+    }
+}
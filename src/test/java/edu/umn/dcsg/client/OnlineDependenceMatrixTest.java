@@ -0,0 +1,214 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
+
+import org.junit.Test;
+
+public class OnlineDependenceMatrixTest
+{
+    /// The incremental matrix places values on its grid the way the batch
+    /// interpolation does, so the two agree wherever both streams of a pair
+    /// land in the same cells.
+
+    @Test
+    public void matchesBatchMatrixTest()
+    {
+        final boolean incremental = Config.USE_INCREMENTAL_DEPENDENCE;
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(71);
+
+        TTLDataCache cache = new TTLDataCache();
+        try
+        {
+            Config.USE_INCREMENTAL_DEPENDENCE = true;
+
+            // Two values per even time step: the second moves on to the odd
+            // cell, so both layouts fill every cell the same way
+            for(int t=0; t < winDuration; t += 2)
+            {
+                for(int k=0; k < 2; k++)
+                {
+                    final double x = 10.0 + rng.nextGaussian();
+                    cache.insert(0, x, t, "");
+                    cache.insert(1, 3.0 * x + rng.nextGaussian(), t, "");
+                    cache.insert(2, 5.0 + rng.nextGaussian(), t, "");
+                }
+            }
+
+            final double[][] online = cache.getDependenceMatrix();
+
+            Config.USE_INCREMENTAL_DEPENDENCE = false;
+            final double[][] batch = cache.getDependenceMatrix();
+
+            for(int i=0; i < 3; i++)
+            {
+                for(int j=0; j < 3; j++)
+                {
+                    assertEquals(batch[i][j], online[i][j], 1e-9);
+                }
+            }
+            assertTrue(online[0][1] > 0.9);
+        }
+        finally
+        {
+            Config.USE_INCREMENTAL_DEPENDENCE = incremental;
+        }
+    }
+
+    // With more or fewer samples than grid cells the batch code interpolates
+    // onto a grid of max(n_x, n_y) cells instead, so the two only agree
+    // approximately
+    @Test
+    public void sampleCountDiffersFromGridTest()
+    {
+        final boolean incremental = Config.USE_INCREMENTAL_DEPENDENCE;
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(79);
+
+        try
+        {
+            Config.USE_INCREMENTAL_DEPENDENCE = true;
+
+            for(int[] counts : new int[][]{ { 3 * winDuration, winDuration / 2 },
+                                            { winDuration / 3, winDuration / 4 } })
+            {
+                TTLDataCache cache = new TTLDataCache();
+                for(int s=0; s < 2; s++)
+                {
+                    for(long t : pArrivalTimes(rng, counts[s], winDuration))
+                    {
+                        cache.insert(s, 10.0 + 3.0 * Math.sin(t / 9.0) + 0.3 * rng.nextGaussian(), t, "");
+                    }
+                    for(long t : pArrivalTimes(rng, counts[s], winDuration))
+                    {
+                        cache.insert(2 + s, 10.0 + rng.nextGaussian(), t, "");
+                    }
+                }
+
+                final double[][] online = cache.getDependenceMatrix();
+                Config.USE_INCREMENTAL_DEPENDENCE = false;
+                final double[][] batch = cache.getDependenceMatrix();
+                Config.USE_INCREMENTAL_DEPENDENCE = true;
+
+                // Both find the correlated pair, the online grid keeps the
+                // series on their own times and is at least as close
+                assertTrue(online[0][1] > 0.9);
+                assertTrue(batch[0][1] > 0.5);
+                assertTrue(online[0][1] >= batch[0][1]);
+                for(int a=0; a < 4; a++)
+                {
+                    for(int b=a + 1; b < 4; b++)
+                    {
+                        if(a != 0 || b != 1) assertTrue(online[a][b] < online[0][1] - 0.3);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            Config.USE_INCREMENTAL_DEPENDENCE = incremental;
+        }
+    }
+
+    @Test
+    public void collisionPlacementTest()
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(73);
+
+        OnlineDependenceMatrix matrix = new OnlineDependenceMatrix();
+        List<Double> valuesX = new ArrayList<Double>();
+        List<Double> valuesY = new ArrayList<Double>();
+        List<Long> timesX = new ArrayList<Long>();
+        List<Long> timesY = new ArrayList<Long>();
+
+        // Up to three values per cell, so some replace an earlier move, plus
+        // values at the end of the window
+        for(int t=0; t < winDuration; t++)
+        {
+            final int count = rng.nextInt(4);
+            for(int k=0; k < count; k++)
+            {
+                final double x = 10.0 + rng.nextGaussian();
+                final double y = 2.0 * x + rng.nextGaussian();
+                matrix.insert(0, x, t);
+                valuesX.add(x);
+                timesX.add((long)t);
+
+                if(rng.nextInt(4) > 0)
+                {
+                    matrix.insert(1, y, t);
+                    valuesY.add(y);
+                    timesY.add((long)t);
+                }
+            }
+        }
+        matrix.insert(0, 1.0, winDuration);
+        valuesX.add(1.0);
+        timesX.add((long)winDuration);
+
+        // Occupied cells hold what the batch interpolation put there
+        final double[] gridX = matrix.mGrids.get(0);
+        final double[] gridY = matrix.mGrids.get(1);
+        pAssertSamePlacement(gridX, valuesX, timesX);
+        pAssertSamePlacement(gridY, valuesY, timesY);
+
+        // and the pair's moments cover exactly the cells both streams occupy
+        List<Double> alignedX = new ArrayList<Double>();
+        List<Double> alignedY = new ArrayList<Double>();
+        for(int cell=0; cell < gridX.length; cell++)
+        {
+            if(Double.isNaN(gridX[cell]) || Double.isNaN(gridY[cell])) continue;
+            alignedX.add(gridX[cell]);
+            alignedY.add(gridY[cell]);
+        }
+
+        final double expected = Math.abs(new PearsonsCorrelation().correlation(pToArray(alignedX),
+                                                                               pToArray(alignedY)));
+        assertEquals(alignedX.size(), matrix.mPairs.get(OnlineDependenceMatrix.pGetPairKey(0, 1)).mN);
+        assertEquals(expected, matrix.getDependence(0, 1), 1e-9);
+    }
+
+    protected void pAssertSamePlacement(double[] grid, List<Double> values, List<Long> times)
+    {
+        long[] timeArray = new long[times.size()];
+        for(int i=0; i < timeArray.length; i++) timeArray[i] = times.get(i);
+
+        final double[] batch = DependenceEstimator.interpolate(pToArray(values), timeArray, grid.length);
+
+        int occupied = 0;
+        for(int cell=0; cell < grid.length; cell++)
+        {
+            if(Double.isNaN(grid[cell])) continue;
+            assertEquals(batch[cell], grid[cell], 0.0);
+            occupied++;
+        }
+        assertTrue(occupied > grid.length / 2);
+    }
+
+    // Random times within the window, in arrival (time) order
+    protected static long[] pArrivalTimes(Random rng, int count, int winDuration)
+    {
+        long[] times = new long[count];
+        for(int i=0; i < count; i++) times[i] = rng.nextInt(winDuration);
+        Arrays.sort(times);
+        return times;
+    }
+
+    protected static double[] pToArray(List<Double> values)
+    {
+        double[] array = new double[values.size()];
+        for(int i=0; i < array.length; i++) array[i] = values.get(i);
+        return array;
+    }
+}
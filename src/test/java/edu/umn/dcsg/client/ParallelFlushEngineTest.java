@@ -0,0 +1,176 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.RegModel;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ParallelFlushEngineTest
+{
+    /// Every cell and model is produced by the serial code, so a flush on
+    /// the pool must give exactly the serial results.
+
+    @Test
+    public void linearMatchesSerialTest()
+    {
+        pCompare(true);
+    }
+
+    @Test
+    public void monotonicMatchesSerialTest()
+    {
+        pCompare(false);
+    }
+
+    @Test
+    public void defaultEngineShutsDownStalePoolsTest()
+    {
+        final int parallelism = Config.FLUSH_PARALLELISM;
+        try
+        {
+            Config.FLUSH_PARALLELISM = 2;
+            final ParallelFlushEngine first = ParallelFlushEngine.acquireDefault();
+            assertEquals(2, first.getParallelism());
+            first.release();
+
+            Config.FLUSH_PARALLELISM = 3;
+            final ParallelFlushEngine second = ParallelFlushEngine.acquireDefault();
+            assertNotSame(first, second);
+            assertTrue(first.isShutdown());
+            assertEquals(3, second.getParallelism());
+            second.release();
+
+            Config.FLUSH_PARALLELISM = 1;
+            assertNull(ParallelFlushEngine.acquireDefault());
+            assertTrue(second.isShutdown());
+        }
+        finally
+        {
+            Config.FLUSH_PARALLELISM = parallelism;
+            pReleaseIfHeld(ParallelFlushEngine.acquireDefault());
+        }
+    }
+
+    // A flush still holding a replaced engine keeps using it; the pool shuts
+    // down once that flush is done
+    @Test
+    public void retiredEngineOutlivesItsFlushesTest()
+    {
+        final int parallelism = Config.FLUSH_PARALLELISM;
+        try
+        {
+            Config.FLUSH_PARALLELISM = 2;
+            final ParallelFlushEngine held = ParallelFlushEngine.acquireDefault();
+
+            Config.FLUSH_PARALLELISM = 3;
+            final ParallelFlushEngine current = ParallelFlushEngine.acquireDefault();
+            assertNotSame(held, current);
+            assertTrue(!held.isShutdown());
+
+            final int[] squares = new int[100];
+            held.forEach(squares.length, (i) -> squares[i] = i * i);
+            assertEquals(99 * 99, squares[99]);
+
+            held.release();
+            assertTrue(held.isShutdown());
+            assertTrue(!current.isShutdown());
+            current.release();
+        }
+        finally
+        {
+            Config.FLUSH_PARALLELISM = parallelism;
+            pReleaseIfHeld(ParallelFlushEngine.acquireDefault());
+        }
+    }
+
+    // Keeps the shared engine in step with the restored setting
+    protected static void pReleaseIfHeld(ParallelFlushEngine engine)
+    {
+        if(engine != null) engine.release();
+    }
+
+    protected void pCompare(boolean linear)
+    {
+        final boolean linearDependence = Config.LINEAR_DEPENDENCE;
+        final int parallelism = Config.FLUSH_PARALLELISM;
+        final ParallelFlushEngine engine = new ParallelFlushEngine(new ForkJoinPool(4), 8);
+
+        try
+        {
+            Config.LINEAR_DEPENDENCE = linear;
+            Config.FLUSH_PARALLELISM = 1;
+
+            TTLDataCache cache = pBuildCache(45, 0xF1A5);
+
+            cache.beginFlush();
+            final double[][] serialDep = cache.getDependenceMatrix();
+            final int[] serialPredictors = cache.getPredictors();
+            final RegModel[] serialModels = cache.getAllPredictiveModels(serialPredictors);
+            cache.endFlush();
+
+            cache.setFlushEngine(engine);
+            cache.beginFlush();
+            final double[][] parallelDep = cache.getDependenceMatrix();
+            final int[] parallelPredictors = cache.getPredictors();
+            final RegModel[] parallelModels = cache.getAllPredictiveModels(parallelPredictors);
+            cache.endFlush();
+
+            for(int i=0; i < serialDep.length; i++)
+            {
+                assertArrayEquals(serialDep[i], parallelDep[i], 0.0);
+            }
+            assertArrayEquals(serialPredictors, parallelPredictors);
+
+            for(int i=0; i < serialModels.length; i++)
+            {
+                if(serialModels[i] == null)
+                {
+                    assertNull(parallelModels[i]);
+                    continue;
+                }
+                assertArrayEquals(serialModels[i].estimateRegressionParameters(),
+                                  parallelModels[i].estimateRegressionParameters(), 0.0);
+                assertEquals(serialModels[i].getSanatizedRSquared(),
+                             parallelModels[i].getSanatizedRSquared(), 0.0);
+            }
+        }
+        finally
+        {
+            Config.LINEAR_DEPENDENCE = linearDependence;
+            Config.FLUSH_PARALLELISM = parallelism;
+            engine.shutdown();
+        }
+    }
+
+    // Streams with their own sample counts and times, so the series have to
+    // be interpolated onto grids of several lengths
+    protected TTLDataCache pBuildCache(int streamCount, long seed)
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(seed);
+        TTLDataCache cache = new TTLDataCache();
+
+        for(int s=0; s < streamCount; s++)
+        {
+            final int count = 5 + rng.nextInt(winDuration);
+            final double scale = rng.nextGaussian();
+            for(int i=0; i < count; i++)
+            {
+                final long time = rng.nextInt(winDuration);
+                final double value = 20.0 + scale * Math.sin(time / 10.0) + 0.3 * rng.nextGaussian();
+                cache.insert(s, value, time, "");
+            }
+        }
+
+        return cache;
+    }
+}
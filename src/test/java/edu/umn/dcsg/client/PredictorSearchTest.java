@@ -0,0 +1,164 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.DataFileIOMgr;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PredictorSearchTest
+{
+    /// Like AppTest, this is a report more than a unit test. It prints the
+    /// recall/speed trade-off and asserts a minimum recall per size.
+
+    @Test
+    public void predictorSearchRecallTest()
+    {
+        final boolean useSketch = Config.USE_PREDICTOR_SKETCH;
+        final int minStreams = Config.PREDICTOR_SKETCH_MIN_STREAMS;
+
+        try
+        {
+            Config.PREDICTOR_SKETCH_MIN_STREAMS = 0;
+
+            System.out.println("Predictor search: recall vs. speed");
+            System.out.println(String.format("  %-8s %8s %12s %12s %10s %10s %10s",
+                                             "trace", "streams", "exact (ms)", "sketch (ms)",
+                                             "recall", "within 5%", "dep ratio"));
+
+            pReportPredictorSearch("mvnorm", pLoadMVNormWindow(), 1.0);
+            pReportPredictorSearch("synth", pBuildSyntheticWindow(500, 0xC0FFEE), 0.9);
+            pReportPredictorSearch("synth", pBuildSyntheticWindow(2000, 0xBEEF), 0.85);
+            pReportPredictorSearch("synth", pBuildSyntheticWindow(5000, 0xFACE), 0.8);
+        }
+        finally
+        {
+            Config.USE_PREDICTOR_SKETCH = useSketch;
+            Config.PREDICTOR_SKETCH_MIN_STREAMS = minStreams;
+        }
+    }
+
+    // The buckets hand each stream a shrinking share of the other streams as
+    // the stream count grows
+    @Test
+    public void candidateGrowthTest()
+    {
+        double previous = 1.0;
+        for(int streamCount : new int[]{ 1000, 4000 })
+        {
+            final TTLDataCache cache = pBuildSyntheticWindow(streamCount, 0xD00D + streamCount);
+            final List<Integer> streamIds = cache.getStreamIds();
+            double[][] values = new double[streamCount][];
+            long[][] times = new long[streamCount][];
+            for(int i=0; i < streamCount; i++)
+            {
+                values[i] = cache.mStreams.get(streamIds.get(i)).getArray();
+                times[i] = cache.mStreams.get(streamIds.get(i)).getTimeArray();
+            }
+
+            PredictorSketchIndex index = new PredictorSketchIndex();
+            index.search(values, times, (i, j) -> 0.0, new double[streamCount]);
+
+            final double share = ((double)index.getCandidateCount()) / streamCount / (streamCount - 1);
+            assertTrue(share < previous);
+            assertTrue(index.getExactScoreCount() <= streamCount * Config.SKETCH_CANDIDATES);
+            previous = share;
+        }
+        assertTrue(previous < 0.3);
+    }
+
+    protected void pReportPredictorSearch(String name, TTLDataCache cache, double minRecall)
+    {
+        Config.USE_PREDICTOR_SKETCH = false;
+        cache.beginFlush();
+        long start = System.nanoTime();
+        final int[] exact = cache.getPredictors();
+        final double exactMs = (System.nanoTime() - start) / 1.0e6;
+        final double[] exactDep = cache.getDependenceForPredictors();
+        cache.endFlush();
+
+        Config.USE_PREDICTOR_SKETCH = true;
+        cache.beginFlush();
+        start = System.nanoTime();
+        final int[] sketch = cache.getPredictors();
+        final double sketchMs = (System.nanoTime() - start) / 1.0e6;
+        final double[] sketchDep = cache.getDependenceForPredictors();
+        cache.endFlush();
+
+        // Recall of the exact best predictor, and how much of the best
+        // achievable dependence the sketch choice retains.
+        int hits = 0;
+        int close = 0;
+        double ratio = 0.0;
+        for(int i=0; i < exact.length; i++)
+        {
+            final double streamRatio = (exactDep[i] > 0.0) ? (sketchDep[i] / exactDep[i]) : 1.0;
+            if(exact[i] == sketch[i]) hits++;
+            if(streamRatio >= 0.95) close++;
+            ratio += streamRatio;
+        }
+        ratio /= exact.length;
+
+        System.out.println(String.format("  %-8s %8d %12.1f %12.1f %10.3f %10.3f %10.3f",
+                                         name, exact.length, exactMs, sketchMs,
+                                         ((double)hits) / exact.length,
+                                         ((double)close) / exact.length,
+                                         ratio));
+
+        assertTrue(ratio > 0.8);
+        assertTrue(((double)hits) / exact.length >= minRecall);
+    }
+
+    protected TTLDataCache pLoadMVNormWindow()
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        TTLDataCache cache = new TTLDataCache();
+
+        List<StreamTuple> window = new DataFileIOMgr().readWindow(winDuration);
+        for(StreamTuple st : window)
+        {
+            cache.insert(st.mStreamId, st.mValue, st.mTime % winDuration, st.mMetadata);
+        }
+        return cache;
+    }
+
+    // Streams driven by a small set of latent factors with varying noise,
+    // sampled on irregular schedules over one window.
+    protected TTLDataCache pBuildSyntheticWindow(int streamCount, long seed)
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final int factorCount = Math.max(2, streamCount / 20);
+        Random rng = new Random(seed);
+        TTLDataCache cache = new TTLDataCache();
+
+        double[][] factors = new double[factorCount][winDuration];
+        for(int f=0; f < factorCount; f++)
+        {
+            double level = 0.0;
+            for(int t=0; t < winDuration; t++)
+            {
+                level += rng.nextGaussian();
+                factors[f][t] = level;
+            }
+        }
+
+        for(int s=0; s < streamCount; s++)
+        {
+            final int factor = rng.nextInt(factorCount);
+            final double loading = (rng.nextBoolean() ? 1.0 : -1.0) * (0.5 + rng.nextDouble());
+            final double noise = 0.2 + 2.0 * rng.nextDouble();
+
+            for(int t=rng.nextInt(4); t < winDuration; t += 2 + rng.nextInt(4))
+            {
+                cache.insert(s, 50.0 + loading * factors[factor][t] + noise * rng.nextGaussian(),
+                             t, "");
+            }
+        }
+        return cache;
+    }
+}
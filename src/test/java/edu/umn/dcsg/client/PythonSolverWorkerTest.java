@@ -0,0 +1,112 @@
+package edu.umn.dcsg.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PythonSolverWorkerTest
+{
+    /// A stand-in for opt_worker.py that takes a while to start, fails its
+    /// first problem and answers the rest with ones. The real worker needs
+    /// scipy, the protocol does not.
+
+    protected static final String FAKE_WORKER =
+        "import struct, sys, time\n" +
+        "IN = sys.stdin.buffer\n" +
+        "OUT = sys.stdout.buffer\n" +
+        "def read(fmt, count):\n" +
+        "    size = struct.calcsize('>' + fmt) * count\n" +
+        "    data = IN.read(size)\n" +
+        "    if len(data) < size: sys.exit(0)\n" +
+        "    return struct.unpack('>' + (fmt * count), data)\n" +
+        "time.sleep(1.0)\n" +
+        "OUT.write(struct.pack('>i', 0x52454459))\n" +
+        "OUT.flush()\n" +
+        "failed = False\n" +
+        "while True:\n" +
+        "    k = read('i', 1)[0]\n" +
+        "    if k < 0: sys.exit(0)\n" +
+        "    read('d', 1); read('q', 2 * k); read('i', k); read('d', 6 * k)\n" +
+        "    read('d', read('i', 1)[0])\n" +
+        "    if not failed:\n" +
+        "        failed = True\n" +
+        "        OUT.write(struct.pack('>i', -1))\n" +
+        "    else:\n" +
+        "        OUT.write(struct.pack('>i', 2 * k) + struct.pack('>' + ('d' * 2 * k), *([1.0] * 2 * k)))\n" +
+        "    OUT.flush()\n";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Startup is not charged to the first request, and a problem the worker
+    // could not solve leaves it running
+    @Test
+    public void startupAndFailureTest() throws Exception
+    {
+        assumeTrue(pHasPython());
+
+        final File script = mFolder.newFile("fake_worker.py");
+        Files.write(script.toPath(), FAKE_WORKER.getBytes(StandardCharsets.UTF_8));
+
+        final PythonSolverWorker worker = new PythonSolverWorker(new String[]{ "python",
+                                                                              script.getPath() });
+        final OptimizationParms parms = new OptimizationParms(6.0, new long[]{ 4, 4 }, new int[]{ 1, 0 },
+                                                              new double[2], new double[]{ 1.0, 1.0 },
+                                                              new double[]{ 1.0, 2.0 },
+                                                              new double[]{ 1.0, 1.0 },
+                                                              new double[]{ 0.5, 0.5 },
+                                                              new double[]{ 0.5, 0.5 });
+        try
+        {
+            boolean failed = false;
+            try
+            {
+                worker.solve(parms, null, 500);
+            }
+            catch(Exception e)
+            {
+                assertTrue(e.getMessage().contains("could not solve"));
+                failed = true;
+            }
+            assertTrue(failed);
+
+            final Process process = worker.mProcess;
+            assertTrue(process.isAlive());
+
+            final double[] solution = worker.solve(parms, null, 500);
+            assertSame(process, worker.mProcess);
+            assertEquals(4, solution.length);
+            double[] ones = new double[4];
+            Arrays.fill(ones, 1.0);
+            assertArrayEquals(ones, solution, 0.0);
+        }
+        finally
+        {
+            worker.shutdown();
+        }
+    }
+
+    protected static boolean pHasPython()
+    {
+        try
+        {
+            return new ProcessBuilder("python", "-c", "import struct").start().waitFor() == 0;
+        }
+        catch(IOException | InterruptedException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package edu.umn.dcsg.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SampleSizeCalculatorTest
+{
+    @Test
+    public void largestRemainderConservesBudgetTest()
+    {
+        final Random rng = new Random(7);
+
+        for(int trial=0; trial < 200; trial++)
+        {
+            final int k = 1 + rng.nextInt(50);
+            double[] weights = new double[k];
+            int[] minimums = new int[k];
+            double[] capacities = new double[k];
+            long capacity = 0;
+            long minimum = 0;
+
+            for(int i=0; i < k; i++)
+            {
+                weights[i] = (rng.nextInt(5) == 0) ? 0.0 : rng.nextDouble() * 100.0;
+                capacities[i] = rng.nextInt(20);
+                minimums[i] = 1;
+                capacity += (long)capacities[i];
+                minimum += Math.min(1, (long)capacities[i]);
+            }
+
+            final int total = (int)minimum + rng.nextInt((int)(capacity + 10));
+            int[] allocation = SampleSizeCalculator.getLargestRemainderAllocation(total, weights,
+                                                                                  minimums, capacities);
+
+            long allocated = 0;
+            for(int i=0; i < k; i++)
+            {
+                assertTrue(allocation[i] >= Math.min(1, (int)capacities[i]));
+                assertTrue(allocation[i] <= capacities[i]);
+                allocated += allocation[i];
+            }
+            assertEquals(Math.min((long)total, capacity), allocated);
+
+            // Same input, same answer
+            assertTrue(Arrays.equals(allocation,
+                       SampleSizeCalculator.getLargestRemainderAllocation(total, weights,
+                                                                          minimums, capacities)));
+        }
+    }
+
+    @Test
+    public void waterFillingTwoStreamTest()
+    {
+        // Same parameters as src/main/py/test.sh
+        OptimizationParms parms = new OptimizationParms(24.0, new long[]{ 24, 24 }, new int[]{ 1, 0 },
+                                                        new double[]{ 0.66, 0.66 }, new double[]{ 1.0, 1.0 },
+                                                        new double[]{ 31.28766680441803, 34.49739010406127 },
+                                                        new double[]{ 13.00000000000009, 25.99999999999996 },
+                                                        new double[]{ 3.6737620741928794, 7.3475241483857 },
+                                                        new double[]{ 7.33715553846164, 14.674311076923159 });
+
+        double[] sizes = SampleSizeCalculator.getWaterFillingAllocation(parms);
+
+        assertEquals(4, sizes.length);
+        pAssertFeasible(parms, sizes);
+        assertEquals(24.0, pGetSpend(parms, sizes), 0.0);
+    }
+
+    // The heuristic must settle, and do at least about as well as the
+    // gradient solver, quickly
+    @Test
+    public void waterFillingManyStreamsTest()
+    {
+        final OptimizationParms parms = pBuildManyStreams(10000, 1, 0.25);
+        final double budget = parms.mSamplesAllowed;
+
+        final long start = System.nanoTime();
+        SampleSizeCalculator.WaterLevels levels = new SampleSizeCalculator.WaterLevels(parms);
+        final boolean converged = levels.solve(budget);
+        final double[] allocation = levels.round(budget);
+        final double elapsedMs = (System.nanoTime() - start) / 1.0e6;
+
+        assertTrue(converged);
+        assertTrue(elapsedMs < 2000.0);
+        pAssertFeasible(parms, allocation);
+        assertTrue(pGetSpend(parms, allocation) >= budget - 1.0);
+
+        // Integer sizes against the gradient solver's continuous optimum
+        final double[] gradient = new JavaOptimizationSolver(parms).compute(budget);
+        assertTrue(pGetObjective(parms, allocation) <= 1.02 * pGetObjective(parms, gradient));
+    }
+
+    // Where the gradient solver converges, within 2% of it
+    @Test
+    public void waterFillingNearGradientOptimumTest()
+    {
+        for(double share : new double[]{ 0.25, 0.5 })
+        {
+            final OptimizationParms parms = pBuildManyStreams(200, 1, share);
+            final double budget = parms.mSamplesAllowed;
+
+            SampleSizeCalculator.WaterLevels levels = new SampleSizeCalculator.WaterLevels(parms);
+            assertTrue(levels.solve(budget));
+            final double[] allocation = levels.round(budget);
+            pAssertFeasible(parms, allocation);
+
+            final double[] gradient = new JavaOptimizationSolver(parms).compute(budget);
+            assertTrue(pGetObjective(parms, allocation) <= 1.02 * pGetObjective(parms, gradient));
+        }
+    }
+
+    // Random strata and predictors, with a budget of share of the observed
+    // values
+    protected OptimizationParms pBuildManyStreams(int streamCount, long seed, double share)
+    {
+        final Random rng = new Random(seed);
+
+        long[] sizes = new long[streamCount];
+        int[] predictors = new int[streamCount];
+        double[] costs = new double[streamCount];
+        double[] means = new double[streamCount];
+        double[] variance = new double[streamCount];
+        double[] vBounds = new double[streamCount];
+        double[] ecv = new double[streamCount];
+        double observed = 0.0;
+
+        for(int i=0; i < streamCount; i++)
+        {
+            sizes[i] = 20 + rng.nextInt(40);
+            predictors[i] = (i + 1 + rng.nextInt(streamCount - 1)) % streamCount;
+            costs[i] = 1.0;
+            means[i] = 10.0 * rng.nextGaussian();
+            variance[i] = 1.0 + 20.0 * rng.nextDouble();
+            vBounds[i] = 0.3 * variance[i];
+            ecv[i] = 0.8 * variance[i] * rng.nextDouble();
+            observed += sizes[i];
+        }
+
+        return new OptimizationParms(share * observed, sizes, predictors,
+                                     new double[streamCount], costs, means,
+                                     variance, vBounds, ecv);
+    }
+
+    // With only a reservoir kept, the strata are the observed populations but
+    // real samples are capped by what the reservoirs hold
+    @Test
+    public void reservoirCapacityTest() throws Exception
+    {
+        final long[] sizes = { 1000, 800, 1200, 900 };
+        final long[] capacities = { 40, 40, 40, 40 };
+
+        for(double budget : new double[]{ 60.0, 200.0 })
+        {
+            OptimizationParms parms = new OptimizationParms(budget, sizes, capacities, new int[]{ 1, 0, 1, 2 },
+                                                            new double[4], new double[]{ 1.0, 1.0, 1.0, 1.0 },
+                                                            new double[]{ 5.0, -3.0, 2.0, 0.5 },
+                                                            new double[]{ 4.0, 9.0, 2.0, 6.0 },
+                                                            new double[]{ 1.2, 2.7, 0.6, 1.8 },
+                                                            new double[]{ 2.0, 4.0, 1.0, 3.0 });
+
+            final double[][] allocations = { SampleSizeCalculator.getWaterFillingAllocation(parms),
+                                             new JavaOptimizationSolver(parms).compute(budget),
+                                             new OptimizationSolver(parms).getFallbackAllocation() };
+            for(double[] allocation : allocations)
+            {
+                for(int i=0; i < sizes.length; i++)
+                {
+                    assertTrue(allocation[i] <= capacities[i] + 1e-9);
+                }
+
+                // Everything the reservoirs hold fits in the larger budget
+                if(budget >= 160.0)
+                {
+                    for(int i=0; i < sizes.length; i++) assertEquals(40.0, allocation[i], 1e-9);
+                }
+            }
+            pAssertFeasible(parms, allocations[0]);
+        }
+    }
+
+    protected void pAssertFeasible(OptimizationParms parms, double[] allocation)
+    {
+        final int k = parms.mNumStreams;
+
+        for(int i=0; i < k; i++)
+        {
+            final int pred = parms.mPredictorStream[i];
+
+            assertEquals(Math.rint(allocation[i]), allocation[i], 0.0);
+            assertEquals(Math.rint(allocation[k + i]), allocation[k + i], 0.0);
+            assertTrue(allocation[i] >= 1.0 && allocation[i] <= parms.mStrataCapacities[i]);
+            assertTrue(allocation[k + i] >= 0.0 && allocation[k + i] <= parms.mStrataSizes[pred]);
+            assertTrue(allocation[k + i] <= allocation[pred]);
+        }
+
+        assertTrue(pGetSpend(parms, allocation) <= parms.mSamplesAllowed);
+    }
+
+    // sum_i ERR_i / (x_i + y_i), as in opt.py
+    protected double pGetObjective(OptimizationParms parms, double[] allocation)
+    {
+        final int k = parms.mNumStreams;
+        double objective = 0.0;
+
+        for(int i=0; i < k; i++)
+        {
+            final double err = Math.max(0.001, parms.mStrataVariance[i] / (1.0 + Math.abs(parms.mStrataMeans[i])));
+            objective += err / (allocation[i] + allocation[k + i]);
+        }
+
+        return objective;
+    }
+
+    protected double pGetSpend(OptimizationParms parms, double[] allocation)
+    {
+        final int k = parms.mNumStreams;
+        double spend = 0.0;
+
+        for(int i=0; i < k; i++)
+        {
+            spend += parms.mStrataCosts[i] * allocation[i];
+            if(allocation[k + i] > 0.5) spend += 1.0;
+        }
+
+        return spend;
+    }
+}
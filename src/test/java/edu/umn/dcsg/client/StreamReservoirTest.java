@@ -0,0 +1,144 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StreamReservoirTest
+{
+    @Test
+    public void memoryBoundTest()
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(11);
+
+        StreamReservoir reservoir = new StreamReservoir(64, 8, new Random(13));
+        for(int i=0; i < 100000; i++)
+        {
+            reservoir.add(rng.nextGaussian(), rng.nextInt(winDuration), "", 1.0 + rng.nextDouble());
+        }
+
+        assertEquals(64, reservoir.size());
+        assertEquals(64, reservoir.mKeys.length);
+
+        // Every time slot keeps its share
+        StreamColumns columns = new StreamColumns();
+        reservoir.drainTo(columns);
+        int[] perSlot = new int[8];
+        for(int i=0; i < columns.size(); i++)
+        {
+            perSlot[reservoir.pGetSlot(columns.getTime(i))]++;
+            if(i > 0) assertTrue(columns.getTime(i - 1) <= columns.getTime(i));
+        }
+        for(int slot=0; slot < 8; slot++) assertEquals(8, perSlot[slot]);
+    }
+
+    @Test
+    public void inclusionProbabilityTest()
+    {
+        final Random rng = new Random(17);
+        final double[] weights = { 1.0, 2.0, 3.0, 4.0 };
+        final int trials = 40000;
+
+        // With room for one item, A-Res keeps item i with probability w_i / sum(w)
+        int[] kept = new int[weights.length];
+        for(int trial=0; trial < trials; trial++)
+        {
+            StreamReservoir reservoir = new StreamReservoir(1, 1, rng);
+            for(int i=0; i < weights.length; i++) reservoir.add(i, 0, "", weights[i]);
+
+            StreamColumns columns = new StreamColumns();
+            reservoir.drainTo(columns);
+            kept[(int)columns.getValue(0)]++;
+        }
+
+        for(int i=0; i < weights.length; i++)
+        {
+            final double expected = weights[i] / 10.0;
+            final double sd = Math.sqrt(expected * (1.0 - expected) / trials);
+            assertEquals(expected, (double)kept[i] / trials, 4.0 * sd);
+        }
+
+        // Equal weights: every item is kept with probability capacity / n
+        final int n = 40;
+        kept = new int[n];
+        for(int trial=0; trial < trials / 4; trial++)
+        {
+            StreamReservoir reservoir = new StreamReservoir(10, 1, rng);
+            for(int i=0; i < n; i++) reservoir.add(i, 0, "", 1.0);
+
+            StreamColumns columns = new StreamColumns();
+            reservoir.drainTo(columns);
+            for(int i=0; i < columns.size(); i++) kept[(int)columns.getValue(i)]++;
+        }
+
+        final double expected = 10.0 / n;
+        final double sd = Math.sqrt(expected * (1.0 - expected) / (trials / 4));
+        for(int i=0; i < n; i++)
+        {
+            assertEquals(expected, (double)kept[i] / (trials / 4), 4.0 * sd);
+        }
+    }
+
+    @Test
+    public void cacheCapsAllocationsTest()
+    {
+        final boolean reservoirCache = Config.USE_RESERVOIR_CACHE;
+        final int reservoirSize = Config.RESERVOIR_SIZE;
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(19);
+
+        try
+        {
+            Config.USE_RESERVOIR_CACHE = true;
+            Config.RESERVOIR_SIZE = 16;
+
+            // Two busy streams and a quiet one
+            TTLDataCache cache = new TTLDataCache();
+            for(int i=0; i < 2000; i++)
+            {
+                cache.insert(0, rng.nextGaussian(), rng.nextInt(winDuration), "");
+                cache.insert(1, 5.0 + rng.nextGaussian(), rng.nextInt(winDuration), "");
+            }
+            for(int i=0; i < 5; i++) cache.insert(2, rng.nextGaussian(), 20 * i, "");
+
+            final long[] observed = cache.getObservedCountByStream();
+            assertEquals(16, observed[0]);
+            assertEquals(16, observed[1]);
+            assertEquals(5, observed[2]);
+            assertEquals(2000.0, cache.getPopulationSizeByStream()[0], 0.0);
+
+            // The whole budget is spent on values the reservoirs hold...
+            List<StreamTuple> samples = cache.getSimpleRandomSample(30);
+            assertEquals(30, samples.size());
+
+            // ...up to everything they hold
+            samples = cache.getSimpleRandomSample(1000);
+            assertEquals(37, samples.size());
+
+            int[] sizes = SampleSizeCalculator.getProportionalAllocation(30.0,
+                                                                         cache.getPopulationSizeByStream(),
+                                                                         cache.getObservedCountByStreamDouble());
+
+            int total = 0;
+            for(int i=0; i < sizes.length; i++)
+            {
+                assertTrue(sizes[i] <= observed[i]);
+                total += cache.getSampleForStream(cache.getStreamIds().get(i), sizes[i]).size();
+            }
+            assertEquals(30, total);
+        }
+        finally
+        {
+            Config.USE_RESERVOIR_CACHE = reservoirCache;
+            Config.RESERVOIR_SIZE = reservoirSize;
+        }
+    }
+}
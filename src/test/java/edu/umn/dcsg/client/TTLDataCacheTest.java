@@ -0,0 +1,153 @@
+package edu.umn.dcsg.client;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TTLDataCacheTest
+{
+    /// Per-stream results of the cache follow the sorted stream ids, even
+    /// when the ids are sparse or large enough to scramble HashMap order.
+
+    protected static final int[] STREAM_IDS = { 100, 5, 4097, 33, 70000, 17 };
+    protected static final int[] OBSERVED = { 3, 60, 2, 45, 1, 30 };
+
+    protected static TTLDataCache pFillCache()
+    {
+        TTLDataCache cache = new TTLDataCache();
+        for(int s=0; s < STREAM_IDS.length; s++)
+        {
+            for(int i=0; i < OBSERVED[s]; i++)
+            {
+                cache.insert(STREAM_IDS[s], 1000.0 * s + i, i, "");
+            }
+        }
+        return cache;
+    }
+
+    @Test
+    public void simpleRandomSampleSparseIdsTest()
+    {
+        final TTLDataCache cache = pFillCache();
+        final int budget = 80;
+
+        // The allocation the sample must follow, in sorted id order
+        final List<Integer> streamIds = cache.getStreamIds();
+        assertEquals(pSortedIds().length, streamIds.size());
+        double[] weights = new double[streamIds.size()];
+        int[] minimums = new int[streamIds.size()];
+        double[] capacities = new double[streamIds.size()];
+        for(int i=0; i < streamIds.size(); i++)
+        {
+            weights[i] = 1.0;
+            minimums[i] = 1;
+            capacities[i] = OBSERVED[pIndexOf(streamIds.get(i))];
+        }
+        final int[] expected = SampleSizeCalculator.getLargestRemainderAllocation(budget, weights,
+                                                                                 minimums, capacities);
+
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for(StreamTuple st : cache.getSimpleRandomSample(budget))
+        {
+            counts.merge(st.mStreamId, 1, Integer::sum);
+        }
+
+        int total = 0;
+        for(int i=0; i < streamIds.size(); i++)
+        {
+            final int count = counts.getOrDefault(streamIds.get(i), 0);
+            assertEquals(expected[i], count);
+            total += count;
+        }
+        assertEquals(budget, total);
+    }
+
+    @Test
+    public void exactAggregatesSparseIdsTest()
+    {
+        final TTLDataCache cache = pFillCache();
+        final List<StreamTuple> aggregates = TTLDataCache.stringToExactAggregates(cache.exactAggregatesToString());
+        final int[] sorted = pSortedIds();
+
+        assertEquals(4 * sorted.length, aggregates.size());
+        for(int i=0; i < sorted.length; i++)
+        {
+            // Values of stream s are 1000 * s + [0, observed)
+            final int s = pIndexOf(sorted[i]);
+            assertEquals(1000.0 * s + (OBSERVED[s] - 1) / 2.0, aggregates.get(4*i).mValue, 1e-9);
+            assertEquals(1000.0 * s, aggregates.get(4*i + 2).mValue, 0.0);
+            assertEquals(1000.0 * s + OBSERVED[s] - 1, aggregates.get(4*i + 3).mValue, 0.0);
+        }
+    }
+
+    // A stream's first value in a reservoir counts as one time unit, not as
+    // everything since time zero, and the imputation still sees every value
+    // observed as the stream's population
+    @Test
+    public void reservoirFirstValueTest()
+    {
+        final boolean reservoir = Config.USE_RESERVOIR_CACHE;
+        final int size = Config.RESERVOIR_SIZE;
+        final int slots = Config.RESERVOIR_SLOTS;
+
+        try
+        {
+            Config.USE_RESERVOIR_CACHE = true;
+            Config.RESERVOIR_SIZE = 1;
+            Config.RESERVOIR_SLOTS = 1;
+
+            // Every stream has its own reservoir RNG
+            final int streams = 400;
+            final int values = 40;
+            TTLDataCache cache = new TTLDataCache();
+            for(int streamId=0; streamId < streams; streamId++)
+            {
+                for(int i=0; i < values; i++) cache.insert(streamId, i, 100 + i, "");
+            }
+
+            // Equal weights keep the first value in 1 / values of the streams
+            int firstKept = 0;
+            for(int streamId=0; streamId < streams; streamId++)
+            {
+                final List<StreamTuple> sample = cache.getSampleForStream(streamId, 1);
+                assertEquals(1, sample.size());
+                if(sample.get(0).mValue == 0.0) firstKept++;
+            }
+            assertTrue(firstKept < 3 * streams / values);
+
+            assertEquals(values, cache.getPopulationCountByStream()[0]);
+            assertEquals(1, cache.getObservedCountByStream()[0]);
+        }
+        finally
+        {
+            Config.USE_RESERVOIR_CACHE = reservoir;
+            Config.RESERVOIR_SIZE = size;
+            Config.RESERVOIR_SLOTS = slots;
+        }
+    }
+
+    protected static int[] pSortedIds()
+    {
+        int[] sorted = STREAM_IDS.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    protected static int pIndexOf(int streamId)
+    {
+        for(int s=0; s < STREAM_IDS.length; s++)
+        {
+            if(STREAM_IDS[s] == streamId) return s;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,87 @@
+package edu.umn.dcsg.common;
+
+import edu.umn.dcsg.server.CloudAggregationBolt;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import org.apache.storm.serialization.SerializationFactory;
+import org.apache.storm.utils.Utils;
+
+import org.junit.Test;
+
+public class BinaryPayloadSerializerTest
+{
+    @Test
+    public void kryoRoundTripTest()
+    {
+        Kryo kryo = new Kryo();
+        kryo.register(BinaryPayload.class, new BinaryPayloadSerializer());
+
+        BinaryPayload tuple = new BinaryPayload(GenericPayload.TYPE_TUPLE, 12, -3.75, 1L << 40, "meta");
+        BinaryPayload header = new BinaryPayload(GenericPayload.TYPE_HEADER);
+        header.setWindow(4, 17);
+        header.setText("0:1,2;3");
+        BinaryPayload model = new BinaryPayload(GenericPayload.TYPE_IMPUTATION_MODEL, 5, 0.0, 0, null);
+        model.setModel(new ModelInfo("1:12:2.5:0.1:0.5:1.5"));
+
+        for(BinaryPayload payload : new BinaryPayload[]{ tuple, header, model })
+        {
+            BinaryPayload copy = pRoundTrip(kryo, payload);
+
+            assertEquals(payload.getType(), copy.getType());
+            assertEquals(payload.getStreamId(), copy.getStreamId());
+            assertEquals(payload.getValue(), copy.getValue(), 0.0);
+            assertEquals(payload.getTime(), copy.getTime());
+            assertEquals(payload.getText(), copy.getText());
+
+            if(payload.getModel() == null)
+            {
+                assertNull(copy.getModel());
+            }
+            else
+            {
+                assertEquals(payload.getModel().toString(), copy.getModel().toString());
+            }
+        }
+
+        assertEquals(4, pRoundTrip(kryo, header).getEdgeId());
+        assertEquals(17L, pRoundTrip(kryo, header).getWindowId());
+    }
+
+    // The bolts' component configurations are merged into the topology's,
+    // so Storm's own Kryo setup picks up both serializers
+    @Test
+    public void topologyRegistrationTest()
+    {
+        Map<String, Object> conf = Utils.readDefaultConfig();
+        conf.putAll(new CloudAggregationBolt().getComponentConfiguration());
+
+        Kryo kryo = SerializationFactory.getKryo(conf);
+        assertTrue(kryo.getRegistration(BinaryPayload.class).getSerializer() instanceof BinaryPayloadSerializer);
+        assertTrue(kryo.getRegistration(SampleFrame.class).getSerializer() instanceof SampleFrameSerializer);
+
+        BinaryPayload tuple = new BinaryPayload(GenericPayload.TYPE_TUPLE, 3, 2.5, 99, "");
+        Output output = new Output(256, -1);
+        kryo.writeClassAndObject(output, tuple);
+        BinaryPayload copy = (BinaryPayload)kryo.readClassAndObject(new Input(output.toBytes()));
+
+        assertEquals(3, copy.getStreamId());
+        assertEquals(2.5, copy.getValue(), 0.0);
+        assertEquals(99L, copy.getTime());
+    }
+
+    protected BinaryPayload pRoundTrip(Kryo kryo, BinaryPayload payload)
+    {
+        Output output = new Output(256, -1);
+        kryo.writeObject(output, payload);
+        return kryo.readObject(new Input(output.toBytes()), BinaryPayload.class);
+    }
+}
@@ -0,0 +1,20 @@
+package edu.umn.dcsg.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BinaryPayloadTest
+{
+    @Test
+    public void stringFormSizeInBytesTest()
+    {
+        // type, stream id, value, time and metadata fields
+        BinaryPayload ascii = new BinaryPayload(GenericPayload.TYPE_TUPLE, 12, 2.5, 40, "abc");
+        assertEquals(1 + 2 + 3 + 2 + 3, ascii.getStringFormSize());
+
+        // Two bytes for the micro sign and three for the euro sign
+        BinaryPayload wide = new BinaryPayload(GenericPayload.TYPE_TUPLE, 12, 2.5, 40, "\u00b5\u20ac");
+        assertEquals(1 + 2 + 3 + 2 + 5, wide.getStringFormSize());
+    }
+}
@@ -0,0 +1,132 @@
+package edu.umn.dcsg.common;
+
+import edu.umn.dcsg.client.TTLDataCache;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+public class IncrementalRegModelTest
+{
+    /// The incremental model must report what RegModel reports on the same
+    /// points: beta, the standard error and R^2 (as used by ModelInfo), and
+    /// the parameter variances behind the standard errors of beta.
+
+    protected static final double TOLERANCE = 1e-6;
+
+    @Test
+    public void linearMatchesOLSTest()
+    {
+        pCompare(1, 0x1234, 50.0);
+    }
+
+    @Test
+    public void cubicMatchesOLSTest()
+    {
+        pCompare(3, 0x5678, 3.0);
+    }
+
+    @Test
+    public void cacheModelMatchesOLSTest()
+    {
+        final boolean incremental = Config.USE_INCREMENTAL_REGRESSION;
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(42);
+
+        TTLDataCache cache = new TTLDataCache();
+        try
+        {
+            Config.USE_INCREMENTAL_REGRESSION = true;
+
+            // Both streams observed at every time step, so the batch
+            // interpolation and the incremental grid see the same points
+            for(int t=0; t < winDuration; t++)
+            {
+                final double x = 10.0 + rng.nextGaussian();
+                cache.insert(0, x, t, "");
+                cache.insert(1, 2.0 * x - 0.1 * x * x + rng.nextGaussian(), t, "");
+            }
+
+            RegModel incrementalModel = cache.getPredictiveModel(1, 0);
+
+            Config.USE_INCREMENTAL_REGRESSION = false;
+            RegModel batchModel = cache.getPredictiveModel(1, 0);
+
+            assertNotNull(incrementalModel);
+            pAssertSameModel(batchModel, incrementalModel);
+        }
+        finally
+        {
+            Config.USE_INCREMENTAL_REGRESSION = incremental;
+        }
+    }
+
+    protected void pCompare(int degree, long seed, double offset)
+    {
+        final Random rng = new Random(seed);
+        final int n = 500;
+
+        double[] y = new double[n];
+        double[][] x = new double[n][];
+        IncrementalRegModel incrementalModel = new IncrementalRegModel();
+
+        for(int i=0; i < n; i++)
+        {
+            final double xi = offset + rng.nextGaussian();
+            y[i] = 1.5 - 0.7 * xi + 0.05 * xi * xi * xi + rng.nextGaussian();
+            x[i] = (degree == 1) ? new double[]{ xi }
+                                 : new double[]{ xi, xi * xi, xi * xi * xi };
+            incrementalModel.addObservation(xi, y[i]);
+        }
+
+        RegModel batchModel = new RegModel();
+        batchModel.setNoIntercept(false);
+        batchModel.newSampleData(y, x);
+
+        assertEquals(true, incrementalModel.fit(degree));
+        pAssertSameModel(batchModel, incrementalModel);
+    }
+
+    protected void pAssertSameModel(RegModel expected, RegModel actual)
+    {
+        double[] expectedBeta = expected.estimateRegressionParameters();
+        double[] actualBeta = actual.estimateRegressionParameters();
+
+        assertEquals(expectedBeta.length, actualBeta.length);
+        for(int i=0; i < expectedBeta.length; i++)
+        {
+            assertEquals(expectedBeta[i], actualBeta[i],
+                         TOLERANCE * Math.max(1.0, Math.abs(expectedBeta[i])));
+        }
+
+        // (X'X)^-1, and sigma^2 (X'X)^-1 through the parameter standard errors
+        double[][] expectedVariance = expected.estimateRegressionParametersVariance();
+        double[][] actualVariance = actual.estimateRegressionParametersVariance();
+        assertEquals(expectedVariance.length, actualVariance.length);
+        for(int i=0; i < expectedVariance.length; i++)
+        {
+            for(int j=0; j < expectedVariance.length; j++)
+            {
+                assertEquals(expectedVariance[i][j], actualVariance[i][j],
+                             TOLERANCE * Math.max(1.0, Math.abs(expectedVariance[i][j])));
+            }
+        }
+
+        double[] expectedErrors = expected.estimateRegressionParametersStandardErrors();
+        double[] actualErrors = actual.estimateRegressionParametersStandardErrors();
+        for(int i=0; i < expectedErrors.length; i++)
+        {
+            assertEquals(expectedErrors[i], actualErrors[i],
+                         TOLERANCE * Math.max(1.0, Math.abs(expectedErrors[i])));
+        }
+
+        assertEquals(expected.estimateRegressionStandardError(),
+                     actual.estimateRegressionStandardError(), TOLERANCE);
+        assertEquals(expected.getSanatizedRSquared(), actual.getSanatizedRSquared(), TOLERANCE);
+        assertEquals(expected.estimateRegressandVariance(),
+                     actual.estimateRegressandVariance(), TOLERANCE);
+    }
+}
@@ -0,0 +1,46 @@
+package edu.umn.dcsg.common;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ModelInfoTest
+{
+    @Test
+    public void hornerMatchesPowerFormTest()
+    {
+        final double[] beta = { 1.5, -0.25, 0.125, 0.01 };
+        ModelInfo model = new ModelInfo(2, 10, 3.0, 0.5, beta);
+
+        final Random rng = new Random(11);
+        final int count = 1000;
+        double[] xs = new double[count];
+        double[] out = new double[count];
+        for(int i=0; i < count; i++) xs[i] = 20.0 * rng.nextGaussian();
+
+        model.evaluate(xs, count, out);
+
+        for(int i=0; i < count; i++)
+        {
+            final double x = xs[i];
+            final double expected = beta[0] + beta[1] * x + beta[2] * Math.pow(x, 2.0) +
+                                    beta[3] * Math.pow(x, 3.0);
+
+            assertEquals(expected, out[i], 1e-9 * Math.max(1.0, Math.abs(expected)));
+            assertEquals(model.evaluate(x), out[i], 0.0);
+        }
+    }
+
+    @Test
+    public void binaryRoundTripTest()
+    {
+        ModelInfo model = new ModelInfo(7, 42, -1.25, 0.75, new double[]{ 0.5, 2.0 });
+        ModelInfo copy = ModelInfo.fromBytes(model.toBytes());
+
+        assertEquals(model.getSerializedSize(), model.toBytes().length);
+        assertEquals(model.toString(), copy.toString());
+        assertEquals(model.toString(), new ModelInfo(model.toString()).toString());
+    }
+}
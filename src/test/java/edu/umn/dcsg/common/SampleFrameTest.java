@@ -0,0 +1,167 @@
+package edu.umn.dcsg.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import org.junit.Test;
+
+public class SampleFrameTest
+{
+    protected SampleFrame pBuildFrame()
+    {
+        SampleFrame frame = new SampleFrame(2, 0);
+        for(int i=0; i < 100; i++)
+        {
+            frame.addSample(i / 10, i * 0.25 - 3.0, i % 120);
+        }
+        frame.addModel(3, new ModelInfo("1:12:2.5:0.1:0.5:1.5"));
+        frame.addModel(7, new ModelInfo("2:4:1.0:0.2:0.0:1.0"));
+        frame.setAggregates("aggregates");
+        return frame;
+    }
+
+    @Test
+    public void kryoRoundTripTest()
+    {
+        Kryo kryo = new Kryo();
+        kryo.register(SampleFrame.class, new SampleFrameSerializer());
+
+        SampleFrame frame = pBuildFrame();
+        Output output = new Output(1024, -1);
+        kryo.writeObject(output, frame);
+
+        SampleFrame copy = kryo.readObject(new Input(output.toBytes()), SampleFrame.class);
+
+        assertEquals(frame.getSampleCount(), copy.getSampleCount());
+        for(int i=0; i < frame.getSampleCount(); i++)
+        {
+            assertEquals(frame.getStreamId(i), copy.getStreamId(i));
+            assertEquals(frame.getValue(i), copy.getValue(i), 0.0);
+            assertEquals(frame.getTime(i), copy.getTime(i));
+        }
+
+        assertEquals(2, copy.getModelCount());
+        assertEquals(7, copy.getModelStreamId(1));
+        assertEquals(frame.getModel(1).toString(), copy.getModel(1).toString());
+        assertEquals("aggregates", copy.getAggregates());
+    }
+
+    @Test
+    public void rawSizeCountsAggregateBytesTest()
+    {
+        SampleFrame frame = pBuildFrame();
+        final long asciiSize = frame.getRawSize();
+
+        // Same length in characters, one byte more in UTF-8
+        frame.setAggregates("aggregate\u00b5");
+        assertEquals(asciiSize + 1, frame.getRawSize());
+    }
+
+    @Test
+    public void gorillaRoundTripTest()
+    {
+        final Random rng = new Random(3);
+        SampleFrame frame = new SampleFrame();
+        final double[] specials = { 0.0, -0.0, Double.NaN, Double.MAX_VALUE, Double.MIN_VALUE, 1.0e-300 };
+
+        // Streams interleaved and out of time order, as an edge might send them
+        for(int i=0; i < 2000; i++)
+        {
+            final int streamId = rng.nextInt(40) - 5;
+            final long time = (i % 97 == 0) ? (1L << 40) + rng.nextInt(1000) : rng.nextInt(120);
+            double value = Math.round(rng.nextGaussian() * 1000.0) / 100.0;
+            if(i % 50 == 0) value = specials[(i / 50) % specials.length];
+            if(i % 7 == 0) value = 4.25;
+
+            frame.addSample(streamId, value, time);
+        }
+        frame.addModel(-2, new ModelInfo("1:12:2.5:0.1:0.5:1.5"));
+        frame.setAggregates("aggregates");
+
+        final byte[] encoded = GorillaCodec.encode(frame);
+        SampleFrame copy = GorillaCodec.decode(encoded);
+
+        assertTrue(encoded.length < frame.getRawSize());
+        assertEquals(frame.getSampleCount(), copy.getSampleCount());
+        assertEquals(pSortedRows(frame), pSortedRows(copy));
+        assertEquals(-2, copy.getModelStreamId(0));
+        assertEquals(frame.getModel(0).toString(), copy.getModel(0).toString());
+        assertEquals("aggregates", copy.getAggregates());
+    }
+
+    @Test
+    public void quantizedRoundTripTest()
+    {
+        final Random rng = new Random(5);
+        final double bound = 0.01;
+        SampleFrame exact = new SampleFrame();
+        SampleFrame frame = new SampleFrame();
+
+        for(int streamId=0; streamId < 4; streamId++)
+        {
+            double[] values = new double[300];
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for(int i=0; i < values.length; i++)
+            {
+                values[i] = 50.0 * streamId + 10.0 * rng.nextGaussian();
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+
+            ValueQuantizer quantizer = ValueQuantizer.forRange(min, max, bound, 0.0);
+            frame.setQuantizer(streamId, quantizer);
+            for(int i=0; i < values.length; i++)
+            {
+                final double quantized = quantizer.quantize(values[i]);
+                assertTrue(Math.abs(quantized - values[i]) <= bound * (1.0 + 1e-9));
+
+                exact.addSample(streamId, values[i], i);
+                frame.addSample(streamId, quantized, i);
+            }
+        }
+
+        final byte[] encoded = GorillaCodec.encode(frame);
+        SampleFrame copy = GorillaCodec.decode(encoded);
+
+        assertEquals(pSortedRows(frame), pSortedRows(copy));
+        assertTrue(encoded.length < GorillaCodec.encode(exact).length / 2);
+    }
+
+    // Order within a stream is not part of the format
+    protected List<String> pSortedRows(SampleFrame frame)
+    {
+        List<String> rows = new ArrayList<String>();
+        for(int i=0; i < frame.getSampleCount(); i++)
+        {
+            rows.add(frame.getStreamId(i) + "/" + frame.getTime(i) + "/" +
+                     Double.doubleToRawLongBits(frame.getValue(i)));
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test
+    public void toPayloadsTest()
+    {
+        List<BinaryPayload> payloads = pBuildFrame().toPayloads();
+
+        assertEquals(100 + 2 + 2, payloads.size());
+        assertTrue(payloads.get(0).isHeader());
+        assertTrue(payloads.get(1).isImputationModel());
+        assertEquals(3, payloads.get(1).getStreamId());
+        assertTrue(payloads.get(3).isTuple());
+        assertEquals(-3.0, payloads.get(3).getValue(), 0.0);
+        assertTrue(payloads.get(payloads.size() - 1).isTrailer());
+        assertEquals("aggregates", payloads.get(payloads.size() - 1).getText());
+    }
+}
@@ -0,0 +1,319 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.SampleFrame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.math3.distribution.TDistribution;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AggregateQueryServiceTest
+{
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    protected static final int STREAM_COUNT = 6;
+
+    protected static final int WINDOW_DURATION = 120;
+
+    // Each window's values, the first mRealCounts of them real samples
+    protected List<SampleFrame> mWindows = new ArrayList<SampleFrame>();
+    protected List<Integer> mRealCounts = new ArrayList<Integer>();
+
+    protected static Map<Integer, StreamAccumulator> pAggregates(SampleFrame samples)
+    {
+        Map<Integer, StreamAccumulator> aggregates = new HashMap<Integer, StreamAccumulator>();
+        for(int i=0; i < samples.getSampleCount(); i++)
+        {
+            StreamAccumulator accumulator = aggregates.get(samples.getStreamId(i));
+            if(accumulator == null)
+            {
+                accumulator = new StreamAccumulator();
+                aggregates.put(samples.getStreamId(i), accumulator);
+            }
+            accumulator.add(samples.getValue(i));
+        }
+        return aggregates;
+    }
+
+    // A window of real samples over [windowId, windowId + 1) window
+    // durations, and predictions (a third of the values) at the same times
+    protected void pAppendWindow(WindowSegmentStore store, Random rng, long windowId, double offset)
+        throws IOException
+    {
+        SampleFrame samples = new SampleFrame();
+        final int count = 1 + rng.nextInt(200);
+        final int realCount = count - count / 3;
+        Map<Integer, Long> realCounts = new HashMap<Integer, Long>();
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+
+        for(int i=0; i < count; i++)
+        {
+            final int streamId = rng.nextInt(STREAM_COUNT);
+            final long time = WINDOW_DURATION * windowId + rng.nextInt(WINDOW_DURATION);
+            samples.addSample(streamId, offset + 100.0 * streamId + 5.0 * windowId + rng.nextGaussian(), time);
+            if(i < realCount)
+            {
+                realCounts.merge(streamId, 1L, Long::sum);
+                minTime = Math.min(minTime, time);
+                maxTime = Math.max(maxTime, time);
+            }
+        }
+        mWindows.add(samples);
+        mRealCounts.add(realCount);
+
+        // Only the aggregates are stored, not the samples
+        store.append((int)(windowId % 2), windowId, pAggregates(samples), realCounts, null, realCount,
+                     minTime, maxTime);
+    }
+
+    protected void pAppendWindow(WindowSegmentStore store, Random rng, long windowId) throws IOException
+    {
+        pAppendWindow(store, rng, windowId, 0.0);
+    }
+
+    // The stream's aggregates from every value of the windows whose real
+    // samples overlap [fromTime, toTime]; real[0] gets how many are real
+    protected StreamAccumulator pDirect(int streamId, long fromTime, long toTime, long[] real)
+    {
+        StreamAccumulator direct = new StreamAccumulator();
+        real[0] = 0;
+
+        for(int w=0; w < mWindows.size(); w++)
+        {
+            final SampleFrame samples = mWindows.get(w);
+            final int realCount = mRealCounts.get(w);
+
+            long minTime = Long.MAX_VALUE;
+            long maxTime = Long.MIN_VALUE;
+            for(int i=0; i < realCount; i++)
+            {
+                minTime = Math.min(minTime, samples.getTime(i));
+                maxTime = Math.max(maxTime, samples.getTime(i));
+            }
+            if(minTime > toTime || maxTime < fromTime) continue;
+
+            for(int i=0; i < samples.getSampleCount(); i++)
+            {
+                if(samples.getStreamId(i) != streamId) continue;
+                direct.add(samples.getValue(i));
+                if(i < realCount) real[0]++;
+            }
+        }
+        return direct;
+    }
+
+    protected StreamAccumulator pDirect(int streamId, long fromTime, long toTime)
+    {
+        return pDirect(streamId, fromTime, toTime, new long[1]);
+    }
+
+    protected void pAssertMatches(StreamAccumulator direct, long realCount, AggregateResult result)
+    {
+        assertEquals(direct.getN(), result.getCount());
+        assertEquals(realCount, result.getRealCount());
+        if(direct.getN() == 0)
+        {
+            assertTrue(Double.isNaN(result.getMean()));
+            assertTrue(Double.isNaN(result.getMax()));
+            return;
+        }
+
+        assertEquals(direct.getMean(), result.getMean(), 1e-9 * Math.abs(direct.getMean()));
+        assertEquals(direct.getVariance(), result.getVariance(), 1e-9 * direct.getVariance());
+        assertEquals(direct.getMin(), result.getMin(), 0.0);
+        assertEquals(direct.getMax(), result.getMax(), 0.0);
+
+        // The interval counts real samples only
+        if(realCount > 1)
+        {
+            final double t = new TDistribution(realCount - 1).inverseCumulativeProbability(0.975);
+            final double halfWidth = t * Math.sqrt(direct.getVariance() / realCount);
+            assertEquals(halfWidth, result.getUpperBound() - result.getMean(), 1e-9 * halfWidth);
+            assertEquals(halfWidth, result.getMean() - result.getLowerBound(), 1e-9 * halfWidth);
+        }
+        else
+        {
+            assertTrue(Double.isInfinite(result.getUpperBound()));
+        }
+    }
+
+    @Test
+    public void mergedMomentsTest() throws IOException
+    {
+        final Random rng = new Random(59);
+        WindowSegmentStore store = new WindowSegmentStore(mFolder.newFolder("merge"), 1 << 20);
+        for(long windowId=0; windowId < 60; windowId++) pAppendWindow(store, rng, windowId);
+
+        AggregateQueryService service = new AggregateQueryService(store, 16, 0.95);
+
+        // Arbitrary time ranges, not aligned to windows
+        for(int trial=0; trial < 50; trial++)
+        {
+            final int streamId = rng.nextInt(STREAM_COUNT);
+            final long fromTime = rng.nextInt(60 * WINDOW_DURATION);
+            final long toTime = fromTime + rng.nextInt(10 * WINDOW_DURATION);
+
+            final long[] real = new long[1];
+            final StreamAccumulator direct = pDirect(streamId, fromTime, toTime, real);
+            pAssertMatches(direct, real[0], service.query(streamId, fromTime, toTime));
+        }
+
+        AggregateResult empty = service.query(0, 1000 * WINDOW_DURATION, 2000 * WINDOW_DURATION);
+        assertEquals(0, empty.getCount());
+        assertTrue(Double.isNaN(empty.getMean()));
+        store.close();
+    }
+
+    // Streams whose values are all below zero keep their range
+    @Test
+    public void negativeValuesTest() throws IOException
+    {
+        final Random rng = new Random(71);
+        WindowSegmentStore store = new WindowSegmentStore(mFolder.newFolder("negative"), 1 << 20);
+        for(long windowId=0; windowId < 10; windowId++) pAppendWindow(store, rng, windowId, -10000.0);
+
+        AggregateQueryService service = new AggregateQueryService(store, 16, 0.95);
+        for(int streamId=0; streamId < STREAM_COUNT; streamId++)
+        {
+            final long[] real = new long[1];
+            final StreamAccumulator direct = pDirect(streamId, 0, 10 * WINDOW_DURATION, real);
+            final AggregateResult result = service.query(streamId, 0, 10 * WINDOW_DURATION);
+
+            assertTrue(result.getMax() < 0.0);
+            pAssertMatches(direct, real[0], result);
+        }
+        store.close();
+    }
+
+    // Windows persisted by a cloud without their samples are still found by
+    // time, and their predictions do not count towards the interval's n
+    @Test
+    public void cloudWindowsTest() throws IOException
+    {
+        final boolean keepSamples = Config.SEGMENT_STORE_SAMPLES;
+        final boolean thinning = Config.USE_THINNING;
+
+        try
+        {
+            Config.SEGMENT_STORE_SAMPLES = false;
+            Config.USE_THINNING = true;
+
+            WindowSegmentStoreTest.StoringCloud cloud = new WindowSegmentStoreTest.StoringCloud();
+            cloud.setSegmentStore(new WindowSegmentStore(mFolder.newFolder("cloud"), 1 << 20));
+
+            final Random rng = new Random(73);
+            for(int windowId=0; windowId < 4; windowId++)
+            {
+                SampleFrame frame = new SampleFrame();
+                frame.setWindow(1, windowId);
+                for(int i=0; i < 40; i++)
+                {
+                    frame.addSample(0, rng.nextGaussian(), WINDOW_DURATION * windowId + 3 * i);
+                }
+                frame.addModel(1, new ModelInfo(0, 5, 1.0, 0.1, new double[]{ 1.0, 2.0 }));
+                frame.setAggregates("0.0");
+                cloud.handle(frame);
+            }
+
+            // Windows 1 and 2 only
+            final AggregateQueryService service = cloud.getQueryService();
+            final AggregateResult predictor = service.query(0, WINDOW_DURATION + 50, 3 * WINDOW_DURATION - 10);
+            assertEquals(2, predictor.getWindowCount());
+            assertEquals(80, predictor.getCount());
+            assertEquals(80, predictor.getRealCount());
+
+            final AggregateResult target = service.query(1, WINDOW_DURATION + 50, 3 * WINDOW_DURATION - 10);
+            assertEquals(2, target.getWindowCount());
+            assertTrue(target.getCount() >= 10);
+            assertEquals(0, target.getRealCount());
+            assertTrue(Double.isInfinite(target.getUpperBound()));
+
+            cloud.getSegmentStore().close();
+        }
+        finally
+        {
+            Config.SEGMENT_STORE_SAMPLES = keepSamples;
+            Config.USE_THINNING = thinning;
+        }
+    }
+
+    @Test
+    public void cacheTest() throws IOException
+    {
+        final Random rng = new Random(61);
+        WindowSegmentStore store = new WindowSegmentStore(mFolder.newFolder("cache"), 1 << 20);
+        for(long windowId=0; windowId < 20; windowId++) pAppendWindow(store, rng, windowId);
+
+        AggregateQueryService service = new AggregateQueryService(store, 2, 0.95);
+
+        // Repeated polls come from the cache
+        // Windows 10 onwards, and windows 0 to 9
+        final long openFrom = 10 * WINDOW_DURATION;
+        final long openTo = 100 * WINDOW_DURATION;
+        final long closedTo = 10 * WINDOW_DURATION - 1;
+        final AggregateResult open = service.query(1, openFrom, openTo);
+        final AggregateResult closed = service.query(1, 0, closedTo);
+        assertSame(open, service.query(1, openFrom, openTo));
+        assertSame(closed, service.query(1, 0, closedTo));
+        assertEquals(2, service.getCacheHits());
+        assertEquals(2, service.getCacheMisses());
+
+        // A new window only drops the ranges it overlaps
+        pAppendWindow(store, rng, 20);
+        assertSame(closed, service.query(1, 0, closedTo));
+        final AggregateResult reopened = service.query(1, openFrom, openTo);
+        assertNotSame(open, reopened);
+        assertEquals(pDirect(1, openFrom, openTo).getN(), reopened.getCount());
+
+        // Least recently used range is evicted
+        service.query(2, 0, 5 * WINDOW_DURATION);
+        final long misses = service.getCacheMisses();
+        service.query(1, 0, closedTo);
+        assertEquals(misses + 1, service.getCacheMisses());
+        store.close();
+    }
+
+    @Test
+    public void pollBenchmarkTest() throws IOException
+    {
+        final Random rng = new Random(67);
+        WindowSegmentStore store = new WindowSegmentStore(mFolder.newFolder("poll"), 1 << 24);
+        for(long windowId=0; windowId < 2000; windowId++) pAppendWindow(store, rng, windowId);
+
+        AggregateQueryService service = new AggregateQueryService(store, 64, 0.95);
+        final int polls = 200;
+
+        long start = System.nanoTime();
+        for(int i=0; i < polls; i++) service.query(i % STREAM_COUNT, 0, 2000 * WINDOW_DURATION);
+        final double firstMs = (System.nanoTime() - start) / 1.0e6;
+
+        start = System.nanoTime();
+        for(int i=0; i < polls; i++) service.query(i % STREAM_COUNT, 0, 2000 * WINDOW_DURATION);
+        final double cachedMs = (System.nanoTime() - start) / 1.0e6;
+
+        System.out.println(String.format("Range queries over 2000 windows: %d polls, %.1f ms (%d computed), " +
+                                         "again %.2f ms (cached)",
+                                         polls, firstMs, STREAM_COUNT, cachedMs));
+
+        assertEquals(STREAM_COUNT, service.getCacheMisses());
+        assertEquals(2 * polls - STREAM_COUNT, service.getCacheHits());
+        store.close();
+    }
+}
@@ -0,0 +1,279 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.client.EdgeSimulator;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.GenericPayload;
+import edu.umn.dcsg.common.GorillaCodec;
+import edu.umn.dcsg.common.SampleFrame;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CloudSimulatorTest
+{
+    /// Several edges share one CloudSimulator. Whether they run one after
+    /// another or all at once, every window must be matched with its own
+    /// exact samples and recorded once.
+
+    protected static final int EDGES = 6;
+    protected static final int WINDOWS = 5;
+    protected static final int STREAMS = 4;
+    protected static final int VALUES_PER_WINDOW = 800;
+
+    @Test
+    public void multiEdgeTest() throws Exception
+    {
+        final int strategy = Config.STRATEGY;
+        final boolean thinning = Config.USE_THINNING;
+        final boolean quantization = Config.USE_QUANTIZATION;
+        final double relError = Config.QUANTIZATION_REL_ERROR;
+        final boolean frames = Config.USE_SAMPLE_FRAMES;
+
+        try
+        {
+            // Thinning keeps the cloud's choice of predictor samples
+            // deterministic; quantization makes the edges send exact samples
+            Config.STRATEGY = Config.IMPUTATION_STRATEGY;
+            Config.USE_THINNING = true;
+            Config.USE_QUANTIZATION = true;
+            Config.QUANTIZATION_REL_ERROR = 0.01;
+
+            for(boolean useFrames : new boolean[]{ false, true })
+            {
+                Config.USE_SAMPLE_FRAMES = useFrames;
+
+                final CloudSimulator serial = new CloudSimulator();
+                for(int edgeId=0; edgeId < EDGES; edgeId++) pRunEdge(serial, edgeId);
+
+                final CloudSimulator concurrent = new CloudSimulator();
+                Thread[] threads = new Thread[EDGES];
+                for(int edgeId=0; edgeId < EDGES; edgeId++)
+                {
+                    final int id = edgeId;
+                    threads[edgeId] = new Thread(() -> pRunEdge(concurrent, id));
+                }
+                for(Thread thread : threads) thread.start();
+                for(Thread thread : threads) thread.join();
+
+                pAssertSameResults(serial, concurrent);
+            }
+        }
+        finally
+        {
+            Config.STRATEGY = strategy;
+            Config.USE_THINNING = thinning;
+            Config.USE_QUANTIZATION = quantization;
+            Config.QUANTIZATION_REL_ERROR = relError;
+            Config.USE_SAMPLE_FRAMES = frames;
+        }
+    }
+
+    // A header for an edge whose window is still open finalizes that window
+    // first, with what arrived and without exact aggregates
+    @Test
+    public void unclosedWindowTest()
+    {
+        final CloudSimulator cloud = new CloudSimulator();
+        final int edgeId = 7;
+
+        cloud.handleEvent(edgeId, pHeader(edgeId, 1));
+        for(int i=0; i < 10; i++)
+        {
+            cloud.handleEvent(edgeId, new BinaryPayload(GenericPayload.TYPE_TUPLE, i % 2, 1.0 + i, i, ""));
+        }
+
+        cloud.handleEvent(edgeId, pHeader(edgeId, 2));
+        assertEquals(1, cloud.getFinalizedWindowCount());
+
+        for(int i=0; i < 6; i++)
+        {
+            cloud.handleEvent(edgeId, new BinaryPayload(GenericPayload.TYPE_TUPLE, i % 2, -1.0 - i, i, ""));
+        }
+        BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+        trailer.setWindow(edgeId, 2);
+        trailer.setText("-3.0:1.0:-5.0:-1.0:-4.0:1.0:-6.0:-2.0");
+        cloud.handleEvent(edgeId, trailer);
+
+        assertEquals(2, cloud.getFinalizedWindowCount());
+        assertTrue(cloud.mOpenWindows.isEmpty());
+
+        // Both windows' samples count, only the closed one has losses
+        final SimulationResults results = cloud.getResults();
+        assertEquals(16, results.getTotalCost());
+        assertEquals(1, results.mStreamActual.get(0).size());
+        assertEquals(-3.0, results.mStreamActual.get(0).get(0), 0.0);
+        assertEquals(-3.0, results.mStreamEstimated.get(0).get(0), 1e-12);
+    }
+
+    // Windows whose values are all below zero, with and without streaming
+    // aggregation
+    @Test
+    public void negativeValuesTest()
+    {
+        final boolean streaming = Config.USE_STREAMING_AGGREGATION;
+
+        try
+        {
+            for(boolean useStreaming : new boolean[]{ false, true })
+            {
+                Config.USE_STREAMING_AGGREGATION = useStreaming;
+
+                final CloudSimulator cloud = new CloudSimulator();
+                cloud.handleEvent(3, pHeader(3, 1));
+                for(int i=0; i < 6; i++)
+                {
+                    cloud.handleEvent(3, new BinaryPayload(GenericPayload.TYPE_TUPLE, i % 2, -1.0 - i, i, ""));
+                }
+                BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+                trailer.setWindow(3, 1);
+                trailer.setText("-3.0:4.0:-5.0:-1.0:-4.0:4.0:-6.0:-2.0");
+                cloud.handleEvent(3, trailer);
+
+                final SimulationResults results = cloud.getResults();
+                assertEquals(-5.0, results.mStreamEstimatedMin.get(0).get(0), 0.0);
+                assertEquals(-1.0, results.mStreamEstimatedMax.get(0).get(0), 0.0);
+                assertEquals(-6.0, results.mStreamEstimatedMin.get(1).get(0), 0.0);
+                assertEquals(-2.0, results.mStreamEstimatedMax.get(1).get(0), 0.0);
+                assertEquals(0.0, results.getMAXNormalizedRMSEAcrossAllStreams(), 0.0);
+            }
+        }
+        finally
+        {
+            Config.USE_STREAMING_AGGREGATION = streaming;
+        }
+    }
+
+    // A trailer without aggregates (an edge whose flush failed) closes the
+    // window with what arrived, like a lost trailer
+    @Test
+    public void abortedWindowTest()
+    {
+        final CloudSimulator cloud = new CloudSimulator();
+        final int edgeId = 3;
+
+        cloud.handleEvent(edgeId, pHeader(edgeId, 1));
+        for(int i=0; i < 4; i++)
+        {
+            cloud.handleEvent(edgeId, new BinaryPayload(GenericPayload.TYPE_TUPLE, 0, 2.0 * i, i, ""));
+        }
+        BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+        trailer.setWindow(edgeId, 1);
+        cloud.handleEvent(edgeId, trailer);
+
+        assertEquals(1, cloud.getFinalizedWindowCount());
+        assertTrue(cloud.mOpenWindows.isEmpty());
+        assertEquals(4, cloud.getResults().getTotalCost());
+        assertTrue(cloud.getResults().mStreamActual.isEmpty());
+    }
+
+    // Messages count the bytes the registered Kryo serializers write for
+    // them, including the class id Storm puts in front
+    @Test
+    public void wireBytesTest()
+    {
+        final boolean compression = Config.USE_FRAME_COMPRESSION;
+
+        try
+        {
+            // Class id, type, stream id, double, time, empty string, no model
+            CloudSimulator cloud = new CloudSimulator();
+            cloud.handleEvent(1, new BinaryPayload(GenericPayload.TYPE_TUPLE, 3, 2.5, 5, ""));
+            assertEquals(1 + 1 + 1 + 8 + 1 + 1 + 1, cloud.getResults().getTotalWireBytes());
+
+            SampleFrame frame = new SampleFrame();
+            frame.setWindow(1, 1);
+            for(int i=0; i < 100; i++) frame.addSample(i % 4, 10.0 + (i % 4), i);
+            frame.setAggregates("");
+
+            // Class id, flag, edge, window, count, then one byte per stream
+            // id, eight per value and one per time, no models and the string
+            Config.USE_FRAME_COMPRESSION = false;
+            cloud = new CloudSimulator();
+            cloud.handleFrame(frame);
+            assertEquals(1 + 1 + 1 + 1 + 1 + 100 * (1 + 8 + 1) + 1 + 1, cloud.getResults().getTotalWireBytes());
+            assertTrue(cloud.getResults().getTotalWireBytes() < frame.getRawSize());
+
+            // Class id, flag, length, codec bytes
+            Config.USE_FRAME_COMPRESSION = true;
+            final byte[] encoded = GorillaCodec.encode(frame);
+            cloud = new CloudSimulator();
+            cloud.handleEncodedFrame(encoded);
+            final int lengthBytes = (encoded.length < 128) ? 1 : 2;
+            assertEquals(1 + 1 + lengthBytes + encoded.length, cloud.getResults().getTotalWireBytes());
+        }
+        finally
+        {
+            Config.USE_FRAME_COMPRESSION = compression;
+        }
+    }
+
+    protected static BinaryPayload pHeader(int edgeId, long windowId)
+    {
+        BinaryPayload header = new BinaryPayload(GenericPayload.TYPE_HEADER);
+        header.setWindow(edgeId, windowId);
+        return header;
+    }
+
+    // Correlated streams with an edge-specific offset, one trailer per window
+    protected static void pRunEdge(CloudSimulator cloud, int edgeId)
+    {
+        final int winDuration = Config.getTrace().mWindowDuration;
+        final Random rng = new Random(101 + edgeId);
+
+        EdgeSimulator edge = new EdgeSimulator(cloud);
+        edge.setEdgeId(edgeId);
+
+        for(int window=1; window <= WINDOWS; window++)
+        {
+            for(int i=0; i < VALUES_PER_WINDOW; i++)
+            {
+                final int streamId = i % STREAMS;
+                final long time = (i * (long)winDuration) / VALUES_PER_WINDOW;
+                final double base = Math.sin(time / 7.0) + 0.1 * window;
+                final double value = 10.0 * (streamId + 1) * base + edgeId + 0.2 * rng.nextGaussian();
+                edge.handleEvent(new BinaryPayload(GenericPayload.TYPE_TUPLE, streamId, value, time, ""));
+            }
+            edge.handleEvent(new BinaryPayload(GenericPayload.TYPE_TRAILER));
+        }
+
+        edge.awaitFlushes();
+        edge.shutdown();
+    }
+
+    protected void pAssertSameResults(CloudSimulator expected, CloudSimulator actual)
+    {
+        final SimulationResults a = expected.getResults();
+        final SimulationResults b = actual.getResults();
+
+        assertEquals(EDGES * WINDOWS, expected.getFinalizedWindowCount());
+        assertEquals(EDGES * WINDOWS, actual.getFinalizedWindowCount());
+        assertEquals(a.getTotalCost(), b.getTotalCost());
+        assertEquals(a.getTotalWireBytes(), b.getTotalWireBytes());
+
+        // Every window was measured against its own exact samples (streams
+        // the edge only predicted have none)
+        int measured = 0;
+        for(Integer streamId : a.mStreamExactSampleMean.keySet())
+        {
+            assertEquals(a.mStreamExactSampleMean.get(streamId).size(),
+                         b.mStreamExactSampleMean.get(streamId).size());
+            measured += a.mStreamExactSampleMean.get(streamId).size();
+        }
+        assertEquals(a.mStreamExactSampleMean.keySet(), b.mStreamExactSampleMean.keySet());
+        assertTrue(measured >= EDGES * WINDOWS);
+
+        // Same values, recorded in another order
+        assertEquals(a.getAVGNormalizedRMSEAcrossAllStreams(), b.getAVGNormalizedRMSEAcrossAllStreams(), 1e-12);
+        assertEquals(a.getVARNormalizedRMSEAcrossAllStreams(), b.getVARNormalizedRMSEAcrossAllStreams(), 1e-12);
+        assertEquals(a.getMINNormalizedRMSEAcrossAllStreams(), b.getMINNormalizedRMSEAcrossAllStreams(), 1e-12);
+        assertEquals(a.getMAXNormalizedRMSEAcrossAllStreams(), b.getMAXNormalizedRMSEAcrossAllStreams(), 1e-12);
+        assertEquals(a.getQUANTNormalizedRMSEAcrossAllStreams(), b.getQUANTNormalizedRMSEAcrossAllStreams(), 1e-12);
+        assertTrue(a.getQUANTNormalizedRMSEAcrossAllStreams() > 0.0);
+    }
+}
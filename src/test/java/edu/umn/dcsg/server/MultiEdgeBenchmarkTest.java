@@ -0,0 +1,181 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.GenericPayload;
+import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MultiEdgeBenchmarkTest
+{
+    /// Feeds the windows of many simulated edges through one cloud,
+    /// interleaved so that every edge has a window open at the same time,
+    /// and checks each window comes out as it does when its edge is alone.
+
+    protected static final int EDGE_COUNT = 300;
+    protected static final int WINDOWS_PER_EDGE = 4;
+    protected static final int STREAM_COUNT = 8;
+    protected static final int THREAD_COUNT = 8;
+
+    // Summarizes each finalized window by its per-stream means
+    protected static class RecordingCloud extends AbstractCloud
+    {
+        public final Map<String, String> mSummaries = new ConcurrentHashMap<String, String>();
+
+        protected void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates)
+        {
+            for(Map.Entry<Integer, ModelInfo> entry : window.mModelsMap.entrySet())
+            {
+                pGenerateSamplesForModel(window, entry.getKey(), entry.getValue());
+            }
+
+            final Map<Integer, StreamAccumulator> aggregates = window.getStreamAggregates();
+            StringBuilder summary = new StringBuilder();
+            for(Integer streamId : window.getSortedStreamIds())
+            {
+                final StreamAccumulator accumulator = aggregates.get(streamId);
+                summary.append(streamId).append('=').append(accumulator.getSum() / accumulator.getN());
+                summary.append(';');
+            }
+
+            mSummaries.put(window.getEdgeId() + "/" + window.getWindowId(), summary.toString());
+        }
+
+        public void handle(int source, BinaryPayload payload)
+        {
+            pHandleTuple(source, payload);
+        }
+    }
+
+    protected static List<BinaryPayload> pBuildWindow(Random rng, int edgeId, int windowId)
+    {
+        List<BinaryPayload> payloads = new ArrayList<BinaryPayload>();
+
+        BinaryPayload header = new BinaryPayload(GenericPayload.TYPE_HEADER);
+        header.setWindow(edgeId, windowId);
+        payloads.add(header);
+
+        BinaryPayload model = new BinaryPayload(GenericPayload.TYPE_IMPUTATION_MODEL);
+        model.setStreamId(1);
+        model.setModel(new ModelInfo(0, 10, 5.0, 0.5, new double[]{ rng.nextDouble(), 2.0 }));
+        payloads.add(model);
+
+        for(int i=0; i < 200; i++)
+        {
+            final int streamId = rng.nextInt(STREAM_COUNT);
+            payloads.add(new BinaryPayload(GenericPayload.TYPE_TUPLE, streamId,
+                                           10.0 * streamId + rng.nextGaussian(), rng.nextInt(120), ""));
+        }
+
+        BinaryPayload trailer = new BinaryPayload(GenericPayload.TYPE_TRAILER);
+        trailer.setWindow(edgeId, windowId);
+        trailer.setText("0.0");
+        payloads.add(trailer);
+
+        return payloads;
+    }
+
+    // One edge's windows, back to back
+    protected static List<List<BinaryPayload>> pBuildEdges(Random rng)
+    {
+        List<List<BinaryPayload>> edges = new ArrayList<List<BinaryPayload>>();
+        for(int edgeId=0; edgeId < EDGE_COUNT; edgeId++)
+        {
+            List<BinaryPayload> payloads = new ArrayList<BinaryPayload>();
+            for(int windowId=1; windowId <= WINDOWS_PER_EDGE; windowId++)
+            {
+                payloads.addAll(pBuildWindow(rng, edgeId, windowId));
+            }
+            edges.add(payloads);
+        }
+        return edges;
+    }
+
+    // Round-robin over the given edges, one payload each
+    protected static void pInterleave(RecordingCloud cloud, List<List<BinaryPayload>> edges,
+                                      int firstEdge, int stride)
+    {
+        boolean pending = true;
+        for(int i=0; pending; i++)
+        {
+            pending = false;
+            for(int edgeId=firstEdge; edgeId < edges.size(); edgeId += stride)
+            {
+                final List<BinaryPayload> payloads = edges.get(edgeId);
+                if(i < payloads.size())
+                {
+                    cloud.handle(edgeId, payloads.get(i));
+                    pending = true;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void interleavedEdgesTest() throws Exception
+    {
+        final boolean thinning = Config.USE_THINNING;
+        final boolean streaming = Config.USE_STREAMING_AGGREGATION;
+
+        try
+        {
+            // Thinning picks predictor samples deterministically
+            Config.USE_THINNING = true;
+            Config.USE_STREAMING_AGGREGATION = true;
+
+            final List<List<BinaryPayload>> edges = pBuildEdges(new Random(31));
+            long payloadCount = 0;
+            for(List<BinaryPayload> payloads : edges) payloadCount += payloads.size();
+
+            RecordingCloud reference = new RecordingCloud();
+            for(int edgeId=0; edgeId < edges.size(); edgeId++)
+            {
+                for(BinaryPayload payload : edges.get(edgeId)) reference.handle(edgeId, payload);
+            }
+
+            RecordingCloud interleaved = new RecordingCloud();
+            long start = System.nanoTime();
+            pInterleave(interleaved, edges, 0, 1);
+            final double interleavedMs = (System.nanoTime() - start) / 1.0e6;
+
+            final RecordingCloud concurrent = new RecordingCloud();
+            Thread[] threads = new Thread[THREAD_COUNT];
+            for(int t=0; t < THREAD_COUNT; t++)
+            {
+                final int firstEdge = t;
+                threads[t] = new Thread(() -> pInterleave(concurrent, edges, firstEdge, THREAD_COUNT));
+            }
+
+            start = System.nanoTime();
+            for(Thread thread : threads) thread.start();
+            for(Thread thread : threads) thread.join();
+            final double concurrentMs = (System.nanoTime() - start) / 1.0e6;
+
+            System.out.println(String.format("%d edges x %d windows (%d payloads): interleaved %.1f ms, " +
+                                             "%d threads %.1f ms",
+                                             EDGE_COUNT, WINDOWS_PER_EDGE, payloadCount, interleavedMs,
+                                             THREAD_COUNT, concurrentMs));
+
+            assertEquals(EDGE_COUNT * WINDOWS_PER_EDGE, reference.getFinalizedWindowCount());
+            assertEquals(EDGE_COUNT * WINDOWS_PER_EDGE, interleaved.getFinalizedWindowCount());
+            assertEquals(EDGE_COUNT * WINDOWS_PER_EDGE, concurrent.getFinalizedWindowCount());
+            assertEquals(reference.mSummaries, interleaved.mSummaries);
+            assertEquals(reference.mSummaries, concurrent.mSummaries);
+        }
+        finally
+        {
+            Config.USE_THINNING = thinning;
+            Config.USE_STREAMING_AGGREGATION = streaming;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.BinaryPayload;
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.PredictorGraph;
+import edu.umn.dcsg.common.SampleFrame;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PredictorAwareGroupingTest
+{
+    protected static final List<Integer> TASKS = Arrays.asList(10, 11, 12, 13);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Checks every model it imputes has its predictor's samples at hand
+    protected static class CheckingCloud extends AbstractCloud
+    {
+        public int mSamples = 0;
+        public int mModels = 0;
+        public int mWindows = 0;
+
+        protected void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates)
+        {
+            for(Map.Entry<Integer, ModelInfo> entry : window.mModelsMap.entrySet())
+            {
+                assertNotNull(window.mAllSamplesMap.get(entry.getValue().getPredictorId()));
+                mModels++;
+            }
+            mSamples += (int)window.mAllStats.getN();
+            mWindows++;
+        }
+
+        public void handle(int source, BinaryPayload payload)
+        {
+            pHandleTuple(source, payload);
+        }
+    }
+
+    @Test
+    public void predictorGraphTest()
+    {
+        PredictorGraph graph = new PredictorGraph();
+        graph.add(5, 4);
+        graph.add(2, 1);
+        graph.add(1, 7);
+        graph.add(7, 0);
+        graph.addStream(9);
+        graph.addStream(2);
+
+        PredictorGraph copy = PredictorGraph.fromString(graph.toString());
+        for(int streamId : new int[]{ 0, 1, 2, 7 })
+        {
+            assertEquals(0, graph.getGroup(streamId));
+            assertEquals(0, copy.getGroup(streamId));
+        }
+        assertEquals(4, copy.getGroup(5));
+        assertEquals(3, copy.getGroup(3));
+        assertEquals(9, copy.getGroup(9));
+
+        // Lone streams are groups of their own; unknown ones are left out
+        assertTrue(copy.contains(9));
+        assertTrue(!copy.contains(3));
+        assertEquals(new TreeSet<Integer>(Arrays.asList(0, 4, 9)), copy.getGroups());
+        assertEquals(4, copy.getEdgeCount());
+        assertEquals(0, PredictorGraph.fromString("").getEdgeCount());
+    }
+
+    // Routes the windows of a few edges through the grouping to the clouds,
+    // checking where each payload goes. Fills in the streams each window
+    // has samples of (by "edge/window").
+    //
+    // @returns the number of samples and of models sent, and the number of
+    //          tasks that held a share of a window, over all windows
+    protected static int[] pRouteWindows(Random rng, PredictorAwareGrouping grouping,
+                                         Map<Integer, CheckingCloud> clouds, int edgeCount, int windowCount,
+                                         Map<String, Set<Integer>> windowStreams)
+    {
+        int totalSamples = 0;
+        int totalModels = 0;
+        int totalShares = 0;
+
+        for(int windowId=1; windowId <= windowCount; windowId++)
+        {
+            for(int edgeTask=0; edgeTask < edgeCount; edgeTask++)
+            {
+                SampleFrame frame = new SampleFrame();
+                frame.setWindow(edgeTask, windowId);
+                Set<Integer> streams = new TreeSet<Integer>();
+
+                // Chains and pairs of dependent streams among 30
+                for(int target=1; target < 30; target += 3)
+                {
+                    final int predictor = (rng.nextBoolean()) ? target - 1 : rng.nextInt(30);
+                    if(predictor == target) continue;
+                    frame.addModel(target, new ModelInfo(predictor, 5, 1.0, 0.1, new double[]{ 0.0, 1.0 }));
+                    totalModels++;
+                }
+                for(int i=0; i < 300; i++)
+                {
+                    final int streamId = rng.nextInt(30);
+                    frame.addSample(streamId, rng.nextGaussian(), rng.nextInt(120));
+                    streams.add(streamId);
+                    totalSamples++;
+                }
+                frame.setAggregates("0.0");
+                windowStreams.put(edgeTask + "/" + windowId, streams);
+
+                final PredictorGraph graph = frame.getPredictorGraph();
+                Map<Integer, Integer> groupTasks = new HashMap<Integer, Integer>();
+                List<Integer> owners = null;
+
+                for(BinaryPayload payload : frame.toPayloads())
+                {
+                    List<Integer> tasks = grouping.chooseTasks(edgeTask, new ArrayList<Object>(payload.toValues()));
+
+                    if(payload.isHeader())
+                    {
+                        owners = tasks;
+                        assertEquals(grouping.getOwnerTasks(edgeTask, graph), owners);
+                        totalShares += owners.size();
+                    }
+                    else if(payload.isTrailer())
+                    {
+                        // Only the tasks holding a group close the window
+                        assertEquals(owners, tasks);
+                        assertEquals(new TreeSet<Integer>(groupTasks.values()), new TreeSet<Integer>(owners));
+                    }
+                    else
+                    {
+                        assertEquals(1, tasks.size());
+                        assertTrue(owners.contains(tasks.get(0)));
+                        Integer previous = groupTasks.put(graph.getGroup(payload.getStreamId()), tasks.get(0));
+                        assertTrue(previous == null || previous.equals(tasks.get(0)));
+                    }
+
+                    for(Integer task : tasks) clouds.get(task).handle(edgeTask, payload);
+                }
+            }
+        }
+
+        return new int[]{ totalSamples, totalModels, totalShares };
+    }
+
+    @Test
+    public void groupsStayTogetherTest()
+    {
+        PredictorAwareGrouping grouping = new PredictorAwareGrouping();
+        grouping.prepare(null, null, TASKS);
+
+        Map<Integer, CheckingCloud> clouds = new HashMap<Integer, CheckingCloud>();
+        for(Integer task : TASKS) clouds.put(task, new CheckingCloud());
+
+        final int edgeCount = 3;
+        final int windowCount = 5;
+        final int[] totals = pRouteWindows(new Random(13), grouping, clouds, edgeCount, windowCount,
+                                           new HashMap<String, Set<Integer>>());
+
+        int samples = 0;
+        int models = 0;
+        int windows = 0;
+        for(CheckingCloud cloud : clouds.values())
+        {
+            assertTrue(cloud.mOpenWindows.isEmpty());
+            assertTrue(cloud.mSamples > 0);
+            samples += cloud.mSamples;
+            models += cloud.mModels;
+            windows += cloud.mWindows;
+        }
+
+        assertEquals(totals[0], samples);
+        assertEquals(totals[1], models);
+        assertEquals(totals[2], windows);
+    }
+
+    // Tasks of one process share the segment store, which persists each
+    // window once, with the shares of all its tasks
+    @Test
+    public void partsMergedTest() throws Exception
+    {
+        final boolean keepSamples = Config.SEGMENT_STORE_SAMPLES;
+        final File directory = mFolder.newFolder("store");
+
+        try
+        {
+            Config.SEGMENT_STORE_SAMPLES = true;
+
+            Map<Integer, CheckingCloud> clouds = new HashMap<Integer, CheckingCloud>();
+            WindowSegmentStore store = null;
+            for(Integer task : TASKS)
+            {
+                // As each CloudAggregationBolt task does in prepare()
+                PredictorAwareGrouping taskGrouping = new PredictorAwareGrouping();
+                taskGrouping.prepare(null, null, TASKS);
+
+                CheckingCloud cloud = new CheckingCloud();
+                cloud.setGrouping(taskGrouping);
+                cloud.setSegmentStore(WindowSegmentStore.open(directory, 1L << 20));
+                assertTrue(store == null || store == cloud.getSegmentStore());
+                store = cloud.getSegmentStore();
+                clouds.put(task, cloud);
+            }
+
+            PredictorAwareGrouping grouping = new PredictorAwareGrouping();
+            grouping.prepare(null, null, TASKS);
+
+            final int edgeCount = 3;
+            final int windowCount = 5;
+            Map<String, Set<Integer>> windowStreams = new HashMap<String, Set<Integer>>();
+            final int[] totals = pRouteWindows(new Random(17), grouping, clouds, edgeCount, windowCount,
+                                               windowStreams);
+
+            assertEquals(0, store.getPendingWindowCount());
+            assertEquals(edgeCount * windowCount, store.getWindowCount());
+
+            final Map<String, Set<Integer>> persistedStreams = new HashMap<String, Set<Integer>>();
+            final long[] counts = new long[3];
+            store.scan(0, Long.MAX_VALUE, WindowSegmentStore.ANY_STREAM, segment -> {
+                Set<Integer> streams = new TreeSet<Integer>();
+                for(int i=0; i < segment.getStreamCount(); i++)
+                {
+                    streams.add(segment.getStreamId(i));
+                    counts[0] += segment.getCount(i);
+                }
+                persistedStreams.put(segment.getEdgeId() + "/" + segment.getWindowId(), streams);
+                counts[1] += segment.getRealSampleCount();
+                counts[2] += segment.getSampleCount();
+            });
+
+            assertEquals(windowStreams, persistedStreams);
+            assertEquals(totals[0], counts[0]);
+            assertEquals(totals[0], counts[1]);
+            assertEquals(totals[0], counts[2]);
+
+            // The store stays open until its last holder closes it
+            for(CheckingCloud cloud : clouds.values()) cloud.pCloseSegmentStore();
+            WindowSegmentStore reopened = WindowSegmentStore.open(directory, 1L << 20);
+            assertTrue(reopened != store);
+            assertEquals(edgeCount * windowCount, reopened.getWindowCount());
+            reopened.close();
+        }
+        finally
+        {
+            Config.SEGMENT_STORE_SAMPLES = keepSamples;
+        }
+    }
+
+    // A window with a single group opens and closes on one task only
+    @Test
+    public void trailerOnlyToOwnersTest()
+    {
+        PredictorAwareGrouping grouping = new PredictorAwareGrouping();
+        grouping.prepare(null, null, TASKS);
+
+        SampleFrame frame = new SampleFrame();
+        frame.setWindow(1, 3);
+        frame.addModel(6, new ModelInfo(5, 5, 1.0, 0.1, new double[]{ 0.0, 1.0 }));
+        frame.addSample(5, 1.0, 10);
+        frame.addSample(5, 2.0, 20);
+        frame.setAggregates("0.0");
+
+        List<Integer> owners = null;
+        for(BinaryPayload payload : frame.toPayloads())
+        {
+            List<Integer> tasks = grouping.chooseTasks(1, new ArrayList<Object>(payload.toValues()));
+            assertEquals(1, tasks.size());
+            if(owners == null) owners = tasks;
+            assertEquals(owners, tasks);
+        }
+    }
+
+    @Test
+    public void framesRoutedWholeTest()
+    {
+        PredictorAwareGrouping grouping = new PredictorAwareGrouping();
+        grouping.prepare(null, null, TASKS);
+
+        SampleFrame frame = new SampleFrame();
+        frame.setWindow(2, 9);
+        List<Integer> tasks = grouping.chooseTasks(2, new ArrayList<Object>(frame.toValues()));
+
+        assertEquals(1, tasks.size());
+        assertTrue(TASKS.contains(tasks.get(0)));
+    }
+}
@@ -0,0 +1,108 @@
+package edu.umn.dcsg.server;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+import org.junit.Test;
+
+public class StreamAccumulatorTest
+{
+    @Test
+    public void matchesSummaryStatisticsTest()
+    {
+        final Random rng = new Random(9);
+
+        for(int trial=0; trial < 50; trial++)
+        {
+            StreamAccumulator accumulator = new StreamAccumulator();
+            SummaryStatistics sstats = new SummaryStatistics();
+            double sum = 0.0;
+
+            final int count = rng.nextInt(200);
+            double[] values = new double[count];
+            for(int i=0; i < count; i++) values[i] = 100.0 + 25.0 * rng.nextGaussian();
+
+            // Half one at a time, half as a batch, as samples and predictions arrive
+            for(int i=0; i < count / 2; i++) accumulator.add(values[i]);
+            double[] rest = new double[count];
+            System.arraycopy(values, count / 2, rest, 0, count - count / 2);
+            accumulator.addAll(rest, count - count / 2);
+
+            for(int i=0; i < count; i++)
+            {
+                sstats.addValue(values[i]);
+                sum += values[i];
+            }
+
+            assertEquals(count, accumulator.getN());
+            assertEquals(sum, accumulator.getSum(), 0.0);
+            if(count == 0)
+            {
+                assertTrue(Double.isNaN(accumulator.getVariance()));
+            }
+            else
+            {
+                assertEquals(sstats.getVariance(), accumulator.getVariance(), 0.0);
+                assertEquals(sstats.getMin(), accumulator.getMin(), 0.0);
+                assertEquals(sstats.getMax(), accumulator.getMax(), 0.0);
+            }
+        }
+    }
+
+    // The range of values that are all below zero, added or merged
+    @Test
+    public void negativeValuesTest()
+    {
+        StreamAccumulator empty = new StreamAccumulator();
+        assertTrue(Double.isNaN(empty.getMin()));
+        assertTrue(Double.isNaN(empty.getMax()));
+
+        StreamAccumulator accumulator = new StreamAccumulator();
+        accumulator.addAll(new double[]{ -7.5, -2.25, -40.0 }, 3);
+        assertEquals(-40.0, accumulator.getMin(), 0.0);
+        assertEquals(-2.25, accumulator.getMax(), 0.0);
+
+        StreamAccumulator merged = new StreamAccumulator();
+        merged.merge(accumulator.getN(), accumulator.getMean(), accumulator.getVariance(),
+                     accumulator.getMin(), accumulator.getMax());
+        merged.merge(2, -1.0e-3, 0.0, -1.0e-3, -1.0e-3);
+        assertEquals(-40.0, merged.getMin(), 0.0);
+        assertEquals(-1.0e-3, merged.getMax(), 0.0);
+
+        // Nor is a stream of zeros above zero
+        StreamAccumulator zeros = new StreamAccumulator();
+        zeros.addAll(new double[]{ 0.0, 0.0 }, 2);
+        assertEquals(0.0, zeros.getMax(), 0.0);
+    }
+
+    @Test
+    public void mergeTest()
+    {
+        final Random rng = new Random(19);
+        StreamAccumulator sequential = new StreamAccumulator();
+        StreamAccumulator merged = new StreamAccumulator();
+
+        for(int part=0; part < 20; part++)
+        {
+            StreamAccumulator piece = new StreamAccumulator();
+            final int count = rng.nextInt(30);
+            for(int i=0; i < count; i++)
+            {
+                final double value = 1000.0 + part + rng.nextGaussian();
+                piece.add(value);
+                sequential.add(value);
+            }
+            merged.merge(piece.getN(), piece.getMean(), piece.getVariance(), piece.getMin(), piece.getMax());
+        }
+
+        assertEquals(sequential.getN(), merged.getN());
+        assertEquals(sequential.getMean(), merged.getMean(), 1e-9);
+        assertEquals(sequential.getVariance(), merged.getVariance(), 1e-9);
+        assertEquals(sequential.getMin(), merged.getMin(), 0.0);
+        assertEquals(sequential.getMax(), merged.getMax(), 0.0);
+    }
+}
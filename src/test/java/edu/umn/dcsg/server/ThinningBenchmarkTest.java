@@ -0,0 +1,147 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ThinningBenchmarkTest
+{
+    /// Compares the indexed thinning selection with the original scan and
+    /// prints the time both take on one large stream.
+
+    protected static class BenchmarkCloud extends AbstractCloud
+    {
+        protected void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates) {}
+
+        public List<StreamTuple> select(List<StreamTuple> x, List<StreamTuple> y, int count)
+        {
+            return pGetOptimalXVals(x, y, count);
+        }
+    }
+
+    // The selection loop AbstractCloud used before the time index
+    protected static List<StreamTuple> pReferenceSelect(List<StreamTuple> x, List<StreamTuple> y, int count)
+    {
+        List<StreamTuple> samples = new ArrayList<StreamTuple>();
+        List<StreamTuple> newx = new ArrayList<>(x);
+        for(int i=0; i < count; i++)
+        {
+            long bestDist = -1;
+            int bestIdx = -1;
+
+            for(int j=0; j < newx.size(); j++)
+            {
+                long candDist = 1000000000;
+                StreamTuple candidate = newx.get(j);
+
+                for(int k=0; k < y.size(); k++)
+                {
+                    long dist = (long)Math.abs(y.get(k).mTime - candidate.mTime);
+                    if(dist < candDist) candDist = dist;
+                }
+
+                if(bestDist < candDist)
+                {
+                    bestIdx = j;
+                    bestDist = candDist;
+                }
+            }
+
+            if(bestIdx == -1)
+            {
+                break;
+            }
+
+            samples.add(newx.get(bestIdx));
+            newx.remove(bestIdx);
+        }
+        return samples;
+    }
+
+    protected static List<StreamTuple> pRandomStream(Random rng, int size, long span)
+    {
+        List<StreamTuple> samples = new ArrayList<StreamTuple>(size);
+        for(int i=0; i < size; i++)
+        {
+            samples.add(new StreamTuple(0, rng.nextDouble(), (long)(rng.nextDouble() * span)));
+        }
+        return samples;
+    }
+
+    @Test
+    public void sameSelectionTest()
+    {
+        final boolean thinning = Config.USE_THINNING;
+        final Random rng = new Random(17);
+        BenchmarkCloud cloud = new BenchmarkCloud();
+
+        try
+        {
+            Config.USE_THINNING = true;
+
+            for(int trial=0; trial < 300; trial++)
+            {
+                // Short spans give plenty of ties, long ones hit the cap
+                final long span = (trial % 3 == 0) ? 20 : ((trial % 3 == 1) ? 120 : 4000000000L);
+                List<StreamTuple> x = pRandomStream(rng, rng.nextInt(60), span);
+                List<StreamTuple> y = pRandomStream(rng, 1 + rng.nextInt(30), span);
+                final int count = rng.nextInt(70);
+
+                List<StreamTuple> expected = pReferenceSelect(x, y, count);
+                List<StreamTuple> actual = cloud.select(x, y, count);
+
+                assertEquals(expected.size(), actual.size());
+                for(int i=0; i < expected.size(); i++)
+                {
+                    assertSame(expected.get(i), actual.get(i));
+                }
+            }
+        }
+        finally
+        {
+            Config.USE_THINNING = thinning;
+        }
+    }
+
+    @Test
+    public void thinningBenchmarkTest()
+    {
+        final boolean thinning = Config.USE_THINNING;
+        final Random rng = new Random(23);
+        BenchmarkCloud cloud = new BenchmarkCloud();
+
+        try
+        {
+            Config.USE_THINNING = true;
+
+            List<StreamTuple> x = pRandomStream(rng, 2000, 120000);
+            List<StreamTuple> y = pRandomStream(rng, 500, 120000);
+            final int count = 500;
+
+            long start = System.nanoTime();
+            List<StreamTuple> expected = pReferenceSelect(x, y, count);
+            final double scanMs = (System.nanoTime() - start) / 1.0e6;
+
+            start = System.nanoTime();
+            List<StreamTuple> actual = cloud.select(x, y, count);
+            final double indexedMs = (System.nanoTime() - start) / 1.0e6;
+
+            System.out.println(String.format("Thinning selection (%d of %d x, %d y): scan %.1f ms, indexed %.1f ms",
+                                             count, x.size(), y.size(), scanMs, indexedMs));
+
+            assertEquals(expected, actual);
+        }
+        finally
+        {
+            Config.USE_THINNING = thinning;
+        }
+    }
+}
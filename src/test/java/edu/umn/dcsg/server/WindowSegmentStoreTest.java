@@ -0,0 +1,323 @@
+package edu.umn.dcsg.server;
+
+import edu.umn.dcsg.common.Config;
+import edu.umn.dcsg.common.ModelInfo;
+import edu.umn.dcsg.common.SampleFrame;
+import edu.umn.dcsg.common.StreamTuple;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WindowSegmentStoreTest
+{
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    protected static class StoringCloud extends AbstractCloud
+    {
+        protected void pAnalyzeSamples(WindowState window, List<StreamTuple> trueAggregates)
+        {
+            for(Map.Entry<Integer, ModelInfo> entry : window.mModelsMap.entrySet())
+            {
+                pGenerateSamplesForModel(window, entry.getKey(), entry.getValue());
+            }
+        }
+
+        public void handle(SampleFrame frame)
+        {
+            pHandleFrame(frame);
+        }
+    }
+
+    protected static Map<Integer, StreamAccumulator> pAggregates(SampleFrame samples)
+    {
+        Map<Integer, StreamAccumulator> aggregates = new HashMap<Integer, StreamAccumulator>();
+        for(int i=0; i < samples.getSampleCount(); i++)
+        {
+            StreamAccumulator accumulator = aggregates.get(samples.getStreamId(i));
+            if(accumulator == null)
+            {
+                accumulator = new StreamAccumulator();
+                aggregates.put(samples.getStreamId(i), accumulator);
+            }
+            accumulator.add(samples.getValue(i));
+        }
+        return aggregates;
+    }
+
+    protected static SampleFrame pRandomSamples(Random rng, int streams, int count, long startTime)
+    {
+        SampleFrame samples = new SampleFrame();
+        for(int i=0; i < count; i++)
+        {
+            samples.addSample(rng.nextInt(streams), rng.nextGaussian(), startTime + rng.nextInt(120));
+        }
+        return samples;
+    }
+
+    @Test
+    public void roundTripTest() throws IOException
+    {
+        final Random rng = new Random(41);
+        final File directory = mFolder.newFolder("store");
+        List<SampleFrame> windows = new ArrayList<SampleFrame>();
+
+        // Small segments, so the windows span several of them
+        WindowSegmentStore store = new WindowSegmentStore(directory, 8192);
+        for(int windowId=0; windowId < 40; windowId++)
+        {
+            SampleFrame samples = pRandomSamples(rng, 2 + windowId % 5, 20 + rng.nextInt(80), 120L * windowId);
+            windows.add(samples);
+            store.append(windowId % 3, windowId, pAggregates(samples), samples, samples.getSampleCount() / 2);
+        }
+        store.close();
+
+        store = new WindowSegmentStore(directory, 8192);
+        assertEquals(40, store.getWindowCount());
+        assertTrue(store.getIndex().get(39).mSegment > 0);
+
+        final List<WindowSegment> visited = new ArrayList<WindowSegment>();
+        store.scan(0, Long.MAX_VALUE, WindowSegmentStore.ANY_STREAM, segment -> visited.add(segment));
+        assertEquals(40, visited.size());
+
+        for(int windowId=0; windowId < 40; windowId++)
+        {
+            final WindowSegment segment = visited.get(windowId);
+            final SampleFrame samples = windows.get(windowId);
+            final Map<Integer, StreamAccumulator> aggregates = pAggregates(samples);
+
+            assertEquals(windowId % 3, segment.getEdgeId());
+            assertEquals(windowId, segment.getWindowId());
+            assertEquals(aggregates.size(), segment.getStreamCount());
+            for(int i=0; i < segment.getStreamCount(); i++)
+            {
+                final StreamAccumulator expected = aggregates.get(segment.getStreamId(i));
+                assertEquals(expected.getN(), segment.getCount(i));
+                assertEquals(expected.getSum() / expected.getN(), segment.getMean(i), 0.0);
+                assertEquals(expected.getVariance(), segment.getVariance(i), 0.0);
+                assertEquals(expected.getMin(), segment.getMin(i), 0.0);
+                assertEquals(expected.getMax(), segment.getMax(i), 0.0);
+            }
+
+            assertEquals(samples.getSampleCount(), segment.getSampleCount());
+            for(int i=0; i < samples.getSampleCount(); i++)
+            {
+                assertEquals(samples.getStreamId(i), segment.getSampleStreamId(i));
+                assertEquals(samples.getTime(i), segment.getSampleTime(i));
+                assertEquals(samples.getValue(i), segment.getSampleValue(i), 0.0);
+                assertEquals(i >= samples.getSampleCount() / 2, segment.isImputed(i));
+            }
+        }
+
+        // Window range, stream and time filters
+        final int[] count = { 0 };
+        store.scan(10, 19, WindowSegmentStore.ANY_STREAM, segment -> count[0]++);
+        assertEquals(10, count[0]);
+
+        count[0] = 0;
+        store.scan(0, Long.MAX_VALUE, 5, segment -> count[0]++);
+        assertEquals(8, count[0]);
+
+        count[0] = 0;
+        store.scanByTime(120L * 7, 120L * 9 - 1, WindowSegmentStore.ANY_STREAM, segment -> count[0]++);
+        assertEquals(2, count[0]);
+
+        store.close();
+    }
+
+    // Windows (and window parts) whose values are all below zero keep their
+    // ranges through the store
+    @Test
+    public void negativeValuesTest() throws IOException
+    {
+        WindowSegmentStore store = new WindowSegmentStore(mFolder.newFolder("store"), 8192);
+
+        SampleFrame whole = new SampleFrame();
+        whole.addSample(0, -3.0, 1);
+        whole.addSample(0, -9.0, 2);
+        store.append(1, 1, pAggregates(whole), whole, 2);
+
+        SampleFrame first = new SampleFrame();
+        first.addSample(0, -4.0, 1);
+        SampleFrame second = new SampleFrame();
+        second.addSample(0, -6.0, 2);
+        second.addSample(1, -0.5, 2);
+        store.appendPart(1, 2, 2, pAggregates(first), null, first, 1, 1, 1);
+        store.appendPart(1, 2, 2, pAggregates(second), null, second, 2, 2, 2);
+
+        final List<WindowSegment> visited = new ArrayList<WindowSegment>();
+        store.scan(0, Long.MAX_VALUE, WindowSegmentStore.ANY_STREAM, segment -> visited.add(segment));
+        assertEquals(2, visited.size());
+
+        assertEquals(-9.0, visited.get(0).getMin(0), 0.0);
+        assertEquals(-3.0, visited.get(0).getMax(0), 0.0);
+
+        final WindowSegment merged = visited.get(1);
+        assertEquals(2, merged.getStreamCount());
+        assertEquals(3, merged.getRealSampleCount());
+        assertEquals(2, merged.getCount(0));
+        assertEquals(2, merged.getRealCount(0));
+        assertEquals(-5.0, merged.getMean(0), 0.0);
+        assertEquals(-6.0, merged.getMin(0), 0.0);
+        assertEquals(-4.0, merged.getMax(0), 0.0);
+        assertEquals(-0.5, merged.getMax(1), 0.0);
+
+        store.close();
+    }
+
+    @Test
+    public void tornTailTest() throws IOException
+    {
+        final Random rng = new Random(43);
+        final File directory = mFolder.newFolder("torn");
+
+        WindowSegmentStore store = new WindowSegmentStore(directory, Config.SEGMENT_MAX_BYTES);
+        for(int windowId=0; windowId < 3; windowId++)
+        {
+            SampleFrame samples = pRandomSamples(rng, 4, 50, 0);
+            store.append(0, windowId, pAggregates(samples), samples, 50);
+        }
+        store.close();
+
+        // A crash part way through the next append
+        try(FileOutputStream out = new FileOutputStream(new File(directory, "segment-000000.dat"), true))
+        {
+            out.write(new byte[100]);
+        }
+        try(FileOutputStream out = new FileOutputStream(new File(directory, "index.dat"), true))
+        {
+            out.write(new byte[10]);
+        }
+
+        store = new WindowSegmentStore(directory, Config.SEGMENT_MAX_BYTES);
+        assertEquals(3, store.getWindowCount());
+
+        SampleFrame samples = pRandomSamples(rng, 4, 50, 0);
+        store.append(0, 3, pAggregates(samples), samples, 50);
+
+        final List<Long> windowIds = new ArrayList<Long>();
+        store.scan(0, Long.MAX_VALUE, WindowSegmentStore.ANY_STREAM, segment -> windowIds.add(segment.getWindowId()));
+        assertEquals(4, windowIds.size());
+        assertEquals(3L, (long)windowIds.get(3));
+        store.close();
+    }
+
+    // A directory is written by one store at a time; a second one fails to
+    // open until the first closes, while open() hands out the same store
+    @Test
+    public void lockedDirectoryTest() throws IOException
+    {
+        final File directory = mFolder.newFolder("locked");
+        WindowSegmentStore store = WindowSegmentStore.open(directory, 8192);
+        assertTrue(store == WindowSegmentStore.open(directory, 8192));
+
+        boolean failed = false;
+        try
+        {
+            new WindowSegmentStore(directory, 8192).close();
+        }
+        catch(IOException e)
+        {
+            failed = true;
+        }
+        assertTrue(failed);
+
+        store.close();
+        store.close();
+
+        WindowSegmentStore reopened = new WindowSegmentStore(directory, 8192);
+        assertEquals(0, reopened.getWindowCount());
+        reopened.close();
+    }
+
+    @Test
+    public void cloudPersistsWindowsTest() throws IOException
+    {
+        final boolean keepSamples = Config.SEGMENT_STORE_SAMPLES;
+        final boolean thinning = Config.USE_THINNING;
+        final Random rng = new Random(47);
+
+        try
+        {
+            Config.SEGMENT_STORE_SAMPLES = true;
+            Config.USE_THINNING = true;
+
+            StoringCloud cloud = new StoringCloud();
+            cloud.setSegmentStore(new WindowSegmentStore(mFolder.newFolder("cloud"), Config.SEGMENT_MAX_BYTES));
+
+            SampleFrame frame = pRandomSamples(rng, 3, 60, 0);
+            frame.setWindow(4, 17);
+            frame.addModel(7, new ModelInfo(0, 5, 1.0, 0.1, new double[]{ 1.0, 2.0 }));
+            frame.setAggregates("0.0");
+            cloud.handle(frame);
+
+            final List<WindowSegment> visited = new ArrayList<WindowSegment>();
+            cloud.getSegmentStore().scan(17, 17, 7, segment -> visited.add(segment));
+            assertEquals(1, visited.size());
+
+            final WindowSegment segment = visited.get(0);
+            assertEquals(4, segment.getEdgeId());
+            assertEquals(60, segment.getRealSampleCount());
+            // Thinning picks evenly spaced predictor samples, at least 5
+            final int imputed = segment.getSampleCount() - 60;
+            assertTrue(imputed >= 5);
+            assertEquals(imputed, segment.getCount(segment.indexOf(7)));
+            assertEquals(0, segment.getRealCount(segment.indexOf(7)));
+            assertEquals(segment.getCount(segment.indexOf(0)), segment.getRealCount(segment.indexOf(0)));
+            for(int i=60; i < segment.getSampleCount(); i++)
+            {
+                assertEquals(7, segment.getSampleStreamId(i));
+                assertTrue(segment.isImputed(i));
+            }
+            cloud.getSegmentStore().close();
+        }
+        finally
+        {
+            Config.SEGMENT_STORE_SAMPLES = keepSamples;
+            Config.USE_THINNING = thinning;
+        }
+    }
+
+    @Test
+    public void scanBenchmarkTest() throws IOException
+    {
+        final Random rng = new Random(53);
+        WindowSegmentStore store = new WindowSegmentStore(mFolder.newFolder("bench"), Config.SEGMENT_MAX_BYTES);
+
+        SampleFrame samples = pRandomSamples(rng, 32, 2000, 0);
+        Map<Integer, StreamAccumulator> aggregates = pAggregates(samples);
+        for(int windowId=0; windowId < 2000; windowId++)
+        {
+            store.append(windowId % 16, windowId, aggregates, samples, 1500);
+        }
+
+        long bytes = 0;
+        for(WindowSegmentStore.IndexEntry entry : store.getIndex()) bytes += entry.mLength;
+
+        final double[] sum = { 0.0 };
+        final long start = System.nanoTime();
+        store.scan(0, Long.MAX_VALUE, WindowSegmentStore.ANY_STREAM, segment -> {
+            for(int i=0; i < segment.getSampleCount(); i++) sum[0] += segment.getSampleValue(i);
+        });
+        final double seconds = (System.nanoTime() - start) / 1.0e9;
+
+        System.out.println(String.format("Segment scan: %d windows, %.1f MB in %.1f ms (%.0f MB/s)",
+                                         store.getWindowCount(), bytes / 1.0e6, seconds * 1000.0,
+                                         bytes / 1.0e6 / seconds));
+        store.close();
+        assertTrue(!Double.isNaN(sum[0]));
+    }
+}